@@ -0,0 +1,100 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.StubVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import org.apache.kafka.common.security.plain.PlainAuthenticateCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Latency of {@link VaultAuthenticationLoginCallbackHandler#handle(Callback[])} on its three paths:
+ *
+ * <ul>
+ *   <li>{@code cacheHit}: the secret is in the cache</li>
+ *   <li>{@code cacheMiss}: no cache, every authentication reads from the stub Vault</li>
+ *   <li>{@code notFound}: no cache and the user does not exist, Vault answers 404</li>
+ * </ul>
+ *
+ * <p>{@code vaultLatencyMicros} injects a delay in every stub Vault call. Run with {@code -prof gc} (the default of the
+ * jmh profile) for the allocation per authentication.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthenticationBenchmark {
+  private static final String USERS_PATH = "secret/kafka/users";
+  private static final String ADMIN_PATH = "secret/kafka/admin";
+
+  @Param({"0", "250"})
+  long vaultLatencyMicros;
+
+  private VaultAuthenticationLoginCallbackHandler cachedHandler;
+  private VaultAuthenticationLoginCallbackHandler uncachedHandler;
+  private final char[] password = "alicepwd".toCharArray();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StubVaultService vault = new StubVaultService(vaultLatencyMicros);
+    vault.writeSecret(USERS_PATH + "/alice", Collections.singletonMap("password", "alicepwd"));
+    Map<String, String> admin = new HashMap<>();
+    admin.put("username", "admin");
+    admin.put("password", "adminpwd");
+    vault.writeSecret(ADMIN_PATH, admin);
+
+    cachedHandler = handler(new CacheDecoratorVaultService(vault));
+    uncachedHandler = handler(vault);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    cachedHandler.close();
+    uncachedHandler.close();
+  }
+
+  @Benchmark
+  public boolean cacheHit() throws Exception {
+    return authenticate(cachedHandler, "alice");
+  }
+
+  @Benchmark
+  public boolean cacheMiss() throws Exception {
+    return authenticate(uncachedHandler, "alice");
+  }
+
+  @Benchmark
+  public boolean notFound() throws Exception {
+    return authenticate(uncachedHandler, "mallory");
+  }
+
+  private boolean authenticate(VaultAuthenticationLoginCallbackHandler handler, String username) throws Exception {
+    PlainAuthenticateCallback plainCallback = new PlainAuthenticateCallback(password);
+    handler.handle(new Callback[]{new NameCallback("username", username), plainCallback});
+    return plainCallback.authenticated();
+  }
+
+  private static VaultAuthenticationLoginCallbackHandler handler(VaultService vaultService) {
+    Map<String, String> options = new HashMap<>();
+    options.put(VaultAuthenticationLoginCallbackHandler.ADMIN_PATH, ADMIN_PATH);
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_PATH, USERS_PATH);
+    VaultAuthenticationLoginCallbackHandler handler = new VaultAuthenticationLoginCallbackHandler(vaultService);
+    handler.configure(Collections.emptyMap(), "PLAIN", Collections.singletonList(new AppConfigurationEntry(
+        VaultLoginModule.class.getName(), AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options)));
+    return handler;
+  }
+}
@@ -0,0 +1,87 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link CacheDecoratorVaultService#getSecret(String)} under contention.
+ *
+ * <p>Keys are read uniformly from a key space of {@code maximumSize / hitRatio} users, all of them in Vault, so once the
+ * cache is full about {@code hitRatio} of the reads are hits and the rest load from the stub.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+  private static final String USERS_PATH = "secret/kafka/users/";
+  private static final int MAXIMUM_SIZE = 10_000;
+
+  @Param({"1.0", "0.9", "0.5"})
+  double hitRatio;
+
+  @Param({"0"})
+  long vaultLatencyMicros;
+
+  private CacheDecoratorVaultService cache;
+  private String[] paths;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StubVaultService vault = new StubVaultService(vaultLatencyMicros);
+    paths = new String[(int) (MAXIMUM_SIZE / hitRatio)];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = USERS_PATH + "user" + i;
+      vault.writeSecret(paths[i], Collections.singletonMap("password", "pwd" + i));
+    }
+    cache = new CacheDecoratorVaultService(vault, CacheSettings.builder().maximumSize(MAXIMUM_SIZE).build());
+    for (int i = 0; i < MAXIMUM_SIZE; i++) {
+      cache.getSecret(paths[i]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    cache.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Map<String, String> getSecret1Thread() {
+    return read();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Map<String, String> getSecret4Threads() {
+    return read();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Map<String, String> getSecret16Threads() {
+    return read();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Map<String, String> getSecret64Threads() {
+    return read();
+  }
+
+  private Map<String, String> read() {
+    return cache.getSecret(paths[ThreadLocalRandom.current().nextInt(paths.length)]);
+  }
+}
@@ -0,0 +1,55 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In memory {@link VaultService} for benchmarks, optionally waiting a fixed latency per call to stand in for the network.
+ * Missing paths return an empty map like {@link HttpVaultService} does on a 404.
+ */
+public class StubVaultService implements VaultService {
+  private final Map<String, Map<String, String>> secrets = new ConcurrentHashMap<>();
+  private final long latencyNanos;
+
+  /**
+   * @param latencyMicros time each call waits before returning, 0 for none.
+   */
+  public StubVaultService(long latencyMicros) {
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+  }
+
+  @Override
+  public Map<String, String> getSecret(String path) {
+    pause();
+    return secrets.getOrDefault(path, Collections.emptyMap());
+  }
+
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    secrets.put(path, value);
+  }
+
+  @Override
+  public List<String> listSecrets(String path) {
+    pause();
+    List<String> keys = new ArrayList<>();
+    String prefix = path + "/";
+    for (String key : secrets.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key.substring(prefix.length()));
+      }
+    }
+    return keys;
+  }
+
+  private void pause() {
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reference to a {@link VaultService} of the {@link VaultServiceRegistry}, closing it releases the reference once.
+ */
+final class SharedVaultService implements VaultService {
+  private final VaultService vaultService;
+  private final Runnable release;
+  private final AtomicBoolean warmedUp;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  SharedVaultService(VaultService vaultService, Runnable release, AtomicBoolean warmedUp) {
+    this.vaultService = vaultService;
+    this.release = release;
+    this.warmedUp = warmedUp;
+  }
+
+  /**
+   * @return the shared service.
+   */
+  VaultService delegate() {
+    return vaultService;
+  }
+
+  /**
+   * Claims the warm up of the shared service, only the first caller gets true.
+   */
+  boolean claimWarmUp() {
+    return warmedUp.compareAndSet(false, true);
+  }
+
+  @Override
+  public Map<String, String> getSecret(String path) {
+    return vaultService.getSecret(path);
+  }
+
+  @Override
+  public Map<String, String> getSecretFromVault(String path) {
+    return vaultService.getSecretFromVault(path);
+  }
+
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    vaultService.writeSecret(path, value);
+  }
+
+  @Override
+  public List<String> listSecrets(String path) {
+    return vaultService.listSecrets(path);
+  }
+
+  @Override
+  public long getSecretVersion(String path) {
+    return vaultService.getSecretVersion(path);
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      release.run();
+    }
+  }
+}
@@ -1,17 +1,29 @@
 package com.ultimatesoftware.dataplatform.vaultjca;
 
-import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModule.ENV_CACHE_VAULT;
-
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics.AuthOutcome;
+import com.ultimatesoftware.dataplatform.vaultjca.password.PasswordVerifier;
 import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultService;
-import com.ultimatesoftware.dataplatform.vaultjca.services.HttpVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheWarmer;
+import com.ultimatesoftware.dataplatform.vaultjca.services.FailedAuthLimiter;
+import com.ultimatesoftware.dataplatform.vaultjca.services.KnownUsersFilter;
+import com.ultimatesoftware.dataplatform.vaultjca.services.ReauthSessions;
+import com.ultimatesoftware.dataplatform.vaultjca.services.UserDirectory;
+import com.ultimatesoftware.dataplatform.vaultjca.services.UserRoutes;
 import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
 import java.io.IOException;
-import java.util.Arrays;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
@@ -47,8 +59,31 @@ import org.slf4j.LoggerFactory;
  *     <td>Users/Clients: path =  jaas file users_path</td>
  *     <td>An entry at users_path/{username} with a kv pair as password=secret_password</td>
  *   </tr>
+ *   <tr>
+ *     <td>Users/Clients matching a prefix of users_routes: path = a path of the route</td>
+ *     <td>An entry at path/{username} with a kv pair as password=secret_password, check {@link UserRoutes}</td>
+ *   </tr>
+ *   <tr>
+ *     <td>Users/Clients with users_directory=true: path = jaas file users_path</td>
+ *     <td>A single entry at users_path with a kv pair per user as username=secret_password, check {@link UserDirectory}</td>
+ *   </tr>
  *   </tbody>
  * </table>
+ *
+ * <p>Passwords can be stored in plain text or hashed with bcrypt, argon2 or PBKDF2, check {@link PasswordVerifier}.</p>
+ *
+ * <p>With {@code auth_failure_limit=true} users failing too often are rejected without reading Vault, check
+ * {@link FailedAuthLimiter}.</p>
+ *
+ * <p>With {@code reauth_session_ttl_sec} a user logging in again with the password just verified, typically a connection
+ * re-authenticating on {@code connections.max.reauth.ms}, succeeds without reading Vault until the secret changes,
+ * check {@link ReauthSessions}.</p>
+ *
+ * <p>Every authentication is timed and recorded by outcome and listener, check {@link VaultJcaMetrics}.</p>
+ *
+ * <p>Kafka calls {@link #handle(Callback[])} on its network threads for every connection, so once the secret is cached an
+ * authentication allocates nothing: user paths are kept for the recent users, passwords are compared in place and
+ * per authentication logging is at debug level.</p>
  */
 // https://strimzi.io/2018/11/16/using-vault-with-strimzi.html
 public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCallbackHandler {
@@ -56,18 +91,57 @@ public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCall
   static final String USERS_PATH = "users_path";
   static final String ADMIN_PATH = "admin_path";
   static final String PASSWORD_MAP_ENTRY_KEY = "password";
-  private final VaultService vaultService;
+  static final String CACHE_WARMUP = "cache_warmup";
+  static final String CACHE_WARMUP_PARALLELISM = "cache_warmup_parallelism";
+  static final String CACHE_WARMUP_TIMEOUT_MS = "cache_warmup_timeout_ms";
+  static final String USERS_BLOOM_FILTER = "users_bloom_filter";
+  static final String USERS_BLOOM_FILTER_REFRESH_SEC = "users_bloom_filter_refresh_sec";
+  static final String USERS_DIRECTORY = "users_directory";
+  static final String USERS_ROUTES = "users_routes";
+  static final String USERS_DIRECTORY_REFRESH_SEC = "users_directory_refresh_sec";
+  static final String AUTH_FAILURE_LIMIT = "auth_failure_limit";
+  static final String AUTH_FAILURE_BURST = "auth_failure_burst";
+  static final String AUTH_FAILURE_BACKOFF_MS = "auth_failure_backoff_ms";
+  static final String LISTENER_NAME = "listener_name";
+  static final String PASSWORD_MEMO_TTL_SEC = "password_memo_ttl_sec";
+  static final String PASSWORD_MEMO_MAX_SIZE = "password_memo_max_size";
+  static final String REAUTH_SESSION_TTL_SEC = "reauth_session_ttl_sec";
+  static final String REAUTH_SESSION_MAX_SIZE = "reauth_session_max_size";
+  private static final long DEFAULT_BLOOM_FILTER_REFRESH_SEC = 300;
+  private static final long USER_PATHS_MAX_SIZE = 10_000;
+  private static final long DEFAULT_DIRECTORY_REFRESH_SEC = 60;
+  private static final int DEFAULT_AUTH_FAILURE_BURST = 5;
+  private static final long DEFAULT_AUTH_FAILURE_BACKOFF_MS = 1_000;
+  private static final long DEFAULT_PASSWORD_MEMO_TTL_SEC = 300;
+  private static final long DEFAULT_PASSWORD_MEMO_MAX_SIZE = 10_000;
+  private static final long DEFAULT_REAUTH_SESSION_MAX_SIZE = 100_000;
+  private static final int DEFAULT_WARMUP_PARALLELISM = 8;
+  private static final long DEFAULT_WARMUP_TIMEOUT_MS = 30_000;
+  private VaultService vaultService;
+  private boolean ownsVaultService;
+  private String listenerName = "default";
+  private final LongAdder vaultBlockedNanos = new LongAdder();
   private String usersPathVault;
+  private String usersPathPrefix;
+  // Paths of the recent users, so the hot path does not build a string per authentication
+  private final Cache<String, String> userPaths = Caffeine.newBuilder().maximumSize(USER_PATHS_MAX_SIZE).build();
+  private final Function<String, String> userPathFunction = username -> usersPathPrefix + username;
   private String adminPathVault;
+  private KnownUsersFilter knownUsersFilter;
+  private UserDirectory userDirectory;
+  private UserRoutes userRoutes;
+  private FailedAuthLimiter failedAuthLimiter;
+  private ReauthSessions reauthSessions;
+  private CacheDecoratorVaultService sessionsCache;
+  private final Consumer<String> sessionsInvalidation = this::onSecretChanged;
+  private PasswordVerifier passwordVerifier;
+  private final VaultJcaMetrics metrics = VaultJcaMetrics.instance();
 
+  /**
+   * The {@link VaultService} is created on {@link #configure(Map, String, List)} so the cache can be tuned from the jaas file,
+   * check {@link com.ultimatesoftware.dataplatform.vaultjca.services.CacheSettings}.
+   */
   public VaultAuthenticationLoginCallbackHandler() {
-    if ("true".equalsIgnoreCase(System.getenv(ENV_CACHE_VAULT))) {
-      log.debug("Cache vault enabled");
-      vaultService = new CacheDecoratorVaultService(new HttpVaultService());
-      return;
-    }
-    vaultService = new HttpVaultService();
-
   }
 
   @VisibleForTesting
@@ -81,10 +155,99 @@ public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCall
   @Override
   public void configure(Map<String, ?> configs, String saslMechanism, List<AppConfigurationEntry> jaasConfigEntries) {
     // Loading vault path from jaas config
-    adminPathVault = JaasContext.configEntryOption(jaasConfigEntries, ADMIN_PATH, VaultLoginModule.class.getName());
-    usersPathVault = JaasContext.configEntryOption(jaasConfigEntries, USERS_PATH, VaultLoginModule.class.getName());
+    adminPathVault = jaasOption(jaasConfigEntries, ADMIN_PATH);
+    usersPathVault = jaasOption(jaasConfigEntries, USERS_PATH);
     Preconditions.checkArgument(!Strings.isNullOrEmpty(usersPathVault), "Jaas file needs an entry %s to the path in vault where the users reside", USERS_PATH);
+    usersPathPrefix = usersPathVault + "/";
     Preconditions.checkArgument(!Strings.isNullOrEmpty(adminPathVault), "Jaas file needs an entry %s to the path in vault where the admin credentials reside", ADMIN_PATH);
+    if (vaultService == null) {
+      // Shared with the login module and the handlers of other listeners with the same options
+      vaultService = VaultServiceRegistry.instance().acquire(VaultServiceFactory.loginModuleOptions(jaasConfigEntries));
+      ownsVaultService = true;
+    }
+    if (!Strings.isNullOrEmpty(jaasOption(jaasConfigEntries, LISTENER_NAME))) {
+      listenerName = jaasOption(jaasConfigEntries, LISTENER_NAME);
+    }
+    String memoTtlSec = jaasOption(jaasConfigEntries, PASSWORD_MEMO_TTL_SEC);
+    String memoMaxSize = jaasOption(jaasConfigEntries, PASSWORD_MEMO_MAX_SIZE);
+    passwordVerifier = new PasswordVerifier(
+        Duration.ofSeconds(Strings.isNullOrEmpty(memoTtlSec) ? DEFAULT_PASSWORD_MEMO_TTL_SEC : Long.parseLong(memoTtlSec)),
+        Strings.isNullOrEmpty(memoMaxSize) ? DEFAULT_PASSWORD_MEMO_MAX_SIZE : Long.parseLong(memoMaxSize));
+
+    if ("true".equalsIgnoreCase(jaasOption(jaasConfigEntries, AUTH_FAILURE_LIMIT))) {
+      String burst = jaasOption(jaasConfigEntries, AUTH_FAILURE_BURST);
+      String backoffMs = jaasOption(jaasConfigEntries, AUTH_FAILURE_BACKOFF_MS);
+      failedAuthLimiter = new FailedAuthLimiter(Strings.isNullOrEmpty(burst) ? DEFAULT_AUTH_FAILURE_BURST : Integer.parseInt(burst),
+          Duration.ofMillis(Strings.isNullOrEmpty(backoffMs) ? DEFAULT_AUTH_FAILURE_BACKOFF_MS : Long.parseLong(backoffMs)));
+    }
+
+    String sessionTtlSec = jaasOption(jaasConfigEntries, REAUTH_SESSION_TTL_SEC);
+    if (!Strings.isNullOrEmpty(sessionTtlSec) && "true".equalsIgnoreCase(jaasOption(jaasConfigEntries, USERS_DIRECTORY))) {
+      log.warn("Option {} ignored, the users directory already answers every login from memory", REAUTH_SESSION_TTL_SEC);
+    } else if (!Strings.isNullOrEmpty(sessionTtlSec)) {
+      String sessionMaxSize = jaasOption(jaasConfigEntries, REAUTH_SESSION_MAX_SIZE);
+      reauthSessions = new ReauthSessions(Duration.ofSeconds(Long.parseLong(sessionTtlSec)),
+          Strings.isNullOrEmpty(sessionMaxSize) ? DEFAULT_REAUTH_SESSION_MAX_SIZE : Long.parseLong(sessionMaxSize));
+      VaultService cachedService = vaultService instanceof SharedVaultService ? ((SharedVaultService) vaultService).delegate() : vaultService;
+      if (cachedService instanceof CacheDecoratorVaultService) {
+        sessionsCache = (CacheDecoratorVaultService) cachedService;
+        sessionsCache.addChangeListener(sessionsInvalidation);
+      }
+    }
+
+    if ("true".equalsIgnoreCase(jaasOption(jaasConfigEntries, CACHE_WARMUP))) {
+      warmUpCache(jaasConfigEntries);
+    }
+    String routes = jaasOption(jaasConfigEntries, USERS_ROUTES);
+    if (!Strings.isNullOrEmpty(routes) && "true".equalsIgnoreCase(jaasOption(jaasConfigEntries, USERS_DIRECTORY))) {
+      log.warn("Option {} ignored, the users directory only reads {}", USERS_ROUTES, USERS_PATH);
+    } else if (!Strings.isNullOrEmpty(routes)) {
+      userRoutes = new UserRoutes(vaultService, usersPathVault, routes);
+    }
+    if ("true".equalsIgnoreCase(jaasOption(jaasConfigEntries, USERS_DIRECTORY))) {
+      String refreshSec = jaasOption(jaasConfigEntries, USERS_DIRECTORY_REFRESH_SEC);
+      userDirectory = new UserDirectory(vaultService, usersPathVault);
+      userDirectory.start(Strings.isNullOrEmpty(refreshSec) ? DEFAULT_DIRECTORY_REFRESH_SEC : Long.parseLong(refreshSec));
+    }
+    if ("true".equalsIgnoreCase(jaasOption(jaasConfigEntries, USERS_BLOOM_FILTER)) && userDirectory != null) {
+      log.warn("Option {} ignored, the users directory already knows every user", USERS_BLOOM_FILTER);
+    } else if ("true".equalsIgnoreCase(jaasOption(jaasConfigEntries, USERS_BLOOM_FILTER))) {
+      String refreshSec = jaasOption(jaasConfigEntries, USERS_BLOOM_FILTER_REFRESH_SEC);
+      knownUsersFilter = new KnownUsersFilter(vaultService, usersPathVault);
+      knownUsersFilter.start(Strings.isNullOrEmpty(refreshSec) ? DEFAULT_BLOOM_FILTER_REFRESH_SEC : Long.parseLong(refreshSec));
+    }
+  }
+
+  private void warmUpCache(List<AppConfigurationEntry> jaasConfigEntries) {
+    VaultService cachedService = vaultService;
+    if (cachedService instanceof SharedVaultService) {
+      if (!((SharedVaultService) cachedService).claimWarmUp()) {
+        log.debug("Cache already warmed up by another instance sharing it");
+        return;
+      }
+      cachedService = ((SharedVaultService) cachedService).delegate();
+    }
+    if (!(cachedService instanceof CacheDecoratorVaultService)) {
+      log.warn("Option {} ignored, cache is not enabled", CACHE_WARMUP);
+      return;
+    }
+    String parallelism = jaasOption(jaasConfigEntries, CACHE_WARMUP_PARALLELISM);
+    String timeoutMs = jaasOption(jaasConfigEntries, CACHE_WARMUP_TIMEOUT_MS);
+    CacheWarmer cacheWarmer = new CacheWarmer((CacheDecoratorVaultService) cachedService,
+        Strings.isNullOrEmpty(parallelism) ? DEFAULT_WARMUP_PARALLELISM : Integer.parseInt(parallelism),
+        Strings.isNullOrEmpty(timeoutMs) ? DEFAULT_WARMUP_TIMEOUT_MS : Long.parseLong(timeoutMs));
+    try {
+      CacheWarmer.WarmUpResult result = cacheWarmer.warmUp(usersPathVault, adminPathVault);
+      if (!result.isCompleted() || result.getFailed() > 0) {
+        log.warn("Cache warm up incomplete ({}), the missing users will be loaded on first login", result);
+      }
+    } catch (RuntimeException e) {
+      log.warn("Cache warm up failed, users will be loaded on first login", e);
+    }
+  }
+
+  private static String jaasOption(List<AppConfigurationEntry> jaasConfigEntries, String key) {
+    return JaasContext.configEntryOption(jaasConfigEntries, key, VaultLoginModule.class.getName());
   }
 
   /**
@@ -92,7 +255,31 @@ public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCall
    */
   @Override
   public void close() {
-    log.debug("Close called");
+    log.debug("Close called, listener {} spent {} ms waiting on vault", listenerName, TimeUnit.NANOSECONDS.toMillis(vaultBlockedNanos.sum()));
+    if (knownUsersFilter != null) {
+      knownUsersFilter.close();
+    }
+    if (userDirectory != null) {
+      userDirectory.close();
+    }
+    if (userRoutes != null) {
+      userRoutes.close();
+    }
+    if (sessionsCache != null) {
+      sessionsCache.removeChangeListener(sessionsInvalidation);
+    }
+    if (ownsVaultService) {
+      vaultService.close();
+    }
+  }
+
+  /**
+   * Time the Kafka network threads of this listener spent blocked reading secrets.
+   *
+   * @return blocked time in nanoseconds.
+   */
+  public long getVaultBlockedNanos() {
+    return vaultBlockedNanos.sum();
   }
 
   /**
@@ -112,9 +299,18 @@ public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCall
       }
 
       if (callback instanceof PlainAuthenticateCallback) {
-        log.debug("Handling callback for PlainAuthenticateCallback pwd length {}", ((PlainAuthenticateCallback) callback).password().length);
         PlainAuthenticateCallback plainCallback = (PlainAuthenticateCallback) callback;
-        plainCallback.authenticated(authenticateWithVault(username, plainCallback.password()));
+        if (log.isDebugEnabled()) {
+          log.debug("Handling callback for PlainAuthenticateCallback pwd length {}", plainCallback.password().length);
+        }
+        long start = System.nanoTime();
+        AuthOutcome outcome = AuthOutcome.ERROR;
+        try {
+          outcome = authenticateWithLimit(username, plainCallback.password());
+        } finally {
+          metrics.recordAuthentication(listenerName, outcome, System.nanoTime() - start);
+        }
+        plainCallback.authenticated(outcome == AuthOutcome.SUCCESS);
         continue;
       }
 
@@ -122,22 +318,103 @@ public class VaultAuthenticationLoginCallbackHandler implements AuthenticateCall
     }
   }
 
-  private boolean authenticateWithVault(String username, char[] password) {
+  private AuthOutcome authenticateWithLimit(String username, char[] password) {
+    if (reauthSessions != null && username != null && reauthSessions.matches(username, password)) {
+      log.debug("User {} authenticated from its verified session", username);
+      return AuthOutcome.SUCCESS;
+    }
+    // The admin credentials are pinned and used by inter-broker logins, a client guessing them must not lock brokers out
+    if (failedAuthLimiter == null || username == null || username.equals("admin")) {
+      return authenticateWithVault(username, password);
+    }
+    if (!failedAuthLimiter.tryAcquire(username)) {
+      log.debug("Throttling user {} after too many failed authentications", username);
+      return AuthOutcome.THROTTLED;
+    }
+    AuthOutcome outcome = authenticateWithVault(username, password);
+    if (outcome == AuthOutcome.SUCCESS) {
+      failedAuthLimiter.recordSuccess(username);
+    } else if (outcome != AuthOutcome.ERROR) {
+      failedAuthLimiter.recordFailure(username);
+    }
+    return outcome;
+  }
+
+  private AuthOutcome authenticateWithVault(String username, char[] password) {
     if (username == null) {
-      return false;
+      return AuthOutcome.UNKNOWN_USER;
+    }
+    // The filter only knows the users of users_path
+    if (knownUsersFilter != null && !username.equals("admin") && (userRoutes == null || userRoutes.routesToDefault(username))
+        && !knownUsersFilter.mightExist(username)) {
+      log.debug("Rejecting unknown user {} without calling vault", username);
+      return AuthOutcome.UNKNOWN_USER;
+    }
+
+    if (userDirectory != null && !username.equals("admin")) {
+      String stored = userDirectory.password(username);
+      if (stored == null) {
+        invalidateSession(username);
+        return AuthOutcome.UNKNOWN_USER;
+      }
+      return verify(username, password, stored);
     }
 
-    String pathVault = username.equals("admin") ? adminPathVault : String.format("%s/%s", usersPathVault, username);
-    log.info("Trying authentication for {} in path {}", username, pathVault);
-    Map<String, String> usersMap = vaultService.getSecret(pathVault);
+    long start = System.nanoTime();
+    Map<String, String> usersMap;
+    try {
+      if (userRoutes != null && !username.equals("admin")) {
+        log.debug("Trying authentication for {} through its route", username);
+        usersMap = userRoutes.lookup(username);
+      } else {
+        String pathVault = username.equals("admin") ? adminPathVault : userPaths.get(username, userPathFunction);
+        log.debug("Trying authentication for {} in path {}", username, pathVault);
+        usersMap = vaultService.getSecret(pathVault);
+      }
+    } finally {
+      long blocked = System.nanoTime() - start;
+      vaultBlockedNanos.add(blocked);
+      metrics.recordVaultBlocked(listenerName, blocked);
+    }
     if (usersMap.size() == 0) {
-      return false;
+      invalidateSession(username);
+      return AuthOutcome.UNKNOWN_USER;
     }
-    if (username.equals("admin")) {
-      return usersMap.get("username").equals(username) && Arrays.equals(usersMap.get(PASSWORD_MAP_ENTRY_KEY).toCharArray(), password);
+    if (username.equals("admin") && !usersMap.get("username").equals(username)) {
+      return AuthOutcome.BAD_PASSWORD;
     }
+    return verify(username, password, usersMap.get(PASSWORD_MAP_ENTRY_KEY));
+  }
 
-    log.info("Password match {}", Arrays.equals(usersMap.get(PASSWORD_MAP_ENTRY_KEY).toCharArray(), password));
-    return Arrays.equals(usersMap.get(PASSWORD_MAP_ENTRY_KEY).toCharArray(), password);
+  private AuthOutcome verify(String username, char[] password, String stored) {
+    if (reauthSessions != null) {
+      reauthSessions.observe(username, stored);
+    }
+    boolean matches = passwordVerifier.verify(username, password, stored);
+    log.debug("Password match {}", matches);
+    if (matches && reauthSessions != null) {
+      reauthSessions.established(username, password, stored);
+    }
+    return matches ? AuthOutcome.SUCCESS : AuthOutcome.BAD_PASSWORD;
+  }
+
+  private void invalidateSession(String username) {
+    if (reauthSessions != null) {
+      reauthSessions.invalidate(username);
+    }
+  }
+
+  // Maps the paths reported by the cache back to users
+  private void onSecretChanged(String path) {
+    if (path.equals(adminPathVault)) {
+      invalidateSession("admin");
+    } else if (userRoutes != null) {
+      String username = userRoutes.username(path);
+      if (username != null) {
+        invalidateSession(username);
+      }
+    } else if (path.startsWith(usersPathPrefix)) {
+      invalidateSession(path.substring(usersPathPrefix.length()));
+    }
   }
 }
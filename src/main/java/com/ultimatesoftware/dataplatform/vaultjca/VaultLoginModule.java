@@ -4,7 +4,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultService;
-import com.ultimatesoftware.dataplatform.vaultjca.services.HttpVaultService;
 import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
 import java.util.Map;
 import javax.security.auth.Subject;
@@ -45,15 +44,10 @@ public class VaultLoginModule implements LoginModule {
   }
 
   /**
-   * Upon instantiation can enable cache implementation if {@code CACHE_VAULT} is true.
+   * Upon initialization can enable cache implementation if {@code CACHE_VAULT} is true.
    */
   public VaultLoginModule() {
-    if ("true".equalsIgnoreCase(System.getenv(ENV_CACHE_VAULT))) {
-      log.debug("Cache vault enabled");
-      vaultService = new CacheDecoratorVaultService(new HttpVaultService());
-      return;
-    }
-    vaultService = new HttpVaultService();
+    vaultService = null;
   }
 
   @VisibleForTesting
@@ -76,13 +70,22 @@ public class VaultLoginModule implements LoginModule {
     log.debug("Initializing VaultLoginModule - Admin path {}", adminPath);
 
     if (!Strings.isNullOrEmpty(adminPath)) {
-      // The difference is that user/passwd for admin comes from vault, the user-clients provide their user/pass in jaas file
-      // I'm assuming that admin credentials are only reachable using specific vault creds
-      final Map<String, String> adminCredentials = vaultService.getSecret(adminPath);
-      if (adminCredentials != null && adminCredentials.size() > 0) {
-        subject.getPublicCredentials().add(adminCredentials.get(USERNAME_KEY));
-        subject.getPrivateCredentials().add(adminCredentials.get(PASSWORD_KEY));
-        return;
+      // The login module only needs the admin secret once, the shared service is released right after and kept for the
+      // callback handlers configured next
+      final VaultService service = vaultService != null ? vaultService : VaultServiceRegistry.instance().acquire(options);
+      try {
+        // The difference is that user/passwd for admin comes from vault, the user-clients provide their user/pass in jaas file
+        // I'm assuming that admin credentials are only reachable using specific vault creds
+        final Map<String, String> adminCredentials = service.getSecret(adminPath);
+        if (adminCredentials != null && adminCredentials.size() > 0) {
+          subject.getPublicCredentials().add(adminCredentials.get(USERNAME_KEY));
+          subject.getPrivateCredentials().add(adminCredentials.get(PASSWORD_KEY));
+          return;
+        }
+      } finally {
+        if (service != vaultService) {
+          service.close();
+        }
       }
 
       throw new RuntimeException(String.format("Secret not found for path %s", adminPath));
@@ -0,0 +1,208 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheSettings;
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.AppConfigurationEntry;
+import org.apache.kafka.common.security.JaasContext;
+import org.apache.kafka.common.security.auth.AuthenticateCallbackHandler;
+import org.apache.kafka.common.security.scram.ScramCredential;
+import org.apache.kafka.common.security.scram.ScramCredentialCallback;
+import org.apache.kafka.common.security.scram.internals.ScramCredentialUtils;
+import org.apache.kafka.common.security.scram.internals.ScramFormatter;
+import org.apache.kafka.common.security.scram.internals.ScramMechanism;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link AuthenticateCallbackHandler} for SASL/SCRAM-SHA-256 and SCRAM-SHA-512 reading the credentials
+ * from Vault.
+ *
+ * <p>With SCRAM the password never leaves the client, the broker only needs the salted StoredKey and ServerKey of the user.
+ * They are kept in Vault in the format Kafka stores them in ZooKeeper, one kv pair per mechanism:</p>
+ *
+ * <table summary="values in vault per user type">
+ *   <thead>
+ *     <tr><th>Path</th><th>Description</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr>
+ *     <td>Admin: path = jaas file admin_path</td>
+ *     <td>KV entry with username=admin and scram-sha-256=salt=...,stored_key=...,server_key=...,iterations=4096</td>
+ *   </tr>
+ *   <tr>
+ *     <td>Users/Clients: path =  jaas file users_path</td>
+ *     <td>An entry at users_path/{username} with a kv pair as scram-sha-256=salt=...,stored_key=...,server_key=...,iterations=4096</td>
+ *   </tr>
+ *   </tbody>
+ * </table>
+ *
+ * <p>The value is generated from the password with {@link #credential(String, String, int)}. Secrets go through the same
+ * {@link VaultService} as SASL/PLAIN, so they are cached as configured in the jaas file, and the parsed
+ * {@link ScramCredential} is cached with the same maximum size and TTL so a handshake does not decode it again.</p>
+ */
+public class VaultScramCallbackHandler implements AuthenticateCallbackHandler {
+  private static final Logger log = LoggerFactory.getLogger(VaultScramCallbackHandler.class);
+  private VaultService vaultService;
+  private boolean ownsVaultService;
+  private String listenerName = "default";
+  private final LongAdder vaultBlockedNanos = new LongAdder();
+  private final VaultJcaMetrics metrics = VaultJcaMetrics.instance();
+  private String usersPathPrefix;
+  private String adminPathVault;
+  private String credentialKey;
+  private Cache<String, String> userPaths;
+  private final Function<String, String> userPathFunction = username -> usersPathPrefix + username;
+  private Cache<String, ScramCredential> credentials;
+  private final Function<String, ScramCredential> parseFunction = ScramCredentialUtils::credentialFromString;
+
+  /**
+   * The {@link VaultService} is created on {@link #configure(Map, String, List)} and shared with the SASL/PLAIN handlers
+   * configured with the same options.
+   */
+  public VaultScramCallbackHandler() {
+  }
+
+  @VisibleForTesting
+  protected VaultScramCallbackHandler(VaultService vaultService) {
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+  }
+
+  /**
+   * Builds the value stored in Vault for a password, to be written by the tooling creating the users.
+   *
+   * @param mechanism SCRAM-SHA-256 or SCRAM-SHA-512.
+   * @param password the password of the user.
+   * @param iterations number of iterations, at least 4096.
+   * @return the credential as salt=...,stored_key=...,server_key=...,iterations=...
+   */
+  public static String credential(String mechanism, String password, int iterations) {
+    ScramMechanism scramMechanism = ScramMechanism.forMechanismName(mechanism);
+    Preconditions.checkArgument(scramMechanism != null, "Unknown SCRAM mechanism %s", mechanism);
+    Preconditions.checkArgument(iterations >= scramMechanism.minIterations(), "At least %s iterations are required", scramMechanism.minIterations());
+    try {
+      return ScramCredentialUtils.credentialToString(new ScramFormatter(scramMechanism).generateCredential(password, iterations));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Error generating SCRAM credential", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void configure(Map<String, ?> configs, String saslMechanism, List<AppConfigurationEntry> jaasConfigEntries) {
+    Preconditions.checkArgument(ScramMechanism.isScram(saslMechanism), "Unsupported SASL mechanism %s", saslMechanism);
+    credentialKey = saslMechanism.toLowerCase();
+    adminPathVault = jaasOption(jaasConfigEntries, VaultAuthenticationLoginCallbackHandler.ADMIN_PATH);
+    String usersPathVault = jaasOption(jaasConfigEntries, VaultAuthenticationLoginCallbackHandler.USERS_PATH);
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(usersPathVault), "Jaas file needs an entry %s to the path in vault where the users reside",
+        VaultAuthenticationLoginCallbackHandler.USERS_PATH);
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(adminPathVault), "Jaas file needs an entry %s to the path in vault where the admin credentials reside",
+        VaultAuthenticationLoginCallbackHandler.ADMIN_PATH);
+    usersPathPrefix = usersPathVault + "/";
+    Map<String, ?> loginModuleOptions = VaultServiceFactory.loginModuleOptions(jaasConfigEntries);
+    if (vaultService == null) {
+      vaultService = VaultServiceRegistry.instance().acquire(loginModuleOptions);
+      ownsVaultService = true;
+    }
+    if (!Strings.isNullOrEmpty(jaasOption(jaasConfigEntries, VaultAuthenticationLoginCallbackHandler.LISTENER_NAME))) {
+      listenerName = jaasOption(jaasConfigEntries, VaultAuthenticationLoginCallbackHandler.LISTENER_NAME);
+    }
+    CacheSettings cacheSettings = CacheSettings.fromOptions(loginModuleOptions);
+    userPaths = Caffeine.newBuilder().maximumSize(cacheSettings.getMaximumSize()).build();
+    // Keyed by the stored value so a rotated credential is parsed again as soon as the secret is reloaded
+    credentials = Caffeine.newBuilder()
+        .maximumSize(cacheSettings.getMaximumSize())
+        .expireAfterWrite(cacheSettings.getExpireAfterWrite().toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+    log.info("Configured {} for listener {}", saslMechanism, listenerName);
+  }
+
+  private static String jaasOption(List<AppConfigurationEntry> jaasConfigEntries, String key) {
+    return JaasContext.configEntryOption(jaasConfigEntries, key, VaultLoginModule.class.getName());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    log.debug("Close called, listener {} spent {} ms waiting on vault", listenerName, TimeUnit.NANOSECONDS.toMillis(vaultBlockedNanos.sum()));
+    if (ownsVaultService) {
+      vaultService.close();
+    }
+  }
+
+  /**
+   * Handles callback to Vault, expects a {@link NameCallback} with the username and a {@link ScramCredentialCallback}
+   * set with the credential of the user, or left empty when the user is unknown.
+   * @param callbacks Callback array with NameCallback and ScramCredentialCallback
+   * @throws UnsupportedCallbackException thrown when callbacks are not of either type expected.
+   * @see javax.security.auth.callback.CallbackHandler#handle(javax.security.auth.callback.Callback[])
+   */
+  @Override
+  public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+    String username = null;
+    for (Callback callback : callbacks) {
+      if (callback instanceof NameCallback) {
+        username = ((NameCallback) callback).getDefaultName();
+        log.debug("Handling callback for NameCallback {}", username);
+        continue;
+      }
+
+      if (callback instanceof ScramCredentialCallback) {
+        ((ScramCredentialCallback) callback).scramCredential(lookup(username));
+        continue;
+      }
+
+      throw new UnsupportedCallbackException(callback);
+    }
+  }
+
+  private ScramCredential lookup(String username) {
+    if (username == null) {
+      return null;
+    }
+    String pathVault = username.equals("admin") ? adminPathVault : userPaths.get(username, userPathFunction);
+    log.debug("Reading {} credential of {} in path {}", credentialKey, username, pathVault);
+    long start = System.nanoTime();
+    Map<String, String> usersMap;
+    try {
+      usersMap = vaultService.getSecret(pathVault);
+    } finally {
+      long blocked = System.nanoTime() - start;
+      vaultBlockedNanos.add(blocked);
+      metrics.recordVaultBlocked(listenerName, blocked);
+    }
+    if (username.equals("admin") && !username.equals(usersMap.get("username"))) {
+      return null;
+    }
+    String stored = usersMap.get(credentialKey);
+    if (stored == null) {
+      log.debug("No {} credential for {}", credentialKey, username);
+      return null;
+    }
+    try {
+      return credentials.get(stored, parseFunction);
+    } catch (IllegalArgumentException e) {
+      log.warn("Invalid {} credential for {} in vault", credentialKey, username);
+      return null;
+    }
+  }
+}
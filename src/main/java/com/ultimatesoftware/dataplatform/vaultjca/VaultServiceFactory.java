@@ -0,0 +1,219 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModule.ENV_CACHE_VAULT;
+
+import com.google.common.base.Strings;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheSettings;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CircuitBreakerSettings;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CircuitBreakerVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.DeadlineVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.HttpVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.InstrumentedVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.LastKnownSecrets;
+import com.ultimatesoftware.dataplatform.vaultjca.services.MultiEndpointVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.PooledHttpVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.SnapshotVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.UnixSocketVaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultTokenManager;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.login.AppConfigurationEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the {@link VaultService} used by {@link VaultLoginModule} and {@link VaultAuthenticationLoginCallbackHandler}.
+ *
+ * <p>Enables the cache when the environment variable {@code CACHE_VAULT} is true, using the jaas options of the
+ * login module to configure it. The jaas option {@code vault_transport="pooled"} replaces the bettercloud driver with
+ * {@link PooledHttpVaultService}, tuned with {@code vault_connect_timeout_ms} and {@code vault_read_timeout_ms}.
+ * With {@code vault_transport="agent"} requests go to a local Vault Agent over the Unix domain socket at
+ * {@code vault_agent_socket}, check {@link UnixSocketVaultService}; the agent holds the token.
+ * With {@code vault_endpoints}, a comma separated list of node addresses, a {@link MultiEndpointVaultService} spreads
+ * the requests over one pooled transport per node, hedging after the {@code vault_hedge_percentile} read latency and
+ * ejecting a node for {@code vault_eject_ms} after {@code vault_eject_failures} failures in a row.
+ * Requests of the transport are always instrumented by {@link InstrumentedVaultService}.</p>
+ *
+ * <p>With {@code vault_token_renew="true"}, or when {@code vault_auth_method} is set, the token of the transport is kept
+ * alive by a {@link VaultTokenManager}.</p>
+ *
+ * <p>When {@code vault_deadline_ms} is set reads are bounded by a {@link DeadlineVaultService} below the cache, using
+ * {@code vault_deadline_threads} threads and up to {@code vault_deadline_queue_size} pending reads. Reads past the
+ * deadline are answered with the last secret read, up to {@code vault_last_known_max_age_sec} old.</p>
+ *
+ * <p>{@code vault_breaker="true"} adds a {@link CircuitBreakerVaultService} below it, configured with
+ * {@link CircuitBreakerSettings}. Reads past the deadline still complete on the deadline pool, so the breaker records
+ * them as slow calls or errors and opens the circuit. Both layers serve the same last known secrets.</p>
+ *
+ * <p>When {@code vault_snapshot_path} is set a {@link SnapshotVaultService} keeps the secrets read in an encrypted file,
+ * under the cache, with the key in the {@code VAULT_SNAPSHOT_KEY} environment variable. Entries are served when Vault
+ * fails up to {@code vault_snapshot_max_staleness_sec}, and without reaching Vault for {@code vault_snapshot_fresh_sec}
+ * when set.</p>
+ *
+ * <p>With the cache enabled and {@code cache_events="true"} the cache follows the KV events of the Vault node at
+ * {@code VAULT_ADDR}, or the first of {@code vault_endpoints}, with the token of the transport; see
+ * {@link CacheDecoratorVaultService#subscribeToEvents}.</p>
+ */
+final class VaultServiceFactory {
+  private static final Logger log = LoggerFactory.getLogger(VaultServiceFactory.class);
+  static final String VAULT_TRANSPORT = "vault_transport";
+  static final String VAULT_CONNECT_TIMEOUT_MS = "vault_connect_timeout_ms";
+  static final String VAULT_READ_TIMEOUT_MS = "vault_read_timeout_ms";
+  static final String VAULT_AGENT_SOCKET = "vault_agent_socket";
+  static final String VAULT_ENDPOINTS = "vault_endpoints";
+  static final String VAULT_HEDGE_PERCENTILE = "vault_hedge_percentile";
+  static final String VAULT_EJECT_FAILURES = "vault_eject_failures";
+  static final String VAULT_EJECT_MS = "vault_eject_ms";
+  static final String VAULT_TOKEN_RENEW = "vault_token_renew";
+  static final String VAULT_AUTH_METHOD = "vault_auth_method";
+  static final String VAULT_DEADLINE_MS = "vault_deadline_ms";
+  static final String VAULT_DEADLINE_THREADS = "vault_deadline_threads";
+  static final String VAULT_DEADLINE_QUEUE_SIZE = "vault_deadline_queue_size";
+  static final String VAULT_LAST_KNOWN_MAX_AGE_SEC = "vault_last_known_max_age_sec";
+  static final String VAULT_BREAKER = "vault_breaker";
+  static final String VAULT_SNAPSHOT_PATH = "vault_snapshot_path";
+  static final String VAULT_SNAPSHOT_FRESH_SEC = "vault_snapshot_fresh_sec";
+  static final String VAULT_SNAPSHOT_MAX_STALENESS_SEC = "vault_snapshot_max_staleness_sec";
+  static final String ENV_VAULT_SNAPSHOT_KEY = "VAULT_SNAPSHOT_KEY";
+  private static final String ENV_VAULT_ADDR = "VAULT_ADDR";
+  private static final String ENV_VAULT_TOKEN = "VAULT_TOKEN";
+  private static final String POOLED_TRANSPORT = "pooled";
+  private static final String AGENT_TRANSPORT = "agent";
+  private static final int DEFAULT_TIMEOUT_MS = 5_000;
+  private static final int DEFAULT_HEDGE_PERCENTILE = 95;
+  private static final int DEFAULT_EJECT_FAILURES = 3;
+  private static final int DEFAULT_EJECT_MS = 10_000;
+  private static final int DEFAULT_DEADLINE_THREADS = 4;
+  private static final int DEFAULT_DEADLINE_QUEUE_SIZE = 64;
+  private static final int DEFAULT_LAST_KNOWN_MAX_SIZE = 10_000;
+  private static final int DEFAULT_LAST_KNOWN_MAX_AGE_SEC = 3_600;
+  private static final int DEFAULT_SNAPSHOT_FRESH_SEC = 0;
+  private static final int DEFAULT_SNAPSHOT_MAX_STALENESS_SEC = 86_400;
+
+  private VaultServiceFactory() {
+  }
+
+  static VaultService create(Map<String, ?> options) {
+    VaultTokenManager tokenManager = null;
+    if (!AGENT_TRANSPORT.equalsIgnoreCase(option(options, VAULT_TRANSPORT))
+        && ("true".equalsIgnoreCase(option(options, VAULT_TOKEN_RENEW)) || !Strings.isNullOrEmpty(option(options, VAULT_AUTH_METHOD)))) {
+      log.debug("Vault token renewal enabled");
+      tokenManager = VaultTokenManager.fromOptions(options);
+      tokenManager.start();
+    }
+    VaultService transport;
+    try {
+      transport = new InstrumentedVaultService(createTransport(options, tokenManager), VaultJcaMetrics.instance());
+    } catch (RuntimeException e) {
+      if (tokenManager != null) {
+        tokenManager.close();
+      }
+      throw e;
+    }
+    // One store for both layers, so a user deleted in Vault is forgotten by both
+    LastKnownSecrets lastKnownSecrets = new LastKnownSecrets(DEFAULT_LAST_KNOWN_MAX_SIZE,
+        Duration.ofSeconds(intOption(options, VAULT_LAST_KNOWN_MAX_AGE_SEC, DEFAULT_LAST_KNOWN_MAX_AGE_SEC)));
+    // The breaker goes below the deadline so it sees the reads the deadline gave up on, slow or failed
+    if ("true".equalsIgnoreCase(option(options, VAULT_BREAKER))) {
+      log.debug("Vault circuit breaker enabled");
+      transport = new CircuitBreakerVaultService(transport, CircuitBreakerSettings.fromOptions(options), lastKnownSecrets);
+    }
+    if (!Strings.isNullOrEmpty(option(options, VAULT_DEADLINE_MS))) {
+      transport = new DeadlineVaultService(transport, Duration.ofMillis(intOption(options, VAULT_DEADLINE_MS, 0)),
+          intOption(options, VAULT_DEADLINE_THREADS, DEFAULT_DEADLINE_THREADS),
+          intOption(options, VAULT_DEADLINE_QUEUE_SIZE, DEFAULT_DEADLINE_QUEUE_SIZE), lastKnownSecrets);
+    }
+    if (!Strings.isNullOrEmpty(option(options, VAULT_SNAPSHOT_PATH))) {
+      log.debug("Vault snapshot enabled");
+      transport = new SnapshotVaultService(transport, Paths.get(option(options, VAULT_SNAPSHOT_PATH)),
+          SnapshotVaultService.key(System.getenv(ENV_VAULT_SNAPSHOT_KEY)),
+          Duration.ofSeconds(intOption(options, VAULT_SNAPSHOT_FRESH_SEC, DEFAULT_SNAPSHOT_FRESH_SEC)),
+          Duration.ofSeconds(intOption(options, VAULT_SNAPSHOT_MAX_STALENESS_SEC, DEFAULT_SNAPSHOT_MAX_STALENESS_SEC)));
+    }
+    if ("true".equalsIgnoreCase(System.getenv(ENV_CACHE_VAULT))) {
+      log.debug("Cache vault enabled");
+      CacheSettings settings = CacheSettings.fromOptions(options);
+      CacheDecoratorVaultService cache = new CacheDecoratorVaultService(transport, settings);
+      if (settings.isEvents()) {
+        subscribeToEvents(cache, options, tokenManager);
+      }
+      return cache;
+    }
+    return transport;
+  }
+
+  private static void subscribeToEvents(CacheDecoratorVaultService cache, Map<String, ?> options, VaultTokenManager tokenManager) {
+    if (AGENT_TRANSPORT.equalsIgnoreCase(option(options, VAULT_TRANSPORT))) {
+      log.warn("Vault events are not available through the vault agent transport, cached secrets expire after their TTL");
+      return;
+    }
+    String vaultAddr = System.getenv(ENV_VAULT_ADDR);
+    if (Strings.isNullOrEmpty(vaultAddr) && !Strings.isNullOrEmpty(option(options, VAULT_ENDPOINTS))) {
+      vaultAddr = option(options, VAULT_ENDPOINTS).split(",")[0].trim();
+    }
+    log.debug("Vault events enabled on {}", vaultAddr);
+    cache.subscribeToEvents(vaultAddr, tokenManager == null ? () -> System.getenv(ENV_VAULT_TOKEN) : tokenManager::getToken);
+  }
+
+  private static VaultService createTransport(Map<String, ?> options, VaultTokenManager tokenManager) {
+    if (AGENT_TRANSPORT.equalsIgnoreCase(option(options, VAULT_TRANSPORT))) {
+      log.debug("Vault agent transport enabled");
+      return new UnixSocketVaultService(option(options, VAULT_AGENT_SOCKET), intOption(options, VAULT_READ_TIMEOUT_MS, DEFAULT_TIMEOUT_MS));
+    }
+    if (!Strings.isNullOrEmpty(option(options, VAULT_ENDPOINTS))) {
+      log.debug("Multi endpoint vault transport enabled");
+      return createMultiEndpoint(options, tokenManager);
+    }
+    if (POOLED_TRANSPORT.equalsIgnoreCase(option(options, VAULT_TRANSPORT))) {
+      log.debug("Pooled vault transport enabled");
+      int connectTimeoutMs = intOption(options, VAULT_CONNECT_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+      int readTimeoutMs = intOption(options, VAULT_READ_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+      return tokenManager == null ? new PooledHttpVaultService(connectTimeoutMs, readTimeoutMs)
+          : new PooledHttpVaultService(tokenManager, connectTimeoutMs, readTimeoutMs);
+    }
+    return tokenManager == null ? new HttpVaultService() : new HttpVaultService(tokenManager);
+  }
+
+  private static VaultService createMultiEndpoint(Map<String, ?> options, VaultTokenManager tokenManager) {
+    int connectTimeoutMs = intOption(options, VAULT_CONNECT_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+    int readTimeoutMs = intOption(options, VAULT_READ_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+    List<VaultService> endpoints = new ArrayList<>();
+    for (String address : option(options, VAULT_ENDPOINTS).split(",")) {
+      if (!address.trim().isEmpty()) {
+        endpoints.add(new PooledHttpVaultService(address.trim(), tokenManager, connectTimeoutMs, readTimeoutMs));
+      }
+    }
+    return new MultiEndpointVaultService(endpoints, intOption(options, VAULT_HEDGE_PERCENTILE, DEFAULT_HEDGE_PERCENTILE),
+        intOption(options, VAULT_EJECT_FAILURES, DEFAULT_EJECT_FAILURES),
+        Duration.ofMillis(intOption(options, VAULT_EJECT_MS, DEFAULT_EJECT_MS)));
+  }
+
+  private static String option(Map<String, ?> options, String key) {
+    Object value = options.get(key);
+    return value == null ? null : value.toString();
+  }
+
+  private static int intOption(Map<String, ?> options, String key, int defaultValue) {
+    String value = option(options, key);
+    return Strings.isNullOrEmpty(value) ? defaultValue : Integer.parseInt(value);
+  }
+
+  /**
+   * Finds the options of the {@link VaultLoginModule} entry within the jaas configuration.
+   */
+  static Map<String, ?> loginModuleOptions(List<AppConfigurationEntry> jaasConfigEntries) {
+    for (AppConfigurationEntry entry : jaasConfigEntries) {
+      if (VaultLoginModule.class.getName().equals(entry.getLoginModuleName())) {
+        return entry.getOptions();
+      }
+    }
+    return Collections.emptyMap();
+  }
+}
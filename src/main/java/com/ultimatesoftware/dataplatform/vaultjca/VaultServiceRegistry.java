@@ -0,0 +1,128 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference counted {@link VaultService}s shared by every {@link VaultLoginModule} and
+ * {@link VaultAuthenticationLoginCallbackHandler} of the JVM with the same configuration.
+ *
+ * <p>Kafka creates a login module and a callback handler per listener and mechanism, and again on re-login; sharing
+ * means one Vault client, one connection pool and one warm cache instead of one per instance. Services are keyed by the
+ * jaas options (the environment variables are the same for the whole JVM). When the last reference is released the
+ * service is kept for a linger period before being closed, so the login module, which only reads the admin secret
+ * during initialization, hands its service over to the callback handlers created right after it.</p>
+ */
+final class VaultServiceRegistry {
+  private static final Logger log = LoggerFactory.getLogger(VaultServiceRegistry.class);
+  private static final Duration LINGER = Duration.ofSeconds(60);
+  // Options only affecting one handler, they do not change the service
+  private static final List<String> HANDLER_OPTIONS = Collections.singletonList(VaultAuthenticationLoginCallbackHandler.LISTENER_NAME);
+  private static final VaultServiceRegistry INSTANCE = new VaultServiceRegistry(VaultServiceFactory::create, LINGER);
+
+  private final Function<Map<String, ?>, VaultService> factory;
+  private final Duration linger;
+  private final Map<Map<String, String>, Entry> entries = new HashMap<>();
+  private final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-registry-%d").build());
+
+  @VisibleForTesting
+  VaultServiceRegistry(Function<Map<String, ?>, VaultService> factory, Duration linger) {
+    this.factory = factory;
+    this.linger = linger;
+  }
+
+  static VaultServiceRegistry instance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets the service for the options, creating it on first use.
+   *
+   * @param options jaas options of the {@link VaultLoginModule}.
+   * @return a reference to the shared service, closing it releases the reference.
+   */
+  synchronized SharedVaultService acquire(Map<String, ?> options) {
+    Map<String, String> key = key(options);
+    final Entry entry = entries.computeIfAbsent(key, k -> {
+      log.info("Creating vault service shared by instances with options {}", k.keySet());
+      return new Entry(k, factory.apply(options));
+    });
+    if (entry.pendingClose != null) {
+      entry.pendingClose.cancel(false);
+      entry.pendingClose = null;
+    }
+    entry.references++;
+    return new SharedVaultService(entry.service, () -> release(entry), entry.warmedUp);
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized void release(Entry entry) {
+    if (--entry.references > 0) {
+      return;
+    }
+    if (linger.isZero()) {
+      close(entry);
+    } else {
+      entry.pendingClose = closer.schedule(() -> closeIfUnused(entry), linger.toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void closeIfUnused(Entry entry) {
+    if (entry.references == 0 && entries.get(entry.key) == entry) {
+      close(entry);
+    }
+  }
+
+  private void close(Entry entry) {
+    entries.remove(entry.key);
+    log.info("Closing vault service, no instance uses it");
+    try {
+      entry.service.close();
+    } catch (RuntimeException e) {
+      log.warn("Error closing vault service", e);
+    }
+  }
+
+  private static Map<String, String> key(Map<String, ?> options) {
+    Map<String, String> key = new TreeMap<>();
+    options.forEach((name, value) -> {
+      if (!HANDLER_OPTIONS.contains(name)) {
+        key.put(name, String.valueOf(value));
+      }
+    });
+    return key;
+  }
+
+  private static final class Entry {
+    private final Map<String, String> key;
+    private final VaultService service;
+    private final AtomicBoolean warmedUp = new AtomicBoolean();
+    private int references;
+    private ScheduledFuture<?> pendingClose;
+
+    private Entry(Map<String, String> key, VaultService service) {
+      this.key = key;
+      this.service = service;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.ultimatesoftware.dataplatform.vaultjca.metrics;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+
+/**
+ * Caffeine {@link StatsCounter} recording into the cache sensors of {@link VaultJcaMetrics}, while keeping the counts of
+ * its own cache for {@link #snapshot()}.
+ */
+final class KafkaStatsCounter implements StatsCounter {
+  private final VaultJcaMetrics metrics;
+  private final ConcurrentStatsCounter counter = new ConcurrentStatsCounter();
+
+  KafkaStatsCounter(VaultJcaMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void recordHits(int count) {
+    counter.recordHits(count);
+    metrics.recordCacheHits(count);
+  }
+
+  @Override
+  public void recordMisses(int count) {
+    counter.recordMisses(count);
+    metrics.recordCacheMisses(count);
+  }
+
+  @Override
+  public void recordLoadSuccess(long loadTime) {
+    counter.recordLoadSuccess(loadTime);
+    metrics.recordCacheLoad(true, loadTime);
+  }
+
+  @Override
+  public void recordLoadFailure(long loadTime) {
+    counter.recordLoadFailure(loadTime);
+    metrics.recordCacheLoad(false, loadTime);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void recordEviction() {
+    counter.recordEviction();
+    metrics.recordCacheEviction();
+  }
+
+  @Override
+  public void recordEviction(int weight, RemovalCause cause) {
+    counter.recordEviction(weight, cause);
+    metrics.recordCacheEviction();
+  }
+
+  @Override
+  public CacheStats snapshot() {
+    return counter.snapshot();
+  }
+}
@@ -0,0 +1,368 @@
+package com.ultimatesoftware.dataplatform.vaultjca.metrics;
+
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Percentiles.BucketSizing;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * Sensors of the library, shared by every callback handler and {@code VaultService} of the process.
+ *
+ * <p>Kafka creates the login module and one callback handler per listener on its own, so the sensors live in a single
+ * registry reached through {@link #instance()} and reported through JMX under {@value #JMX_PREFIX}:</p>
+ *
+ * <table summary="metric groups">
+ *   <thead>
+ *     <tr><th>Group</th><th>Tags</th><th>Metrics</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr><td>{@value #AUTH_GROUP}</td><td>listener, outcome</td><td>auth-latency-avg, -max, -p50, -p95, -p99 (ms), auth-rate, auth-total</td></tr>
+ *   <tr><td>{@value #AUTH_GROUP}</td><td>listener</td><td>vault-blocked-time-rate (ms per second), vault-blocked-time-total (ms)</td></tr>
+ *   <tr><td>{@value #VAULT_GROUP}</td><td></td><td>request-latency-avg, -max, -p50, -p95, -p99 (ms), request-rate, request-total, requests-in-flight</td></tr>
+ *   <tr><td>{@value #VAULT_GROUP}</td><td>status</td><td>error-rate, error-total</td></tr>
+ *   <tr><td>{@value #CACHE_GROUP}</td><td></td><td>hit-, miss-, load-success-, load-failure-, eviction- rate and total, load-latency-avg, -max (ms)</td></tr>
+ *   <tr><td>{@value #SESSION_GROUP}</td><td></td><td>hit-, miss-, invalidation- rate and total</td></tr>
+ *   <tr><td>{@value #WARMUP_GROUP}</td><td></td><td>warmup-total, -loaded, -failed, -time-ms, -completed (1 once every secret was loaded)</td></tr>
+ *   <tr><td>{@value #ROUTE_GROUP}</td><td>route</td><td>lookup-latency-avg, -max, -p50, -p95, -p99 (ms), lookup-rate, lookup-total, not-found-rate, -total</td></tr>
+ *   </tbody>
+ * </table>
+ *
+ * <p>Sensors are created once and recording only updates their samples, so the hot path does not allocate.</p>
+ */
+public final class VaultJcaMetrics {
+  static final String JMX_PREFIX = "kafka.vault.jca";
+  static final String AUTH_GROUP = "vault-jca-auth-metrics";
+  static final String VAULT_GROUP = "vault-jca-vault-metrics";
+  static final String CACHE_GROUP = "vault-jca-cache-metrics";
+  static final String SESSION_GROUP = "vault-jca-session-metrics";
+  static final String ROUTE_GROUP = "vault-jca-route-metrics";
+  static final String WARMUP_GROUP = "vault-jca-warmup-metrics";
+  // 2000 linearly growing buckets up to 2 s are under 1 ms wide below 500 ms, slower calls are
+  // reported as 2 s by the percentiles while -max keeps the exact value
+  private static final double MAX_LATENCY_MS = 2_000;
+  private static final int HISTOGRAM_BYTES = 8_000;
+  private static final double NANOS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * Outcome of an authentication.
+   */
+  public enum AuthOutcome {
+    /** Password matched. */
+    SUCCESS,
+    /** User found but the password did not match. */
+    BAD_PASSWORD,
+    /** No secret for the user. */
+    UNKNOWN_USER,
+    /** Vault could not be read. */
+    ERROR,
+    /** Rejected without reading Vault after too many failures of the user. */
+    THROTTLED;
+
+    private final String tag = name().toLowerCase().replace('_', '-');
+  }
+
+  private static volatile VaultJcaMetrics instance;
+
+  private final Metrics metrics;
+  private final Map<String, Map<AuthOutcome, Sensor>> authSensors = new ConcurrentHashMap<>();
+  private final Map<String, Sensor> blockedSensors = new ConcurrentHashMap<>();
+  private final Map<Integer, Sensor> errorSensors = new ConcurrentHashMap<>();
+  private final Map<String, Sensor[]> routeSensors = new ConcurrentHashMap<>();
+  private final AtomicInteger vaultInFlight = new AtomicInteger();
+  private final AtomicInteger warmUpTotal = new AtomicInteger();
+  private final AtomicInteger warmUpLoaded = new AtomicInteger();
+  private final AtomicInteger warmUpFailed = new AtomicInteger();
+  private final AtomicLong warmUpTimeMs = new AtomicLong();
+  private final AtomicInteger warmUpCompleted = new AtomicInteger();
+  private final Sensor vaultLatency;
+  private final Sensor cacheHits;
+  private final Sensor cacheMisses;
+  private final Sensor cacheLoadSuccess;
+  private final Sensor cacheLoadFailure;
+  private final Sensor cacheEvictions;
+  private final Sensor sessionHits;
+  private final Sensor sessionMisses;
+  private final Sensor sessionInvalidations;
+
+  /**
+   * Creates the sensors in a registry, use {@link #instance()} unless the registry is managed elsewhere.
+   *
+   * @param metrics registry the sensors are added to.
+   */
+  public VaultJcaMetrics(Metrics metrics) {
+    this.metrics = metrics;
+    this.vaultLatency = sensor("vault-request-latency", sensor -> addLatency(sensor, VAULT_GROUP, "request", Collections.emptyMap()));
+    this.cacheHits = sensor("vault-cache-hits", sensor -> addMeter(sensor, CACHE_GROUP, "hit", Collections.emptyMap(), false));
+    this.cacheMisses = sensor("vault-cache-misses", sensor -> addMeter(sensor, CACHE_GROUP, "miss", Collections.emptyMap(), false));
+    this.cacheLoadSuccess = sensor("vault-cache-load-success", sensor -> {
+      addMeter(sensor, CACHE_GROUP, "load-success", Collections.emptyMap(), true);
+      sensor.add(metrics.metricName("load-latency-avg", CACHE_GROUP, "Average time loading an entry from vault in ms"), new Avg());
+      sensor.add(metrics.metricName("load-latency-max", CACHE_GROUP, "Maximum time loading an entry from vault in ms"), new Max());
+    });
+    this.cacheLoadFailure = sensor("vault-cache-load-failure", sensor -> addMeter(sensor, CACHE_GROUP, "load-failure", Collections.emptyMap(), true));
+    this.cacheEvictions = sensor("vault-cache-evictions", sensor -> addMeter(sensor, CACHE_GROUP, "eviction", Collections.emptyMap(), false));
+    this.sessionHits = sensor("vault-session-hits", sensor -> addMeter(sensor, SESSION_GROUP, "hit", Collections.emptyMap(), true));
+    this.sessionMisses = sensor("vault-session-misses", sensor -> addMeter(sensor, SESSION_GROUP, "miss", Collections.emptyMap(), true));
+    this.sessionInvalidations = sensor("vault-session-invalidations",
+        sensor -> addMeter(sensor, SESSION_GROUP, "invalidation", Collections.emptyMap(), true));
+    metrics.addMetric(metrics.metricName("requests-in-flight", VAULT_GROUP, "Number of vault requests waiting for a response"),
+        (Gauge<Integer>) (config, now) -> vaultInFlight.get());
+    metrics.addMetric(metrics.metricName("warmup-total", WARMUP_GROUP, "Number of secrets to load by the cache warm up"),
+        (Gauge<Integer>) (config, now) -> warmUpTotal.get());
+    metrics.addMetric(metrics.metricName("warmup-loaded", WARMUP_GROUP, "Number of secrets loaded by the cache warm up so far"),
+        (Gauge<Integer>) (config, now) -> warmUpLoaded.get());
+    metrics.addMetric(metrics.metricName("warmup-failed", WARMUP_GROUP, "Number of secrets the cache warm up could not read"),
+        (Gauge<Integer>) (config, now) -> warmUpFailed.get());
+    metrics.addMetric(metrics.metricName("warmup-time-ms", WARMUP_GROUP, "Time spent by the last cache warm up in ms"),
+        (Gauge<Long>) (config, now) -> warmUpTimeMs.get());
+    metrics.addMetric(metrics.metricName("warmup-completed", WARMUP_GROUP, "1 when the last cache warm up loaded every secret in time"),
+        (Gauge<Integer>) (config, now) -> warmUpCompleted.get());
+  }
+
+  /**
+   * @return the metrics of the process, reported through JMX.
+   */
+  public static VaultJcaMetrics instance() {
+    if (instance == null) {
+      synchronized (VaultJcaMetrics.class) {
+        if (instance == null) {
+          instance = new VaultJcaMetrics(new Metrics(new MetricConfig(), Collections.singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM));
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Records an authentication.
+   *
+   * @param listener listener of the callback handler.
+   * @param outcome result of the authentication.
+   * @param nanos time spent authenticating.
+   */
+  public void recordAuthentication(String listener, AuthOutcome outcome, long nanos) {
+    Map<AuthOutcome, Sensor> sensors = authSensors.get(listener);
+    if (sensors == null) {
+      sensors = authSensors.computeIfAbsent(listener, this::createAuthSensors);
+    }
+    sensors.get(outcome).record(nanos / NANOS_PER_MS);
+  }
+
+  /**
+   * Records time a Kafka network thread of a listener spent blocked reading a secret.
+   *
+   * @param listener listener of the callback handler.
+   * @param nanos time spent waiting for the secret.
+   */
+  public void recordVaultBlocked(String listener, long nanos) {
+    Sensor sensor = blockedSensors.get(listener);
+    if (sensor == null) {
+      sensor = blockedSensors.computeIfAbsent(listener, this::createBlockedSensor);
+    }
+    sensor.record(nanos / NANOS_PER_MS);
+  }
+
+  /**
+   * Marks the start of a request to Vault, must be followed by {@link #recordVaultRequest(long, int)}.
+   */
+  public void vaultRequestStarted() {
+    vaultInFlight.incrementAndGet();
+  }
+
+  /**
+   * Records a completed request to Vault.
+   *
+   * @param nanos time waiting for the response.
+   * @param errorStatus HTTP status of a failed request, 0 when there was no response and -1 on success.
+   */
+  public void recordVaultRequest(long nanos, int errorStatus) {
+    vaultInFlight.decrementAndGet();
+    vaultLatency.record(nanos / NANOS_PER_MS);
+    if (errorStatus >= 0) {
+      Sensor sensor = errorSensors.get(errorStatus);
+      if (sensor == null) {
+        sensor = errorSensors.computeIfAbsent(errorStatus, this::createErrorSensor);
+      }
+      sensor.record();
+    }
+  }
+
+  /**
+   * Records a re-authentication answered from a verified session, without reading Vault.
+   */
+  public void recordSessionHit() {
+    sessionHits.record();
+  }
+
+  /**
+   * Records an authentication without a matching verified session.
+   */
+  public void recordSessionMiss() {
+    sessionMisses.record();
+  }
+
+  /**
+   * Records a verified session dropped because the secret of the user changed.
+   */
+  public void recordSessionInvalidation() {
+    sessionInvalidations.record();
+  }
+
+  /**
+   * Records a lookup of a user through a route of {@code users_routes}.
+   *
+   * @param route prefix of the route.
+   * @param found false when no path of the route holds the user.
+   * @param nanos time spent reading the paths.
+   */
+  public void recordRouteLookup(String route, boolean found, long nanos) {
+    Sensor[] sensors = routeSensors.get(route);
+    if (sensors == null) {
+      sensors = routeSensors.computeIfAbsent(route, this::createRouteSensors);
+    }
+    sensors[0].record(nanos / NANOS_PER_MS);
+    if (!found) {
+      sensors[1].record();
+    }
+  }
+
+  /**
+   * Records the start of a cache warm up, resetting the figures of the previous one.
+   *
+   * @param total number of secrets to load.
+   */
+  public void recordWarmUpStarted(int total) {
+    warmUpLoaded.set(0);
+    warmUpFailed.set(0);
+    warmUpTimeMs.set(0);
+    warmUpCompleted.set(0);
+    warmUpTotal.set(total);
+  }
+
+  /**
+   * Records a secret loaded, or not, by the cache warm up.
+   */
+  public void recordWarmUpLoad(boolean success) {
+    (success ? warmUpLoaded : warmUpFailed).incrementAndGet();
+  }
+
+  /**
+   * Records the end of a cache warm up.
+   *
+   * @param elapsedMs time spent warming up.
+   * @param completed false when the deadline was reached before loading every secret.
+   */
+  public void recordWarmUpFinished(long elapsedMs, boolean completed) {
+    warmUpTimeMs.set(elapsedMs);
+    warmUpCompleted.set(completed ? 1 : 0);
+  }
+
+  /**
+   * Creates the stats counter of a Caffeine cache, recording into the cache sensors.
+   *
+   * @return a new stats counter, {@link StatsCounter#snapshot()} only covers the cache using it.
+   */
+  public StatsCounter cacheStatsCounter() {
+    return new KafkaStatsCounter(this);
+  }
+
+  void recordCacheHits(int count) {
+    cacheHits.record(count);
+  }
+
+  void recordCacheMisses(int count) {
+    cacheMisses.record(count);
+  }
+
+  void recordCacheLoad(boolean success, long nanos) {
+    (success ? cacheLoadSuccess : cacheLoadFailure).record(nanos / NANOS_PER_MS);
+  }
+
+  void recordCacheEviction() {
+    cacheEvictions.record();
+  }
+
+  private Map<AuthOutcome, Sensor> createAuthSensors(String listener) {
+    Map<AuthOutcome, Sensor> sensors = new EnumMap<>(AuthOutcome.class);
+    for (AuthOutcome outcome : AuthOutcome.values()) {
+      Map<String, String> tags = ImmutableMap.of("listener", listener, "outcome", outcome.tag);
+      sensors.put(outcome, sensor("vault-auth-" + listener + "-" + outcome.tag, sensor -> addLatency(sensor, AUTH_GROUP, "auth", tags)));
+    }
+    return sensors;
+  }
+
+  private Sensor createBlockedSensor(String listener) {
+    Map<String, String> tags = Collections.singletonMap("listener", listener);
+    return sensor("vault-blocked-" + listener, sensor -> sensor.add(new Meter(
+        metricName("vault-blocked-time-rate", AUTH_GROUP, "Time per second network threads spent blocked on vault in ms", tags),
+        metricName("vault-blocked-time-total", AUTH_GROUP, "Total time network threads spent blocked on vault in ms", tags))));
+  }
+
+  private Sensor[] createRouteSensors(String route) {
+    Map<String, String> tags = Collections.singletonMap("route", route);
+    return new Sensor[] {
+        sensor("vault-route-" + route, sensor -> addLatency(sensor, ROUTE_GROUP, "lookup", tags)),
+        sensor("vault-route-" + route + "-not-found", sensor -> addMeter(sensor, ROUTE_GROUP, "not-found", tags, true))
+    };
+  }
+
+  private Sensor createErrorSensor(int status) {
+    Map<String, String> tags = Collections.singletonMap("status", status == 0 ? "none" : Integer.toString(status));
+    return sensor("vault-errors-" + status, sensor -> addMeter(sensor, VAULT_GROUP, "error", tags, true));
+  }
+
+  /**
+   * Gets or creates a sensor, its stats are only added when the sensor is new.
+   */
+  private synchronized Sensor sensor(String name, Consumer<Sensor> init) {
+    Sensor sensor = metrics.getSensor(name);
+    if (sensor == null) {
+      sensor = metrics.sensor(name);
+      init.accept(sensor);
+    }
+    return sensor;
+  }
+
+  private void addLatency(Sensor sensor, String group, String prefix, Map<String, String> tags) {
+    sensor.add(metricName(prefix + "-latency-avg", group, "Average latency in ms", tags), new Avg());
+    sensor.add(metricName(prefix + "-latency-max", group, "Maximum latency in ms", tags), new Max());
+    sensor.add(new Percentiles(HISTOGRAM_BYTES, MAX_LATENCY_MS, BucketSizing.LINEAR,
+        new Percentile(metricName(prefix + "-latency-p50", group, "Median latency in ms", tags), 50),
+        new Percentile(metricName(prefix + "-latency-p95", group, "95th percentile latency in ms", tags), 95),
+        new Percentile(metricName(prefix + "-latency-p99", group, "99th percentile latency in ms", tags), 99)));
+    addMeter(sensor, group, prefix, tags, true);
+  }
+
+  /**
+   * Adds rate and total, counting recordings when {@code countOccurrences} or summing the recorded values otherwise.
+   */
+  private void addMeter(Sensor sensor, String group, String prefix, Map<String, String> tags, boolean countOccurrences) {
+    MetricName rate = metricName(prefix + "-rate", group, "Number per second", tags);
+    MetricName total = metricName(prefix + "-total", group, "Total number", tags);
+    sensor.add(countOccurrences ? new Meter(new Count(), rate, total) : new Meter(rate, total));
+  }
+
+  private MetricName metricName(String name, String group, String description, Map<String, String> tags) {
+    return metrics.metricName(name, group, description, tags);
+  }
+}
@@ -0,0 +1,5 @@
+/**
+ * Instrumentation of the authentication path, registered in a Kafka {@link org.apache.kafka.common.metrics.Metrics}
+ * registry and exposed as JMX MBeans under the {@code kafka.vault.jca} domain.
+ */
+package com.ultimatesoftware.dataplatform.vaultjca.metrics;
@@ -0,0 +1,228 @@
+package com.ultimatesoftware.dataplatform.vaultjca.password;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a password against the value stored in Vault.
+ *
+ * <p>The format is detected from the stored value:</p>
+ *
+ * <table summary="supported password formats">
+ *   <thead>
+ *     <tr><th>Format</th><th>Example</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr><td>bcrypt</td><td>{@code $2b$12$...}</td></tr>
+ *   <tr><td>argon2 (PHC string)</td><td>{@code $argon2id$v=19$m=65536,t=3,p=4$salt$hash}</td></tr>
+ *   <tr><td>PBKDF2 (passlib string)</td><td>{@code $pbkdf2-sha256$29000$salt$hash}</td></tr>
+ *   <tr><td>plain text</td><td>anything else, including values starting with {@code $} that are not a well formed hash</td></tr>
+ *   </tbody>
+ * </table>
+ *
+ * <p>Every comparison is constant time. Key derivation functions are expensive by design, so successful checks of
+ * hashed passwords are remembered for a bounded time, keyed by an HMAC (with a random per process key) of the user,
+ * the password and the stored hash. A rotated secret has a different stored hash so it is never matched by an old entry.</p>
+ */
+public class PasswordVerifier {
+  private static final Logger log = LoggerFactory.getLogger(PasswordVerifier.class);
+  private static final Pattern BCRYPT = Pattern.compile("\\$2[abxy]?\\$\\d{2}\\$[./A-Za-z0-9]{53}");
+  private static final Pattern ARGON2 = Pattern.compile(
+      "\\$argon2(id|i|d)\\$v=\\d+\\$m=\\d+,t=\\d+,p=\\d+\\$[A-Za-z0-9+/]+={0,2}\\$[A-Za-z0-9+/]+={0,2}");
+  private static final Pattern PBKDF2 = Pattern.compile("\\$pbkdf2(-sha1|-sha256|-sha512)?\\$\\d+\\$[A-Za-z0-9./+]+={0,2}\\$[A-Za-z0-9./+]+={0,2}");
+  private static final Splitter DOLLAR = Splitter.on('$');
+  private static final Splitter.MapSplitter ARGON2_PARAMS = Splitter.on(',').withKeyValueSeparator('=');
+
+  private final HashFunction memoDigest;
+  private final Cache<HashCode, Boolean> verified;
+  private final LongAdder memoHits = new LongAdder();
+
+  /**
+   * Creates a verifier remembering successful checks of hashed passwords.
+   *
+   * @param memoTtl how long a successful check is remembered.
+   * @param memoMaximumSize maximum number of checks remembered.
+   */
+  public PasswordVerifier(Duration memoTtl, long memoMaximumSize) {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.memoDigest = Hashing.hmacSha256(key);
+    this.verified = Caffeine.newBuilder()
+        .expireAfterWrite(memoTtl)
+        .maximumSize(memoMaximumSize)
+        .build();
+  }
+
+  /**
+   * Checks the password provided by the client.
+   *
+   * @param username user authenticating.
+   * @param password password provided by the client.
+   * @param stored password or password hash stored in Vault.
+   * @return true when the password matches.
+   */
+  public boolean verify(String username, char[] password, String stored) {
+    if (stored == null) {
+      return false;
+    }
+    if (!isHash(stored)) {
+      return constantTimeEquals(stored, password);
+    }
+
+    HashCode memoKey = memoDigest.newHasher()
+        .putInt(username.length()).putUnencodedChars(username)
+        .putInt(password.length).putString(CharBuffer.wrap(password), StandardCharsets.UTF_8)
+        .putUnencodedChars(stored)
+        .hash();
+    if (verified.getIfPresent(memoKey) != null) {
+      memoHits.increment();
+      return true;
+    }
+
+    boolean matches = verifyHash(password, stored);
+    if (matches) {
+      verified.put(memoKey, Boolean.TRUE);
+    }
+    return matches;
+  }
+
+  /**
+   * Number of checks answered without running the key derivation function.
+   *
+   * @return count of memo hits.
+   */
+  public long getMemoHitCount() {
+    return memoHits.sum();
+  }
+
+  /**
+   * Only a value fully matching a supported hash format is a hash, so plain text passwords starting with {@code $} keep
+   * working.
+   */
+  static boolean isHash(String stored) {
+    return stored.startsWith("$")
+        && (BCRYPT.matcher(stored).matches() || ARGON2.matcher(stored).matches() || PBKDF2.matcher(stored).matches());
+  }
+
+  private static boolean verifyHash(char[] password, String stored) {
+    try {
+      if (ARGON2.matcher(stored).matches()) {
+        return verifyArgon2(password, stored);
+      }
+      if (PBKDF2.matcher(stored).matches()) {
+        return verifyPbkdf2(password, stored);
+      }
+      return OpenBSDBCrypt.checkPassword(stored, password);
+    } catch (RuntimeException | GeneralSecurityException e) {
+      log.warn("Invalid password hash stored in vault", e);
+      return false;
+    }
+  }
+
+  // $argon2id$v=19$m=65536,t=3,p=4$<salt>$<hash>
+  private static boolean verifyArgon2(char[] password, String stored) {
+    List<String> parts = DOLLAR.splitToList(stored);
+    Preconditions.checkArgument(parts.size() == 6, "Invalid argon2 hash");
+    int type;
+    switch (parts.get(1)) {
+      case "argon2id":
+        type = Argon2Parameters.ARGON2_id;
+        break;
+      case "argon2i":
+        type = Argon2Parameters.ARGON2_i;
+        break;
+      case "argon2d":
+        type = Argon2Parameters.ARGON2_d;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown argon2 type " + parts.get(1));
+    }
+    Map<String, String> params = ARGON2_PARAMS.split(parts.get(3));
+    byte[] salt = Base64.getDecoder().decode(parts.get(4));
+    byte[] expected = Base64.getDecoder().decode(parts.get(5));
+
+    Argon2BytesGenerator generator = new Argon2BytesGenerator();
+    generator.init(new Argon2Parameters.Builder(type)
+        .withVersion(Integer.parseInt(ARGON2_PARAMS.split(parts.get(2)).get("v")))
+        .withMemoryAsKB(Integer.parseInt(params.get("m")))
+        .withIterations(Integer.parseInt(params.get("t")))
+        .withParallelism(Integer.parseInt(params.get("p")))
+        .withSalt(salt)
+        .build());
+    byte[] actual = new byte[expected.length];
+    generator.generateBytes(password, actual);
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  // $pbkdf2-sha256$<iterations>$<salt>$<hash> using passlib's adapted base64 ('.' instead of '+', no padding)
+  private static boolean verifyPbkdf2(char[] password, String stored) throws GeneralSecurityException {
+    List<String> parts = DOLLAR.splitToList(stored);
+    Preconditions.checkArgument(parts.size() == 5, "Invalid pbkdf2 hash");
+    String algorithm;
+    switch (parts.get(1)) {
+      case "pbkdf2":
+      case "pbkdf2-sha1":
+        algorithm = "PBKDF2WithHmacSHA1";
+        break;
+      case "pbkdf2-sha256":
+        algorithm = "PBKDF2WithHmacSHA256";
+        break;
+      case "pbkdf2-sha512":
+        algorithm = "PBKDF2WithHmacSHA512";
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown pbkdf2 digest " + parts.get(1));
+    }
+    int iterations = Integer.parseInt(parts.get(2));
+    byte[] salt = adaptedBase64(parts.get(3));
+    byte[] expected = adaptedBase64(parts.get(4));
+
+    PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, expected.length * 8);
+    try {
+      byte[] actual = SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+      return MessageDigest.isEqual(expected, actual);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  private static byte[] adaptedBase64(String value) {
+    return Base64.getDecoder().decode(value.replace('.', '+'));
+  }
+
+  /**
+   * Compares without leaking through timing how many characters matched.
+   */
+  static boolean constantTimeEquals(String stored, char[] password) {
+    int storedLength = stored.length();
+    int diff = storedLength ^ password.length;
+    for (int i = 0; i < password.length; i++) {
+      char expected = storedLength == 0 ? 0 : stored.charAt(i % storedLength);
+      diff |= expected ^ password[i];
+    }
+    return diff == 0;
+  }
+}
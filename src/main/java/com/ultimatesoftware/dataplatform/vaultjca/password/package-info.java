@@ -0,0 +1,4 @@
+/**
+ * Verification of the passwords stored in Vault, plain or hashed.
+ */
+package com.ultimatesoftware.dataplatform.vaultjca.password;
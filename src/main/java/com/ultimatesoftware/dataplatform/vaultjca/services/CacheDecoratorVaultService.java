@@ -1,58 +1,186 @@
 package com.ultimatesoftware.dataplatform.vaultjca.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Decorator Cache implementation based on Google's Guava Cache that delegates call to any
- * other {@link VaultService} implementation
+ * Decorator Cache implementation based on <a href="https://github.com/ben-manes/caffeine">Caffeine</a> that delegates
+ * call to any other {@link VaultService} implementation
  *
- * <p>Keeps an in memory a maximum of 100 entries that expire after 2 Min by default or
- * the user can set its own value using an environment variable VAULT_CACHE_TTL_MIN.</p>
+ * <p>Caffeine uses a W-TinyLFU policy so frequently used credentials are kept over one-off lookups. By default keeps
+ * in memory a maximum of 10000 entries that expire 2 Min after being loaded; check {@link CacheSettings} on how to
+ * tweak it through the jaas file. Pinned entries (the admin credentials) never count towards the maximum size, so
+ * client churn can not evict the inter broker credentials.</p>
+ *
+ * <p>Each entry expires after the TTL Vault gave for its secret (see {@link LeasedSecret}), bounded by
+ * {@code cache_max_ttl_sec}, or after the global TTL, minus a random jitter so entries loaded together do not expire in
+ * a single wave, check {@link SecretExpiry}.</p>
+ *
+ * <p>Paths without a secret (unknown users) are remembered in a separate negative cache with its own short TTL and size,
+ * so they neither take space from known credentials nor reach Vault on every retry.</p>
+ *
+ * <p>When refresh ahead is enabled entries older than the TTL are reloaded in the background
+ * while the last good value keeps being served (stale-while-revalidate). If the reload fails the stale
+ * value is still served until the stale grace period has passed on top of the TTL.</p>
+ *
+ * <p>When a reconciliation interval is set a {@link VersionReconciler} reloads the entries whose version changed in
+ * Vault, so the TTL can be long without delaying password rotations.</p>
+ *
+ * <p>With {@link #subscribeToEvents(String, Supplier)} the cache follows the KV events of Vault through a
+ * {@link VaultEventSubscriber}: written secrets are reloaded, or loaded when under the preload paths, and deleted ones
+ * dropped as soon as Vault tells. While the event stream is up entries without a TTL from Vault live for
+ * {@code cache_events_ttl_sec}, which can then be long; when it goes down they are brought back within the regular TTL,
+ * as events may be missed until it is up again.</p>
+ *
+ * <p>Listeners added with {@link #addChangeListener(Consumer)} are told about the paths reloaded with a different value,
+ * written or dropped, e.g. to end the {@link ReauthSessions} verified against the previous secret.</p>
+ *
+ * <p>Hits, misses, loads and evictions are recorded into the cache sensors of {@link VaultJcaMetrics}.</p>
  */
 public class CacheDecoratorVaultService implements VaultService {
 
   private static final Logger log = LoggerFactory.getLogger(CacheDecoratorVaultService.class);
-  private static final String VAULT_CACHE_TTL_MIN = "VAULT_CACHE_TTL_MIN";
-  final Cache<String, Map<String, String>> cache;
+  private static final int REFRESH_THREADS = 2;
+  private static final String ENV_VAULT_SSL_CERT = "VAULT_SSL_CERT";
+  private static final Duration EVENTS_PING_INTERVAL = Duration.ofSeconds(30);
+  private static final Duration EVENTS_MIN_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration EVENTS_MAX_BACKOFF = Duration.ofMinutes(1);
+  final LoadingCache<String, Map<String, String>> cache;
+  final Cache<String, Boolean> negativeCache;
   private final VaultService vaultService;
+  private final Executor executor;
+  private final LongAdder negativeHits = new LongAdder();
+  private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+  final VersionReconciler reconciler;
+  private final Ticker ticker;
+  private final SecretExpiry expiry;
+  private final Set<String> preloadPaths;
+  volatile VaultEventSubscriber events;
 
   /**
    * This implementation uses the decorator pattern to wrap calls with the cache that can also be configured via environment variables.
    *
-   * Defaults to max 100 entries in the cache, and 2 minutes of TTL.
+   * Defaults to max 10000 entries in the cache, and 2 minutes of TTL.
    * @param vaultService an implementation of {@link VaultService} used to delegate calls.
    */
   public CacheDecoratorVaultService(VaultService vaultService) {
+    this(vaultService, CacheSettings.fromOptions(Collections.emptyMap()));
+  }
+
+  /**
+   * Creates the cache with specific settings.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param settings size and expiry settings of the cache.
+   */
+  public CacheDecoratorVaultService(VaultService vaultService, CacheSettings settings) {
+    this(vaultService, settings, Ticker.systemTicker(),
+        Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-cache-refresh-%d").build()));
+  }
+
+  @VisibleForTesting
+  CacheDecoratorVaultService(VaultService vaultService, CacheSettings settings, Ticker ticker, Executor executor) {
     Preconditions.checkArgument(!(vaultService instanceof CacheDecoratorVaultService), "Use any other implementation of VaultService as a delegator");
-    long cacheTtl = (System.getenv(VAULT_CACHE_TTL_MIN) != null) ? Long.parseLong(System.getenv(VAULT_CACHE_TTL_MIN)) : 2;
     this.vaultService = vaultService;
-    this.cache = CacheBuilder.newBuilder()
-        .maximumSize(100)
-        .expireAfterAccess(cacheTtl, TimeUnit.MINUTES)
-        .recordStats()
+    this.executor = executor;
+    this.ticker = ticker;
+    this.expiry = new SecretExpiry(settings);
+    this.preloadPaths = settings.getPreloadPaths();
+    Set<String> pinnedPaths = settings.getPinnedPaths();
+    Caffeine<String, Map<String, String>> builder = Caffeine.newBuilder()
+        .maximumWeight(settings.getMaximumSize())
+        .weigher((String path, Map<String, String> value) -> pinnedPaths.contains(path) ? 0 : 1)
+        .ticker(ticker)
+        .executor(executor)
+        .removalListener((String path, Map<String, String> value, RemovalCause cause) -> {
+          // Replacements notify when the value changed; once expired or evicted the next load may bring another secret
+          if (cause != RemovalCause.REPLACED) {
+            notifyChange(path);
+          }
+        })
+        .recordStats(VaultJcaMetrics.instance()::cacheStatsCounter);
+    builder.expireAfter(expiry);
+    if (settings.isRefreshAhead()) {
+      // Background reloads start after the global TTL, entries with a shorter TTL are loaded again when they expire
+      builder.refreshAfterWrite(settings.getExpireAfterWrite());
+    }
+    this.negativeCache = Caffeine.newBuilder()
+        .maximumSize(settings.getNegativeMaximumSize())
+        .expireAfterWrite(settings.getNegativeTtl())
+        .ticker(ticker)
+        .executor(executor)
         .build();
-    log.debug("Cache initialized with TTL {}", cacheTtl);
+    this.cache = builder.build(new CacheLoader<String, Map<String, String>>() {
+      @Override
+      public Map<String, String> load(String path) {
+        return CacheDecoratorVaultService.this.load(path);
+      }
+
+      @Override
+      public Map<String, String> reload(String path, Map<String, String> oldValue) {
+        Map<String, String> secret = CacheDecoratorVaultService.this.load(path);
+        if (secret != null && !secret.equals(oldValue)) {
+          notifyChange(path);
+        }
+        return secret;
+      }
+    });
+    if (settings.getReconcileInterval() != null) {
+      this.reconciler = new VersionReconciler(vaultService, cache, this::reloadFromVault, settings.getReconcileBudget());
+      reconciler.start(settings.getReconcileInterval());
+    } else {
+      this.reconciler = null;
+    }
+    log.debug("Cache initialized with {}", settings);
   }
 
   /**
    * Tries to get the value from cache otherwise delegates to the pass implementation.
+   *
+   * <p>In refresh ahead mode a stale entry is returned right away and reloaded in the background.</p>
    * {@inheritDoc}
    */
   @Override
   public Map<String, String> getSecret(String path) {
-    try {
-      printStats();
-      return cache.get(path, () -> vaultService.getSecret(path));
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
+    if (negativeCache.getIfPresent(path) != null) {
+      negativeHits.increment();
+      return Collections.emptyMap();
     }
+    Map<String, String> secret = cache.get(path);
+    return secret == null ? Collections.emptyMap() : secret;
+  }
+
+  /**
+   * Not cached, always delegates to the decorated implementation.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecretFromVault(String path) {
+    return vaultService.getSecretFromVault(path);
   }
 
   /**
@@ -62,11 +190,177 @@ public class CacheDecoratorVaultService implements VaultService {
   @Override
   public void writeSecret(String path, Map<String, String> value) {
     vaultService.writeSecret(path, value);
-    cache.put(path, value);
-    printStats();
+    negativeCache.invalidate(path);
+    cache.put(path, LeasedSecret.cached(value));
+    notifyChange(path);
+  }
+
+  /**
+   * Listing is not cached, always delegates to the decorated implementation.
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    return vaultService.listSecrets(path);
   }
 
-  private void printStats() {
-    log.debug("Hit count {}, miss count {}, hit rate {}, miss rate {}, size {}", cache.stats().hitCount(), cache.stats().missCount(), cache.stats().hitRate(), cache.stats().missRate(), cache.size());
+  /**
+   * Versions are not cached, always delegates to the decorated implementation.
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    return vaultService.getSecretVersion(path);
+  }
+
+  /**
+   * Follows the KV events of Vault to reload or drop the changed secrets right away, see {@link VaultEventSubscriber}.
+   *
+   * @param vaultAddr address of Vault, the events are only sent by the node the stream is opened on.
+   * @param token token with the capabilities to subscribe, read at each connection.
+   */
+  public void subscribeToEvents(String vaultAddr, Supplier<String> token) {
+    subscribeToEvents(vaultAddr, token, PooledHttpVaultService.sslContext(System.getenv(ENV_VAULT_SSL_CERT)),
+        EVENTS_PING_INTERVAL, EVENTS_MIN_BACKOFF, EVENTS_MAX_BACKOFF);
+  }
+
+  @VisibleForTesting
+  void subscribeToEvents(String vaultAddr, Supplier<String> token, SSLContext sslContext, Duration pingInterval,
+      Duration minBackoff, Duration maxBackoff) {
+    Preconditions.checkState(events == null, "Already subscribed to the vault events");
+    events = new VaultEventSubscriber(this, vaultAddr, token, sslContext, pingInterval, minBackoff, maxBackoff);
+    events.start();
+  }
+
+  /**
+   * Applies a KV event: drops a deleted secret, reloads a written one when cached, known missing or under the preload
+   * paths.
+   *
+   * <p>Reloads read Vault itself on the refresh threads, see {@link #reloadFromVault(String)}, so the snapshot and the
+   * last known secrets below are updated too and can not answer with the previous secret; a deleted secret is also read
+   * again to be forgotten by them. When the reload fails the entry is dropped rather than kept for the events TTL.</p>
+   */
+  void onSecretEvent(String path, boolean deleted) {
+    if (deleted) {
+      cache.invalidate(path);
+    } else {
+      boolean knownMissing = negativeCache.getIfPresent(path) != null;
+      negativeCache.invalidate(path);
+      if (!knownMissing && !cache.asMap().containsKey(path) && !isPreloaded(path)) {
+        return;
+      }
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          reloadFromVault(path);
+        } catch (RuntimeException e) {
+          log.warn("Could not reload {} from vault after its event, dropping it from the cache", path, e);
+          cache.invalidate(path);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Closing
+      cache.invalidate(path);
+    }
+  }
+
+  void onEventsConnected() {
+    expiry.eventsConnected();
+  }
+
+  void onEventsDisconnected() {
+    expiry.eventsDisconnected(cache, ticker.read());
+  }
+
+  private boolean isPreloaded(String path) {
+    for (String prefix : preloadPaths) {
+      if (path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops the background refreshes and closes the decorated implementation.
+   */
+  @Override
+  public void close() {
+    if (events != null) {
+      events.close();
+    }
+    if (reconciler != null) {
+      reconciler.close();
+    }
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdownNow();
+    }
+    vaultService.close();
+  }
+
+  /**
+   * Adds a listener called with the paths whose cached secret changed or was dropped, deleted, expired or evicted.
+   *
+   * @param listener called on the refresh threads, must not block.
+   */
+  public void addChangeListener(Consumer<String> listener) {
+    changeListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added with {@link #addChangeListener(Consumer)}.
+   */
+  public void removeChangeListener(Consumer<String> listener) {
+    changeListeners.remove(listener);
+  }
+
+  /**
+   * Number of lookups answered by the negative cache, i.e. Vault calls saved for paths without a secret.
+   *
+   * @return count of negative cache hits.
+   */
+  public long getNegativeHitCount() {
+    return negativeHits.sum();
+  }
+
+  /**
+   * Replaces the cached entry with the secret read from Vault itself, or drops it when Vault has none, so a rotation is
+   * not answered by a copy the decorators below keep.
+   *
+   * @throws RuntimeException when Vault can not be read, the cached entry is then kept.
+   */
+  void reloadFromVault(String path) {
+    Map<String, String> secret = vaultService.getSecretFromVault(path);
+    if (secret == null || secret.isEmpty()) {
+      negativeCache.put(path, Boolean.TRUE);
+      cache.invalidate(path);
+      return;
+    }
+    negativeCache.invalidate(path);
+    Map<String, String> previous = cache.asMap().put(path, LeasedSecret.cached(secret));
+    if (previous != null && !previous.equals(secret)) {
+      notifyChange(path);
+    }
+  }
+
+  private void notifyChange(String path) {
+    for (Consumer<String> listener : changeListeners) {
+      try {
+        listener.accept(path);
+      } catch (RuntimeException e) {
+        log.warn("Cache change listener failed for {}", path, e);
+      }
+    }
+  }
+
+  // Returning null keeps the path out of the positive cache, also drops the entry when a refresh finds it deleted
+  private Map<String, String> load(String path) {
+    Map<String, String> secret = vaultService.getSecret(path);
+    if (secret == null || secret.isEmpty()) {
+      negativeCache.put(path, Boolean.TRUE);
+      return null;
+    }
+    return LeasedSecret.cached(secret);
   }
 }
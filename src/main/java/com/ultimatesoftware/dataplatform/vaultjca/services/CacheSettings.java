@@ -0,0 +1,364 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Settings for {@link CacheDecoratorVaultService}.
+ *
+ * <p>Values are read from the jaas options of the login module, falling back to the environment variables
+ * VAULT_CACHE_TTL_MIN, VAULT_CACHE_REFRESH_AHEAD and VAULT_CACHE_STALE_GRACE_MIN for backwards compatibility.</p>
+ *
+ * <table summary="jaas options for the cache">
+ *   <thead>
+ *     <tr><th>Option</th><th>Description</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr><td>cache_max_size</td><td>Maximum number of entries, defaults to 10000</td></tr>
+ *   <tr><td>cache_expire_after_write_sec</td><td>Entries are reloaded from Vault after this time, defaults to 2 min</td></tr>
+ *   <tr><td>cache_max_ttl_sec</td><td>Upper bound of the TTL given by Vault for a secret, see {@link LeasedSecret}; defaults
+ *   to the write expiry, so only shorter TTLs apply</td></tr>
+ *   <tr><td>cache_ttl_jitter</td><td>Fraction of its TTL randomly taken off each entry, so entries loaded together do
+ *   not expire together; defaults to 0</td></tr>
+ *   <tr><td>cache_expire_after_access_sec</td><td>Entries not read within this time are dropped, disabled by default</td></tr>
+ *   <tr><td>cache_refresh_ahead</td><td>When true entries are reloaded in the background, see {@link CacheDecoratorVaultService}</td></tr>
+ *   <tr><td>cache_stale_grace_sec</td><td>How long a stale entry is served while Vault errors, defaults to the write expiry</td></tr>
+ *   <tr><td>cache_negative_ttl_sec</td><td>How long a path without secret is remembered, defaults to 30 sec</td></tr>
+ *   <tr><td>cache_negative_max_size</td><td>Maximum number of paths without secret remembered, defaults to 10000</td></tr>
+ *   <tr><td>cache_reconcile_interval_sec</td><td>Period checking the version of the cached secrets, disabled by default;
+ *   see {@link VersionReconciler}</td></tr>
+ *   <tr><td>cache_reconcile_budget</td><td>Maximum Vault requests of a reconciliation cycle, defaults to 50</td></tr>
+ *   <tr><td>cache_events</td><td>When true the cache follows the KV events of Vault, see {@link VaultEventSubscriber}</td></tr>
+ *   <tr><td>cache_events_ttl_sec</td><td>Write expiry while the event stream is up, defaults to the write expiry</td></tr>
+ *   <tr><td>cache_events_preload_paths</td><td>Comma separated paths whose new secrets are loaded on their write event,
+ *   defaults to users_path</td></tr>
+ *   <tr><td>admin_path</td><td>Pinned in the cache, never evicted because of the size limit</td></tr>
+ *   </tbody>
+ * </table>
+ */
+public final class CacheSettings {
+  static final String CACHE_MAX_SIZE = "cache_max_size";
+  static final String CACHE_EXPIRE_AFTER_WRITE_SEC = "cache_expire_after_write_sec";
+  static final String CACHE_MAX_TTL_SEC = "cache_max_ttl_sec";
+  static final String CACHE_TTL_JITTER = "cache_ttl_jitter";
+  static final String CACHE_EXPIRE_AFTER_ACCESS_SEC = "cache_expire_after_access_sec";
+  static final String CACHE_REFRESH_AHEAD = "cache_refresh_ahead";
+  static final String CACHE_STALE_GRACE_SEC = "cache_stale_grace_sec";
+  static final String CACHE_NEGATIVE_TTL_SEC = "cache_negative_ttl_sec";
+  static final String CACHE_NEGATIVE_MAX_SIZE = "cache_negative_max_size";
+  static final String CACHE_RECONCILE_INTERVAL_SEC = "cache_reconcile_interval_sec";
+  static final String CACHE_RECONCILE_BUDGET = "cache_reconcile_budget";
+  static final String CACHE_EVENTS = "cache_events";
+  static final String CACHE_EVENTS_TTL_SEC = "cache_events_ttl_sec";
+  static final String CACHE_EVENTS_PRELOAD_PATHS = "cache_events_preload_paths";
+  static final String ADMIN_PATH = "admin_path";
+  static final String USERS_PATH = "users_path";
+  private static final String VAULT_CACHE_TTL_MIN = "VAULT_CACHE_TTL_MIN";
+  private static final String VAULT_CACHE_REFRESH_AHEAD = "VAULT_CACHE_REFRESH_AHEAD";
+  private static final String VAULT_CACHE_STALE_GRACE_MIN = "VAULT_CACHE_STALE_GRACE_MIN";
+  private static final long DEFAULT_MAX_SIZE = 10_000;
+  private static final long DEFAULT_TTL_MIN = 2;
+  private static final long DEFAULT_NEGATIVE_TTL_SEC = 30;
+  private static final long DEFAULT_NEGATIVE_MAX_SIZE = 10_000;
+  private static final int DEFAULT_RECONCILE_BUDGET = 50;
+
+  private final long maximumSize;
+  private final Duration expireAfterWrite;
+  private final Duration maxSecretTtl;
+  private final double ttlJitter;
+  private final Duration expireAfterAccess;
+  private final boolean refreshAhead;
+  private final Duration staleGrace;
+  private final Set<String> pinnedPaths;
+  private final Duration negativeTtl;
+  private final long negativeMaximumSize;
+  private final Duration reconcileInterval;
+  private final int reconcileBudget;
+  private final boolean events;
+  private final Duration eventsTtl;
+  private final Set<String> preloadPaths;
+
+  private CacheSettings(Builder builder) {
+    this.maximumSize = builder.maximumSize;
+    this.expireAfterWrite = builder.expireAfterWrite;
+    this.maxSecretTtl = builder.maxSecretTtl != null ? builder.maxSecretTtl : builder.expireAfterWrite;
+    this.ttlJitter = builder.ttlJitter;
+    this.expireAfterAccess = builder.expireAfterAccess;
+    this.refreshAhead = builder.refreshAhead;
+    this.staleGrace = builder.staleGrace != null ? builder.staleGrace : builder.expireAfterWrite;
+    this.pinnedPaths = builder.pinnedPaths.build();
+    this.negativeTtl = builder.negativeTtl;
+    this.negativeMaximumSize = builder.negativeMaximumSize;
+    this.reconcileInterval = builder.reconcileInterval;
+    this.reconcileBudget = builder.reconcileBudget;
+    this.events = builder.events;
+    this.eventsTtl = builder.eventsTtl != null ? builder.eventsTtl : builder.expireAfterWrite;
+    this.preloadPaths = builder.preloadPaths.build();
+  }
+
+  /**
+   * Reads the settings from the jaas options falling back to environment variables.
+   *
+   * @param options jaas options of the {@code VaultLoginModule}.
+   * @return the cache settings.
+   */
+  public static CacheSettings fromOptions(Map<String, ?> options) {
+    Builder builder = builder();
+    builder.maximumSize(longOption(options, CACHE_MAX_SIZE, DEFAULT_MAX_SIZE));
+    long ttlMin = envLong(VAULT_CACHE_TTL_MIN, DEFAULT_TTL_MIN);
+    builder.expireAfterWrite(Duration.ofSeconds(longOption(options, CACHE_EXPIRE_AFTER_WRITE_SEC, Duration.ofMinutes(ttlMin).getSeconds())));
+    if (!Strings.isNullOrEmpty(option(options, CACHE_MAX_TTL_SEC))) {
+      builder.maxSecretTtl(Duration.ofSeconds(longOption(options, CACHE_MAX_TTL_SEC, 0)));
+    }
+    if (!Strings.isNullOrEmpty(option(options, CACHE_TTL_JITTER))) {
+      builder.ttlJitter(Double.parseDouble(option(options, CACHE_TTL_JITTER)));
+    }
+    if (!Strings.isNullOrEmpty(option(options, CACHE_EXPIRE_AFTER_ACCESS_SEC))) {
+      builder.expireAfterAccess(Duration.ofSeconds(longOption(options, CACHE_EXPIRE_AFTER_ACCESS_SEC, 0)));
+    }
+    String refreshAhead = option(options, CACHE_REFRESH_AHEAD);
+    builder.refreshAhead("true".equalsIgnoreCase(Strings.isNullOrEmpty(refreshAhead) ? System.getenv(VAULT_CACHE_REFRESH_AHEAD) : refreshAhead));
+    if (!Strings.isNullOrEmpty(option(options, CACHE_STALE_GRACE_SEC))) {
+      builder.staleGrace(Duration.ofSeconds(longOption(options, CACHE_STALE_GRACE_SEC, 0)));
+    } else if (System.getenv(VAULT_CACHE_STALE_GRACE_MIN) != null) {
+      builder.staleGrace(Duration.ofMinutes(envLong(VAULT_CACHE_STALE_GRACE_MIN, ttlMin)));
+    }
+    builder.negativeTtl(Duration.ofSeconds(longOption(options, CACHE_NEGATIVE_TTL_SEC, DEFAULT_NEGATIVE_TTL_SEC)));
+    builder.negativeMaximumSize(longOption(options, CACHE_NEGATIVE_MAX_SIZE, DEFAULT_NEGATIVE_MAX_SIZE));
+    if (!Strings.isNullOrEmpty(option(options, CACHE_RECONCILE_INTERVAL_SEC))) {
+      builder.reconcile(Duration.ofSeconds(longOption(options, CACHE_RECONCILE_INTERVAL_SEC, 0)),
+          (int) longOption(options, CACHE_RECONCILE_BUDGET, DEFAULT_RECONCILE_BUDGET));
+    }
+    builder.events("true".equalsIgnoreCase(option(options, CACHE_EVENTS)));
+    if (!Strings.isNullOrEmpty(option(options, CACHE_EVENTS_TTL_SEC))) {
+      builder.eventsTtl(Duration.ofSeconds(longOption(options, CACHE_EVENTS_TTL_SEC, 0)));
+    }
+    String preloadPaths = Strings.isNullOrEmpty(option(options, CACHE_EVENTS_PRELOAD_PATHS)) ? option(options, USERS_PATH)
+        : option(options, CACHE_EVENTS_PRELOAD_PATHS);
+    if (!Strings.isNullOrEmpty(preloadPaths)) {
+      for (String path : preloadPaths.split(",")) {
+        if (!path.trim().isEmpty()) {
+          builder.preload(path.trim());
+        }
+      }
+    }
+    String adminPath = option(options, ADMIN_PATH);
+    if (!Strings.isNullOrEmpty(adminPath)) {
+      builder.pin(adminPath);
+    }
+    return builder.build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public Duration getExpireAfterWrite() {
+    return expireAfterWrite;
+  }
+
+  public Duration getMaxSecretTtl() {
+    return maxSecretTtl;
+  }
+
+  public double getTtlJitter() {
+    return ttlJitter;
+  }
+
+  /**
+   * @return the access expiry or null when disabled.
+   */
+  public Duration getExpireAfterAccess() {
+    return expireAfterAccess;
+  }
+
+  public boolean isRefreshAhead() {
+    return refreshAhead;
+  }
+
+  public Duration getStaleGrace() {
+    return staleGrace;
+  }
+
+  public Set<String> getPinnedPaths() {
+    return pinnedPaths;
+  }
+
+  public Duration getNegativeTtl() {
+    return negativeTtl;
+  }
+
+  public long getNegativeMaximumSize() {
+    return negativeMaximumSize;
+  }
+
+  /**
+   * @return the reconciliation period or null when disabled.
+   */
+  public Duration getReconcileInterval() {
+    return reconcileInterval;
+  }
+
+  public int getReconcileBudget() {
+    return reconcileBudget;
+  }
+
+  /**
+   * @return true when the cache follows the events of Vault.
+   */
+  public boolean isEvents() {
+    return events;
+  }
+
+  public Duration getEventsTtl() {
+    return eventsTtl;
+  }
+
+  /**
+   * @return the paths whose new secrets are loaded as soon as Vault tells they were written.
+   */
+  public Set<String> getPreloadPaths() {
+    return preloadPaths;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("maximumSize=%d, expireAfterWrite=%s, maxSecretTtl=%s, ttlJitter=%s, expireAfterAccess=%s, refreshAhead=%s, "
+            + "staleGrace=%s, pinned=%s, negativeTtl=%s, negativeMaximumSize=%d, reconcileInterval=%s, reconcileBudget=%d, "
+            + "events=%s, eventsTtl=%s, preloadPaths=%s",
+        maximumSize, expireAfterWrite, maxSecretTtl, ttlJitter, expireAfterAccess, refreshAhead, staleGrace, pinnedPaths, negativeTtl,
+        negativeMaximumSize, reconcileInterval, reconcileBudget, events, eventsTtl, preloadPaths);
+  }
+
+  private static String option(Map<String, ?> options, String key) {
+    Object value = options.get(key);
+    return value == null ? null : value.toString();
+  }
+
+  private static long longOption(Map<String, ?> options, String key, long defaultValue) {
+    String value = option(options, key);
+    return Strings.isNullOrEmpty(value) ? defaultValue : Long.parseLong(value);
+  }
+
+  private static long envLong(String name, long defaultValue) {
+    return (System.getenv(name) != null) ? Long.parseLong(System.getenv(name)) : defaultValue;
+  }
+
+  /**
+   * Builder for {@link CacheSettings}.
+   */
+  public static final class Builder {
+    private long maximumSize = DEFAULT_MAX_SIZE;
+    private Duration expireAfterWrite = Duration.ofMinutes(DEFAULT_TTL_MIN);
+    private Duration maxSecretTtl;
+    private double ttlJitter;
+    private Duration expireAfterAccess;
+    private boolean refreshAhead;
+    private Duration staleGrace;
+    private final ImmutableSet.Builder<String> pinnedPaths = ImmutableSet.builder();
+    private Duration negativeTtl = Duration.ofSeconds(DEFAULT_NEGATIVE_TTL_SEC);
+    private long negativeMaximumSize = DEFAULT_NEGATIVE_MAX_SIZE;
+    private Duration reconcileInterval;
+    private int reconcileBudget = DEFAULT_RECONCILE_BUDGET;
+    private boolean events;
+    private Duration eventsTtl;
+    private final ImmutableSet.Builder<String> preloadPaths = ImmutableSet.builder();
+
+    private Builder() {
+    }
+
+    public Builder maximumSize(long maximumSize) {
+      Preconditions.checkArgument(maximumSize > 0, "Cache maximum size must be positive");
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    public Builder expireAfterWrite(Duration expireAfterWrite) {
+      Preconditions.checkArgument(!expireAfterWrite.isNegative() && !expireAfterWrite.isZero(), "Cache TTL must be positive");
+      this.expireAfterWrite = expireAfterWrite;
+      return this;
+    }
+
+    public Builder maxSecretTtl(Duration maxSecretTtl) {
+      Preconditions.checkArgument(!maxSecretTtl.isNegative() && !maxSecretTtl.isZero(), "Maximum secret TTL must be positive");
+      this.maxSecretTtl = maxSecretTtl;
+      return this;
+    }
+
+    public Builder ttlJitter(double ttlJitter) {
+      Preconditions.checkArgument(ttlJitter >= 0 && ttlJitter < 1, "Cache TTL jitter must be within [0, 1)");
+      this.ttlJitter = ttlJitter;
+      return this;
+    }
+
+    public Builder expireAfterAccess(Duration expireAfterAccess) {
+      Preconditions.checkArgument(!expireAfterAccess.isNegative() && !expireAfterAccess.isZero(), "Cache access expiry must be positive");
+      this.expireAfterAccess = expireAfterAccess;
+      return this;
+    }
+
+    public Builder refreshAhead(boolean refreshAhead) {
+      this.refreshAhead = refreshAhead;
+      return this;
+    }
+
+    public Builder staleGrace(Duration staleGrace) {
+      Preconditions.checkArgument(!staleGrace.isNegative(), "Stale grace period can not be negative");
+      this.staleGrace = staleGrace;
+      return this;
+    }
+
+    public Builder pin(String path) {
+      pinnedPaths.add(path);
+      return this;
+    }
+
+    public Builder negativeTtl(Duration negativeTtl) {
+      Preconditions.checkArgument(!negativeTtl.isNegative() && !negativeTtl.isZero(), "Negative cache TTL must be positive");
+      this.negativeTtl = negativeTtl;
+      return this;
+    }
+
+    public Builder negativeMaximumSize(long negativeMaximumSize) {
+      Preconditions.checkArgument(negativeMaximumSize > 0, "Negative cache maximum size must be positive");
+      this.negativeMaximumSize = negativeMaximumSize;
+      return this;
+    }
+
+    public Builder reconcile(Duration interval, int budget) {
+      Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "Reconciliation interval must be positive");
+      Preconditions.checkArgument(budget >= 2, "Reconciliation budget must allow a version read and a reload");
+      this.reconcileInterval = interval;
+      this.reconcileBudget = budget;
+      return this;
+    }
+
+    public Builder events(boolean events) {
+      this.events = events;
+      return this;
+    }
+
+    public Builder eventsTtl(Duration eventsTtl) {
+      Preconditions.checkArgument(!eventsTtl.isNegative() && !eventsTtl.isZero(), "Cache events TTL must be positive");
+      this.eventsTtl = eventsTtl;
+      return this;
+    }
+
+    public Builder preload(String path) {
+      preloadPaths.add(path.endsWith("/") ? path : path + "/");
+      return this;
+    }
+
+    public CacheSettings build() {
+      return new CacheSettings(this);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills a {@link CacheDecoratorVaultService} with every user secret found under a path.
+ *
+ * <p>Lists the users path (KV version 2 engine) and loads every user secret using a bounded number of threads,
+ * giving up once the deadline is reached so a slow Vault can not hold the broker startup forever. Progress and timing
+ * are published in the warm up group of {@link VaultJcaMetrics}.</p>
+ */
+public class CacheWarmer {
+  private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+  private static final int PROGRESS_LOG_STEPS = 10;
+
+  private final CacheDecoratorVaultService vaultService;
+  private final int parallelism;
+  private final long timeoutMs;
+  private final VaultJcaMetrics metrics;
+
+  /**
+   * Creates a warmer for the cache.
+   *
+   * @param vaultService the cache to fill.
+   * @param parallelism maximum number of concurrent reads to Vault.
+   * @param timeoutMs deadline for the whole warm up in milliseconds.
+   */
+  public CacheWarmer(CacheDecoratorVaultService vaultService, int parallelism, long timeoutMs) {
+    this(vaultService, parallelism, timeoutMs, VaultJcaMetrics.instance());
+  }
+
+  @VisibleForTesting
+  CacheWarmer(CacheDecoratorVaultService vaultService, int parallelism, long timeoutMs, VaultJcaMetrics metrics) {
+    Preconditions.checkArgument(parallelism > 0, "Warm up parallelism must be positive");
+    Preconditions.checkArgument(timeoutMs > 0, "Warm up timeout must be positive");
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.parallelism = parallelism;
+    this.timeoutMs = timeoutMs;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Loads the given single paths and every secret under {@code usersPath} into the cache.
+   *
+   * @param usersPath path in vault where the user secrets reside.
+   * @param extraPaths other secrets to load e.g. the admin credentials.
+   * @return counters and timing of the warm up.
+   */
+  public WarmUpResult warmUp(String usersPath, String... extraPaths) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<String> keys = vaultService.listSecrets(usersPath);
+    int total = keys.size() + extraPaths.length;
+    metrics.recordWarmUpStarted(total);
+    log.info("Warming up cache with {} secrets from {} using {} threads", total, usersPath, parallelism);
+
+    AtomicInteger loaded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    int logEvery = Math.max(1, total / PROGRESS_LOG_STEPS);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-cache-warmup-%d").build());
+    try {
+      for (String path : extraPaths) {
+        executor.execute(() -> load(path, loaded, failed, total, logEvery));
+      }
+      for (String key : keys) {
+        if (key.endsWith("/")) {
+          continue;
+        }
+        executor.execute(() -> load(usersPath + "/" + key, loaded, failed, total, logEvery));
+      }
+      executor.shutdown();
+      boolean completed = executor.awaitTermination(Math.max(0, timeoutMs - stopwatch.elapsed(TimeUnit.MILLISECONDS)), TimeUnit.MILLISECONDS);
+      WarmUpResult result = new WarmUpResult(total, loaded.get(), failed.get(), stopwatch.elapsed(TimeUnit.MILLISECONDS), completed);
+      metrics.recordWarmUpFinished(result.getElapsedMs(), completed);
+      log.info("Cache warm up finished {}", result);
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      metrics.recordWarmUpFinished(stopwatch.elapsed(TimeUnit.MILLISECONDS), false);
+      return new WarmUpResult(total, loaded.get(), failed.get(), stopwatch.elapsed(TimeUnit.MILLISECONDS), false);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void load(String path, AtomicInteger loaded, AtomicInteger failed, int total, int logEvery) {
+    try {
+      vaultService.getSecret(path);
+      int done = loaded.incrementAndGet();
+      metrics.recordWarmUpLoad(true);
+      if (done % logEvery == 0) {
+        log.info("Cache warm up progress {}/{}", done, total);
+      }
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      metrics.recordWarmUpLoad(false);
+      log.warn("Cache warm up could not load {}", path, e);
+    }
+  }
+
+  /**
+   * Outcome of a warm up.
+   */
+  public static final class WarmUpResult {
+    private final int total;
+    private final int loaded;
+    private final int failed;
+    private final long elapsedMs;
+    private final boolean completed;
+
+    WarmUpResult(int total, int loaded, int failed, long elapsedMs, boolean completed) {
+      this.total = total;
+      this.loaded = loaded;
+      this.failed = failed;
+      this.elapsedMs = elapsedMs;
+      this.completed = completed;
+    }
+
+    /**
+     * @return number of secrets found to be loaded.
+     */
+    public int getTotal() {
+      return total;
+    }
+
+    /**
+     * @return number of secrets loaded into the cache.
+     */
+    public int getLoaded() {
+      return loaded;
+    }
+
+    /**
+     * @return number of secrets that could not be read.
+     */
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return time spent warming up in milliseconds.
+     */
+    public long getElapsedMs() {
+      return elapsedMs;
+    }
+
+    /**
+     * @return false when the deadline was reached before loading every secret.
+     */
+    public boolean isCompleted() {
+      return completed;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("total=%d, loaded=%d, failed=%d, elapsedMs=%d, completed=%s", total, loaded, failed, elapsedMs, completed);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Settings for {@link CircuitBreakerVaultService}, read from the jaas options of the login module.
+ *
+ * <table summary="jaas options for the circuit breaker">
+ *   <thead>
+ *     <tr><th>Option</th><th>Description</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr><td>vault_breaker_window</td><td>Number of calls evaluated together, defaults to 20</td></tr>
+ *   <tr><td>vault_breaker_failure_rate</td><td>Percentage of failed calls in a window opening the circuit, defaults to 50</td></tr>
+ *   <tr><td>vault_breaker_slow_call_ms</td><td>Calls slower than this count as slow, defaults to 1000</td></tr>
+ *   <tr><td>vault_breaker_slow_call_rate</td><td>Percentage of slow calls in a window opening the circuit, defaults to 80</td></tr>
+ *   <tr><td>vault_breaker_open_ms</td><td>Time the circuit stays open before a probe call, defaults to 10000</td></tr>
+ *   <tr><td>vault_limit_initial</td><td>Initial number of concurrent calls to Vault, defaults to 20</td></tr>
+ *   <tr><td>vault_limit_min</td><td>Lower bound of the concurrency limit, defaults to 1</td></tr>
+ *   <tr><td>vault_limit_max</td><td>Upper bound of the concurrency limit, defaults to 200</td></tr>
+ *   </tbody>
+ * </table>
+ */
+public final class CircuitBreakerSettings {
+  static final String VAULT_BREAKER_WINDOW = "vault_breaker_window";
+  static final String VAULT_BREAKER_FAILURE_RATE = "vault_breaker_failure_rate";
+  static final String VAULT_BREAKER_SLOW_CALL_MS = "vault_breaker_slow_call_ms";
+  static final String VAULT_BREAKER_SLOW_CALL_RATE = "vault_breaker_slow_call_rate";
+  static final String VAULT_BREAKER_OPEN_MS = "vault_breaker_open_ms";
+  static final String VAULT_LIMIT_INITIAL = "vault_limit_initial";
+  static final String VAULT_LIMIT_MIN = "vault_limit_min";
+  static final String VAULT_LIMIT_MAX = "vault_limit_max";
+  private static final int DEFAULT_WINDOW = 20;
+  private static final int DEFAULT_FAILURE_RATE = 50;
+  private static final long DEFAULT_SLOW_CALL_MS = 1_000;
+  private static final int DEFAULT_SLOW_CALL_RATE = 80;
+  private static final long DEFAULT_OPEN_MS = 10_000;
+  private static final int DEFAULT_LIMIT_INITIAL = 20;
+  private static final int DEFAULT_LIMIT_MIN = 1;
+  private static final int DEFAULT_LIMIT_MAX = 200;
+
+  private final int window;
+  private final int failureRatePercent;
+  private final Duration slowCallThreshold;
+  private final int slowCallRatePercent;
+  private final Duration openDuration;
+  private final int initialLimit;
+  private final int minLimit;
+  private final int maxLimit;
+
+  private CircuitBreakerSettings(Builder builder) {
+    Preconditions.checkArgument(builder.minLimit <= builder.initialLimit && builder.initialLimit <= builder.maxLimit,
+        "Concurrency limits must satisfy min <= initial <= max");
+    this.window = builder.window;
+    this.failureRatePercent = builder.failureRatePercent;
+    this.slowCallThreshold = builder.slowCallThreshold;
+    this.slowCallRatePercent = builder.slowCallRatePercent;
+    this.openDuration = builder.openDuration;
+    this.initialLimit = builder.initialLimit;
+    this.minLimit = builder.minLimit;
+    this.maxLimit = builder.maxLimit;
+  }
+
+  /**
+   * Reads the settings from the jaas options.
+   *
+   * @param options jaas options of the {@code VaultLoginModule}.
+   * @return the circuit breaker settings.
+   */
+  public static CircuitBreakerSettings fromOptions(Map<String, ?> options) {
+    return builder()
+        .window((int) longOption(options, VAULT_BREAKER_WINDOW, DEFAULT_WINDOW))
+        .failureRatePercent((int) longOption(options, VAULT_BREAKER_FAILURE_RATE, DEFAULT_FAILURE_RATE))
+        .slowCallThreshold(Duration.ofMillis(longOption(options, VAULT_BREAKER_SLOW_CALL_MS, DEFAULT_SLOW_CALL_MS)))
+        .slowCallRatePercent((int) longOption(options, VAULT_BREAKER_SLOW_CALL_RATE, DEFAULT_SLOW_CALL_RATE))
+        .openDuration(Duration.ofMillis(longOption(options, VAULT_BREAKER_OPEN_MS, DEFAULT_OPEN_MS)))
+        .limits((int) longOption(options, VAULT_LIMIT_MIN, DEFAULT_LIMIT_MIN),
+            (int) longOption(options, VAULT_LIMIT_INITIAL, DEFAULT_LIMIT_INITIAL),
+            (int) longOption(options, VAULT_LIMIT_MAX, DEFAULT_LIMIT_MAX))
+        .build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  public int getFailureRatePercent() {
+    return failureRatePercent;
+  }
+
+  public Duration getSlowCallThreshold() {
+    return slowCallThreshold;
+  }
+
+  public int getSlowCallRatePercent() {
+    return slowCallRatePercent;
+  }
+
+  public Duration getOpenDuration() {
+    return openDuration;
+  }
+
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("window=%d, failureRate=%d%%, slowCallThreshold=%s, slowCallRate=%d%%, openDuration=%s, limit=%d [%d, %d]",
+        window, failureRatePercent, slowCallThreshold, slowCallRatePercent, openDuration, initialLimit, minLimit, maxLimit);
+  }
+
+  private static long longOption(Map<String, ?> options, String key, long defaultValue) {
+    Object value = options.get(key);
+    return value == null || Strings.isNullOrEmpty(value.toString()) ? defaultValue : Long.parseLong(value.toString());
+  }
+
+  /**
+   * Builder for {@link CircuitBreakerSettings}.
+   */
+  public static final class Builder {
+    private int window = DEFAULT_WINDOW;
+    private int failureRatePercent = DEFAULT_FAILURE_RATE;
+    private Duration slowCallThreshold = Duration.ofMillis(DEFAULT_SLOW_CALL_MS);
+    private int slowCallRatePercent = DEFAULT_SLOW_CALL_RATE;
+    private Duration openDuration = Duration.ofMillis(DEFAULT_OPEN_MS);
+    private int initialLimit = DEFAULT_LIMIT_INITIAL;
+    private int minLimit = DEFAULT_LIMIT_MIN;
+    private int maxLimit = DEFAULT_LIMIT_MAX;
+
+    private Builder() {
+    }
+
+    public Builder window(int window) {
+      Preconditions.checkArgument(window > 0, "Breaker window must be positive");
+      this.window = window;
+      return this;
+    }
+
+    public Builder failureRatePercent(int failureRatePercent) {
+      Preconditions.checkArgument(failureRatePercent > 0 && failureRatePercent <= 100, "Failure rate must be within (0, 100]");
+      this.failureRatePercent = failureRatePercent;
+      return this;
+    }
+
+    public Builder slowCallThreshold(Duration slowCallThreshold) {
+      Preconditions.checkArgument(!slowCallThreshold.isNegative() && !slowCallThreshold.isZero(), "Slow call threshold must be positive");
+      this.slowCallThreshold = slowCallThreshold;
+      return this;
+    }
+
+    public Builder slowCallRatePercent(int slowCallRatePercent) {
+      Preconditions.checkArgument(slowCallRatePercent > 0 && slowCallRatePercent <= 100, "Slow call rate must be within (0, 100]");
+      this.slowCallRatePercent = slowCallRatePercent;
+      return this;
+    }
+
+    public Builder openDuration(Duration openDuration) {
+      Preconditions.checkArgument(!openDuration.isNegative() && !openDuration.isZero(), "Open duration must be positive");
+      this.openDuration = openDuration;
+      return this;
+    }
+
+    public Builder limits(int minLimit, int initialLimit, int maxLimit) {
+      Preconditions.checkArgument(minLimit > 0, "Concurrency limit must be positive");
+      this.minLimit = minLimit;
+      this.initialLimit = initialLimit;
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    public CircuitBreakerSettings build() {
+      return new CircuitBreakerSettings(this);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator shedding load from a degraded Vault with a circuit breaker and an adaptive concurrency limit.
+ *
+ * <p>The breaker evaluates calls in windows of {@link CircuitBreakerSettings#getWindow()} calls; when the failure rate or
+ * the slow call rate of a window reaches its threshold the circuit opens and calls are rejected without touching Vault.
+ * After the open duration one probe call is let through (half open): success closes the circuit, failure opens it again.</p>
+ *
+ * <p>Independently the number of calls in flight is capped by an AIMD limit: every fast successful call raises the limit
+ * by {@code 1/limit} (about one per limit worth of calls) and every failed or slow call cuts it by a quarter, within the
+ * configured bounds. Calls above the limit are rejected.</p>
+ *
+ * <p>Rejected reads are answered with the last secret read for the path when there is one, so known users keep logging
+ * in while Vault recovers; otherwise, and for writes and listings, a {@link RuntimeException} is thrown right away. The
+ * {@link LastKnownSecrets} can be shared with a {@link DeadlineVaultService} above, so both layers forget the same deleted
+ * users and age out the same entries.</p>
+ */
+public class CircuitBreakerVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreakerVaultService.class);
+  private static final long LAST_KNOWN_MAX_SIZE = 10_000;
+  private static final Duration LAST_KNOWN_MAX_AGE = Duration.ofHours(1);
+  private static final double BACKOFF_RATIO = 0.75;
+
+  /**
+   * States of the circuit.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final VaultService vaultService;
+  private final CircuitBreakerSettings settings;
+  private final Ticker ticker;
+  private final long slowCallNanos;
+  private final LastKnownSecrets lastKnownSecrets;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder shed = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+
+  // guarded by this
+  private State state = State.CLOSED;
+  private long openedAtNanos;
+  private boolean probeInFlight;
+  private int windowCalls;
+  private int windowFailures;
+  private int windowSlowCalls;
+  private double limit;
+
+  /**
+   * Creates the decorator.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param settings breaker and limiter settings.
+   */
+  public CircuitBreakerVaultService(VaultService vaultService, CircuitBreakerSettings settings) {
+    this(vaultService, settings, new LastKnownSecrets(LAST_KNOWN_MAX_SIZE, LAST_KNOWN_MAX_AGE));
+  }
+
+  /**
+   * Creates the decorator serving the given last known secrets.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param settings breaker and limiter settings.
+   * @param lastKnownSecrets secrets served to rejected reads.
+   */
+  public CircuitBreakerVaultService(VaultService vaultService, CircuitBreakerSettings settings, LastKnownSecrets lastKnownSecrets) {
+    this(vaultService, settings, lastKnownSecrets, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircuitBreakerVaultService(VaultService vaultService, CircuitBreakerSettings settings, Ticker ticker) {
+    this(vaultService, settings, new LastKnownSecrets(LAST_KNOWN_MAX_SIZE, LAST_KNOWN_MAX_AGE), ticker);
+  }
+
+  @VisibleForTesting
+  CircuitBreakerVaultService(VaultService vaultService, CircuitBreakerSettings settings, LastKnownSecrets lastKnownSecrets,
+      Ticker ticker) {
+    this.lastKnownSecrets = Preconditions.checkNotNull(lastKnownSecrets);
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.settings = Preconditions.checkNotNull(settings);
+    this.ticker = ticker;
+    this.slowCallNanos = settings.getSlowCallThreshold().toNanos();
+    this.limit = settings.getInitialLimit();
+    log.info("Vault circuit breaker settings {}", settings);
+  }
+
+  /**
+   * Reads the secret unless the circuit is open or too many calls are in flight.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    String rejection = tryAcquire();
+    if (rejection != null) {
+      Map<String, String> lastKnown = lastKnownSecrets.get(path);
+      if (lastKnown != null) {
+        fallbacks.increment();
+        log.debug("Serving last known secret for {}, {}", path, rejection);
+        return lastKnown;
+      }
+      throw new RuntimeException(String.format("Could not read %s from vault, %s", path, rejection));
+    }
+    Map<String, String> secret = call(() -> vaultService.getSecret(path));
+    lastKnownSecrets.remember(path, secret);
+    return secret;
+  }
+
+  /**
+   * Reads the secret unless the circuit is open or too many calls are in flight, never serving the last known one.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecretFromVault(String path) {
+    acquireOrFail(path);
+    Map<String, String> secret = call(() -> vaultService.getSecretFromVault(path));
+    lastKnownSecrets.remember(path, secret);
+    return secret;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    acquireOrFail(path);
+    call(() -> {
+      vaultService.writeSecret(path, value);
+      return null;
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    acquireOrFail(path);
+    return call(() -> vaultService.listSecrets(path));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    acquireOrFail(path);
+    return call(() -> vaultService.getSecretVersion(path));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    vaultService.close();
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return current number of concurrent calls allowed.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return number of calls to Vault in flight.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return number of calls rejected because the circuit was open or the limit reached.
+   */
+  public long getShedCount() {
+    return shed.sum();
+  }
+
+  /**
+   * @return number of rejected reads answered with the last known secret.
+   */
+  public long getFallbackCount() {
+    return fallbacks.sum();
+  }
+
+  private void acquireOrFail(String path) {
+    String rejection = tryAcquire();
+    if (rejection != null) {
+      throw new RuntimeException(String.format("Could not call vault for %s, %s", path, rejection));
+    }
+  }
+
+  /**
+   * Takes a permit to call Vault.
+   *
+   * @return null when the call may proceed, otherwise the reason it was rejected.
+   */
+  private String tryAcquire() {
+    synchronized (this) {
+      if (state == State.OPEN && ticker.read() - openedAtNanos >= settings.getOpenDuration().toNanos()) {
+        transition(State.HALF_OPEN);
+      }
+      if (state == State.OPEN || (state == State.HALF_OPEN && probeInFlight)) {
+        shed.increment();
+        return "circuit breaker is " + state;
+      }
+      if (inFlight.get() >= (int) limit) {
+        shed.increment();
+        return "concurrency limit of " + (int) limit + " reached";
+      }
+      if (state == State.HALF_OPEN) {
+        probeInFlight = true;
+      }
+      inFlight.incrementAndGet();
+      return null;
+    }
+  }
+
+  private <T> T call(Supplier<T> supplier) {
+    long start = ticker.read();
+    boolean success = false;
+    try {
+      T result = supplier.get();
+      success = true;
+      return result;
+    } finally {
+      inFlight.decrementAndGet();
+      onComplete(success, ticker.read() - start >= slowCallNanos);
+    }
+  }
+
+  private synchronized void onComplete(boolean success, boolean slow) {
+    if (success && !slow) {
+      limit = Math.min(settings.getMaxLimit(), limit + 1 / limit);
+    } else {
+      limit = Math.max(settings.getMinLimit(), limit * BACKOFF_RATIO);
+    }
+
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      transition(success && !slow ? State.CLOSED : State.OPEN);
+      return;
+    }
+    if (state == State.OPEN) {
+      // a call started before the circuit opened, it does not count towards the next window
+      return;
+    }
+    windowCalls++;
+    windowFailures += success ? 0 : 1;
+    windowSlowCalls += slow ? 1 : 0;
+    if (windowCalls >= settings.getWindow()) {
+      if (windowFailures * 100 >= settings.getFailureRatePercent() * windowCalls
+          || windowSlowCalls * 100 >= settings.getSlowCallRatePercent() * windowCalls) {
+        log.warn("Opening vault circuit breaker, {} failed and {} slow out of {} calls", windowFailures, windowSlowCalls, windowCalls);
+        transition(State.OPEN);
+      } else {
+        resetWindow();
+      }
+    }
+  }
+
+  private void transition(State newState) {
+    log.info("Vault circuit breaker {} -> {}", state, newState);
+    state = newState;
+    if (newState == State.OPEN) {
+      openedAtNanos = ticker.read();
+    }
+    resetWindow();
+  }
+
+  private void resetWindow() {
+    windowCalls = 0;
+    windowFailures = 0;
+    windowSlowCalls = 0;
+  }
+}
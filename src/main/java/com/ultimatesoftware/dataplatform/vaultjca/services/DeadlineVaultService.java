@@ -0,0 +1,189 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator bounding how long a caller waits for {@link VaultService#getSecret(String)}.
+ *
+ * <p>Kafka runs the SASL callbacks on the network processor threads, a slow Vault read there stalls every connection
+ * served by that processor. Reads are run on a bounded pool instead and the caller waits at most the deadline; when it
+ * passes, or the pool is saturated, the last secret read for the path is served if there is one, otherwise it fails
+ * right away. A late read still completes in the background and refreshes the last known secret, or forgets it when the
+ * secret is gone from Vault; see {@link LastKnownSecrets} for how long a secret is served.</p>
+ *
+ * <p>Writes and listings are not on the authentication path and are delegated directly.</p>
+ */
+public class DeadlineVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(DeadlineVaultService.class);
+  private static final long LAST_KNOWN_MAX_SIZE = 10_000;
+  private static final Duration LAST_KNOWN_MAX_AGE = Duration.ofHours(1);
+
+  private final VaultService vaultService;
+  private final long deadlineNanos;
+  private final ThreadPoolExecutor executor;
+  private final LastKnownSecrets lastKnownSecrets;
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+
+  /**
+   * Creates the decorator.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param deadline maximum time a caller waits for a read.
+   * @param threads number of threads reading from Vault.
+   * @param queueSize maximum number of reads waiting for a thread.
+   */
+  public DeadlineVaultService(VaultService vaultService, Duration deadline, int threads, int queueSize) {
+    this(vaultService, deadline, threads, queueSize, new LastKnownSecrets(LAST_KNOWN_MAX_SIZE, LAST_KNOWN_MAX_AGE));
+  }
+
+  /**
+   * Creates the decorator serving the given last known secrets.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param deadline maximum time a caller waits for a read.
+   * @param threads number of threads reading from Vault.
+   * @param queueSize maximum number of reads waiting for a thread.
+   * @param lastKnownSecrets secrets served when the deadline passes.
+   */
+  public DeadlineVaultService(VaultService vaultService, Duration deadline, int threads, int queueSize, LastKnownSecrets lastKnownSecrets) {
+    Preconditions.checkArgument(!deadline.isNegative() && !deadline.isZero(), "Deadline must be positive");
+    Preconditions.checkArgument(threads > 0 && queueSize > 0, "Threads and queue size must be positive");
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.deadlineNanos = deadline.toNanos();
+    this.lastKnownSecrets = Preconditions.checkNotNull(lastKnownSecrets);
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-deadline-%d").build());
+  }
+
+  /**
+   * Reads the secret waiting at most the deadline.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    Future<Map<String, String>> future;
+    try {
+      future = executor.submit(() -> {
+        Map<String, String> secret = vaultService.getSecret(path);
+        lastKnownSecrets.remember(path, secret);
+        return secret;
+      });
+    } catch (RejectedExecutionException e) {
+      rejections.increment();
+      return fallback(path, "too many pending vault reads");
+    }
+
+    try {
+      return future.get(deadlineNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      timeouts.increment();
+      return fallback(path, "vault read deadline exceeded");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads on the calling thread without deadline nor fallback, remembering the secret read.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecretFromVault(String path) {
+    Map<String, String> secret = vaultService.getSecretFromVault(path);
+    lastKnownSecrets.remember(path, secret);
+    return secret;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    vaultService.writeSecret(path, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    return vaultService.listSecrets(path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    return vaultService.getSecretVersion(path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    vaultService.close();
+  }
+
+  /**
+   * @return number of reads that reached the deadline.
+   */
+  public long getTimeoutCount() {
+    return timeouts.sum();
+  }
+
+  /**
+   * @return number of reads rejected because the pool was saturated.
+   */
+  public long getRejectionCount() {
+    return rejections.sum();
+  }
+
+  /**
+   * @return number of timed out or rejected reads answered with the last known secret.
+   */
+  public long getFallbackCount() {
+    return fallbacks.sum();
+  }
+
+  /**
+   * @return number of reads running or waiting for a thread.
+   */
+  public int getPendingCount() {
+    return executor.getActiveCount() + executor.getQueue().size();
+  }
+
+  private Map<String, String> fallback(String path, String reason) {
+    Map<String, String> lastKnown = lastKnownSecrets.get(path);
+    if (lastKnown != null) {
+      fallbacks.increment();
+      log.warn("Serving last known secret for {}, {}", path, reason);
+      return lastKnown;
+    }
+    throw new RuntimeException(String.format("Could not read %s from vault, %s", path, reason));
+  }
+}
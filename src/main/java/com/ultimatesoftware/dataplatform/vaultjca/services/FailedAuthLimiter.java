@@ -0,0 +1,109 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate limit of failed authentications per username, checked before reading Vault.
+ *
+ * <p>A brute force attempt, or a client retrying with a wrong password, reads Vault on every connection. Each username has
+ * a token bucket, implemented as a generic cell rate algorithm: a single timestamp updated with compare and set, so
+ * checks are lock free. Only failures take tokens; after {@code burst} failures further attempts are rejected in memory
+ * until a token is back, one every {@code backoff}. A successful authentication resets the bucket. Buckets are kept in a
+ * Caffeine cache, itself striped, and dropped once idle long enough to be full again, so memory stays bounded.</p>
+ */
+public class FailedAuthLimiter {
+  private static final long MAX_BUCKETS = 100_000;
+
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final Ticker ticker;
+  private final Cache<String, AtomicLong> buckets;
+  private final LongAdder throttled = new LongAdder();
+
+  /**
+   * Creates the limiter.
+   *
+   * @param burst failures allowed in a row before throttling.
+   * @param backoff time to get back one allowed failure.
+   */
+  public FailedAuthLimiter(int burst, Duration backoff) {
+    this(burst, backoff, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  FailedAuthLimiter(int burst, Duration backoff, Ticker ticker) {
+    Preconditions.checkArgument(burst > 0, "Failed authentication burst must be positive");
+    Preconditions.checkArgument(!backoff.isNegative() && !backoff.isZero(), "Failed authentication backoff must be positive");
+    this.intervalNanos = backoff.toNanos();
+    this.toleranceNanos = intervalNanos * (burst - 1);
+    this.ticker = ticker;
+    this.buckets = Caffeine.newBuilder()
+        .maximumSize(MAX_BUCKETS)
+        .expireAfterAccess(intervalNanos * burst, TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Checks whether the user can try to authenticate, does not take a token.
+   *
+   * @param username the user authenticating.
+   * @return false when the user failed too often and must back off.
+   */
+  public boolean tryAcquire(String username) {
+    AtomicLong bucket = buckets.getIfPresent(username);
+    if (bucket == null || bucket.get() - ticker.read() <= toleranceNanos) {
+      return true;
+    }
+    throttled.increment();
+    return false;
+  }
+
+  /**
+   * Takes a token of the user after a failed authentication.
+   *
+   * @param username the user that failed.
+   */
+  public void recordFailure(String username) {
+    AtomicLong bucket = buckets.get(username, key -> new AtomicLong(Long.MIN_VALUE));
+    long now = ticker.read();
+    long current;
+    long next;
+    do {
+      current = bucket.get();
+      next = Math.max(current, now) + intervalNanos;
+    } while (!bucket.compareAndSet(current, next));
+  }
+
+  /**
+   * Refills the bucket of the user after a successful authentication.
+   *
+   * @param username the user that succeeded.
+   */
+  public void recordSuccess(String username) {
+    if (buckets.getIfPresent(username) != null) {
+      buckets.invalidate(username);
+    }
+  }
+
+  /**
+   * @return number of attempts rejected.
+   */
+  public long getThrottledCount() {
+    return throttled.sum();
+  }
+
+  @VisibleForTesting
+  long bucketCount() {
+    buckets.cleanUp();
+    return buckets.estimatedSize();
+  }
+}
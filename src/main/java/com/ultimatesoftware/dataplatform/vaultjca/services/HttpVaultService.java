@@ -3,10 +3,16 @@ package com.ultimatesoftware.dataplatform.vaultjca.services;
 import com.bettercloud.vault.Vault;
 import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.Rest;
+import com.bettercloud.vault.rest.RestException;
+import com.bettercloud.vault.rest.RestResponse;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import java.time.Duration;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,28 +23,48 @@ import org.slf4j.LoggerFactory;
  *
  * At this point this implementation is not revoking tokens and only can be configured using the
  * provided environment variables as described in the library documentation. It also assumes vault is using
- * an version 2 engine.
+ * an version 2 engine. When created with a {@link VaultTokenManager} the token is renewed or replaced in the background,
+ * a new token swaps the client without blocking the requests in flight.
  */
 public class HttpVaultService implements VaultService {
   private static final Logger log = LoggerFactory.getLogger(HttpVaultService.class);
 
-  private final Vault vault;
+  private static final String TOKEN_HEADER = "X-Vault-Token";
+
+  private volatile VaultConfig config;
+  private volatile Vault vault;
+  private final VaultTokenManager tokenManager;
 
   public HttpVaultService() {
     try {
-      this.vault = new Vault(new VaultConfig().build());
+      this.config = new VaultConfig().build();
+      this.vault = new Vault(config);
+      this.tokenManager = null;
     } catch (VaultException e) {
       log.error("Error creating Vault service", e);
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Creates the service with the token kept alive by a started {@link VaultTokenManager}, closed with this service.
+   *
+   * @param tokenManager source of the token.
+   */
+  public HttpVaultService(VaultTokenManager tokenManager) {
+    this.tokenManager = Preconditions.checkNotNull(tokenManager);
+    updateToken(tokenManager.getToken());
+    tokenManager.addListener(this::updateToken);
+  }
+
   @VisibleForTesting
   HttpVaultService(String vaultAddr, String token) {
     Preconditions.checkArgument(!Strings.isNullOrEmpty(vaultAddr));
     Preconditions.checkArgument(!Strings.isNullOrEmpty(token));
     try {
-      this.vault = new Vault(new VaultConfig().address(vaultAddr).token(token).build());
+      this.config = new VaultConfig().address(vaultAddr).token(token).build();
+      this.vault = new Vault(config);
+      this.tokenManager = null;
     } catch (VaultException e) {
       log.error("Error building Vault", e);
       throw new RuntimeException(e);
@@ -46,6 +72,28 @@ public class HttpVaultService implements VaultService {
   }
 
   /**
+   * Replaces the token used by the next requests.
+   *
+   * @param token the new token.
+   */
+  public void updateToken(String token) {
+    VaultConfig newConfig = config(token);
+    this.config = newConfig;
+    this.vault = new Vault(newConfig);
+  }
+
+  private static VaultConfig config(String token) {
+    try {
+      return new VaultConfig().token(token).build();
+    } catch (VaultException e) {
+      log.error("Error building Vault", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the secret, with the TTL of its KV version 2 custom metadata or its lease duration, which the driver does not
+   * expose for version 2 secrets.
    * {@inheritDoc}
    */
   @Override
@@ -53,7 +101,8 @@ public class HttpVaultService implements VaultService {
   public Map<String, String> getSecret(String path) {
     Preconditions.checkArgument(!Strings.isNullOrEmpty(path));
     try {
-      return vault.logical().read(path).getData();
+      LogicalResponse response = vault.logical().read(path);
+      return LeasedSecret.of(response.getData(), ttl(response));
     } catch (VaultException e) {
       if (e.getHttpStatusCode() == 404) {
         return Collections.EMPTY_MAP;
@@ -62,6 +111,15 @@ public class HttpVaultService implements VaultService {
     }
   }
 
+  private static Duration ttl(LogicalResponse response) {
+    RestResponse restResponse = response.getRestResponse();
+    if (restResponse != null && restResponse.getBody() != null && restResponse.getBody().length > 0) {
+      return KvV2.parseTtl(restResponse.getBody());
+    }
+    Long leaseSeconds = response.getLeaseDuration();
+    return leaseSeconds != null && leaseSeconds > 0 ? Duration.ofSeconds(leaseSeconds) : null;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -73,4 +131,59 @@ public class HttpVaultService implements VaultService {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(path));
+    try {
+      return vault.logical().list(path);
+    } catch (VaultException e) {
+      if (e.getHttpStatusCode() == 404) {
+        return Collections.emptyList();
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the metadata directly, the driver only reads the data of version 2 secrets.
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(path));
+    VaultConfig current = config;
+    try {
+      RestResponse response = new Rest()
+          .url(current.getAddress() + "/v1/" + KvV2.metadataPath(path))
+          .header(TOKEN_HEADER, current.getToken())
+          .connectTimeoutSeconds(current.getOpenTimeout())
+          .readTimeoutSeconds(current.getReadTimeout())
+          .sslVerification(current.getSslConfig().isVerify())
+          .sslContext(current.getSslConfig().getSslContext())
+          .get();
+      if (response.getStatus() == 404) {
+        return 0;
+      }
+      if (response.getStatus() < 200 || response.getStatus() >= 300) {
+        throw new VaultException(String.format("Vault responded with status %d for path %s", response.getStatus(), path), response.getStatus());
+      }
+      return KvV2.parseCurrentVersion(response.getBody());
+    } catch (RestException | VaultException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Stops the token renewal, if any.
+   */
+  @Override
+  public void close() {
+    if (tokenManager != null) {
+      tokenManager.close();
+    }
+  }
 }
@@ -0,0 +1,97 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.VaultException;
+import com.google.common.base.Preconditions;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Decorator recording latency, errors by HTTP status and in-flight count of the requests reaching Vault, check
+ * {@link VaultJcaMetrics}. It wraps the transport directly so cache hits and shed calls are not counted as requests.
+ */
+public class InstrumentedVaultService implements VaultService {
+  private final VaultService vaultService;
+  private final VaultJcaMetrics metrics;
+
+  /**
+   * Creates the decorator.
+   *
+   * @param vaultService the transport to Vault.
+   * @param metrics sensors to record into.
+   */
+  public InstrumentedVaultService(VaultService vaultService, VaultJcaMetrics metrics) {
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    return record(() -> vaultService.getSecret(path));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    record(() -> {
+      vaultService.writeSecret(path, value);
+      return null;
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    return record(() -> vaultService.listSecrets(path));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    return record(() -> vaultService.getSecretVersion(path));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    vaultService.close();
+  }
+
+  private <T> T record(Supplier<T> request) {
+    metrics.vaultRequestStarted();
+    long start = System.nanoTime();
+    int errorStatus = -1;
+    try {
+      return request.get();
+    } catch (RuntimeException e) {
+      errorStatus = httpStatus(e);
+      throw e;
+    } finally {
+      metrics.recordVaultRequest(System.nanoTime() - start, errorStatus);
+    }
+  }
+
+  /**
+   * @return the HTTP status Vault responded with, 0 when the request failed without a response.
+   */
+  static int httpStatus(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof VaultException) {
+        return ((VaultException) cause).getHttpStatusCode();
+      }
+    }
+    return 0;
+  }
+}
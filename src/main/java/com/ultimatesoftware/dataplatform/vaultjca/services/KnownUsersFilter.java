@@ -0,0 +1,112 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bloom filter of the usernames found under the users path in Vault.
+ *
+ * <p>Built from a listing of the users path and rebuilt periodically in the background, it lets the callback handler reject
+ * usernames that can not exist without any network I/O. Until a listing returns users every username is allowed, as an
+ * empty listing more likely comes from a policy or a layout the filter does not understand than from Vault without users.
+ * Users created in Vault are rejected until the next refresh, so keep the refresh period short enough for new clients.</p>
+ */
+public class KnownUsersFilter implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(KnownUsersFilter.class);
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+  private static final int MIN_EXPECTED_USERS = 1_000;
+
+  private final VaultService vaultService;
+  private final String usersPath;
+  private final ScheduledExecutorService scheduler;
+  private final LongAdder rejected = new LongAdder();
+  private volatile BloomFilter<CharSequence> filter;
+
+  /**
+   * Creates the filter, call {@link #start(long)} to load it.
+   *
+   * @param vaultService service used to list the users.
+   * @param usersPath path in vault where the users reside.
+   */
+  public KnownUsersFilter(VaultService vaultService, String usersPath) {
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.usersPath = Preconditions.checkNotNull(usersPath);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-known-users-%d").build());
+  }
+
+  /**
+   * Loads the filter right away and schedules its refresh.
+   *
+   * @param refreshSeconds period between listings of the users path.
+   */
+  public void start(long refreshSeconds) {
+    Preconditions.checkArgument(refreshSeconds > 0, "Refresh period must be positive");
+    refresh();
+    scheduler.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Lists the users path and swaps the filter, keeping the previous one when Vault fails.
+   */
+  void refresh() {
+    try {
+      List<String> users = vaultService.listSecrets(usersPath);
+      if (users.isEmpty()) {
+        filter = null;
+        log.warn("No users listed under {}, the known users filter allows every username", usersPath);
+        return;
+      }
+      BloomFilter<CharSequence> newFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+          Math.max(users.size() * 2, MIN_EXPECTED_USERS), FALSE_POSITIVE_PROBABILITY);
+      users.forEach(newFilter::put);
+      filter = newFilter;
+      log.info("Known users filter refreshed with {} users, {} lookups rejected so far", users.size(), rejected.sum());
+    } catch (RuntimeException e) {
+      log.warn("Could not refresh known users from {}", usersPath, e);
+    }
+  }
+
+  /**
+   * Checks whether a user may exist in Vault.
+   *
+   * @param username the user to check.
+   * @return false only when the user is certainly not under the users path.
+   */
+  public boolean mightExist(String username) {
+    BloomFilter<CharSequence> current = filter;
+    if (current == null || current.mightContain(username)) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /**
+   * Number of lookups rejected in memory, i.e. Vault calls saved.
+   *
+   * @return count of rejected usernames.
+   */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
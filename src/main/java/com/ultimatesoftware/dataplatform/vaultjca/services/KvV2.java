@@ -0,0 +1,161 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paths and payloads of the Vault KV version 2 secrets engine, used by the transports talking HTTP to Vault directly.
+ *
+ * <p>Like the bettercloud driver, the first segment of a path is taken as the mount point, e.g. {@code secret/kafka/admin}
+ * is read from {@code /v1/secret/data/kafka/admin}.</p>
+ */
+final class KvV2 {
+  private static final ImmutableSet<String> QUALIFIERS = ImmutableSet.of("data", "metadata", "delete", "undelete", "destroy", "subkeys");
+
+  private KvV2() {
+  }
+
+  /**
+   * @return the API path (without {@code /v1/}) to read or write a secret.
+   */
+  static String dataPath(String path) {
+    return qualify(path, "data");
+  }
+
+  /**
+   * @return the API path (without {@code /v1/}) to list or read the metadata of a secret.
+   */
+  static String metadataPath(String path) {
+    return qualify(path, "metadata");
+  }
+
+  /**
+   * Inverse of {@link #dataPath(String)} and {@link #metadataPath(String)}, e.g. for the paths of Vault events.
+   *
+   * @return the path of the secret an API path (without {@code /v1/}) refers to.
+   */
+  static String secretPath(String apiPath) {
+    String trimmed = apiPath.startsWith("/") ? apiPath.substring(1) : apiPath;
+    int mountEnd = trimmed.indexOf('/');
+    int qualifierEnd = trimmed.indexOf('/', mountEnd + 1);
+    if (mountEnd < 0 || qualifierEnd < 0 || !QUALIFIERS.contains(trimmed.substring(mountEnd + 1, qualifierEnd))) {
+      return trimmed;
+    }
+    return trimmed.substring(0, mountEnd) + trimmed.substring(qualifierEnd);
+  }
+
+  /**
+   * Parses the key value pairs of a read response, as a {@link LeasedSecret} when the response carries a TTL.
+   */
+  static Map<String, String> parseSecret(byte[] body) {
+    JsonObject response = Json.parse(new String(body, StandardCharsets.UTF_8)).asObject();
+    JsonValue data = response.get("data");
+    if (data == null || data.isNull()) {
+      return Collections.emptyMap();
+    }
+    JsonValue secret = data.asObject().get("data");
+    if (secret == null || secret.isNull()) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> result = new HashMap<>();
+    for (JsonObject.Member member : secret.asObject()) {
+      result.put(member.getName(), member.getValue().isString() ? member.getValue().asString() : member.getValue().toString());
+    }
+    return LeasedSecret.of(Collections.unmodifiableMap(result), parseTtl(response, data.asObject()));
+  }
+
+  /**
+   * TTL of a read response, see {@link #parseTtl(JsonObject, JsonObject)}.
+   *
+   * @return the TTL or null when the response carries none or can not be parsed.
+   */
+  static Duration parseTtl(byte[] body) {
+    try {
+      JsonObject response = Json.parse(new String(body, StandardCharsets.UTF_8)).asObject();
+      JsonValue data = response.get("data");
+      return parseTtl(response, data == null || !data.isObject() ? new JsonObject() : data.asObject());
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * TTL of a read response: the {@code ttl} of the custom metadata (Vault 1.9 and later), else the lease duration.
+   */
+  private static Duration parseTtl(JsonObject response, JsonObject data) {
+    JsonValue metadata = data.get("metadata");
+    JsonValue custom = metadata == null || !metadata.isObject() ? null : metadata.asObject().get("custom_metadata");
+    if (custom != null && custom.isObject()) {
+      JsonValue ttl = custom.asObject().get("ttl");
+      if (ttl != null && ttl.isString()) {
+        return LeasedSecret.parseDuration(ttl.asString());
+      }
+    }
+    long leaseSeconds = response.getLong("lease_duration", 0);
+    return leaseSeconds > 0 ? Duration.ofSeconds(leaseSeconds) : null;
+  }
+
+  /**
+   * Parses the keys of a list response.
+   */
+  static List<String> parseKeys(byte[] body) {
+    JsonValue data = Json.parse(new String(body, StandardCharsets.UTF_8)).asObject().get("data");
+    if (data == null || data.isNull() || data.asObject().get("keys") == null) {
+      return Collections.emptyList();
+    }
+    List<String> keys = new ArrayList<>();
+    for (JsonValue key : data.asObject().get("keys").asArray()) {
+      keys.add(key.asString());
+    }
+    return Collections.unmodifiableList(keys);
+  }
+
+  /**
+   * Parses the current version of a metadata response, 0 when that version is deleted or destroyed.
+   */
+  static long parseCurrentVersion(byte[] body) {
+    JsonValue data = Json.parse(new String(body, StandardCharsets.UTF_8)).asObject().get("data");
+    if (data == null || data.isNull()) {
+      return 0;
+    }
+    long currentVersion = data.asObject().getLong("current_version", 0);
+    JsonValue versions = data.asObject().get("versions");
+    JsonValue current = versions == null || versions.isNull() ? null : versions.asObject().get(String.valueOf(currentVersion));
+    if (current != null && current.isObject()) {
+      String deletionTime = current.asObject().getString("deletion_time", "");
+      if (current.asObject().getBoolean("destroyed", false) || !deletionTime.isEmpty()) {
+        return 0;
+      }
+    }
+    return currentVersion;
+  }
+
+  /**
+   * @return the request body to write a secret.
+   */
+  static byte[] writeBody(Map<String, String> value) {
+    JsonObject data = Json.object();
+    value.forEach(data::add);
+    return Json.object().add("data", data).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String qualify(String path, String qualifier) {
+    Preconditions.checkArgument(path != null && !path.isEmpty(), "Path can not be empty");
+    String trimmed = path.startsWith("/") ? path.substring(1) : path;
+    int mountEnd = trimmed.indexOf('/');
+    if (mountEnd < 0) {
+      return trimmed + "/" + qualifier;
+    }
+    return trimmed.substring(0, mountEnd) + "/" + qualifier + trimmed.substring(mountEnd);
+  }
+}
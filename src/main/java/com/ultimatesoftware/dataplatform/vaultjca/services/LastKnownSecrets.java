@@ -0,0 +1,67 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Bounded memory of the last secret successfully read from Vault for each path.
+ *
+ * <p>They are the last resort served by decorators that give up on Vault (deadline reached, circuit open) so known users
+ * can still log in. A path Vault reports without a secret is forgotten right away, so a deleted user can not log in
+ * through it, and entries older than the maximum age are dropped, bounding how long a revoked password is served while
+ * Vault can not be read.</p>
+ */
+public final class LastKnownSecrets {
+  private final Cache<String, Map<String, String>> secrets;
+
+  /**
+   * Creates the store.
+   *
+   * @param maximumSize maximum number of paths remembered.
+   * @param maxAge how long after being read from Vault a secret may still be served.
+   */
+  public LastKnownSecrets(long maximumSize, Duration maxAge) {
+    this(maximumSize, maxAge, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LastKnownSecrets(long maximumSize, Duration maxAge, Ticker ticker) {
+    Preconditions.checkArgument(!maxAge.isNegative() && !maxAge.isZero(), "Last known secrets max age must be positive");
+    this.secrets = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(maxAge)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Remembers the secret read from Vault for the path, or forgets the path when Vault has no secret for it.
+   *
+   * <p>A secret that is the remembered one, served by a decorator below sharing the store, does not renew its age.</p>
+   */
+  void remember(String path, Map<String, String> secret) {
+    if (secret != null && !secret.isEmpty()) {
+      if (secrets.getIfPresent(path) != secret) {
+        secrets.put(path, secret);
+      }
+    } else {
+      forget(path);
+    }
+  }
+
+  void forget(String path) {
+    secrets.invalidate(path);
+  }
+
+  /**
+   * @return the last secret read for the path or null when unknown.
+   */
+  Map<String, String> get(String path) {
+    return secrets.getIfPresent(path);
+  }
+}
@@ -0,0 +1,113 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingMap;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Secret read from Vault together with how long Vault says it may be cached.
+ *
+ * <p>The transports return it from {@link VaultService#getSecret(String)} when the response carries a TTL: the
+ * {@code ttl} entry of the KV version 2 {@code custom_metadata} or the {@code lease_duration} of other secret engines
+ * (KV version 1 sets it from the {@code ttl} key of the secret). It behaves as the plain map of the secret, decorators
+ * pass it through untouched and {@link CacheDecoratorVaultService} reads the TTL with {@link #ttl(Map)}.</p>
+ */
+public final class LeasedSecret extends ForwardingMap<String, String> {
+  private final Map<String, String> secret;
+  private final Duration ttl;
+  // Deadline in ticker time of the cache entry holding this secret, see SecretExpiry
+  volatile long expiresAt;
+
+  private LeasedSecret(Map<String, String> secret, Duration ttl) {
+    this.secret = Preconditions.checkNotNull(secret);
+    this.ttl = ttl;
+  }
+
+  /**
+   * Attaches a TTL to a secret.
+   *
+   * @param secret key value pairs of the secret.
+   * @param ttl how long the secret may be cached, or null when Vault gave none.
+   * @return the secret itself when there is no TTL.
+   */
+  public static Map<String, String> of(Map<String, String> secret, Duration ttl) {
+    return ttl == null || secret.isEmpty() ? secret : new LeasedSecret(secret, ttl);
+  }
+
+  /**
+   * @return the TTL given by Vault for the secret, or null when there is none.
+   */
+  public static Duration ttl(Map<String, String> secret) {
+    return secret instanceof LeasedSecret ? ((LeasedSecret) secret).ttl : null;
+  }
+
+  /**
+   * Wraps a secret so the cache can keep its deadline, keeping the TTL of a leased secret.
+   */
+  static LeasedSecret cached(Map<String, String> secret) {
+    return secret instanceof LeasedSecret ? new LeasedSecret(((LeasedSecret) secret).secret, ((LeasedSecret) secret).ttl)
+        : new LeasedSecret(secret, null);
+  }
+
+  /**
+   * Parses a Vault duration: seconds, or a sequence of numbers with a unit among ms, s, m, h and d such as {@code 1h30m}.
+   *
+   * @return the duration, or null when the value is not a positive duration.
+   */
+  public static Duration parseDuration(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    String text = value.trim();
+    long millis = 0;
+    int i = 0;
+    while (i < text.length()) {
+      int start = i;
+      while (i < text.length() && Character.isDigit(text.charAt(i))) {
+        i++;
+      }
+      int unitStart = i;
+      while (i < text.length() && Character.isLetter(text.charAt(i))) {
+        i++;
+      }
+      if (unitStart == start) {
+        return null;
+      }
+      long amount;
+      try {
+        amount = Long.parseLong(text.substring(start, unitStart));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      String unit = text.substring(unitStart, i);
+      switch (unit) {
+        case "ms":
+          millis += amount;
+          break;
+        case "":
+        case "s":
+          millis += TimeUnit.SECONDS.toMillis(amount);
+          break;
+        case "m":
+          millis += TimeUnit.MINUTES.toMillis(amount);
+          break;
+        case "h":
+          millis += TimeUnit.HOURS.toMillis(amount);
+          break;
+        case "d":
+          millis += TimeUnit.DAYS.toMillis(amount);
+          break;
+        default:
+          return null;
+      }
+    }
+    return millis > 0 ? Duration.ofMillis(millis) : null;
+  }
+
+  @Override
+  protected Map<String, String> delegate() {
+    return secret;
+  }
+}
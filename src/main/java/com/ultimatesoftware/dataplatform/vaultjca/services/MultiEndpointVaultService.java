@@ -0,0 +1,392 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport spreading requests over several Vault nodes, e.g. the active node and its performance standbys.
+ *
+ * <p>Reads go to the healthy endpoint with the lowest moving average (EWMA) latency; endpoints not measured yet are
+ * tried first, and the average of an endpoint not read for a while decays so it is measured again. Reads run on the
+ * caller thread. When a read has not answered after the configured percentile of the recent read latencies, the same
+ * read is sent once to the next endpoint on a small bounded pool, and its answer is taken when the first attempt fails;
+ * either way it completes and updates the latency of its endpoint. Hedges are skipped while the pool is busy. A failed
+ * read fails over to the next endpoint on the caller thread, the error is thrown only when every endpoint failed.</p>
+ *
+ * <p>A performance standby may lag behind the active node: a secret, listing or version missing on another endpoint is
+ * read again from the active node, the first one configured, unless it is ejected.</p>
+ *
+ * <p>An endpoint failing {@code ejectAfterFailures} requests in a row is ejected: it receives no reads while a background
+ * probe re-reads the last path served every {@code ejectFor}, until it answers again. When every endpoint is ejected reads
+ * still try all of them rather than fail outright.</p>
+ *
+ * <p>Writes are not hedged nor retried, they go to the first endpoint not ejected in the configured order, so list the
+ * active node first. Closing the service closes the endpoints.</p>
+ */
+public class MultiEndpointVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(MultiEndpointVaultService.class);
+  private static final double EWMA_WEIGHT = 0.2;
+  private static final double EWMA_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final int LATENCY_WINDOW = 512;
+  private static final int LATENCY_RECOMPUTE_EVERY = 64;
+  private static final int HEDGE_THREADS = 8;
+
+  private final List<Endpoint> endpoints;
+  private final double hedgePercentile;
+  private final int ejectAfterFailures;
+  private final long ejectNanos;
+  private final ScheduledThreadPoolExecutor hedger;
+  private final AtomicInteger hedgesPending = new AtomicInteger();
+  private final ScheduledExecutorService prober;
+  private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_WINDOW);
+  private final AtomicLong latencySamples = new AtomicLong();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder failovers = new LongAdder();
+  private final LongAdder ejections = new LongAdder();
+  private volatile long hedgeDelayNanos = Long.MAX_VALUE;
+  private volatile String probePath;
+
+  private static final class Endpoint {
+    private final int index;
+    private final VaultService vaultService;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile double latencyNanos;
+    private volatile long measuredAt;
+    private volatile boolean ejected;
+    private volatile long probeAt;
+
+    private Endpoint(int index, VaultService vaultService) {
+      this.index = index;
+      this.vaultService = vaultService;
+    }
+
+    private double decayedLatency(long now) {
+      return latencyNanos * Math.pow(0.5, (now - measuredAt) / EWMA_HALF_LIFE_NANOS);
+    }
+
+    @Override
+    public String toString() {
+      return "vault endpoint " + index;
+    }
+  }
+
+  private static final class Outcome<T> {
+    private final Endpoint endpoint;
+    private final T value;
+    private final RuntimeException failure;
+
+    private Outcome(Endpoint endpoint, T value, RuntimeException failure) {
+      this.endpoint = endpoint;
+      this.value = value;
+      this.failure = failure;
+    }
+  }
+
+  /**
+   * Creates the service.
+   *
+   * @param endpoints one {@link VaultService} per Vault node, the active node first; writes go to the first one not ejected.
+   * @param hedgePercentile percentile of the recent read latencies after which a read is hedged, 0 to never hedge.
+   * @param ejectAfterFailures number of requests in a row failing on an endpoint to eject it.
+   * @param ejectFor interval between probes of an ejected endpoint.
+   */
+  public MultiEndpointVaultService(List<? extends VaultService> endpoints, double hedgePercentile, int ejectAfterFailures,
+      Duration ejectFor) {
+    Preconditions.checkArgument(!endpoints.isEmpty(), "At least one vault endpoint is required");
+    Preconditions.checkArgument(hedgePercentile >= 0 && hedgePercentile < 100, "Hedge percentile must be within [0, 100)");
+    Preconditions.checkArgument(ejectAfterFailures > 0, "Failures to eject an endpoint must be positive");
+    Preconditions.checkArgument(!ejectFor.isNegative() && !ejectFor.isZero(), "Ejection time must be positive");
+    this.endpoints = new ArrayList<>(endpoints.size());
+    for (VaultService endpoint : endpoints) {
+      this.endpoints.add(new Endpoint(this.endpoints.size(), Preconditions.checkNotNull(endpoint)));
+    }
+    this.hedgePercentile = hedgePercentile;
+    this.ejectAfterFailures = ejectAfterFailures;
+    this.ejectNanos = ejectFor.toNanos();
+    this.hedger = new ScheduledThreadPoolExecutor(HEDGE_THREADS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-endpoint-hedge-%d").build());
+    this.hedger.setKeepAliveTime(60, TimeUnit.SECONDS);
+    this.hedger.allowCoreThreadTimeOut(true);
+    this.hedger.setRemoveOnCancelPolicy(true);
+    this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-endpoint-probe").build());
+    this.prober.scheduleWithFixedDelay(this::probe, ejectNanos, ejectNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    return read(path, vaultService -> vaultService.getSecret(path), Map::isEmpty);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    Endpoint endpoint = endpoints.stream().filter(candidate -> !candidate.ejected).findFirst().orElse(endpoints.get(0));
+    try {
+      endpoint.vaultService.writeSecret(path, value);
+      endpoint.failures.set(0);
+    } catch (RuntimeException e) {
+      failed(endpoint);
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    return read(path, vaultService -> vaultService.listSecrets(path), List::isEmpty);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    return read(path, vaultService -> vaultService.getSecretVersion(path), version -> version == 0);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    prober.shutdownNow();
+    hedger.shutdownNow();
+    for (Endpoint endpoint : endpoints) {
+      endpoint.vaultService.close();
+    }
+  }
+
+  /**
+   * @return number of reads sent a second time to another endpoint.
+   */
+  public long getHedgeCount() {
+    return hedges.sum();
+  }
+
+  /**
+   * @return number of reads retried on another endpoint after a failure.
+   */
+  public long getFailoverCount() {
+    return failovers.sum();
+  }
+
+  /**
+   * @return number of times an endpoint was ejected.
+   */
+  public long getEjectionCount() {
+    return ejections.sum();
+  }
+
+  /**
+   * @return number of endpoints currently ejected.
+   */
+  public int getEjectedCount() {
+    return (int) endpoints.stream().filter(endpoint -> endpoint.ejected).count();
+  }
+
+  /**
+   * @return how long a read waits before it is hedged, null while hedging is disabled or not enough reads were measured.
+   */
+  public Duration getHedgeDelay() {
+    long delay = hedgeDelayNanos;
+    return delay == Long.MAX_VALUE ? null : Duration.ofNanos(delay);
+  }
+
+  private <T> T read(String path, Function<VaultService, T> call, Predicate<T> missing) {
+    Outcome<T> outcome = readRanked(path, call);
+    if (outcome.failure != null) {
+      throw outcome.failure;
+    }
+    Endpoint active = endpoints.get(0);
+    if (outcome.endpoint == active || active.ejected || !missing.test(outcome.value)) {
+      return outcome.value;
+    }
+    // A performance standby may not have replicated the latest writes yet
+    log.debug("{} missing on {}, reading it from the active node", path, outcome.endpoint);
+    Outcome<T> fromActive = attempt(active, path, call);
+    return fromActive.failure == null ? fromActive.value : outcome.value;
+  }
+
+  private <T> Outcome<T> readRanked(String path, Function<VaultService, T> call) {
+    List<Endpoint> ranked = rank();
+    long delay = hedgeDelayNanos;
+    Future<Outcome<T>> hedge = ranked.size() > 1 && delay != Long.MAX_VALUE ? hedge(ranked.get(1), path, call, delay) : null;
+    Outcome<T> outcome = attempt(ranked.get(0), path, call);
+    int next = 1;
+    if (hedge != null) {
+      if (hedge.cancel(false)) {
+        hedgesPending.decrementAndGet();
+      } else {
+        next = 2;
+        if (outcome.failure != null) {
+          outcome = await(hedge);
+        }
+      }
+    }
+    for (int i = next; outcome.failure != null && i < ranked.size(); i++) {
+      failovers.increment();
+      outcome = attempt(ranked.get(i), path, call);
+    }
+    return outcome;
+  }
+
+  /**
+   * Schedules the read on the endpoint after the delay, unless the hedge pool is busy.
+   *
+   * @return the pending hedge, or null when skipped.
+   */
+  private <T> Future<Outcome<T>> hedge(Endpoint endpoint, String path, Function<VaultService, T> call, long delay) {
+    if (hedgesPending.incrementAndGet() > HEDGE_THREADS) {
+      hedgesPending.decrementAndGet();
+      return null;
+    }
+    try {
+      return hedger.schedule(() -> {
+        try {
+          hedges.increment();
+          return attempt(endpoint, path, call);
+        } finally {
+          hedgesPending.decrementAndGet();
+        }
+      }, delay, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      hedgesPending.decrementAndGet();
+      return null;
+    }
+  }
+
+  private <T> Outcome<T> await(Future<Outcome<T>> hedge) {
+    try {
+      return hedge.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new Outcome<>(null, null, new RuntimeException(e));
+    } catch (ExecutionException e) {
+      return new Outcome<>(null, null, new RuntimeException(e.getCause()));
+    }
+  }
+
+  private <T> Outcome<T> attempt(Endpoint endpoint, String path, Function<VaultService, T> call) {
+    long start = System.nanoTime();
+    try {
+      T value = call.apply(endpoint.vaultService);
+      succeeded(endpoint, System.nanoTime() - start);
+      probePath = path;
+      return new Outcome<>(endpoint, value, null);
+    } catch (RuntimeException e) {
+      failed(endpoint);
+      return new Outcome<>(endpoint, null, e);
+    }
+  }
+
+  /**
+   * Endpoints not ejected by increasing latency, or every endpoint by the next probe when all are ejected.
+   */
+  private List<Endpoint> rank() {
+    List<Endpoint> ranked = new ArrayList<>(endpoints.size());
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected) {
+        ranked.add(endpoint);
+      }
+    }
+    if (ranked.isEmpty()) {
+      ranked.addAll(endpoints);
+      ranked.sort(Comparator.comparingLong(endpoint -> endpoint.probeAt));
+    } else if (ranked.size() > 1) {
+      long now = System.nanoTime();
+      ranked.sort(Comparator.comparingDouble(endpoint -> endpoint.decayedLatency(now)));
+    }
+    return ranked;
+  }
+
+  private void succeeded(Endpoint endpoint, long latencyNanos) {
+    double average = endpoint.latencyNanos;
+    endpoint.latencyNanos = average == 0 ? latencyNanos : average + EWMA_WEIGHT * (latencyNanos - average);
+    endpoint.measuredAt = System.nanoTime();
+    endpoint.failures.set(0);
+    if (endpoint.ejected) {
+      endpoint.ejected = false;
+      log.info("{} is answering again", endpoint);
+    }
+    recordLatency(latencyNanos);
+  }
+
+  private void failed(Endpoint endpoint) {
+    if (endpoint.failures.incrementAndGet() >= ejectAfterFailures && !endpoint.ejected) {
+      endpoint.probeAt = System.nanoTime() + ejectNanos;
+      endpoint.ejected = true;
+      ejections.increment();
+      log.warn("Ejecting {} after {} failed requests", endpoint, endpoint.failures.get());
+    }
+  }
+
+  private void recordLatency(long latencyNanos) {
+    if (hedgePercentile == 0) {
+      return;
+    }
+    long sample = latencySamples.getAndIncrement();
+    latencies.set((int) (sample % LATENCY_WINDOW), latencyNanos);
+    if ((sample + 1) % LATENCY_RECOMPUTE_EVERY == 0) {
+      int size = (int) Math.min(sample + 1, LATENCY_WINDOW);
+      long[] window = new long[size];
+      for (int i = 0; i < size; i++) {
+        window[i] = latencies.get(i);
+      }
+      Arrays.sort(window);
+      hedgeDelayNanos = window[Math.max(0, (int) Math.ceil(hedgePercentile / 100 * size) - 1)];
+    }
+  }
+
+  @VisibleForTesting
+  void probe() {
+    String path = probePath;
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected || System.nanoTime() < endpoint.probeAt) {
+        continue;
+      }
+      if (path == null) {
+        endpoint.ejected = false;
+        continue;
+      }
+      long start = System.nanoTime();
+      try {
+        endpoint.vaultService.getSecret(path);
+        // Measured afresh, the average from before the ejection is stale
+        endpoint.latencyNanos = 0;
+        succeeded(endpoint, System.nanoTime() - start);
+      } catch (RuntimeException e) {
+        endpoint.probeAt = System.nanoTime() + ejectNanos;
+        log.debug("Probe of {} failed: {}", endpoint, e.getMessage());
+      }
+    }
+  }
+}
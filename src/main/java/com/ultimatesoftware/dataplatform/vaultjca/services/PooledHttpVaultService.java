@@ -0,0 +1,251 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.VaultException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link VaultService} talking HTTP to Vault without the bettercloud driver, reusing connections.
+ *
+ * <p>The driver opens a new connection, with a new TLS handshake, for every request. This implementation fully reads every
+ * response so the JDK keeps the connection alive and reuses it for the next request, and shares one {@link SSLContext}
+ * so TLS sessions are resumed. The number of idle connections kept per Vault server is set with the standard
+ * {@code http.maxConnections} system property (defaults to 5).</p>
+ *
+ * <p>It is configured with the same VAULT_ADDR, VAULT_TOKEN and VAULT_SSL_CERT (PEM file with the CA) environment variables
+ * as the driver and assumes a version 2 KV engine; responses are parsed directly into the key value map. When created
+ * with a {@link VaultTokenManager} the token is swapped atomically whenever the manager replaces it.</p>
+ */
+public class PooledHttpVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(PooledHttpVaultService.class);
+  private static final String ENV_VAULT_ADDR = "VAULT_ADDR";
+  private static final String ENV_VAULT_TOKEN = "VAULT_TOKEN";
+  private static final String ENV_VAULT_SSL_CERT = "VAULT_SSL_CERT";
+  private static final String TOKEN_HEADER = "X-Vault-Token";
+
+  private final String address;
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+  private final SSLSocketFactory sslSocketFactory;
+  private final VaultTokenManager tokenManager;
+  private volatile String token;
+
+  /**
+   * Creates the service from the environment variables.
+   *
+   * @param connectTimeoutMs timeout to open a connection in milliseconds.
+   * @param readTimeoutMs timeout waiting for a response in milliseconds.
+   */
+  public PooledHttpVaultService(int connectTimeoutMs, int readTimeoutMs) {
+    this(System.getenv(ENV_VAULT_ADDR), System.getenv(ENV_VAULT_TOKEN), connectTimeoutMs, readTimeoutMs, sslContext(System.getenv(ENV_VAULT_SSL_CERT)));
+  }
+
+  /**
+   * Creates the service with the token kept alive by a started {@link VaultTokenManager}, closed with this service.
+   *
+   * @param tokenManager source of the token.
+   * @param connectTimeoutMs timeout to open a connection in milliseconds.
+   * @param readTimeoutMs timeout waiting for a response in milliseconds.
+   */
+  public PooledHttpVaultService(VaultTokenManager tokenManager, int connectTimeoutMs, int readTimeoutMs) {
+    this(System.getenv(ENV_VAULT_ADDR), tokenManager.getToken(), connectTimeoutMs, readTimeoutMs, sslContext(System.getenv(ENV_VAULT_SSL_CERT)), tokenManager);
+    tokenManager.addListener(this::updateToken);
+  }
+
+  /**
+   * Creates the service for one node of the cluster, e.g. an endpoint of {@link MultiEndpointVaultService}.
+   *
+   * @param vaultAddr address of the node.
+   * @param tokenManager source of the token, closed with this service, or null to use the environment variable.
+   * @param connectTimeoutMs timeout to open a connection in milliseconds.
+   * @param readTimeoutMs timeout waiting for a response in milliseconds.
+   */
+  public PooledHttpVaultService(String vaultAddr, VaultTokenManager tokenManager, int connectTimeoutMs, int readTimeoutMs) {
+    this(vaultAddr, tokenManager == null ? System.getenv(ENV_VAULT_TOKEN) : tokenManager.getToken(), connectTimeoutMs, readTimeoutMs,
+        sslContext(System.getenv(ENV_VAULT_SSL_CERT)), tokenManager);
+    if (tokenManager != null) {
+      tokenManager.addListener(this::updateToken);
+    }
+  }
+
+  @VisibleForTesting
+  PooledHttpVaultService(String vaultAddr, String token, int connectTimeoutMs, int readTimeoutMs, SSLContext sslContext) {
+    this(vaultAddr, token, connectTimeoutMs, readTimeoutMs, sslContext, null);
+  }
+
+  private PooledHttpVaultService(String vaultAddr, String token, int connectTimeoutMs, int readTimeoutMs, SSLContext sslContext,
+      VaultTokenManager tokenManager) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(vaultAddr), "Vault address is missing, set %s", ENV_VAULT_ADDR);
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(token), "Vault token is missing, set %s", ENV_VAULT_TOKEN);
+    Preconditions.checkArgument(connectTimeoutMs > 0 && readTimeoutMs > 0, "Timeouts must be positive");
+    this.address = vaultAddr.endsWith("/") ? vaultAddr.substring(0, vaultAddr.length() - 1) : vaultAddr;
+    this.token = token;
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+    this.sslSocketFactory = sslContext.getSocketFactory();
+    this.tokenManager = tokenManager;
+  }
+
+  /**
+   * Replaces the token used by the next requests.
+   *
+   * @param token the new token.
+   */
+  public void updateToken(String token) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(token), "Vault token can not be empty");
+    this.token = token;
+  }
+
+  /**
+   * Stops the token renewal, if any.
+   */
+  @Override
+  public void close() {
+    if (tokenManager != null) {
+      tokenManager.close();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    Response response = send("GET", KvV2.dataPath(path), null);
+    if (response.status == 404) {
+      return Collections.emptyMap();
+    }
+    return KvV2.parseSecret(checkStatus(response, path).body);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    checkStatus(send("POST", KvV2.dataPath(path), KvV2.writeBody(value)), path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    Response response = send("GET", KvV2.metadataPath(path) + "?list=true", null);
+    if (response.status == 404) {
+      return Collections.emptyList();
+    }
+    return KvV2.parseKeys(checkStatus(response, path).body);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    Response response = send("GET", KvV2.metadataPath(path), null);
+    if (response.status == 404) {
+      return 0;
+    }
+    return KvV2.parseCurrentVersion(checkStatus(response, path).body);
+  }
+
+  private Response send(String method, String apiPath, byte[] body) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(address + "/v1/" + apiPath).openConnection();
+      if (connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+      }
+      connection.setConnectTimeout(connectTimeoutMs);
+      connection.setReadTimeout(readTimeoutMs);
+      connection.setRequestMethod(method);
+      connection.setRequestProperty(TOKEN_HEADER, token);
+      connection.setRequestProperty("Accept", "application/json");
+      if (body != null) {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body);
+        }
+      }
+      int status = connection.getResponseCode();
+      // Reading the whole body (even on errors) and closing the stream hands the connection back to the keep-alive cache
+      InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      if (in == null) {
+        return new Response(status, new byte[0]);
+      }
+      try (InputStream stream = in) {
+        return new Response(status, ByteStreams.toByteArray(stream));
+      }
+    } catch (IOException e) {
+      log.error("Error calling vault {} {}", method, apiPath, e);
+      throw new RuntimeException(new VaultException(e));
+    }
+  }
+
+  private static Response checkStatus(Response response, String path) {
+    if (response.status < 200 || response.status >= 300) {
+      throw new RuntimeException(new VaultException(String.format("Vault responded with status %d for path %s", response.status, path), response.status));
+    }
+    return response;
+  }
+
+  /**
+   * Builds the TLS context shared by every connection, trusting the PEM CA certificate if given.
+   */
+  static SSLContext sslContext(String pemFile) {
+    try {
+      if (Strings.isNullOrEmpty(pemFile)) {
+        return SSLContext.getDefault();
+      }
+      KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      trustStore.load(null, null);
+      try (InputStream in = Files.newInputStream(Paths.get(pemFile))) {
+        int index = 0;
+        for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+          trustStore.setCertificateEntry("vault-ca-" + index++, certificate);
+        }
+      }
+      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(trustStore);
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+      return sslContext;
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException("Error building TLS context for vault", e);
+    }
+  }
+
+  private static final class Response {
+    private final int status;
+    private final byte[] body;
+
+    private Response(int status, byte[] body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+}
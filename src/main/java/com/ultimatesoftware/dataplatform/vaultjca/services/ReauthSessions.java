@@ -0,0 +1,130 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+
+/**
+ * Verified sessions of the users, answering the periodic re-authentication of long lived connections in memory.
+ *
+ * <p>With {@code connections.max.reauth.ms} every connection authenticates again on a timer; with tens of thousands of
+ * connections that is a constant load on Vault for credentials that were just checked. After a successful check the
+ * session of the user keeps an HMAC (with a random per process key) of the password and one of the secret it was
+ * checked against. For the session TTL a login of the user with the same password succeeds without reading Vault.</p>
+ *
+ * <p>The session is dropped, and the next login fully checked, as soon as the secret is seen to change: when a full check
+ * of the user reads a different secret, when the user is not found, or when the cache reports the path reloaded with a
+ * new value, deleted, expired or evicted (see {@link CacheDecoratorVaultService#addChangeListener}), so a session never
+ * outlives the cached secret it was verified against. Without the cache a rotated password may still be accepted up to
+ * the session TTL.</p>
+ */
+public class ReauthSessions {
+  private final HashFunction digest;
+  private final Cache<String, Session> sessions;
+  private final VaultJcaMetrics metrics;
+
+  private static final class Session {
+    private final byte[] credential;
+    private final HashCode secret;
+
+    private Session(byte[] credential, HashCode secret) {
+      this.credential = credential;
+      this.secret = secret;
+    }
+  }
+
+  /**
+   * Creates the sessions.
+   *
+   * @param ttl how long a verified session answers logins, longer than {@code connections.max.reauth.ms}.
+   * @param maximumSize maximum number of sessions kept.
+   */
+  public ReauthSessions(Duration ttl, long maximumSize) {
+    this(ttl, maximumSize, Ticker.systemTicker(), VaultJcaMetrics.instance());
+  }
+
+  @VisibleForTesting
+  ReauthSessions(Duration ttl, long maximumSize, Ticker ticker, VaultJcaMetrics metrics) {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.digest = Hashing.hmacSha256(key);
+    this.sessions = Caffeine.newBuilder()
+        .expireAfterWrite(ttl)
+        .maximumSize(maximumSize)
+        .ticker(ticker)
+        .build();
+    this.metrics = metrics;
+  }
+
+  /**
+   * Checks the login against the verified session of the user.
+   *
+   * @return true when the user has a session verified with the same password.
+   */
+  public boolean matches(String username, char[] password) {
+    Session session = sessions.getIfPresent(username);
+    if (session != null && MessageDigest.isEqual(session.credential, credential(username, password))) {
+      metrics.recordSessionHit();
+      return true;
+    }
+    metrics.recordSessionMiss();
+    return false;
+  }
+
+  /**
+   * Starts, or extends, the session of a user whose password was checked against the stored secret.
+   */
+  public void established(String username, char[] password, String stored) {
+    sessions.put(username, new Session(credential(username, password), secret(stored)));
+  }
+
+  /**
+   * Drops the session of the user when it was verified against another secret than the one just read from Vault.
+   *
+   * @param stored secret read, null when the user was not found.
+   */
+  public void observe(String username, String stored) {
+    Session session = sessions.getIfPresent(username);
+    if (session != null && (stored == null || !session.secret.equals(secret(stored)))) {
+      invalidate(username);
+    }
+  }
+
+  /**
+   * Drops the session of the user, e.g. when its secret changed in Vault.
+   */
+  public void invalidate(String username) {
+    if (sessions.asMap().remove(username) != null) {
+      metrics.recordSessionInvalidation();
+    }
+  }
+
+  /**
+   * @return number of sessions kept.
+   */
+  public long size() {
+    sessions.cleanUp();
+    return sessions.estimatedSize();
+  }
+
+  private byte[] credential(String username, char[] password) {
+    return digest.newHasher()
+        .putInt(username.length()).putUnencodedChars(username)
+        .putString(CharBuffer.wrap(password), StandardCharsets.UTF_8)
+        .hash().asBytes();
+  }
+
+  private HashCode secret(String stored) {
+    return digest.hashString(stored, StandardCharsets.UTF_8);
+  }
+}
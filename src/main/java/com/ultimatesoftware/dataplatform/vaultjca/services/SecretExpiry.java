@@ -0,0 +1,108 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.time.Duration;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expiry of the entries of {@link CacheDecoratorVaultService}, computed per entry.
+ *
+ * <p>An entry lives for the TTL Vault gave for its secret, bounded by the maximum secret TTL, or the write expiry when
+ * there is none; in refresh ahead mode the stale grace period is added. A random fraction of up to the jitter is taken
+ * off, so the entries loaded together (warm up, restart) do not expire, and reach Vault, all at the same time. Caffeine
+ * keeps mixed expiries in a timer wheel, so this costs the same as a single expiry.</p>
+ *
+ * <p>While the {@link VaultEventSubscriber} of the cache is connected, entries without a TTL from Vault live for the
+ * events TTL instead of the write expiry; changes reach the cache through the events.</p>
+ *
+ * <p>The access expiry, when enabled, is applied on top: a read pushes the deadline by the access expiry, never past
+ * the deadline set when the entry was written, which is kept on the {@link LeasedSecret} holding the value.</p>
+ */
+final class SecretExpiry implements Expiry<String, Map<String, String>> {
+  private final long defaultNanos;
+  private final long maxNanos;
+  private final long graceNanos;
+  private final long accessNanos;
+  private final double jitter;
+  private final long eventsNanos;
+  private volatile boolean eventsConnected;
+
+  SecretExpiry(CacheSettings settings) {
+    this.defaultNanos = settings.getExpireAfterWrite().toNanos();
+    this.maxNanos = settings.getMaxSecretTtl().toNanos();
+    this.graceNanos = settings.isRefreshAhead() ? settings.getStaleGrace().toNanos() : 0;
+    this.accessNanos = settings.getExpireAfterAccess() == null ? 0 : settings.getExpireAfterAccess().toNanos();
+    this.jitter = settings.getTtlJitter();
+    this.eventsNanos = settings.getEventsTtl().toNanos();
+  }
+
+  void eventsConnected() {
+    this.eventsConnected = true;
+  }
+
+  /**
+   * Brings the entries loaded while the events were connected back within the expiry they get without events, changes
+   * made from now on are only picked up when the entries expire.
+   *
+   * @param currentTime ticker time.
+   */
+  void eventsDisconnected(Cache<String, Map<String, String>> cache, long currentTime) {
+    this.eventsConnected = false;
+    cache.policy().expireVariably().ifPresent(expiration -> {
+      for (Map.Entry<String, Map<String, String>> entry : cache.asMap().entrySet()) {
+        long fallback = fallbackNanos(entry.getValue());
+        OptionalLong remaining = expiration.getExpiresAfter(entry.getKey(), TimeUnit.NANOSECONDS);
+        if (remaining.isPresent() && remaining.getAsLong() > fallback) {
+          expiration.setExpiresAfter(entry.getKey(), fallback, TimeUnit.NANOSECONDS);
+        }
+        if (entry.getValue() instanceof LeasedSecret) {
+          LeasedSecret secret = (LeasedSecret) entry.getValue();
+          secret.expiresAt = Math.min(secret.expiresAt, currentTime + fallback);
+        }
+      }
+    });
+  }
+
+  private long fallbackNanos(Map<String, String> secret) {
+    Duration lease = LeasedSecret.ttl(secret);
+    return jittered(lease == null ? defaultNanos : Math.min(lease.toNanos(), maxNanos)) + graceNanos;
+  }
+
+  @Override
+  public long expireAfterCreate(String path, Map<String, String> secret, long currentTime) {
+    long expiry = ttlNanos(secret) + graceNanos;
+    if (secret instanceof LeasedSecret) {
+      ((LeasedSecret) secret).expiresAt = currentTime + expiry;
+    }
+    return accessNanos == 0 ? expiry : Math.min(expiry, accessNanos);
+  }
+
+  @Override
+  public long expireAfterUpdate(String path, Map<String, String> secret, long currentTime, long currentDuration) {
+    return expireAfterCreate(path, secret, currentTime);
+  }
+
+  @Override
+  public long expireAfterRead(String path, Map<String, String> secret, long currentTime, long currentDuration) {
+    if (accessNanos == 0 || !(secret instanceof LeasedSecret)) {
+      return currentDuration;
+    }
+    return Math.min(accessNanos, ((LeasedSecret) secret).expiresAt - currentTime);
+  }
+
+  private long ttlNanos(Map<String, String> secret) {
+    Duration lease = LeasedSecret.ttl(secret);
+    if (lease == null) {
+      return jittered(eventsConnected ? eventsNanos : defaultNanos);
+    }
+    return jittered(Math.min(lease.toNanos(), maxNanos));
+  }
+
+  private long jittered(long ttl) {
+    return jitter > 0 ? ttl - (long) (ttl * jitter * ThreadLocalRandom.current().nextDouble()) : ttl;
+  }
+}
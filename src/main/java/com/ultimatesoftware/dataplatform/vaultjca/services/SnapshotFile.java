@@ -0,0 +1,356 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only, memory-mapped file of AES-GCM encrypted secrets used by {@link SnapshotVaultService}.
+ *
+ * <p>The header holds the last version written, then every record is {@code [id][length][iv][ciphertext]}. The id is a
+ * keyed hash of the path indexing the latest record of each path. The plaintext holds the path, the time it was
+ * fetched from Vault, a version increasing with every write, the secret and its TTL; the id is authenticated with the
+ * record so records can not be swapped between paths. Opening the file authenticates every record and truncates the
+ * file at the first one failing, such as a record torn by a crash, so it never supersedes the previous record of its
+ * path. Writes are not synced to disk, {@link #flush()} does it off the callers' threads. The file is compacted,
+ * copying only the latest record of each path, when superseded records take more space than the live ones.</p>
+ */
+final class SnapshotFile implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+  private static final int MAGIC = 0x564A4353;
+  private static final int FORMAT = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int IV_SIZE = 12;
+  private static final int TAG_BITS = 128;
+  private static final int MIN_CAPACITY = 64 * 1024;
+  private static final long COMPACT_MIN_DEAD_BYTES = 64 * 1024;
+
+  private final Path file;
+  private final SecretKey key;
+  private final Mac mac;
+  private final SecureRandom random = new SecureRandom();
+  private final Map<Long, Integer> offsets = new HashMap<>();
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int position;
+  private long liveBytes;
+  private long version;
+  private boolean dirty;
+
+  /**
+   * Records read back from the file.
+   */
+  static final class Record {
+    private final long fetchedAtMillis;
+    private final long version;
+    private final Map<String, String> secret;
+
+    private Record(long fetchedAtMillis, long version, Map<String, String> secret, Duration ttl) {
+      this.fetchedAtMillis = fetchedAtMillis;
+      this.version = version;
+      this.secret = LeasedSecret.of(secret, ttl);
+    }
+
+    long getFetchedAtMillis() {
+      return fetchedAtMillis;
+    }
+
+    long getVersion() {
+      return version;
+    }
+
+    /**
+     * @return the secret, with the TTL Vault gave it as a {@link LeasedSecret}.
+     */
+    Map<String, String> getSecret() {
+      return secret;
+    }
+  }
+
+  SnapshotFile(Path file, SecretKey key) {
+    Preconditions.checkNotNull(file, "Snapshot file is missing");
+    Preconditions.checkNotNull(key, "Snapshot key is missing");
+    this.file = file;
+    this.key = key;
+    try {
+      mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+      open();
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException("Error opening vault snapshot " + file, e);
+    }
+  }
+
+  /**
+   * @return the latest record of the path or null when there is none or it can not be decrypted.
+   */
+  synchronized Record get(String path) {
+    Integer offset = offsets.get(id(path));
+    if (offset == null) {
+      return null;
+    }
+    try {
+      return decrypt(path, offset);
+    } catch (IOException | GeneralSecurityException e) {
+      log.warn("Ignoring unreadable snapshot record for {}", path);
+      return null;
+    }
+  }
+
+  /**
+   * Appends a new record for the path, superseding the previous one, without syncing it to disk.
+   */
+  synchronized void put(String path, Map<String, String> secret, long fetchedAtMillis) {
+    try {
+      long id = id(path);
+      byte[] record = encrypt(id, path, secret, fetchedAtMillis, ++version);
+      buffer.putLong(8, version);
+      ensureCapacity(RECORD_HEADER_SIZE + record.length);
+      Integer previous = offsets.put(id, position);
+      if (previous != null) {
+        liveBytes -= RECORD_HEADER_SIZE + buffer.getInt(previous + 8);
+      }
+      buffer.putLong(position, id);
+      buffer.putInt(position + 8, record.length);
+      ByteBuffer target = buffer.duplicate();
+      target.position(position + RECORD_HEADER_SIZE);
+      target.put(record);
+      position += RECORD_HEADER_SIZE + record.length;
+      liveBytes += RECORD_HEADER_SIZE + record.length;
+      dirty = true;
+      long deadBytes = position - HEADER_SIZE - liveBytes;
+      if (deadBytes > COMPACT_MIN_DEAD_BYTES && deadBytes > liveBytes) {
+        compact();
+      }
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException("Error writing vault snapshot " + file, e);
+    }
+  }
+
+  /**
+   * Syncs the records written since the last flush to disk, holding the lock only to take the buffer.
+   */
+  void flush() {
+    MappedByteBuffer written;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      dirty = false;
+      written = buffer;
+    }
+    written.force();
+  }
+
+  /**
+   * @return number of paths in the snapshot.
+   */
+  synchronized int size() {
+    return offsets.size();
+  }
+
+  /**
+   * @return bytes used by the records, including superseded ones.
+   */
+  synchronized int usedBytes() {
+    return position;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      buffer.force();
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Error closing vault snapshot {}", file, e);
+    }
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = channel.size();
+    Preconditions.checkState(size <= Integer.MAX_VALUE, "Vault snapshot %s is too big", file);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, MIN_CAPACITY));
+    if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+      if (size > 0) {
+        log.warn("Vault snapshot {} has an unknown format, starting a new one", file);
+      }
+      reset();
+      return;
+    }
+    position = HEADER_SIZE;
+    while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+      long id = buffer.getLong(position);
+      int length = buffer.getInt(position + 8);
+      if (id == 0 || length <= IV_SIZE || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+        break;
+      }
+      if (!authentic(position)) {
+        log.warn("Vault snapshot {} has an unreadable record at {}, truncating it", file, position);
+        for (int i = position; i < buffer.capacity(); i++) {
+          buffer.put(i, (byte) 0);
+        }
+        break;
+      }
+      Integer previous = offsets.put(id, position);
+      if (previous != null) {
+        liveBytes -= RECORD_HEADER_SIZE + buffer.getInt(previous + 8);
+      }
+      liveBytes += RECORD_HEADER_SIZE + length;
+      position += RECORD_HEADER_SIZE + length;
+    }
+    version = buffer.getLong(8);
+    log.info("Vault snapshot {} opened with {} entries", file, offsets.size());
+  }
+
+  private void reset() {
+    for (int i = 0; i < buffer.capacity(); i++) {
+      buffer.put(i, (byte) 0);
+    }
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, FORMAT);
+    buffer.putLong(8, version);
+    position = HEADER_SIZE;
+    liveBytes = 0;
+    offsets.clear();
+  }
+
+  private void ensureCapacity(int length) throws IOException {
+    if (position + length <= buffer.capacity()) {
+      return;
+    }
+    long capacity = Math.max((long) buffer.capacity() * 2, (long) position + length);
+    Preconditions.checkState(capacity <= Integer.MAX_VALUE, "Vault snapshot %s is too big", file);
+    buffer.force();
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  private void compact() throws IOException {
+    Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+    Map<Long, Integer> newOffsets = new HashMap<>();
+    ByteBuffer out = ByteBuffer.allocate((int) Math.max(HEADER_SIZE + liveBytes, MIN_CAPACITY));
+    out.putInt(MAGIC).putInt(FORMAT).putLong(version);
+    for (Map.Entry<Long, Integer> entry : offsets.entrySet()) {
+      int offset = entry.getValue();
+      int recordSize = RECORD_HEADER_SIZE + buffer.getInt(offset + 8);
+      newOffsets.put(entry.getKey(), out.position());
+      ByteBuffer record = buffer.duplicate();
+      record.position(offset).limit(offset + recordSize);
+      out.put(record);
+    }
+    out.flip();
+    try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      while (out.hasRemaining()) {
+        target.write(out);
+      }
+      target.force(true);
+    }
+    channel.close();
+    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    int compactedSize = out.limit();
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(compactedSize, MIN_CAPACITY));
+    offsets.clear();
+    offsets.putAll(newOffsets);
+    position = compactedSize;
+    dirty = false;
+    log.debug("Vault snapshot {} compacted to {} bytes", file, compactedSize);
+  }
+
+  private byte[] encrypt(long id, String path, Map<String, String> secret, long fetchedAtMillis, long recordVersion)
+      throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(plain)) {
+      out.writeUTF(path);
+      out.writeLong(fetchedAtMillis);
+      out.writeLong(recordVersion);
+      out.writeInt(secret.size());
+      for (Map.Entry<String, String> entry : secret.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+      Duration ttl = LeasedSecret.ttl(secret);
+      out.writeLong(ttl == null ? -1 : ttl.toMillis());
+    }
+    byte[] iv = new byte[IV_SIZE];
+    random.nextBytes(iv);
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+    cipher.updateAAD(ByteBuffer.allocate(8).putLong(id).array());
+    byte[] encrypted = cipher.doFinal(plain.toByteArray());
+    return ByteBuffer.allocate(IV_SIZE + encrypted.length).put(iv).put(encrypted).array();
+  }
+
+  private Record decrypt(String path, int offset) throws IOException, GeneralSecurityException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext(offset)))) {
+      if (!path.equals(in.readUTF())) {
+        return null;
+      }
+      long fetchedAtMillis = in.readLong();
+      long recordVersion = in.readLong();
+      int size = in.readInt();
+      Map<String, String> secret = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        secret.put(in.readUTF(), in.readUTF());
+      }
+      long ttlMillis = in.readLong();
+      return new Record(fetchedAtMillis, recordVersion, Collections.unmodifiableMap(secret),
+          ttlMillis < 0 ? null : Duration.ofMillis(ttlMillis));
+    }
+  }
+
+  private boolean authentic(int offset) {
+    try {
+      plaintext(offset);
+      return true;
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  private byte[] plaintext(int offset) throws GeneralSecurityException {
+    long id = buffer.getLong(offset);
+    int length = buffer.getInt(offset + 8);
+    byte[] iv = new byte[IV_SIZE];
+    byte[] encrypted = new byte[length - IV_SIZE];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset + RECORD_HEADER_SIZE);
+    source.get(iv).get(encrypted);
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+    cipher.updateAAD(ByteBuffer.allocate(8).putLong(id).array());
+    return cipher.doFinal(encrypted);
+  }
+
+  private long id(String path) {
+    long id = ByteBuffer.wrap(mac.doFinal(path.getBytes(StandardCharsets.UTF_8))).getLong();
+    // Zero marks the free space at the end of the file
+    return id == 0 ? 1 : id;
+  }
+}
@@ -0,0 +1,213 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator keeping an encrypted on-disk snapshot of the secrets read from Vault, a second level below the memory cache.
+ *
+ * <p>After a restart the memory cache is empty and every login reaches Vault; if Vault is down at that moment nobody can
+ * log in. Secrets read from Vault are written to a {@link SnapshotFile}, with their TTL, and reads still go to Vault
+ * first: the snapshot entry is served when Vault fails, or is too slow for the deadline below, up to the maximum
+ * staleness. Entries fetched within the optional fresh period are served without reaching Vault, delaying rotations by
+ * as much. A secret read again unchanged is only written back once half the maximum staleness has passed, and the file
+ * is synced to disk in the background. A user removed from Vault is removed from the snapshot on its next read.</p>
+ *
+ * <p>The snapshot is encrypted with AES-GCM, the key is given by the operator (e.g. the VAULT_SNAPSHOT_KEY environment
+ * variable, base64 encoded); a snapshot written with another key is ignored.</p>
+ */
+public class SnapshotVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(SnapshotVaultService.class);
+
+  private final VaultService vaultService;
+  private final SnapshotFile snapshot;
+  private final long freshMillis;
+  private final long maxStalenessMillis;
+  private final Clock clock;
+  private final Executor executor;
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private final LongAdder freshHits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+
+  /**
+   * Creates the decorator.
+   *
+   * @param vaultService an implementation of {@link VaultService} used to delegate calls.
+   * @param file snapshot file, created when missing.
+   * @param key AES key encrypting the snapshot.
+   * @param fresh age up to which an entry is served without reaching Vault, zero to always read Vault first.
+   * @param maxStaleness age up to which an entry is served when Vault fails.
+   */
+  public SnapshotVaultService(VaultService vaultService, Path file, SecretKey key, Duration fresh, Duration maxStaleness) {
+    this(vaultService, new SnapshotFile(file, key), fresh, maxStaleness, Clock.systemUTC(),
+        Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-snapshot-flush-%d").build()));
+  }
+
+  @VisibleForTesting
+  SnapshotVaultService(VaultService vaultService, SnapshotFile snapshot, Duration fresh, Duration maxStaleness, Clock clock, Executor executor) {
+    Preconditions.checkArgument(!fresh.isNegative() && maxStaleness.compareTo(fresh) >= 0,
+        "Snapshot max staleness must be greater or equal than the fresh period");
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.snapshot = snapshot;
+    this.freshMillis = fresh.toMillis();
+    this.maxStalenessMillis = maxStaleness.toMillis();
+    this.clock = clock;
+    this.executor = executor;
+  }
+
+  /**
+   * Decodes a base64 AES key of 16, 24 or 32 bytes.
+   */
+  public static SecretKey key(String base64) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(base64), "Snapshot key is missing");
+    byte[] key = Base64.getDecoder().decode(base64.trim());
+    Preconditions.checkArgument(key.length == 16 || key.length == 24 || key.length == 32, "Snapshot key must be 16, 24 or 32 bytes");
+    return new SecretKeySpec(key, "AES");
+  }
+
+  /**
+   * Reads from Vault, serving the snapshot entry when Vault fails and it is not older than the maximum staleness.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    SnapshotFile.Record record = snapshot.get(path);
+    long age = record == null ? Long.MAX_VALUE : clock.millis() - record.getFetchedAtMillis();
+    if (age < freshMillis) {
+      freshHits.increment();
+      return record.getSecret();
+    }
+    try {
+      return load(path, record, vaultService.getSecret(path));
+    } catch (RuntimeException e) {
+      if (age > maxStalenessMillis) {
+        throw e;
+      }
+      log.warn("Could not read {} from vault, serving it from the snapshot", path, e);
+      staleHits.increment();
+      return record.getSecret();
+    }
+  }
+
+  /**
+   * Reads from the delegated implementation and updates the snapshot.
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecretFromVault(String path) {
+    return load(path, snapshot.get(path), vaultService.getSecretFromVault(path));
+  }
+
+  /**
+   * Writes to the delegated implementation, then to the snapshot.
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    vaultService.writeSecret(path, value);
+    snapshot.put(path, value, clock.millis());
+    flushInBackground();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    return vaultService.listSecrets(path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    return vaultService.getSecretVersion(path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdownNow();
+    }
+    vaultService.close();
+    snapshot.close();
+  }
+
+  /**
+   * @return number of reads served by an entry within the fresh period.
+   */
+  public long getFreshHitCount() {
+    return freshHits.sum();
+  }
+
+  /**
+   * @return number of reads served by an entry because Vault failed.
+   */
+  public long getStaleHitCount() {
+    return staleHits.sum();
+  }
+
+  private Map<String, String> load(String path, SnapshotFile.Record record, Map<String, String> secret) {
+    if (secret != null && !secret.isEmpty()) {
+      if (!unchanged(record, secret)) {
+        snapshot.put(path, secret, clock.millis());
+        flushInBackground();
+      }
+      return secret;
+    }
+    if (record != null && !record.getSecret().isEmpty()) {
+      // Supersedes the last secret of a user removed from Vault
+      snapshot.put(path, Collections.emptyMap(), clock.millis());
+      flushInBackground();
+    }
+    return Collections.emptyMap();
+  }
+
+  private boolean unchanged(SnapshotFile.Record record, Map<String, String> secret) {
+    return record != null && record.getSecret().equals(secret)
+        && Objects.equals(LeasedSecret.ttl(record.getSecret()), LeasedSecret.ttl(secret))
+        && clock.millis() - record.getFetchedAtMillis() < maxStalenessMillis / 2;
+  }
+
+  private void flushInBackground() {
+    if (!flushing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        flushing.set(false);
+        try {
+          snapshot.flush();
+        } catch (RuntimeException e) {
+          log.warn("Could not sync the vault snapshot to disk", e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      flushing.set(false);
+    }
+  }
+}
@@ -0,0 +1,455 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.VaultException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link VaultService} talking HTTP to a local Vault Agent over its Unix domain socket.
+ *
+ * <p>Brokers running a Vault Agent with caching and {@code use_auto_auth_token} can reach it without TCP: no loopback
+ * handshake, no TLS and no token in the broker, the agent adds its own. Connections are kept alive and reused, up to
+ * a number of idle ones; an idle connection closed by the agent is replaced transparently. Like
+ * {@link PooledHttpVaultService} it assumes a version 2 KV engine.</p>
+ *
+ * <p>Unix domain socket channels need Java 16 or later, they are opened reflectively so the library still runs on Java 8
+ * with the other transports; check {@link #isSupported()}.</p>
+ */
+public class UnixSocketVaultService implements VaultService {
+  private static final Logger log = LoggerFactory.getLogger(UnixSocketVaultService.class);
+  private static final String TOKEN_HEADER = "X-Vault-Token";
+  private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final ProtocolFamily UNIX = unixProtocolFamily();
+
+  private final String socketPath;
+  private final SocketAddress address;
+  private final String token;
+  private final long readTimeoutNanos;
+  private final BlockingDeque<Connection> idle;
+  private volatile boolean closed;
+
+  /**
+   * Creates the service without a token, the agent authenticates the requests.
+   *
+   * @param socketPath path of the agent listener socket.
+   * @param readTimeoutMs timeout waiting for a response in milliseconds.
+   */
+  public UnixSocketVaultService(String socketPath, int readTimeoutMs) {
+    this(socketPath, null, readTimeoutMs, DEFAULT_MAX_IDLE_CONNECTIONS);
+  }
+
+  @VisibleForTesting
+  UnixSocketVaultService(String socketPath, String token, int readTimeoutMs, int maxIdleConnections) {
+    Preconditions.checkState(isSupported(), "Unix domain sockets need Java 16 or later");
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(socketPath), "Vault agent socket is missing");
+    Preconditions.checkArgument(readTimeoutMs > 0, "Timeout must be positive");
+    this.socketPath = socketPath;
+    this.address = address(socketPath);
+    this.token = token;
+    this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+    this.idle = new LinkedBlockingDeque<>(maxIdleConnections);
+  }
+
+  /**
+   * @return true when the JVM supports Unix domain socket channels.
+   */
+  public static boolean isSupported() {
+    return UNIX != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getSecret(String path) {
+    Response response = send("GET", KvV2.dataPath(path), null);
+    if (response.status == 404) {
+      return Collections.emptyMap();
+    }
+    return KvV2.parseSecret(checkStatus(response, path).body);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void writeSecret(String path, Map<String, String> value) {
+    checkStatus(send("POST", KvV2.dataPath(path), KvV2.writeBody(value)), path);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> listSecrets(String path) {
+    Response response = send("GET", KvV2.metadataPath(path) + "?list=true", null);
+    if (response.status == 404) {
+      return Collections.emptyList();
+    }
+    return KvV2.parseKeys(checkStatus(response, path).body);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSecretVersion(String path) {
+    Response response = send("GET", KvV2.metadataPath(path), null);
+    if (response.status == 404) {
+      return 0;
+    }
+    return KvV2.parseCurrentVersion(checkStatus(response, path).body);
+  }
+
+  /**
+   * Closes the idle connections, the ones in use are closed when released.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  @VisibleForTesting
+  int idleConnections() {
+    return idle.size();
+  }
+
+  private Response send(String method, String apiPath, byte[] body) {
+    byte[] request = request(method, apiPath, body);
+    try {
+      Connection connection = idle.pollFirst();
+      if (connection != null) {
+        try {
+          return exchange(connection, request, method);
+        } catch (IOException e) {
+          if (connection.responseStarted) {
+            throw e;
+          }
+          // The agent closed the idle connection, the request never reached it
+          log.debug("Idle connection to {} closed, reconnecting", socketPath);
+        }
+      }
+      return exchange(new Connection(open(address)), request, method);
+    } catch (IOException e) {
+      log.error("Error calling vault agent {} {}", method, apiPath, e);
+      throw new RuntimeException(new VaultException(e));
+    }
+  }
+
+  private Response exchange(Connection connection, byte[] request, String method) throws IOException {
+    boolean reusable = false;
+    try {
+      Response response = connection.exchange(request, "HEAD".equals(method), readTimeoutNanos);
+      reusable = response.keepAlive;
+      return response;
+    } finally {
+      if (reusable && !closed && idle.offerFirst(connection)) {
+        log.trace("Connection to {} kept alive", socketPath);
+      } else {
+        connection.close();
+      }
+    }
+  }
+
+  private byte[] request(String method, String apiPath, byte[] body) {
+    StringBuilder head = new StringBuilder(128)
+        .append(method).append(" /v1/").append(apiPath).append(" HTTP/1.1\r\n")
+        .append("Host: localhost\r\n")
+        .append("Accept: application/json\r\n");
+    if (token != null) {
+      head.append(TOKEN_HEADER).append(": ").append(token).append("\r\n");
+    }
+    if (body != null) {
+      head.append("Content-Type: application/json\r\n").append("Content-Length: ").append(body.length).append("\r\n");
+    }
+    head.append("\r\n");
+    byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    if (body == null) {
+      return headBytes;
+    }
+    byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length);
+    System.arraycopy(body, 0, request, headBytes.length, body.length);
+    return request;
+  }
+
+  private static Response checkStatus(Response response, String path) {
+    if (response.status < 200 || response.status >= 300) {
+      throw new RuntimeException(new VaultException(String.format("Vault responded with status %d for path %s", response.status, path), response.status));
+    }
+    return response;
+  }
+
+  private static ProtocolFamily unixProtocolFamily() {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the {@code UnixDomainSocketAddress} of the path.
+   */
+  static SocketAddress address(String path) {
+    try {
+      Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+      return (SocketAddress) of.invoke(null, path);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unix domain sockets need Java 16 or later", e);
+    }
+  }
+
+  private static SocketChannel open(SocketAddress address) throws IOException {
+    SocketChannel channel;
+    try {
+      channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, UNIX);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unix domain sockets need Java 16 or later", e);
+    }
+    try {
+      channel.connect(address);
+      channel.configureBlocking(false);
+      return channel;
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static final class Response {
+    private final int status;
+    private final byte[] body;
+    private final boolean keepAlive;
+
+    private Response(int status, byte[] body, boolean keepAlive) {
+      this.status = status;
+      this.body = body;
+      this.keepAlive = keepAlive;
+    }
+  }
+
+  /**
+   * A keep-alive HTTP/1.1 connection, reading with a deadline through its own selector.
+   */
+  private static final class Connection {
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long deadline;
+    private boolean responseStarted;
+
+    private Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      try {
+        this.selector = Selector.open();
+        this.key = channel.register(selector, 0);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    private Response exchange(byte[] request, boolean head, long timeoutNanos) throws IOException {
+      deadline = System.nanoTime() + timeoutNanos;
+      responseStarted = false;
+      position = 0;
+      limit = 0;
+      write(ByteBuffer.wrap(request));
+
+      int statusCode;
+      boolean keepAlive;
+      int contentLength;
+      boolean chunked;
+      do {
+        String statusLine = readLine();
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+          throw new IOException("Invalid response from vault agent: " + statusLine);
+        }
+        statusCode = Integer.parseInt(status[1]);
+        keepAlive = !"HTTP/1.0".equals(status[0]);
+        contentLength = -1;
+        chunked = false;
+        for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+          int colon = header.indexOf(':');
+          if (colon < 0) {
+            continue;
+          }
+          String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+          String value = header.substring(colon + 1).trim();
+          if (name.equals("content-length")) {
+            contentLength = Integer.parseInt(value);
+          } else if (name.equals("transfer-encoding")) {
+            chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+          } else if (name.equals("connection")) {
+            keepAlive = !value.equalsIgnoreCase("close");
+          }
+        }
+        // Interim responses such as 100 Continue precede the final one
+      } while (statusCode / 100 == 1);
+
+      byte[] body;
+      if (head || statusCode == 204 || statusCode == 304) {
+        body = new byte[0];
+      } else if (chunked) {
+        body = readChunked();
+      } else if (contentLength >= 0) {
+        body = readBytes(contentLength);
+      } else if (!keepAlive) {
+        body = readToEnd();
+        keepAlive = false;
+      } else {
+        // Without framing the end of the body is unknown, the connection is not reused
+        body = new byte[0];
+        keepAlive = false;
+      }
+      return new Response(statusCode, body, keepAlive && position == limit);
+    }
+
+    private void write(ByteBuffer request) throws IOException {
+      while (request.hasRemaining()) {
+        if (channel.write(request) == 0) {
+          await(SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    private byte[] readChunked() throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      while (true) {
+        String sizeLine = readLine();
+        int extension = sizeLine.indexOf(';');
+        int size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+        if (size == 0) {
+          break;
+        }
+        body.write(readBytes(size));
+        readLine();
+      }
+      String trailer;
+      do {
+        trailer = readLine();
+      } while (!trailer.isEmpty());
+      return body.toByteArray();
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+      while (limit - position < length) {
+        fill();
+      }
+      byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+      position += length;
+      return bytes;
+    }
+
+    private byte[] readToEnd() throws IOException {
+      try {
+        while (true) {
+          fill();
+        }
+      } catch (EOFException e) {
+        byte[] bytes = Arrays.copyOfRange(buffer, position, limit);
+        position = limit;
+        return bytes;
+      }
+    }
+
+    private String readLine() throws IOException {
+      while (true) {
+        for (int i = position; i + 1 < limit; i++) {
+          if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+            String line = new String(buffer, position, i - position, StandardCharsets.ISO_8859_1);
+            position = i + 2;
+            return line;
+          }
+        }
+        fill();
+      }
+    }
+
+    /**
+     * Reads more bytes at the end of the buffer, compacting or growing it first when full.
+     */
+    private void fill() throws IOException {
+      if (limit == buffer.length) {
+        if (position > 0) {
+          System.arraycopy(buffer, position, buffer, 0, limit - position);
+          limit -= position;
+          position = 0;
+        } else {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+      while (true) {
+        int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+        if (read < 0) {
+          throw new EOFException("Vault agent closed the connection");
+        }
+        if (read > 0) {
+          responseStarted = true;
+          limit += read;
+          return;
+        }
+        await(SelectionKey.OP_READ);
+      }
+    }
+
+    private void await(int operation) throws IOException {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new SocketTimeoutException("Timed out waiting for the vault agent");
+      }
+      key.interestOps(operation);
+      selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      selector.selectedKeys().clear();
+      key.interestOps(0);
+    }
+
+    private void close() {
+      try {
+        selector.close();
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Error closing connection to vault agent", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory index of the users kept in a single Vault secret, i.e. "Option 1" of the sequence diagrams.
+ *
+ * <p>The secret at the users path maps every username to its password (plain or hashed). It is read as a whole and
+ * copied into an immutable hash index that is swapped atomically on every refresh, so looking up a user never does
+ * network I/O and one periodic read replaces a read per user and TTL. When a refresh fails the previous index is kept.</p>
+ *
+ * <p>Refreshes read Vault itself through {@link VaultService#getSecretFromVault(String)}, past the cache and the copies
+ * of the other decorators, so the refresh period is the delay of a change. Only the first load, when there is no index
+ * yet, falls back to those copies to start while Vault is down.</p>
+ */
+public class UserDirectory implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+
+  private final VaultService vaultService;
+  private final String usersPath;
+  private final ScheduledExecutorService scheduler;
+  private volatile Map<String, String> passwords;
+
+  /**
+   * Creates the directory, call {@link #start(long)} to load it.
+   *
+   * @param vaultService service used to read the users.
+   * @param usersPath path in vault of the secret with every user.
+   */
+  public UserDirectory(VaultService vaultService, String usersPath) {
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.usersPath = Preconditions.checkNotNull(usersPath);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-user-directory-%d").build());
+  }
+
+  /**
+   * Loads the directory right away and schedules its refresh.
+   *
+   * @param refreshSeconds period between reads of the users secret.
+   */
+  public void start(long refreshSeconds) {
+    Preconditions.checkArgument(refreshSeconds > 0, "Refresh period must be positive");
+    refresh();
+    scheduler.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Reads the users secret and swaps the index, keeping the previous one when Vault fails.
+   */
+  void refresh() {
+    Map<String, String> users;
+    try {
+      users = vaultService.getSecretFromVault(usersPath);
+    } catch (RuntimeException e) {
+      if (passwords != null) {
+        log.warn("Could not refresh the user directory from {}", usersPath, e);
+        return;
+      }
+      log.warn("Could not read the user directory from {}, loading the last copy", usersPath, e);
+      try {
+        users = vaultService.getSecret(usersPath);
+      } catch (RuntimeException fallbackError) {
+        log.warn("Could not load the user directory from {}", usersPath, fallbackError);
+        return;
+      }
+    }
+    passwords = ImmutableMap.copyOf(users);
+    log.info("User directory refreshed with {} users", users.size());
+  }
+
+  /**
+   * Looks up the password of a user.
+   *
+   * @param username the user to look up.
+   * @return the password or hash of the user, null when the user does not exist.
+   * @throws IllegalStateException when the directory could not be loaded yet.
+   */
+  public String password(String username) {
+    Map<String, String> current = passwords;
+    if (current == null) {
+      throw new IllegalStateException(String.format("User directory %s is not loaded yet", usersPath));
+    }
+    return current.get(username);
+  }
+
+  /**
+   * @return number of users in the directory, 0 until loaded.
+   */
+  public int size() {
+    Map<String, String> current = passwords;
+    return current == null ? 0 : current.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
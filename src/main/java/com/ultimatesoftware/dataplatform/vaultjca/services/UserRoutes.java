@@ -0,0 +1,277 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routing table from username prefixes to the Vault paths where those users reside, e.g. one KV mount per tenant.
+ *
+ * <p>Routes are written as {@code prefix=path[,path...]} separated by {@code ;}. The longest prefix of the username
+ * picks the route, found through a trie so a lookup costs the length of the username; users matching no prefix use the
+ * default path. A user is read at {@code path/username}.</p>
+ *
+ * <p>When a route has several paths, e.g. while users move between mounts, the first lookup of a user reads all of them
+ * in parallel and the first one holding the user answers, the other reads are not awaited. Should the user exist on
+ * more than one path the fastest answer wins, so keep every user on a single path. The path found is remembered in the
+ * partition of the route, next lookups read only that one until the user is no longer there.</p>
+ *
+ * <p>Each route keeps its own partition of user paths and its lookups are recorded under its prefix (the default
+ * route as {@value #DEFAULT_ROUTE}), check {@link VaultJcaMetrics#recordRouteLookup(String, boolean, long)}.</p>
+ */
+public class UserRoutes implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(UserRoutes.class);
+  static final String DEFAULT_ROUTE = "default";
+  private static final long ROUTE_PATHS_MAX_SIZE = 10_000;
+
+  private final VaultService vaultService;
+  private final Route defaultRoute;
+  private final List<Route> routes = new ArrayList<>();
+  private final Node root = new Node();
+  private final ExecutorService executor;
+  private final VaultJcaMetrics metrics;
+
+  private static final class Route {
+    private final String name;
+    // Paths of the route ending with a slash, prefixes of the paths of its users
+    private final List<String> prefixes;
+    // Where each recent user was found, so the hot path does not build a string nor read the other paths
+    private final Cache<String, String> userPaths = Caffeine.newBuilder().maximumSize(ROUTE_PATHS_MAX_SIZE).build();
+    private final Function<String, String> userPathFunction;
+
+    private Route(String name, List<String> paths) {
+      this.name = name;
+      this.prefixes = new ArrayList<>(paths.size());
+      for (String path : paths) {
+        prefixes.add(path.endsWith("/") ? path : path + "/");
+      }
+      String first = prefixes.get(0);
+      this.userPathFunction = username -> first + username;
+    }
+  }
+
+  private static final class Found {
+    private final String path;
+    private final Map<String, String> secret;
+
+    private Found(String path, Map<String, String> secret) {
+      this.path = path;
+      this.secret = secret;
+    }
+  }
+
+  /**
+   * Node of the trie, children sorted by character so they are found without boxing.
+   */
+  private static final class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private Route route;
+
+    private Node child(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      return index < 0 ? null : children[index];
+    }
+
+    private Node addChild(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      if (index >= 0) {
+        return children[index];
+      }
+      int insertion = -index - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, insertion);
+      System.arraycopy(children, 0, newChildren, 0, insertion);
+      newKeys[insertion] = key;
+      newChildren[insertion] = new Node();
+      System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+      System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+      keys = newKeys;
+      children = newChildren;
+      return newChildren[insertion];
+    }
+  }
+
+  /**
+   * Creates the routes.
+   *
+   * @param vaultService service used to read the users.
+   * @param defaultPath path of the users matching no route.
+   * @param spec routes as {@code prefix=path[,path...]} separated by {@code ;}.
+   */
+  public UserRoutes(VaultService vaultService, String defaultPath, String spec) {
+    this(vaultService, defaultPath, spec, VaultJcaMetrics.instance());
+  }
+
+  @VisibleForTesting
+  UserRoutes(VaultService vaultService, String defaultPath, String spec, VaultJcaMetrics metrics) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(defaultPath), "Default users path can not be empty");
+    this.vaultService = Preconditions.checkNotNull(vaultService);
+    this.metrics = metrics;
+    this.defaultRoute = new Route(DEFAULT_ROUTE, Collections.singletonList(defaultPath));
+    routes.add(defaultRoute);
+    for (String entry : Strings.nullToEmpty(spec).split(";")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      int separator = entry.indexOf('=');
+      Preconditions.checkArgument(separator > 0, "Route %s must be prefix=path[,path...] with a non empty prefix", entry);
+      String prefix = entry.substring(0, separator).trim();
+      List<String> paths = new ArrayList<>();
+      for (String path : entry.substring(separator + 1).split(",")) {
+        if (!path.trim().isEmpty()) {
+          paths.add(path.trim());
+        }
+      }
+      Preconditions.checkArgument(!paths.isEmpty(), "Route %s has no path", prefix);
+      Node node = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.addChild(prefix.charAt(i));
+      }
+      Preconditions.checkArgument(node.route == null, "Duplicated route %s", prefix);
+      node.route = new Route(prefix, paths);
+      routes.add(node.route);
+    }
+    this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-route-%d").build());
+  }
+
+  /**
+   * @return true when the user matches no route and is read from the default path.
+   */
+  public boolean routesToDefault(String username) {
+    return route(username) == defaultRoute;
+  }
+
+  /**
+   * Reads the secret of the user from the paths of its route.
+   *
+   * @return the secret, empty when no path of the route holds the user.
+   * @throws RuntimeException when the user was not found and reading one of the paths failed.
+   */
+  public Map<String, String> lookup(String username) {
+    Route route = route(username);
+    long start = System.nanoTime();
+    Map<String, String> secret = null;
+    try {
+      secret = read(route, username);
+      return secret;
+    } finally {
+      // Failed reads are counted by the vault metrics, not as unknown users
+      metrics.recordRouteLookup(route.name, secret == null || !secret.isEmpty(), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Maps a path of one of the routes back to the user stored there.
+   *
+   * @return the username, null when the path belongs to no route.
+   */
+  public String username(String path) {
+    for (Route route : routes) {
+      for (String prefix : route.prefixes) {
+        if (path.startsWith(prefix) && path.length() > prefix.length()) {
+          return path.substring(prefix.length());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stops the threads reading routes with several paths.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private Route route(String username) {
+    Route route = defaultRoute;
+    Node node = root;
+    for (int i = 0; i < username.length() && node != null; i++) {
+      node = node.child(username.charAt(i));
+      if (node != null && node.route != null) {
+        route = node.route;
+      }
+    }
+    return route;
+  }
+
+  private Map<String, String> read(Route route, String username) {
+    if (route.prefixes.size() == 1) {
+      return vaultService.getSecret(route.userPaths.get(username, route.userPathFunction));
+    }
+    String known = route.userPaths.getIfPresent(username);
+    if (known != null) {
+      Map<String, String> secret = vaultService.getSecret(known);
+      if (!secret.isEmpty()) {
+        return secret;
+      }
+      route.userPaths.invalidate(username);
+    }
+    Found found = firstMatch(route, username);
+    if (found == null) {
+      return Collections.emptyMap();
+    }
+    route.userPaths.put(username, found.path);
+    log.debug("User {} found at {}", username, found.path);
+    return found.secret;
+  }
+
+  private Found firstMatch(Route route, String username) {
+    CompletableFuture<Found> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(route.prefixes.size());
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    for (String prefix : route.prefixes) {
+      String path = prefix + username;
+      executor.execute(() -> {
+        try {
+          Map<String, String> secret = vaultService.getSecret(path);
+          if (!secret.isEmpty()) {
+            result.complete(new Found(path, secret));
+          }
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          if (pending.decrementAndGet() == 0) {
+            result.complete(null);
+          }
+        }
+      });
+    }
+    Found found;
+    try {
+      found = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    // Not found anywhere is only certain when every path answered
+    if (found == null && failure.get() != null) {
+      throw failure.get();
+    }
+    return found;
+  }
+}
@@ -0,0 +1,391 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonValue;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the KV events of Vault ({@code /v1/sys/events/subscribe}, Vault 1.16 and later) to a
+ * {@link CacheDecoratorVaultService} as they happen.
+ *
+ * <p>The events of the KV secrets engines are streamed over a WebSocket: a write reloads the cached entry, or loads a
+ * path under the preload paths so a new user's first login is a hit, and a delete drops the entry right away, so a
+ * revoked password stops working without waiting for the TTL. Events only name the path, the secret itself is still
+ * read with the token of the cache; the token needs the {@code read} capability on {@code sys/events/subscribe/kv*} and
+ * the {@code list} and {@code subscribe} capabilities on the paths.</p>
+ *
+ * <p>The connection is checked with a ping whenever it is idle for the ping interval and dropped when nothing came
+ * back within another interval. It is opened again with an exponential backoff; events sent meanwhile are lost, so
+ * while it is down the cache falls back to its regular TTL, see {@link CacheDecoratorVaultService}.</p>
+ *
+ * <p>Only the client side of RFC 6455 needed here is implemented: text messages, fragments, ping, pong and close.</p>
+ */
+final class VaultEventSubscriber implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(VaultEventSubscriber.class);
+  private static final String SUBSCRIBE_PATH = "/v1/sys/events/subscribe/kv*?json=true";
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int CONNECT_TIMEOUT_MS = 5_000;
+  private static final int MAX_MESSAGE_BYTES = 1 << 20;
+  private static final int OP_CONTINUATION = 0x0;
+  private static final int OP_TEXT = 0x1;
+  private static final int OP_CLOSE = 0x8;
+  private static final int OP_PING = 0x9;
+  private static final int OP_PONG = 0xA;
+
+  private final URI address;
+  private final Supplier<String> token;
+  private final SSLContext sslContext;
+  private final CacheDecoratorVaultService cache;
+  private final int pingIntervalMs;
+  private final Duration minBackoff;
+  private final Duration maxBackoff;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-cache-events-%d").build());
+  private final LongAdder events = new LongAdder();
+  private final LongAdder connects = new LongAdder();
+  private volatile boolean connected;
+  private volatile boolean closed;
+  private volatile Socket socket;
+
+  VaultEventSubscriber(CacheDecoratorVaultService cache, String vaultAddr, Supplier<String> token, SSLContext sslContext,
+      Duration pingInterval, Duration minBackoff, Duration maxBackoff) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(vaultAddr), "Vault address is missing");
+    this.cache = cache;
+    this.address = URI.create(vaultAddr);
+    Preconditions.checkArgument("http".equals(address.getScheme()) || "https".equals(address.getScheme()),
+        "Vault address must be http or https, was %s", vaultAddr);
+    this.token = token;
+    this.sslContext = sslContext;
+    this.pingIntervalMs = (int) pingInterval.toMillis();
+    this.minBackoff = minBackoff;
+    this.maxBackoff = maxBackoff;
+  }
+
+  void start() {
+    executor.execute(this::run);
+  }
+
+  private void run() {
+    long backoffMs = minBackoff.toMillis();
+    while (!closed) {
+      try {
+        if (subscribe()) {
+          backoffMs = minBackoff.toMillis();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (!closed) {
+          log.warn("Vault event stream failed, cached secrets expire after their TTL until it is back", e);
+        }
+      } finally {
+        disconnect();
+      }
+      if (closed) {
+        return;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoffMs / 2, backoffMs + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      backoffMs = Math.min(backoffMs * 2, maxBackoff.toMillis());
+    }
+  }
+
+  /**
+   * Opens the stream and applies its events until it ends.
+   *
+   * @return true when the stream was opened.
+   */
+  private boolean subscribe() throws IOException {
+    Socket socket = open();
+    this.socket = socket;
+    if (closed) {
+      return false;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    OutputStream out = socket.getOutputStream();
+    handshake(in, out);
+    connected = true;
+    connects.increment();
+    cache.onEventsConnected();
+    log.info("Subscribed to the vault events at {}", address);
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    boolean pinged = false;
+    while (!closed) {
+      int head;
+      try {
+        head = in.read();
+      } catch (SocketTimeoutException e) {
+        if (pinged) {
+          throw new IOException("Vault event stream did not answer a ping within " + pingIntervalMs + " ms");
+        }
+        send(out, OP_PING, new byte[0]);
+        pinged = true;
+        continue;
+      }
+      if (head < 0) {
+        throw new EOFException("Vault closed the event stream");
+      }
+      pinged = false;
+      int opcode = head & 0x0F;
+      byte[] payload = readPayload(in);
+      switch (opcode) {
+        case OP_TEXT:
+        case OP_CONTINUATION:
+          if (message.size() + payload.length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Vault event larger than " + MAX_MESSAGE_BYTES + " bytes");
+          }
+          message.write(payload);
+          if ((head & 0x80) != 0) {
+            apply(new String(message.toByteArray(), StandardCharsets.UTF_8));
+            message.reset();
+          }
+          break;
+        case OP_PING:
+          send(out, OP_PONG, payload);
+          break;
+        case OP_CLOSE:
+          send(out, OP_CLOSE, payload);
+          return true;
+        default:
+          // Pongs only tell the connection is alive, binary messages are not used by Vault
+          break;
+      }
+    }
+    return true;
+  }
+
+  private Socket open() throws IOException {
+    boolean tls = "https".equals(address.getScheme());
+    int port = address.getPort() > 0 ? address.getPort() : tls ? 443 : 80;
+    Socket socket = tls ? sslContext.getSocketFactory().createSocket() : new Socket();
+    try {
+      if (socket instanceof SSLSocket) {
+        SSLParameters parameters = ((SSLSocket) socket).getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        ((SSLSocket) socket).setSSLParameters(parameters);
+      }
+      socket.connect(new InetSocketAddress(address.getHost(), port), CONNECT_TIMEOUT_MS);
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(pingIntervalMs);
+      return socket;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private void handshake(InputStream in, OutputStream out) throws IOException {
+    byte[] nonce = new byte[16];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    String key = Base64.getEncoder().encodeToString(nonce);
+    String host = address.getPort() > 0 ? address.getHost() + ":" + address.getPort() : address.getHost();
+    String request = "GET " + SUBSCRIBE_PATH + " HTTP/1.1\r\n"
+        + "Host: " + host + "\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: " + key + "\r\n"
+        + "Sec-WebSocket-Version: 13\r\n"
+        + "X-Vault-Token: " + token.get() + "\r\n"
+        + "\r\n";
+    out.write(request.getBytes(StandardCharsets.UTF_8));
+    out.flush();
+
+    String status = readLine(in);
+    String accept = null;
+    for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+      int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+        accept = line.substring(colon + 1).trim();
+      }
+    }
+    if (!status.startsWith("HTTP/1.1 101")) {
+      throw new IOException("Vault refused the event subscription: " + status);
+    }
+    if (!acceptKey(key).equals(accept)) {
+      throw new IOException("Vault answered the event subscription with a wrong accept key");
+    }
+  }
+
+  // Headers are ASCII, read byte by byte so nothing past them is buffered away from the frames
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int c = in.read(); c != '\n'; c = in.read()) {
+      if (c < 0) {
+        throw new EOFException("Vault closed the event stream during the handshake");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] readPayload(DataInputStream in) throws IOException {
+    int second = in.readUnsignedByte();
+    long length = second & 0x7F;
+    if (length == 126) {
+      length = in.readUnsignedShort();
+    } else if (length == 127) {
+      length = in.readLong();
+    }
+    if (length < 0 || length > MAX_MESSAGE_BYTES) {
+      throw new IOException("Vault event frame of " + length + " bytes");
+    }
+    byte[] mask = null;
+    if ((second & 0x80) != 0) {
+      mask = new byte[4];
+      in.readFully(mask);
+    }
+    byte[] payload = new byte[(int) length];
+    in.readFully(payload);
+    if (mask != null) {
+      for (int i = 0; i < payload.length; i++) {
+        payload[i] ^= mask[i % 4];
+      }
+    }
+    return payload;
+  }
+
+  // Frames of a client are always masked
+  private static void send(OutputStream out, int opcode, byte[] payload) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 8);
+    frame.write(0x80 | opcode);
+    if (payload.length < 126) {
+      frame.write(0x80 | payload.length);
+    } else {
+      frame.write(0x80 | 126);
+      frame.write(payload.length >>> 8);
+      frame.write(payload.length);
+    }
+    byte[] mask = new byte[4];
+    ThreadLocalRandom.current().nextBytes(mask);
+    frame.write(mask);
+    for (int i = 0; i < payload.length; i++) {
+      frame.write(payload[i] ^ mask[i % 4]);
+    }
+    out.write(frame.toByteArray());
+    out.flush();
+  }
+
+  /**
+   * Applies one event to the cache, events of other engines or without a path are ignored.
+   */
+  void apply(String message) {
+    JsonValue data;
+    try {
+      data = Json.parse(message).asObject().get("data");
+    } catch (RuntimeException e) {
+      log.warn("Ignoring a vault event that is not JSON", e);
+      return;
+    }
+    if (data == null || !data.isObject()) {
+      return;
+    }
+    String eventType = data.asObject().getString("event_type", "");
+    JsonValue event = data.asObject().get("event");
+    JsonValue metadata = event == null || !event.isObject() ? null : event.asObject().get("metadata");
+    String path = metadata == null || !metadata.isObject() ? null : metadata.asObject().getString("path", null);
+    if (path == null || !(eventType.startsWith("kv-v1/") || eventType.startsWith("kv-v2/"))) {
+      return;
+    }
+    String operation = eventType.substring(eventType.indexOf('/') + 1);
+    String secretPath = eventType.startsWith("kv-v2/") ? KvV2.secretPath(path) : path;
+    boolean deleted = operation.equals("delete") || operation.equals("data-delete") || operation.equals("destroy")
+        || operation.equals("metadata-delete");
+    log.debug("Vault event {} on {}", eventType, secretPath);
+    cache.onSecretEvent(secretPath, deleted);
+    events.increment();
+  }
+
+  private void disconnect() {
+    if (connected) {
+      connected = false;
+      cache.onEventsDisconnected();
+    }
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        log.debug("Error closing the vault event stream", e);
+      }
+    }
+  }
+
+  /**
+   * @return true while the event stream is open.
+   */
+  boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * @return number of KV events applied.
+   */
+  long getEventCount() {
+    return events.sum();
+  }
+
+  /**
+   * @return number of times the event stream was opened.
+   */
+  long getConnectCount() {
+    return connects.sum();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        log.debug("Error closing the vault event stream", e);
+      }
+    }
+  }
+}
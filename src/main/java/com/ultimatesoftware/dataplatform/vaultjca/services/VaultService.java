@@ -1,13 +1,15 @@
 package com.ultimatesoftware.dataplatform.vaultjca.services;
 
+import java.io.Closeable;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Interface specifying a basic set of VAULT operations.
  *
- * Implemented by {@link HttpVaultService} and {@link CacheDecoratorVaultService}
+ * Implemented by {@link HttpVaultService}, {@link PooledHttpVaultService} and {@link CacheDecoratorVaultService}
  */
-public interface VaultService {
+public interface VaultService extends Closeable {
 
   /**
    * Retrieve a secret in a key-value format from the specified path.
@@ -18,6 +20,18 @@ public interface VaultService {
    */
   Map<String, String> getSecret(String path);
 
+  /**
+   * Reads a secret from Vault itself, never from the copies decorators fall back on when Vault is slow or down, such
+   * as the last known secrets or the snapshot. Used to reload a secret known to have changed.
+   *
+   * @param path the path in vault where to retrieve the secret
+   * @return the key-value map secret or an empty map when no secret is found at the specified path
+   * @throws RuntimeException when Vault can not be read.
+   */
+  default Map<String, String> getSecretFromVault(String path) {
+    return getSecret(path);
+  }
+
   /**
    * Creates/Updates a secret defined by the Map at the specified path.
    *
@@ -25,4 +39,34 @@ public interface VaultService {
    * @param value entry to be created/updated.
    */
   void writeSecret(String path, Map<String, String> value);
+
+  /**
+   * Lists the keys available under the specified path.
+   *
+   * Keys ending with {@code /} are folders rather than secrets.
+   * @param path the path in vault to list.
+   * @return the keys under the path or an empty list when nothing is found at the specified path
+   * @throws UnsupportedOperationException when the implementation can not list secrets.
+   */
+  default List<String> listSecrets(String path) {
+    throw new UnsupportedOperationException("Listing secrets is not supported by " + getClass().getSimpleName());
+  }
+
+  /**
+   * Reads the current version of a secret from the KV version 2 metadata, without reading the secret itself.
+   *
+   * @param path the path in vault of the secret.
+   * @return the current version or 0 when there is no secret, or it is deleted, at the specified path.
+   * @throws UnsupportedOperationException when the implementation can not read versions.
+   */
+  default long getSecretVersion(String path) {
+    throw new UnsupportedOperationException("Secret versions are not supported by " + getClass().getSimpleName());
+  }
+
+  /**
+   * Releases any thread or connection held by the implementation, decorators close the decorated service.
+   */
+  @Override
+  default void close() {
+  }
 }
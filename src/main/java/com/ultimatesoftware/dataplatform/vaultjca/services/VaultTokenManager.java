@@ -0,0 +1,412 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.bettercloud.vault.rest.Rest;
+import com.bettercloud.vault.rest.RestException;
+import com.bettercloud.vault.rest.RestResponse;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Vault token alive in the background.
+ *
+ * <p>The token is renewed after a fraction of its lease, minus a random jitter so a fleet of brokers started together
+ * spreads its renewals. When the token can not be renewed any more (renewal refused, token not renewable or its lease
+ * shrinking towards the max TTL) and a {@link Login} is configured, a new token is obtained through AppRole or Kubernetes
+ * auth. The new token is published to the listeners, the transports, which swap it atomically: requests in flight finish
+ * with the old token, which is still valid at that point. A token that is not renewable and has no login to replace it
+ * is left to expire at the end of its TTL, with a warning.</p>
+ *
+ * <table summary="jaas options for the token lifecycle">
+ *   <thead>
+ *     <tr><th>Option</th><th>Description</th></tr>
+ *   </thead>
+ *   <tbody>
+ *   <tr><td>vault_auth_method</td><td>{@code token} (default, renew VAULT_TOKEN only), {@code approle} or {@code kubernetes}</td></tr>
+ *   <tr><td>vault_auth_mount</td><td>Mount of the auth method, defaults to the method name</td></tr>
+ *   <tr><td>vault_kubernetes_role</td><td>Role to log in with Kubernetes auth</td></tr>
+ *   <tr><td>vault_kubernetes_jwt_path</td><td>Service account token, defaults to {@value #DEFAULT_KUBERNETES_JWT_PATH}</td></tr>
+ *   <tr><td>vault_token_renew_fraction</td><td>Fraction of the lease after which the token is renewed, defaults to 0.67</td></tr>
+ *   <tr><td>vault_token_renew_jitter</td><td>Up to this fraction of the delay is randomly taken off, defaults to 0.1</td></tr>
+ *   </tbody>
+ * </table>
+ *
+ * <p>AppRole credentials are read from the VAULT_ROLE_ID and VAULT_SECRET_ID environment variables. Vault is reached at
+ * VAULT_ADDR, or at the first of {@code vault_endpoints} when it is not set.</p>
+ */
+public class VaultTokenManager implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(VaultTokenManager.class);
+  static final String VAULT_AUTH_METHOD = "vault_auth_method";
+  static final String VAULT_AUTH_MOUNT = "vault_auth_mount";
+  static final String VAULT_KUBERNETES_ROLE = "vault_kubernetes_role";
+  static final String VAULT_KUBERNETES_JWT_PATH = "vault_kubernetes_jwt_path";
+  static final String VAULT_TOKEN_RENEW_FRACTION = "vault_token_renew_fraction";
+  static final String VAULT_TOKEN_RENEW_JITTER = "vault_token_renew_jitter";
+  private static final String VAULT_ENDPOINTS = "vault_endpoints";
+  static final String DEFAULT_KUBERNETES_JWT_PATH = "/var/run/secrets/kubernetes.io/serviceaccount/token";
+  private static final String ENV_VAULT_ADDR = "VAULT_ADDR";
+  private static final String ENV_VAULT_TOKEN = "VAULT_TOKEN";
+  private static final String ENV_VAULT_SSL_CERT = "VAULT_SSL_CERT";
+  private static final String ENV_VAULT_ROLE_ID = "VAULT_ROLE_ID";
+  private static final String ENV_VAULT_SECRET_ID = "VAULT_SECRET_ID";
+  private static final String TOKEN_HEADER = "X-Vault-Token";
+  private static final double DEFAULT_RENEW_FRACTION = 0.67;
+  private static final double DEFAULT_RENEW_JITTER = 0.1;
+  private static final long RETRY_DELAY_SEC = 10;
+  private static final int TIMEOUT_SEC = 5;
+
+  private final String address;
+  private final SSLContext sslContext;
+  private final Login login;
+  private final double renewFraction;
+  private final double renewJitter;
+  private final ScheduledExecutorService scheduler;
+  private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+  private volatile String token;
+  // only touched by the scheduler thread after start
+  private boolean leaseKnown;
+  private boolean renewable;
+  private long grantedLeaseSec;
+  private volatile ScheduledFuture<?> next;
+
+  /**
+   * Creates the manager, call {@link #start()} to obtain or look up the token and schedule its renewal.
+   *
+   * @param address Vault address.
+   * @param token initial token, may be null when a login is given.
+   * @param login how to obtain a new token, null to only renew the initial one.
+   * @param renewFraction fraction of the lease after which the token is renewed.
+   * @param renewJitter up to this fraction of the renewal delay is randomly taken off.
+   * @param sslContext TLS context for Vault.
+   */
+  public VaultTokenManager(String address, String token, Login login, double renewFraction, double renewJitter, SSLContext sslContext) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(address), "Vault address is missing, set %s", ENV_VAULT_ADDR);
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(token) || login != null, "Vault token is missing, set %s or configure %s", ENV_VAULT_TOKEN, VAULT_AUTH_METHOD);
+    Preconditions.checkArgument(renewFraction > 0 && renewFraction < 1, "Renew fraction must be within (0, 1)");
+    Preconditions.checkArgument(renewJitter >= 0 && renewJitter < 1, "Renew jitter must be within [0, 1)");
+    this.address = address.endsWith("/") ? address.substring(0, address.length() - 1) : address;
+    this.token = Strings.emptyToNull(token);
+    this.login = login;
+    this.renewFraction = renewFraction;
+    this.renewJitter = renewJitter;
+    this.sslContext = sslContext;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-token-%d").build());
+  }
+
+  /**
+   * Creates the manager from the jaas options and the environment variables.
+   *
+   * @param options jaas options of the {@code VaultLoginModule}.
+   * @return the manager, not started.
+   */
+  public static VaultTokenManager fromOptions(Map<String, ?> options) {
+    String method = Strings.isNullOrEmpty(option(options, VAULT_AUTH_METHOD)) ? "token" : option(options, VAULT_AUTH_METHOD);
+    String mount = Strings.isNullOrEmpty(option(options, VAULT_AUTH_MOUNT)) ? method : option(options, VAULT_AUTH_MOUNT);
+    Login login;
+    switch (method) {
+      case "token":
+        login = null;
+        break;
+      case "approle":
+        login = Login.appRole(mount, System.getenv(ENV_VAULT_ROLE_ID), System.getenv(ENV_VAULT_SECRET_ID));
+        break;
+      case "kubernetes":
+        String jwtPath = option(options, VAULT_KUBERNETES_JWT_PATH);
+        login = Login.kubernetes(mount, option(options, VAULT_KUBERNETES_ROLE), Strings.isNullOrEmpty(jwtPath) ? DEFAULT_KUBERNETES_JWT_PATH : jwtPath);
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown %s %s, use token, approle or kubernetes", VAULT_AUTH_METHOD, method));
+    }
+    // Tokens are managed by the active node, the first of the endpoints
+    String address = System.getenv(ENV_VAULT_ADDR);
+    if (Strings.isNullOrEmpty(address) && !Strings.isNullOrEmpty(option(options, VAULT_ENDPOINTS))) {
+      address = option(options, VAULT_ENDPOINTS).split(",")[0].trim();
+    }
+    return new VaultTokenManager(address, System.getenv(ENV_VAULT_TOKEN), login,
+        doubleOption(options, VAULT_TOKEN_RENEW_FRACTION, DEFAULT_RENEW_FRACTION),
+        doubleOption(options, VAULT_TOKEN_RENEW_JITTER, DEFAULT_RENEW_JITTER),
+        PooledHttpVaultService.sslContext(System.getenv(ENV_VAULT_SSL_CERT)));
+  }
+
+  /**
+   * Logs in when there is no token, otherwise looks it up, then schedules the renewal.
+   *
+   * <p>A failed look up is retried by the renewal task until the lease of the token is known.</p>
+   *
+   * @throws RuntimeException when there is no token and the login fails.
+   */
+  public void start() {
+    long delaySec;
+    if (token == null) {
+      delaySec = apply(login());
+    } else {
+      try {
+        delaySec = lookUp();
+      } catch (RuntimeException e) {
+        log.warn("Could not look up the vault token, retrying in {} sec", RETRY_DELAY_SEC, e);
+        schedule(RETRY_DELAY_SEC);
+        return;
+      }
+    }
+    log.info("Vault token lease {} sec, renewable {}", grantedLeaseSec, renewable);
+    scheduleRenewal(delaySec);
+  }
+
+  /**
+   * @return the current token.
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Registers a listener called with every new token.
+   *
+   * @param listener receives the new token.
+   */
+  public void addListener(Consumer<String> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Renews the token, or logs in again when it can not be renewed, and schedules the next run.
+   */
+  @VisibleForTesting
+  void refresh() {
+    if (!leaseKnown && login == null) {
+      // Without a login there is nothing to fall back to, keep looking the token up until its lease is known
+      long leaseSec;
+      try {
+        leaseSec = lookUp();
+      } catch (RuntimeException e) {
+        log.warn("Could not look up the vault token, retrying in {} sec", RETRY_DELAY_SEC, e);
+        schedule(nextDelaySec(RETRY_DELAY_SEC));
+        return;
+      }
+      log.info("Vault token lease {} sec, renewable {}", grantedLeaseSec, renewable);
+      scheduleRenewal(leaseSec);
+      return;
+    }
+    Lease lease = null;
+    if (renewable) {
+      try {
+        lease = Lease.from(send("POST", "auth/token/renew-self", Json.object(), token));
+        if (login != null && lease.durationSec * 2 < grantedLeaseSec) {
+          log.info("Vault token lease shrank to {} sec, close to its max TTL", lease.durationSec);
+          lease = null;
+        }
+      } catch (RuntimeException e) {
+        log.warn("Could not renew the vault token", e);
+      }
+    }
+    if (lease == null && login != null) {
+      try {
+        lease = login();
+      } catch (RuntimeException e) {
+        log.error("Could not log in to vault", e);
+      }
+    }
+    if (lease == null) {
+      schedule(nextDelaySec(RETRY_DELAY_SEC));
+      return;
+    }
+    scheduleRenewal(apply(lease));
+  }
+
+  /**
+   * @return seconds until the next renewal of a lease, randomly shortened by up to the jitter.
+   */
+  @VisibleForTesting
+  long nextDelaySec(long leaseSec) {
+    double delay = leaseSec * renewFraction * (1 - renewJitter * ThreadLocalRandom.current().nextDouble());
+    return Math.max(1, (long) delay);
+  }
+
+  private long lookUp() {
+    JsonObject data = send("GET", "auth/token/lookup-self", null, token).get("data").asObject();
+    renewable = data.getBoolean("renewable", false);
+    grantedLeaseSec = data.getLong("ttl", 0);
+    leaseKnown = true;
+    return grantedLeaseSec;
+  }
+
+  private Lease login() {
+    log.info("Logging in to vault through {}", login.mount);
+    Lease lease = Lease.from(send("POST", "auth/" + login.mount + "/login", login.body.get(), null));
+    grantedLeaseSec = lease.durationSec;
+    leaseKnown = true;
+    return lease;
+  }
+
+  private long apply(Lease lease) {
+    renewable = lease.renewable;
+    if (!lease.token.equals(token)) {
+      token = lease.token;
+      listeners.forEach(listener -> listener.accept(lease.token));
+      log.info("Vault token replaced, lease {} sec", lease.durationSec);
+    }
+    return lease.durationSec;
+  }
+
+  /**
+   * @return whether a renewal, login or look up is scheduled.
+   */
+  @VisibleForTesting
+  boolean isScheduled() {
+    ScheduledFuture<?> scheduled = next;
+    return scheduled != null && !scheduled.isDone();
+  }
+
+  /**
+   * Schedules the renewal of a lease, unless the token can neither be renewed nor replaced.
+   */
+  private void scheduleRenewal(long leaseSec) {
+    if (!renewable && login == null) {
+      if (leaseSec > 0) {
+        log.warn("Vault token is not renewable and {} is not set, it expires in {} sec", VAULT_AUTH_METHOD, leaseSec);
+      }
+      return;
+    }
+    if (leaseSec > 0) {
+      schedule(nextDelaySec(leaseSec));
+    }
+  }
+
+  private void schedule(long delaySec) {
+    if (!scheduler.isShutdown()) {
+      next = scheduler.schedule(this::refresh, delaySec, TimeUnit.SECONDS);
+    }
+  }
+
+  private JsonObject send(String method, String apiPath, JsonObject body, String requestToken) {
+    Rest rest = new Rest()
+        .url(address + "/v1/" + apiPath)
+        .optionalHeader(TOKEN_HEADER, requestToken)
+        .connectTimeoutSeconds(TIMEOUT_SEC)
+        .readTimeoutSeconds(TIMEOUT_SEC)
+        .sslVerification(true)
+        .sslContext(sslContext);
+    if (body != null) {
+      rest.body(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    try {
+      RestResponse response = "GET".equals(method) ? rest.get() : rest.post();
+      if (response.getStatus() < 200 || response.getStatus() >= 300) {
+        throw new RuntimeException(new VaultException(String.format("Vault responded with status %d for %s", response.getStatus(), apiPath), response.getStatus()));
+      }
+      return Json.parse(new String(response.getBody(), StandardCharsets.UTF_8)).asObject();
+    } catch (RestException e) {
+      throw new RuntimeException(new VaultException(e));
+    }
+  }
+
+  private static String option(Map<String, ?> options, String key) {
+    Object value = options.get(key);
+    return value == null ? null : value.toString();
+  }
+
+  private static double doubleOption(Map<String, ?> options, String key, double defaultValue) {
+    String value = option(options, key);
+    return Strings.isNullOrEmpty(value) ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * How to obtain a new token.
+   */
+  public static final class Login {
+    private final String mount;
+    private final Supplier<JsonObject> body;
+
+    private Login(String mount, Supplier<JsonObject> body) {
+      this.mount = mount;
+      this.body = body;
+    }
+
+    /**
+     * Logs in with AppRole.
+     *
+     * @param mount mount of the AppRole auth method.
+     * @param roleId role id.
+     * @param secretId secret id.
+     * @return the login.
+     */
+    public static Login appRole(String mount, String roleId, String secretId) {
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(roleId) && !Strings.isNullOrEmpty(secretId),
+          "AppRole needs %s and %s", ENV_VAULT_ROLE_ID, ENV_VAULT_SECRET_ID);
+      return new Login(mount, () -> Json.object().add("role_id", roleId).add("secret_id", secretId));
+    }
+
+    /**
+     * Logs in with the Kubernetes service account token, read again on every login since Kubernetes rotates it.
+     *
+     * @param mount mount of the Kubernetes auth method.
+     * @param role Vault role bound to the service account.
+     * @param jwtPath file with the service account token.
+     * @return the login.
+     */
+    public static Login kubernetes(String mount, String role, String jwtPath) {
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(role), "Kubernetes auth needs %s", VAULT_KUBERNETES_ROLE);
+      return new Login(mount, () -> {
+        try {
+          String jwt = new String(Files.readAllBytes(Paths.get(jwtPath)), StandardCharsets.UTF_8).trim();
+          return Json.object().add("role", role).add("jwt", jwt);
+        } catch (IOException e) {
+          throw new RuntimeException("Could not read the service account token " + jwtPath, e);
+        }
+      });
+    }
+  }
+
+  private static final class Lease {
+    private final String token;
+    private final long durationSec;
+    private final boolean renewable;
+
+    private Lease(String token, long durationSec, boolean renewable) {
+      this.token = token;
+      this.durationSec = durationSec;
+      this.renewable = renewable;
+    }
+
+    private static Lease from(JsonObject response) {
+      JsonValue auth = response.get("auth");
+      Preconditions.checkState(auth != null && auth.isObject(), "Vault response without auth");
+      JsonObject authObject = auth.asObject();
+      Preconditions.checkState(authObject.get("client_token") != null, "Vault response without client token");
+      return new Lease(authObject.getString("client_token", null), authObject.getLong("lease_duration", 0),
+          authObject.getBoolean("renewable", false));
+    }
+  }
+}
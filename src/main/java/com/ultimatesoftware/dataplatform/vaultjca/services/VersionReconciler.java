@@ -0,0 +1,154 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects changed secrets of a {@link CacheDecoratorVaultService} from their KV version 2 metadata.
+ *
+ * <p>Without it a cached secret is only reloaded when its TTL expires, so a short TTL reads unchanged secrets over and
+ * over while a long one delays password rotations. Every cycle the reconciler reads the current version of the cached
+ * paths, round robin and within a budget of Vault requests, and reloads only the entries whose version changed or drops
+ * those deleted from Vault. With it the cache TTL can be long; a rotation lands within the time needed to go through
+ * every cached path, i.e. {@code interval * cached paths / budget}.</p>
+ *
+ * <p>Changed entries are read from Vault itself, see {@link VaultService#getSecretFromVault(String)}, so a copy kept by
+ * the snapshot or the last known secrets can not answer in place of the rotated secret. A version is only recorded once
+ * its reload succeeded, a failed reload is checked again on the next cycle. The first check of a path records its version
+ * as the baseline without reloading it, a rotation between the load and that check is left to the TTL. Deleted secrets
+ * are dropped without reading them. A change that does not fit in the budget left is checked again first on the next
+ * cycle. Cycles stop at the first error, e.g. Vault down or the circuit breaker open, and the next cycle resumes from
+ * that path.</p>
+ */
+final class VersionReconciler implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(VersionReconciler.class);
+
+  private final VaultService vaultService;
+  private final LoadingCache<String, Map<String, String>> cache;
+  private final Consumer<String> reload;
+  private final int budget;
+  private final Map<String, Long> versions = new HashMap<>();
+  private final Deque<String> pending = new ArrayDeque<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-cache-reconciler-%d").build());
+  private final LongAdder checks = new LongAdder();
+  private final LongAdder changes = new LongAdder();
+
+  /**
+   * @param reload reads a path from Vault into the cache, dropping it when deleted; throws when Vault can not be read.
+   */
+  VersionReconciler(VaultService vaultService, LoadingCache<String, Map<String, String>> cache, Consumer<String> reload, int budget) {
+    this.vaultService = vaultService;
+    this.cache = cache;
+    this.reload = reload;
+    this.budget = budget;
+  }
+
+  void start(Duration interval) {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        reconcile();
+      } catch (RuntimeException e) {
+        log.warn("Cache reconciliation failed", e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs one cycle.
+   *
+   * @return number of entries reloaded or dropped.
+   */
+  synchronized int reconcile() {
+    if (pending.isEmpty()) {
+      pending.addAll(cache.asMap().keySet());
+      versions.keySet().retainAll(pending);
+    }
+    int requests = 0;
+    int changed = 0;
+    while (requests < budget && !pending.isEmpty()) {
+      String path = pending.peek();
+      if (!cache.asMap().containsKey(path)) {
+        pending.poll();
+        versions.remove(path);
+        continue;
+      }
+      long version;
+      try {
+        version = vaultService.getSecretVersion(path);
+      } catch (UnsupportedOperationException e) {
+        log.warn("Cache reconciliation stopped, {}", e.getMessage());
+        scheduler.shutdown();
+        return changed;
+      } catch (RuntimeException e) {
+        log.warn("Could not read the version of {} from vault, resuming on next cycle", path, e);
+        return changed;
+      }
+      pending.poll();
+      requests++;
+      checks.increment();
+      Long previous = versions.get(path);
+      if (version == 0) {
+        log.debug("Secret {} deleted from vault, dropping it", path);
+        versions.remove(path);
+        cache.invalidate(path);
+        changes.increment();
+        changed++;
+        continue;
+      }
+      if (previous == null || previous == version) {
+        versions.put(path, version);
+        continue;
+      }
+      if (requests == budget) {
+        pending.push(path);
+        return changed;
+      }
+      log.debug("Secret {} changed from version {} to {}, reloading it", path, previous, version);
+      requests++;
+      try {
+        reload.accept(path);
+      } catch (RuntimeException e) {
+        log.warn("Could not reload {} from vault, resuming on next cycle", path, e);
+        pending.push(path);
+        return changed;
+      }
+      versions.put(path, version);
+      changes.increment();
+      changed++;
+    }
+    return changed;
+  }
+
+  /**
+   * @return number of versions read.
+   */
+  long getCheckCount() {
+    return checks.sum();
+  }
+
+  /**
+   * @return number of entries reloaded or dropped.
+   */
+  long getChangeCount() {
+    return changes.sum();
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
@@ -4,14 +4,19 @@ import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModuleTest.VA
 import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModuleTest.VAULT_KAFKA_USERS_PATH;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultService;
 import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -22,6 +27,8 @@ import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.sasl.AuthorizeCallback;
 import org.apache.kafka.common.security.plain.PlainAuthenticateCallback;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -114,4 +121,199 @@ public class VaultAuthenticationLoginCallbackHandlerTest {
     thrown.expect(UnsupportedCallbackException.class);
     callbackHandler.handle(callbacks);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void shouldWarmUpCacheOnConfigure() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.CACHE_WARMUP, "true");
+    Map<String, String> usersMap = new HashMap<>();
+    usersMap.put(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "alicepwd");
+    when(vaultService.listSecrets(VAULT_KAFKA_USERS_PATH)).thenReturn(Arrays.asList("alice"));
+    when(vaultService.getSecret(ArgumentMatchers.anyString())).thenReturn(usersMap);
+    VaultAuthenticationLoginCallbackHandler cachedHandler =
+        new VaultAuthenticationLoginCallbackHandler(new CacheDecoratorVaultService(vaultService));
+
+    cachedHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+    verify(vaultService).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"));
+    verify(vaultService).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_ADMIN_PATH));
+
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+    cachedHandler.handle(callbacks);
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+    verify(vaultService).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"));
+  }
+
+  @Test
+  public void shouldRejectUnknownUsersWithoutCallingVault() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_BLOOM_FILTER, "true");
+    when(vaultService.listSecrets(VAULT_KAFKA_USERS_PATH)).thenReturn(Arrays.asList("alice"));
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "mallory"), new PlainAuthenticateCallback("pwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    callbackHandler.close();
+
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+    verify(vaultService, never()).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/mallory"));
+  }
+
+  @Test
+  public void shouldAuthenticateRoutedUsersOnTheirMount() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_ROUTES, "tenant-a.=kv-a/users");
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_BLOOM_FILTER, "true");
+    when(vaultService.listSecrets(VAULT_KAFKA_USERS_PATH)).thenReturn(Arrays.asList("alice"));
+    when(vaultService.getSecret("kv-a/users/tenant-a.app")).thenReturn(Collections.singletonMap("password", "apppwd"));
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "tenant-a.app"), new PlainAuthenticateCallback("apppwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    callbackHandler.close();
+
+    // Not listed under users_path, the bloom filter does not apply to routed users
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+    verify(vaultService, never()).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/tenant-a.app"));
+  }
+
+  @Test
+  public void shouldHandleClientLoginWithHashedPassword() throws Exception {
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+    Map<String, String> usersMap = new HashMap<>();
+    usersMap.put(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY,
+        OpenBSDBCrypt.generate("2b", "alicepwd".toCharArray(), "0123456789abcdef".getBytes(), 4));
+    when(vaultService.getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"))).thenReturn(usersMap);
+
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+
+    callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("wrongpwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+  }
+
+  @Test
+  public void shouldAuthenticateFromUserDirectory() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_DIRECTORY, "true");
+    // Ignored, the directory secret has no users listed under it
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_BLOOM_FILTER, "true");
+    Map<String, String> directory = new HashMap<>();
+    directory.put("alice", "alicepwd");
+    directory.put("bob", "bobpwd");
+    when(vaultService.getSecretFromVault(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH))).thenReturn(directory);
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+
+    callbacks = new Callback[] {new NameCallback("username", "bob"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+
+    callbacks = new Callback[] {new NameCallback("username", "mallory"), new PlainAuthenticateCallback("pwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    callbackHandler.close();
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+    verify(vaultService, times(1)).getSecretFromVault(ArgumentMatchers.anyString());
+    verify(vaultService, never()).getSecret(ArgumentMatchers.anyString());
+  }
+
+  @Test
+  public void shouldThrottleRepeatedFailuresWithoutCallingVault() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_LIMIT, "true");
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_BURST, "2");
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_BACKOFF_MS, "60000");
+    Map<String, String> usersMap = new HashMap<>();
+    usersMap.put(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "alicepwd");
+    when(vaultService.getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"))).thenReturn(usersMap);
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    for (int i = 0; i < 5; i++) {
+      Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("wrongpwd".toCharArray())};
+      callbackHandler.handle(callbacks);
+      assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+    }
+    callbackHandler.close();
+
+    verify(vaultService, times(2)).getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"));
+  }
+
+  @Test
+  public void shouldNotThrottleTheAdmin() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_LIMIT, "true");
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_BURST, "2");
+    options.put(VaultAuthenticationLoginCallbackHandler.AUTH_FAILURE_BACKOFF_MS, "60000");
+    Map<String, String> adminCreds = new HashMap<>();
+    adminCreds.put("username", "admin");
+    adminCreds.put(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "adminpwd");
+    when(vaultService.getSecret(ArgumentMatchers.eq(VAULT_KAFKA_ADMIN_PATH))).thenReturn(adminCreds);
+    callbackHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    for (int i = 0; i < 5; i++) {
+      Callback[] callbacks = new Callback[] {new NameCallback("username", "admin"), new PlainAuthenticateCallback("wrongpwd".toCharArray())};
+      callbackHandler.handle(callbacks);
+      assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+    }
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "admin"), new PlainAuthenticateCallback("adminpwd".toCharArray())};
+    callbackHandler.handle(callbacks);
+    callbackHandler.close();
+
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+  }
+
+  @Test
+  public void shouldReauthenticateFromVerifiedSessionUntilTheSecretChanges() throws Exception {
+    options.put(VaultAuthenticationLoginCallbackHandler.REAUTH_SESSION_TTL_SEC, "600");
+    String alicePath = VAULT_KAFKA_USERS_PATH + "/alice";
+    when(vaultService.getSecret(ArgumentMatchers.eq(alicePath)))
+        .thenReturn(Collections.singletonMap(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "alicepwd"));
+    CacheDecoratorVaultService cache = new CacheDecoratorVaultService(vaultService);
+    VaultAuthenticationLoginCallbackHandler cachedHandler = new VaultAuthenticationLoginCallbackHandler(cache);
+    cachedHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+
+    for (int i = 0; i < 3; i++) {
+      Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+      cachedHandler.handle(callbacks);
+      assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(true));
+    }
+    verify(vaultService, times(1)).getSecret(ArgumentMatchers.eq(alicePath));
+
+    cache.writeSecret(alicePath, Collections.singletonMap(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "rotated"));
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), new PlainAuthenticateCallback("alicepwd".toCharArray())};
+    cachedHandler.handle(callbacks);
+    cachedHandler.close();
+
+    assertThat(((PlainAuthenticateCallback) callbacks[1]).authenticated(), is(false));
+  }
+
+  @Test
+  public void shouldNotAllocateOnCachedAuthentication() throws Exception {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+    Map<String, String> usersMap = new HashMap<>();
+    usersMap.put(VaultAuthenticationLoginCallbackHandler.PASSWORD_MAP_ENTRY_KEY, "alicepwd");
+    when(vaultService.getSecret(ArgumentMatchers.eq(VAULT_KAFKA_USERS_PATH + "/alice"))).thenReturn(usersMap);
+    VaultAuthenticationLoginCallbackHandler cachedHandler =
+        new VaultAuthenticationLoginCallbackHandler(new CacheDecoratorVaultService(vaultService));
+    cachedHandler.configure(Collections.EMPTY_MAP, SASL_MECHANISM, jaasConfigEntries);
+    PlainAuthenticateCallback passwordCallback = new PlainAuthenticateCallback("alicepwd".toCharArray());
+    Callback[] callbacks = new Callback[] {new NameCallback("username", "alice"), passwordCallback};
+
+    for (int i = 0; i < 50_000; i++) {
+      cachedHandler.handle(callbacks);
+    }
+    long threadId = Thread.currentThread().getId();
+    int authentications = 10_000;
+    long before = allocations.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < authentications; i++) {
+      cachedHandler.handle(callbacks);
+    }
+    long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+    cachedHandler.close();
+
+    assertThat(passwordCallback.authenticated(), is(true));
+    // Tolerates the rare allocation, e.g. a new metrics sample when a window rolls over
+    assertThat(allocated / authentications, lessThan(8L));
+  }
+}
@@ -0,0 +1,130 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModuleTest.VAULT_KAFKA_ADMIN_PATH;
+import static com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModuleTest.VAULT_KAFKA_USERS_PATH;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.AppConfigurationEntry;
+import org.apache.kafka.common.security.plain.PlainAuthenticateCallback;
+import org.apache.kafka.common.security.scram.ScramCredential;
+import org.apache.kafka.common.security.scram.ScramCredentialCallback;
+import org.apache.kafka.common.security.scram.internals.ScramFormatter;
+import org.apache.kafka.common.security.scram.internals.ScramMechanism;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class VaultScramCallbackHandlerTest {
+
+  private static final String SASL_MECHANISM = "SCRAM-SHA-256";
+  private VaultService vaultService = mock(VaultService.class);
+  private VaultScramCallbackHandler callbackHandler = new VaultScramCallbackHandler(vaultService);
+  private Map<String, String> options = new HashMap<>();
+  private List<AppConfigurationEntry> jaasConfigEntries;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void init() {
+    options.put(VaultAuthenticationLoginCallbackHandler.ADMIN_PATH, VAULT_KAFKA_ADMIN_PATH);
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_PATH, VAULT_KAFKA_USERS_PATH);
+
+    jaasConfigEntries = new ArrayList<>();
+    jaasConfigEntries.add(new AppConfigurationEntry("com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModule",
+        AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options));
+  }
+
+  @Test
+  public void shouldAnswerWithTheCredentialInVault() throws Exception {
+    String stored = VaultScramCallbackHandler.credential(SASL_MECHANISM, "password", 4096);
+    when(vaultService.getSecret(VAULT_KAFKA_USERS_PATH + "/alice")).thenReturn(Collections.singletonMap("scram-sha-256", stored));
+    callbackHandler.configure(null, SASL_MECHANISM, jaasConfigEntries);
+
+    ScramCredential credential = lookup("alice");
+
+    assertThat(credential, is(notNullValue()));
+    assertThat(credential.iterations(), is(4096));
+    // The client proof computed from the password matches the stored key
+    ScramFormatter formatter = new ScramFormatter(ScramMechanism.SCRAM_SHA_256);
+    byte[] saltedPassword = formatter.saltedPassword("password", credential.salt(), credential.iterations());
+    assertThat(formatter.storedKey(formatter.clientKey(saltedPassword)), is(credential.storedKey()));
+  }
+
+  @Test
+  public void shouldReuseTheParsedCredential() throws Exception {
+    String stored = VaultScramCallbackHandler.credential(SASL_MECHANISM, "password", 4096);
+    when(vaultService.getSecret(VAULT_KAFKA_USERS_PATH + "/alice")).thenReturn(Collections.singletonMap("scram-sha-256", stored));
+    callbackHandler.configure(null, SASL_MECHANISM, jaasConfigEntries);
+
+    assertThat(lookup("alice"), is(sameInstance(lookup("alice"))));
+  }
+
+  @Test
+  public void shouldReadTheCredentialOfTheConfiguredMechanism() throws Exception {
+    Map<String, String> secret = new HashMap<>();
+    secret.put("scram-sha-256", VaultScramCallbackHandler.credential(SASL_MECHANISM, "password", 4096));
+    secret.put("scram-sha-512", VaultScramCallbackHandler.credential("SCRAM-SHA-512", "password", 8192));
+    when(vaultService.getSecret(VAULT_KAFKA_USERS_PATH + "/alice")).thenReturn(secret);
+    callbackHandler.configure(null, "SCRAM-SHA-512", jaasConfigEntries);
+
+    assertThat(lookup("alice").iterations(), is(8192));
+  }
+
+  @Test
+  public void shouldLeaveTheCredentialEmptyForUnknownUsers() throws Exception {
+    when(vaultService.getSecret(VAULT_KAFKA_USERS_PATH + "/bob")).thenReturn(Collections.emptyMap());
+    when(vaultService.getSecret(VAULT_KAFKA_USERS_PATH + "/carol")).thenReturn(Collections.singletonMap("scram-sha-256", "not a credential"));
+    callbackHandler.configure(null, SASL_MECHANISM, jaasConfigEntries);
+
+    assertThat(lookup("bob"), is(nullValue()));
+    assertThat(lookup("carol"), is(nullValue()));
+  }
+
+  @Test
+  public void shouldReadAdminFromTheAdminPath() throws Exception {
+    Map<String, String> secret = new HashMap<>();
+    secret.put("username", "admin");
+    secret.put("scram-sha-256", VaultScramCallbackHandler.credential(SASL_MECHANISM, "admin-secret", 4096));
+    when(vaultService.getSecret(VAULT_KAFKA_ADMIN_PATH)).thenReturn(secret);
+    callbackHandler.configure(null, SASL_MECHANISM, jaasConfigEntries);
+
+    assertThat(lookup("admin"), is(notNullValue()));
+  }
+
+  @Test
+  public void shouldRejectOtherMechanisms() {
+    thrown.expect(IllegalArgumentException.class);
+    callbackHandler.configure(null, "PLAIN", jaasConfigEntries);
+  }
+
+  @Test
+  public void shouldRejectOtherCallbacks() throws Exception {
+    callbackHandler.configure(null, SASL_MECHANISM, jaasConfigEntries);
+    thrown.expect(UnsupportedCallbackException.class);
+    callbackHandler.handle(new Callback[] {new PlainAuthenticateCallback("password".toCharArray())});
+  }
+
+  private ScramCredential lookup(String username) throws Exception {
+    NameCallback nameCallback = new NameCallback("username", username);
+    ScramCredentialCallback credentialCallback = new ScramCredentialCallback();
+    callbackHandler.handle(new Callback[] {nameCallback, credentialCallback});
+    return credentialCallback.scramCredential();
+  }
+}
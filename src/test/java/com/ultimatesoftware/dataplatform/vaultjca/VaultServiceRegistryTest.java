@@ -0,0 +1,93 @@
+package com.ultimatesoftware.dataplatform.vaultjca;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.VaultService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class VaultServiceRegistryTest {
+
+  private final List<VaultService> created = new ArrayList<>();
+  private final VaultServiceRegistry registry = new VaultServiceRegistry(options -> {
+    VaultService vaultService = mock(VaultService.class);
+    created.add(vaultService);
+    return vaultService;
+  }, Duration.ZERO);
+
+  @Test
+  public void shouldShareServiceForSameOptions() {
+    SharedVaultService first = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+    SharedVaultService second = registry.acquire(options("secret/kafka/users", "sasl_ssl"));
+
+    assertThat(created.size(), is(1));
+    assertThat(first.delegate(), sameInstance(second.delegate()));
+  }
+
+  @Test
+  public void shouldCreateServicePerConfiguration() {
+    SharedVaultService first = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+    SharedVaultService second = registry.acquire(options("secret/other/users", "sasl_plaintext"));
+
+    assertThat(registry.size(), is(2));
+    assertThat(first.delegate(), not(sameInstance(second.delegate())));
+  }
+
+  @Test
+  public void shouldCloseServiceWhenLastReferenceIsReleased() {
+    SharedVaultService first = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+    SharedVaultService second = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+
+    first.close();
+    first.close();
+    verify(created.get(0), never()).close();
+
+    second.close();
+    verify(created.get(0), times(1)).close();
+    assertThat(registry.size(), is(0));
+  }
+
+  @Test
+  public void shouldKeepServiceDuringLinger() {
+    VaultServiceRegistry lingering = new VaultServiceRegistry(options -> {
+      VaultService vaultService = mock(VaultService.class);
+      created.add(vaultService);
+      return vaultService;
+    }, Duration.ofMinutes(1));
+
+    lingering.acquire(options("secret/kafka/users", "sasl_plaintext")).close();
+    SharedVaultService again = lingering.acquire(options("secret/kafka/users", "sasl_plaintext"));
+
+    assertThat(created.size(), is(1));
+    verify(created.get(0), never()).close();
+    assertThat(again.delegate(), sameInstance(created.get(0)));
+  }
+
+  @Test
+  public void shouldWarmUpOnce() {
+    SharedVaultService first = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+    SharedVaultService second = registry.acquire(options("secret/kafka/users", "sasl_plaintext"));
+
+    assertThat(first.claimWarmUp(), is(true));
+    assertThat(second.claimWarmUp(), is(false));
+  }
+
+  private static Map<String, ?> options(String usersPath, String listener) {
+    Map<String, Object> options = new HashMap<>();
+    options.put(VaultAuthenticationLoginCallbackHandler.USERS_PATH, usersPath);
+    options.put(VaultLoginModule.ADMIN_PATH, "secret/kafka/admin");
+    options.put(VaultAuthenticationLoginCallbackHandler.LISTENER_NAME, listener);
+    return options;
+  }
+}
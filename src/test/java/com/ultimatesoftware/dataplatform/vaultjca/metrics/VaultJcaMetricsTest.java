@@ -0,0 +1,130 @@
+package com.ultimatesoftware.dataplatform.vaultjca.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ImmutableMap;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics.AuthOutcome;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+public class VaultJcaMetricsTest {
+
+  private Metrics registry = new Metrics();
+  private VaultJcaMetrics metrics = new VaultJcaMetrics(registry);
+
+  @After
+  public void close() {
+    registry.close();
+  }
+
+  @Test
+  public void shouldRecordAuthenticationsByListenerAndOutcome() {
+    metrics.recordAuthentication("sasl_plaintext", AuthOutcome.SUCCESS, TimeUnit.MILLISECONDS.toNanos(4));
+    metrics.recordAuthentication("sasl_plaintext", AuthOutcome.SUCCESS, TimeUnit.MILLISECONDS.toNanos(6));
+    metrics.recordAuthentication("sasl_plaintext", AuthOutcome.BAD_PASSWORD, TimeUnit.MILLISECONDS.toNanos(1));
+
+    Map<String, String> success = ImmutableMap.of("listener", "sasl_plaintext", "outcome", "success");
+    assertThat(value("auth-total", VaultJcaMetrics.AUTH_GROUP, success), is(2.0));
+    assertThat((Double) value("auth-latency-avg", VaultJcaMetrics.AUTH_GROUP, success), closeTo(5.0, 0.01));
+    assertThat((Double) value("auth-latency-max", VaultJcaMetrics.AUTH_GROUP, success), closeTo(6.0, 0.01));
+    assertThat(value("auth-total", VaultJcaMetrics.AUTH_GROUP, ImmutableMap.of("listener", "sasl_plaintext", "outcome", "bad-password")), is(1.0));
+    assertThat(value("auth-total", VaultJcaMetrics.AUTH_GROUP, ImmutableMap.of("listener", "sasl_plaintext", "outcome", "unknown-user")), is(0.0));
+  }
+
+  @Test
+  public void shouldResolvePercentilesOfFastCallsToTheMillisecond() {
+    for (int i = 0; i < 100; i++) {
+      metrics.recordAuthentication("sasl_plaintext", AuthOutcome.SUCCESS, TimeUnit.MICROSECONDS.toNanos(1_000 + 80 * i));
+    }
+
+    Map<String, String> success = ImmutableMap.of("listener", "sasl_plaintext", "outcome", "success");
+    assertThat((Double) value("auth-latency-p50", VaultJcaMetrics.AUTH_GROUP, success), closeTo(5.0, 0.5));
+    assertThat((Double) value("auth-latency-p95", VaultJcaMetrics.AUTH_GROUP, success), closeTo(8.6, 0.5));
+    assertThat((Double) value("auth-latency-p99", VaultJcaMetrics.AUTH_GROUP, success), closeTo(8.9, 0.5));
+  }
+
+  @Test
+  public void shouldRecordBlockedTimeByListener() {
+    metrics.recordVaultBlocked("sasl_plaintext", TimeUnit.MILLISECONDS.toNanos(3));
+    metrics.recordVaultBlocked("sasl_plaintext", TimeUnit.MILLISECONDS.toNanos(5));
+    metrics.recordVaultBlocked("sasl_ssl", TimeUnit.MILLISECONDS.toNanos(2));
+
+    assertThat((Double) value("vault-blocked-time-total", VaultJcaMetrics.AUTH_GROUP, Collections.singletonMap("listener", "sasl_plaintext")),
+        closeTo(8.0, 0.01));
+    assertThat((Double) value("vault-blocked-time-total", VaultJcaMetrics.AUTH_GROUP, Collections.singletonMap("listener", "sasl_ssl")),
+        closeTo(2.0, 0.01));
+  }
+
+  @Test
+  public void shouldRecordVaultRequestsAndErrorsByStatus() {
+    metrics.vaultRequestStarted();
+    assertThat(value("requests-in-flight", VaultJcaMetrics.VAULT_GROUP, Collections.emptyMap()), is(1));
+    metrics.recordVaultRequest(TimeUnit.MILLISECONDS.toNanos(10), -1);
+    metrics.vaultRequestStarted();
+    metrics.recordVaultRequest(TimeUnit.MILLISECONDS.toNanos(20), 503);
+    metrics.vaultRequestStarted();
+    metrics.recordVaultRequest(TimeUnit.MILLISECONDS.toNanos(30), 0);
+
+    assertThat(value("requests-in-flight", VaultJcaMetrics.VAULT_GROUP, Collections.emptyMap()), is(0));
+    assertThat(value("request-total", VaultJcaMetrics.VAULT_GROUP, Collections.emptyMap()), is(3.0));
+    assertThat((Double) value("request-latency-max", VaultJcaMetrics.VAULT_GROUP, Collections.emptyMap()), closeTo(30.0, 0.01));
+    assertThat(value("error-total", VaultJcaMetrics.VAULT_GROUP, Collections.singletonMap("status", "503")), is(1.0));
+    assertThat(value("error-total", VaultJcaMetrics.VAULT_GROUP, Collections.singletonMap("status", "none")), is(1.0));
+  }
+
+  @Test
+  public void shouldRecordCacheStats() {
+    Cache<String, String> cache = Caffeine.newBuilder()
+        .executor(Runnable::run)
+        .maximumSize(1)
+        .recordStats(metrics::cacheStatsCounter)
+        .build();
+    cache.get("alice", key -> "alicepwd");
+    cache.getIfPresent("alice");
+    cache.get("bob", key -> "bobpwd");
+    cache.cleanUp();
+
+    assertThat(value("hit-total", VaultJcaMetrics.CACHE_GROUP, Collections.emptyMap()), is(1.0));
+    assertThat(value("miss-total", VaultJcaMetrics.CACHE_GROUP, Collections.emptyMap()), is(2.0));
+    assertThat(value("load-success-total", VaultJcaMetrics.CACHE_GROUP, Collections.emptyMap()), is(2.0));
+    assertThat(value("eviction-total", VaultJcaMetrics.CACHE_GROUP, Collections.emptyMap()), is(1.0));
+    assertThat(cache.stats().hitCount(), is(1L));
+  }
+
+  @Test
+  public void shouldRecordSessions() {
+    metrics.recordSessionHit();
+    metrics.recordSessionHit();
+    metrics.recordSessionMiss();
+    metrics.recordSessionInvalidation();
+
+    assertThat(value("hit-total", VaultJcaMetrics.SESSION_GROUP, Collections.emptyMap()), is(2.0));
+    assertThat(value("miss-total", VaultJcaMetrics.SESSION_GROUP, Collections.emptyMap()), is(1.0));
+    assertThat(value("invalidation-total", VaultJcaMetrics.SESSION_GROUP, Collections.emptyMap()), is(1.0));
+  }
+
+  @Test
+  public void shouldRecordRouteLookupsByRoute() {
+    metrics.recordRouteLookup("tenant-a-", true, TimeUnit.MILLISECONDS.toNanos(2));
+    metrics.recordRouteLookup("tenant-a-", false, TimeUnit.MILLISECONDS.toNanos(4));
+    metrics.recordRouteLookup("default", true, TimeUnit.MILLISECONDS.toNanos(1));
+
+    Map<String, String> tenant = Collections.singletonMap("route", "tenant-a-");
+    assertThat(value("lookup-total", VaultJcaMetrics.ROUTE_GROUP, tenant), is(2.0));
+    assertThat((Double) value("lookup-latency-max", VaultJcaMetrics.ROUTE_GROUP, tenant), closeTo(4.0, 0.01));
+    assertThat(value("not-found-total", VaultJcaMetrics.ROUTE_GROUP, tenant), is(1.0));
+    assertThat(value("not-found-total", VaultJcaMetrics.ROUTE_GROUP, Collections.singletonMap("route", "default")), is(0.0));
+  }
+
+  private Object value(String name, String group, Map<String, String> tags) {
+    return registry.metric(registry.metricName(name, group, tags)).metricValue();
+  }
+}
@@ -0,0 +1,98 @@
+package com.ultimatesoftware.dataplatform.vaultjca.password;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Duration;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+import org.junit.Test;
+
+public class PasswordVerifierTest {
+
+  private static final String ALICE = "alice";
+  private static final char[] PASSWORD = "alicepwd".toCharArray();
+  private static final char[] WRONG_PASSWORD = "malloryspwd".toCharArray();
+  private static final byte[] SALT = "0123456789abcdef".getBytes();
+  private PasswordVerifier passwordVerifier = new PasswordVerifier(Duration.ofMinutes(5), 100);
+
+  @Test
+  public void shouldVerifyPlainPasswords() {
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, "alicepwd"), is(true));
+    assertThat(passwordVerifier.verify(ALICE, WRONG_PASSWORD, "alicepwd"), is(false));
+    assertThat(passwordVerifier.verify(ALICE, "alicepw".toCharArray(), "alicepwd"), is(false));
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, ""), is(false));
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, null), is(false));
+  }
+
+  @Test
+  public void shouldVerifyBcryptHashes() {
+    String stored = OpenBSDBCrypt.generate("2b", PASSWORD, SALT, 4);
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, stored), is(true));
+    assertThat(passwordVerifier.verify(ALICE, WRONG_PASSWORD, stored), is(false));
+  }
+
+  @Test
+  public void shouldVerifyArgon2Hashes() {
+    Argon2BytesGenerator generator = new Argon2BytesGenerator();
+    generator.init(new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+        .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+        .withMemoryAsKB(1024)
+        .withIterations(2)
+        .withParallelism(1)
+        .withSalt(SALT)
+        .build());
+    byte[] hash = new byte[32];
+    generator.generateBytes(PASSWORD, hash);
+    Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+    String stored = String.format("$argon2id$v=19$m=1024,t=2,p=1$%s$%s", encoder.encodeToString(SALT), encoder.encodeToString(hash));
+
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, stored), is(true));
+    assertThat(passwordVerifier.verify(ALICE, WRONG_PASSWORD, stored), is(false));
+  }
+
+  @Test
+  public void shouldVerifyPbkdf2Hashes() throws Exception {
+    byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(new PBEKeySpec(PASSWORD, SALT, 1000, 256)).getEncoded();
+    Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+    String stored = String.format("$pbkdf2-sha256$1000$%s$%s",
+        encoder.encodeToString(SALT).replace('+', '.'), encoder.encodeToString(hash).replace('+', '.'));
+
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, stored), is(true));
+    assertThat(passwordVerifier.verify(ALICE, WRONG_PASSWORD, stored), is(false));
+  }
+
+  @Test
+  public void shouldRememberSuccessfulChecksOfTheSameSecretOnly() {
+    String stored = OpenBSDBCrypt.generate("2b", PASSWORD, SALT, 4);
+    passwordVerifier.verify(ALICE, PASSWORD, stored);
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, stored), is(true));
+    assertThat(passwordVerifier.getMemoHitCount(), is(1L));
+
+    assertThat(passwordVerifier.verify(ALICE, WRONG_PASSWORD, stored), is(false));
+    String rotated = OpenBSDBCrypt.generate("2b", "newpwd".toCharArray(), SALT, 4);
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, rotated), is(false));
+    assertThat(passwordVerifier.verify("bob", PASSWORD, stored), is(true));
+    assertThat(passwordVerifier.getMemoHitCount(), is(1L));
+  }
+
+  @Test
+  public void shouldVerifyPlainPasswordsStartingWithDollar() {
+    assertThat(passwordVerifier.verify(ALICE, "$ecret".toCharArray(), "$ecret"), is(true));
+    assertThat(passwordVerifier.verify(ALICE, "$2b$not-a-hash".toCharArray(), "$2b$not-a-hash"), is(true));
+    assertThat(passwordVerifier.verify(ALICE, "$argon2id$broken".toCharArray(), "$argon2id$broken"), is(true));
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, "$ecret"), is(false));
+    assertThat(PasswordVerifier.isHash(OpenBSDBCrypt.generate("2b", PASSWORD, SALT, 4)), is(true));
+    assertThat(PasswordVerifier.isHash("$ecret"), is(false));
+  }
+
+  @Test
+  public void shouldRejectMalformedHashes() {
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, "$argon2id$broken"), is(false));
+    assertThat(passwordVerifier.verify(ALICE, PASSWORD, "$unknown$format"), is(false));
+  }
+}
@@ -1,8 +1,14 @@
 package com.ultimatesoftware.dataplatform.vaultjca.services;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -10,8 +16,17 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.github.benmanes.caffeine.cache.Ticker;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
 
 public class CacheDecoratorVaultServiceTest {
@@ -22,6 +37,9 @@ public class CacheDecoratorVaultServiceTest {
   private String VALUE = "secret";
   private ImmutableMap<String, String> entry = ImmutableMap.of(KEY, VALUE);
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   @Test
   public void shouldCacheValuesForSpecificPath() {
     String path = "some/vault/path";
@@ -37,10 +55,227 @@ public class CacheDecoratorVaultServiceTest {
     String path = "some/other/path";
     cacheDecoratorVaultService.writeSecret(path, entry);
     verify(vaultService).writeSecret(eq(path), eq(entry));
-    assertThat(cacheDecoratorVaultService.cache.size(), greaterThan(0L));
+    assertThat(cacheDecoratorVaultService.cache.estimatedSize(), greaterThan(0L));
     cacheDecoratorVaultService.getSecret(path);
     verify(vaultService, never()).getSecret(eq(path));
   }
 
-}
+  @Test
+  public void shouldReloadStaleEntryInRefreshAheadMode() {
+    String path = "some/refresh/path";
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService refreshAheadCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().refreshAhead(true).staleGrace(Duration.ofMinutes(2)).build(), ticker, Runnable::run);
+    when(vaultService.getSecret(path)).thenReturn(entry, ImmutableMap.of(KEY, "rotated"));
+
+    assertThat(refreshAheadCache.getSecret(path), hasEntry(KEY, VALUE));
+    ticker.advance(3, TimeUnit.MINUTES);
+    refreshAheadCache.getSecret(path);
+    assertThat(refreshAheadCache.getSecret(path), hasEntry(KEY, "rotated"));
+    verify(vaultService, times(2)).getSecret(eq(path));
+  }
+
+  @Test
+  public void shouldServeLastGoodValueWhileVaultFailsWithinGracePeriod() {
+    String path = "some/failing/path";
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService refreshAheadCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().refreshAhead(true).staleGrace(Duration.ofMinutes(5)).build(), ticker, Runnable::run);
+    when(vaultService.getSecret(path)).thenReturn(entry).thenThrow(new RuntimeException("vault is down"));
+
+    refreshAheadCache.getSecret(path);
+    ticker.advance(4, TimeUnit.MINUTES);
+    assertThat(refreshAheadCache.getSecret(path), hasEntry(KEY, VALUE));
+    ticker.advance(2, TimeUnit.MINUTES);
+    assertThat(refreshAheadCache.getSecret(path), hasEntry(KEY, VALUE));
+    ticker.advance(2, TimeUnit.MINUTES);
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage(containsString("vault is down"));
+    refreshAheadCache.getSecret(path);
+  }
+
+  @Test
+  public void shouldReloadRotatedSecretAfterWriteExpiryEvenWhenHot() {
+    String path = "some/hot/path";
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService writeExpiryCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).build(), ticker, Runnable::run);
+    when(vaultService.getSecret(path)).thenReturn(entry, ImmutableMap.of(KEY, "rotated"));
+
+    for (int i = 0; i < 4; i++) {
+      assertThat(writeExpiryCache.getSecret(path), hasEntry(KEY, VALUE));
+      ticker.advance(30, TimeUnit.SECONDS);
+    }
+    assertThat(writeExpiryCache.getSecret(path), hasEntry(KEY, "rotated"));
+  }
+
+  @Test
+  public void shouldNeverEvictPinnedPaths() {
+    String adminPath = "secret/kafka/admin";
+    CacheDecoratorVaultService boundedCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().maximumSize(10).pin(adminPath).build(), Ticker.systemTicker(), Runnable::run);
+    when(vaultService.getSecret(anyString())).thenReturn(entry);
+
+    boundedCache.getSecret(adminPath);
+    for (int i = 0; i < 1_000; i++) {
+      boundedCache.getSecret("secret/kafka/users/user-" + i);
+    }
+    boundedCache.cache.cleanUp();
+
+    assertThat(boundedCache.cache.estimatedSize(), lessThanOrEqualTo(11L));
+    boundedCache.getSecret(adminPath);
+    verify(vaultService, times(1)).getSecret(eq(adminPath));
+  }
+
+  @Test
+  public void shouldKeepMissingSecretsInTheNegativeCacheOnly() {
+    String path = "some/unknown/user";
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService negativeCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().negativeTtl(Duration.ofSeconds(30)).build(), ticker, Runnable::run);
+    when(vaultService.getSecret(path)).thenReturn(Collections.emptyMap());
+
+    assertThat(negativeCache.getSecret(path).isEmpty(), is(true));
+    assertThat(negativeCache.getSecret(path).isEmpty(), is(true));
+    assertThat(negativeCache.cache.estimatedSize(), is(0L));
+    assertThat(negativeCache.getNegativeHitCount(), is(1L));
+    verify(vaultService, times(1)).getSecret(eq(path));
+
+    ticker.advance(31, TimeUnit.SECONDS);
+    negativeCache.getSecret(path);
+    verify(vaultService, times(2)).getSecret(eq(path));
+  }
+
+  @Test
+  public void shouldForgetNegativeEntryWhenSecretIsWritten() {
+    String path = "some/new/user";
+    when(vaultService.getSecret(path)).thenReturn(Collections.emptyMap());
+    cacheDecoratorVaultService.getSecret(path);
+
+    cacheDecoratorVaultService.writeSecret(path, entry);
+    assertThat(cacheDecoratorVaultService.getSecret(path), hasEntry(KEY, VALUE));
+  }
+
+  @Test
+  public void shouldNotifyChangedPaths() {
+    String path = "some/rotated/path";
+    List<String> changed = new ArrayList<>();
+    CacheDecoratorVaultService notifyingCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().build(), Ticker.systemTicker(), Runnable::run);
+    notifyingCache.addChangeListener(changed::add);
+    when(vaultService.getSecret(path)).thenReturn(entry, entry, ImmutableMap.of(KEY, "rotated"), Collections.emptyMap());
+
+    notifyingCache.getSecret(path);
+    notifyingCache.cache.refresh(path);
+    assertThat(changed.isEmpty(), is(true));
+    notifyingCache.cache.refresh(path);
+    assertThat(changed, contains(path));
+    notifyingCache.cache.refresh(path);
+    assertThat(changed, contains(path, path));
+    notifyingCache.writeSecret("some/written/path", entry);
+    assertThat(changed, contains(path, path, "some/written/path"));
+  }
+
+  @Test
+  public void shouldNotifyExpiredAndEvictedEntries() {
+    FakeTicker ticker = new FakeTicker();
+    List<String> changed = new ArrayList<>();
+    CacheDecoratorVaultService notifyingCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).maximumSize(1).build(), ticker, Runnable::run);
+    notifyingCache.addChangeListener(changed::add);
+    when(vaultService.getSecret(anyString())).thenReturn(entry);
+
+    notifyingCache.getSecret("expiring/path");
+    ticker.advance(3, TimeUnit.MINUTES);
+    notifyingCache.cache.cleanUp();
+    assertThat(changed, contains("expiring/path"));
+
+    notifyingCache.getSecret("first/path");
+    notifyingCache.getSecret("second/path");
+    notifyingCache.cache.cleanUp();
+    assertThat(changed, hasSize(2));
+  }
+
+  @Test
+  public void shouldExpireEntriesAfterTheirVaultTtl() {
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService leaseCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).build(), ticker, Runnable::run);
+    when(vaultService.getSecret("short/lived")).thenReturn(LeasedSecret.of(entry, Duration.ofSeconds(30)));
+    when(vaultService.getSecret("long/lived")).thenReturn(LeasedSecret.of(entry, Duration.ofHours(1)));
+    when(vaultService.getSecret("no/lease")).thenReturn(entry);
+
+    for (String path : new String[] {"short/lived", "long/lived", "no/lease"}) {
+      assertThat(leaseCache.getSecret(path), hasEntry(KEY, VALUE));
+    }
+    ticker.advance(31, TimeUnit.SECONDS);
+    for (String path : new String[] {"short/lived", "long/lived", "no/lease"}) {
+      leaseCache.getSecret(path);
+    }
+    verify(vaultService, times(2)).getSecret(eq("short/lived"));
+    verify(vaultService, times(1)).getSecret(eq("long/lived"));
+    verify(vaultService, times(1)).getSecret(eq("no/lease"));
+
+    // The long lease is capped by the write expiry
+    ticker.advance(90, TimeUnit.SECONDS);
+    leaseCache.getSecret("long/lived");
+    leaseCache.getSecret("no/lease");
+    verify(vaultService, times(2)).getSecret(eq("long/lived"));
+    verify(vaultService, times(2)).getSecret(eq("no/lease"));
+  }
 
+  @Test
+  public void shouldSpreadExpiryWithJitter() {
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService jitteredCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).ttlJitter(0.5).build(), ticker, Runnable::run);
+    when(vaultService.getSecret(anyString())).thenReturn(entry);
+    for (int i = 0; i < 200; i++) {
+      jitteredCache.getSecret("secret/kafka/users/user-" + i);
+    }
+
+    ticker.advance(90, TimeUnit.SECONDS);
+    jitteredCache.cache.cleanUp();
+    long left = jitteredCache.cache.estimatedSize();
+    assertThat(left, greaterThan(0L));
+    assertThat(left, lessThanOrEqualTo(190L));
+
+    ticker.advance(31, TimeUnit.SECONDS);
+    jitteredCache.cache.cleanUp();
+    assertThat(jitteredCache.cache.estimatedSize(), is(0L));
+  }
+
+  @Test
+  public void shouldNotExtendTheWriteDeadlineOnAccess() {
+    String path = "some/read/path";
+    FakeTicker ticker = new FakeTicker();
+    CacheDecoratorVaultService accessCache = new CacheDecoratorVaultService(vaultService,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).expireAfterAccess(Duration.ofMinutes(1)).build(),
+        ticker, Runnable::run);
+    when(vaultService.getSecret(path)).thenReturn(LeasedSecret.of(entry, Duration.ofSeconds(90)));
+
+    // Read more often than the access expiry, reloaded when the lease ends
+    for (int i = 0; i < 4; i++) {
+      accessCache.getSecret(path);
+      ticker.advance(40, TimeUnit.SECONDS);
+    }
+    verify(vaultService, times(2)).getSecret(eq(path));
+
+    ticker.advance(61, TimeUnit.SECONDS);
+    accessCache.getSecret(path);
+    verify(vaultService, times(3)).getSecret(eq(path));
+  }
+
+  static class FakeTicker implements Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos.addAndGet(unit.toNanos(time));
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class CacheSettingsTest {
+
+  @Test
+  public void shouldReadSettingsFromJaasOptions() {
+    Map<String, String> options = new HashMap<>();
+    options.put(CacheSettings.CACHE_MAX_SIZE, "5000");
+    options.put(CacheSettings.CACHE_EXPIRE_AFTER_WRITE_SEC, "300");
+    options.put(CacheSettings.CACHE_MAX_TTL_SEC, "3600");
+    options.put(CacheSettings.CACHE_TTL_JITTER, "0.2");
+    options.put(CacheSettings.CACHE_EXPIRE_AFTER_ACCESS_SEC, "60");
+    options.put(CacheSettings.CACHE_REFRESH_AHEAD, "true");
+    options.put(CacheSettings.CACHE_STALE_GRACE_SEC, "600");
+    options.put(CacheSettings.CACHE_RECONCILE_INTERVAL_SEC, "5");
+    options.put(CacheSettings.CACHE_RECONCILE_BUDGET, "20");
+    options.put(CacheSettings.CACHE_EVENTS, "true");
+    options.put(CacheSettings.CACHE_EVENTS_TTL_SEC, "86400");
+    options.put(CacheSettings.USERS_PATH, "secret/kafka/users");
+    options.put(CacheSettings.ADMIN_PATH, "secret/kafka/admin");
+
+    CacheSettings settings = CacheSettings.fromOptions(options);
+
+    assertThat(settings.getMaximumSize(), is(5000L));
+    assertThat(settings.getExpireAfterWrite(), is(Duration.ofMinutes(5)));
+    assertThat(settings.getMaxSecretTtl(), is(Duration.ofHours(1)));
+    assertThat(settings.getTtlJitter(), is(0.2));
+    assertThat(settings.getExpireAfterAccess(), is(Duration.ofMinutes(1)));
+    assertThat(settings.isRefreshAhead(), is(true));
+    assertThat(settings.getStaleGrace(), is(Duration.ofMinutes(10)));
+    assertThat(settings.getPinnedPaths(), contains("secret/kafka/admin"));
+    assertThat(settings.getReconcileInterval(), is(Duration.ofSeconds(5)));
+    assertThat(settings.getReconcileBudget(), is(20));
+    assertThat(settings.isEvents(), is(true));
+    assertThat(settings.getEventsTtl(), is(Duration.ofDays(1)));
+    assertThat(settings.getPreloadPaths(), contains("secret/kafka/users/"));
+  }
+
+  @Test
+  public void shouldUseDefaultsWithoutOptions() {
+    CacheSettings settings = CacheSettings.fromOptions(Collections.emptyMap());
+
+    assertThat(settings.getMaximumSize(), is(10_000L));
+    assertThat(settings.getExpireAfterAccess(), is(nullValue()));
+    assertThat(settings.getStaleGrace(), is(settings.getExpireAfterWrite()));
+    assertThat(settings.getMaxSecretTtl(), is(settings.getExpireAfterWrite()));
+    assertThat(settings.getTtlJitter(), is(0.0));
+    assertThat(settings.getReconcileInterval(), is(nullValue()));
+    assertThat(settings.isEvents(), is(false));
+    assertThat(settings.getEventsTtl(), is(settings.getExpireAfterWrite()));
+  }
+}
@@ -0,0 +1,94 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class CacheWarmerTest {
+
+  private static final String USERS_PATH = "secret/kafka/users";
+  private static final String ADMIN_PATH = "secret/kafka/admin";
+  private VaultService vaultService = mock(VaultService.class);
+  private CacheDecoratorVaultService cacheDecoratorVaultService = new CacheDecoratorVaultService(vaultService);
+  private Metrics registry = new Metrics();
+  private VaultJcaMetrics metrics = new VaultJcaMetrics(registry);
+
+  @After
+  public void close() {
+    registry.close();
+  }
+
+  @Test
+  public void shouldLoadEveryUserAndExtraPathIntoTheCache() {
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice", "bob", "nested/"));
+    when(vaultService.getSecret(anyString())).thenReturn(ImmutableMap.of("password", "pwd"));
+
+    CacheWarmer.WarmUpResult result = new CacheWarmer(cacheDecoratorVaultService, 2, 5_000, metrics).warmUp(USERS_PATH, ADMIN_PATH);
+
+    assertThat(result.isCompleted(), is(true));
+    assertThat(value("warmup-total"), is(4));
+    assertThat(value("warmup-loaded"), is(3));
+    assertThat(value("warmup-completed"), is(1));
+    assertThat(result.getLoaded(), is(3));
+    assertThat(result.getFailed(), is(0));
+    verify(vaultService, never()).getSecret(eq(USERS_PATH + "/nested/"));
+
+    cacheDecoratorVaultService.getSecret(USERS_PATH + "/alice");
+    cacheDecoratorVaultService.getSecret(ADMIN_PATH);
+    verify(vaultService, times(1)).getSecret(eq(USERS_PATH + "/alice"));
+    verify(vaultService, times(1)).getSecret(eq(ADMIN_PATH));
+  }
+
+  @Test
+  public void shouldCountFailuresAndKeepGoing() {
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice", "bob"));
+    when(vaultService.getSecret(USERS_PATH + "/alice")).thenThrow(new RuntimeException("boom"));
+    when(vaultService.getSecret(USERS_PATH + "/bob")).thenReturn(ImmutableMap.of("password", "pwd"));
+
+    CacheWarmer.WarmUpResult result = new CacheWarmer(cacheDecoratorVaultService, 1, 5_000, metrics).warmUp(USERS_PATH);
+
+    assertThat(result.getLoaded(), is(1));
+    assertThat(result.getFailed(), is(1));
+    assertThat(value("warmup-failed"), is(1));
+  }
+
+  @Test
+  public void shouldGiveUpWhenDeadlineIsReached() {
+    CountDownLatch release = new CountDownLatch(1);
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice", "bob"));
+    when(vaultService.getSecret(anyString())).thenAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return ImmutableMap.of("password", "pwd");
+    });
+
+    CacheWarmer.WarmUpResult result;
+    try {
+      result = new CacheWarmer(cacheDecoratorVaultService, 1, 100, metrics).warmUp(USERS_PATH);
+    } finally {
+      release.countDown();
+    }
+
+    assertThat(result.isCompleted(), is(false));
+    assertThat(result.getLoaded(), is(0));
+    assertThat(value("warmup-completed"), is(0));
+  }
+
+  private Object value(String name) {
+    return registry.metric(registry.metricName(name, "vault-jca-warmup-metrics")).metricValue();
+  }
+}
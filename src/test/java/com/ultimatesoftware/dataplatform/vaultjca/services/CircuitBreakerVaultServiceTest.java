@@ -0,0 +1,179 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultServiceTest.FakeTicker;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CircuitBreakerVaultService.State;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class CircuitBreakerVaultServiceTest {
+
+  private static final String PATH = "secret/kafka/users/alice";
+  private VaultService vaultService = mock(VaultService.class);
+  private FakeTicker ticker = new FakeTicker();
+  private CircuitBreakerSettings settings = CircuitBreakerSettings.builder()
+      .window(4)
+      .failureRatePercent(50)
+      .slowCallThreshold(Duration.ofMillis(500))
+      .openDuration(Duration.ofSeconds(10))
+      .limits(1, 10, 20)
+      .build();
+  private CircuitBreakerVaultService breaker = new CircuitBreakerVaultService(vaultService, settings, ticker);
+  private Map<String, String> entry = ImmutableMap.of("password", "alicepwd");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void shouldStayClosedWhileVaultIsHealthy() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry);
+    for (int i = 0; i < 10; i++) {
+      assertThat(breaker.getSecret(PATH), hasEntry("password", "alicepwd"));
+    }
+    assertThat(breaker.getState(), is(State.CLOSED));
+    assertThat(breaker.getLimit(), is(10));
+    assertThat(breaker.getInFlight(), is(0));
+  }
+
+  @Test
+  public void shouldOpenOnErrorRateAndServeLastKnownSecret() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenThrow(new RuntimeException("vault is down"));
+    breaker.getSecret(PATH);
+    failCalls(3);
+
+    assertThat(breaker.getState(), is(State.OPEN));
+    assertThat(breaker.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(breaker.getFallbackCount(), is(1L));
+    verify(vaultService, times(4)).getSecret(PATH);
+    assertThat(breaker.getLimit(), lessThan(10));
+  }
+
+  @Test
+  public void shouldNotServeLastKnownSecretWhenReadingFromVault() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenThrow(new RuntimeException("vault is down"));
+    breaker.getSecret(PATH);
+    failCalls(3);
+
+    thrown.expectMessage("circuit breaker is OPEN");
+    breaker.getSecretFromVault(PATH);
+  }
+
+  @Test
+  public void shouldNotServeDeletedUsersWhileOpen() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenReturn(Collections.emptyMap())
+        .thenThrow(new RuntimeException("vault is down"));
+    breaker.getSecret(PATH);
+    breaker.getSecret(PATH);
+    failCalls(2);
+
+    assertThat(breaker.getState(), is(State.OPEN));
+    thrown.expectMessage("circuit breaker is OPEN");
+    breaker.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldShareLastKnownSecretsWithTheLayerBelow() {
+    FakeTicker storeTicker = new FakeTicker();
+    LastKnownSecrets lastKnownSecrets = new LastKnownSecrets(10, Duration.ofMinutes(10), storeTicker);
+    CircuitBreakerVaultService shared = new CircuitBreakerVaultService(vaultService, settings, lastKnownSecrets, ticker);
+    lastKnownSecrets.remember(PATH, entry);
+    // The layer below answers with the secret it remembers, which must not renew its age
+    when(vaultService.getSecret(PATH)).thenAnswer(invocation -> lastKnownSecrets.get(PATH))
+        .thenThrow(new RuntimeException("vault is down"));
+    storeTicker.advance(6, TimeUnit.MINUTES);
+    shared.getSecret(PATH);
+    failCalls(shared, 3);
+    assertThat(shared.getState(), is(State.OPEN));
+    storeTicker.advance(6, TimeUnit.MINUTES);
+
+    thrown.expectMessage("circuit breaker is OPEN");
+    shared.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldShedCallsWithoutLastKnownSecretWhileOpen() {
+    when(vaultService.getSecret(PATH)).thenThrow(new RuntimeException("vault is down"));
+    failCalls(4);
+
+    thrown.expectMessage("circuit breaker is OPEN");
+    try {
+      breaker.getSecret(PATH);
+    } finally {
+      assertThat(breaker.getShedCount(), is(1L));
+      verify(vaultService, times(4)).getSecret(PATH);
+    }
+  }
+
+  @Test
+  public void shouldOpenOnSlowCalls() {
+    when(vaultService.getSecret(PATH)).thenAnswer(invocation -> {
+      ticker.advance(1, TimeUnit.SECONDS);
+      return entry;
+    });
+    for (int i = 0; i < 4; i++) {
+      breaker.getSecret(PATH);
+    }
+    assertThat(breaker.getState(), is(State.OPEN));
+  }
+
+  @Test
+  public void shouldCloseAfterSuccessfulProbe() {
+    when(vaultService.getSecret(PATH)).thenThrow(new RuntimeException("vault is down"));
+    failCalls(4);
+    ticker.advance(10, TimeUnit.SECONDS);
+
+    doReturn(entry).when(vaultService).getSecret(PATH);
+    breaker.getSecret(PATH);
+    assertThat(breaker.getState(), is(State.CLOSED));
+  }
+
+  @Test
+  public void shouldReopenAfterFailedProbe() {
+    when(vaultService.getSecret(PATH)).thenThrow(new RuntimeException("vault is down"));
+    failCalls(4);
+    ticker.advance(10, TimeUnit.SECONDS);
+
+    failCalls(1);
+    assertThat(breaker.getState(), is(State.OPEN));
+    verify(vaultService, times(5)).getSecret(PATH);
+  }
+
+  @Test
+  public void shouldRejectCallsAboveConcurrencyLimit() {
+    CircuitBreakerVaultService limited = new CircuitBreakerVaultService(vaultService,
+        CircuitBreakerSettings.builder().limits(1, 1, 1).build(), ticker);
+    when(vaultService.listSecrets("secret/kafka/users")).thenAnswer(invocation -> limited.getSecret(PATH));
+
+    thrown.expectMessage("concurrency limit of 1 reached");
+    limited.listSecrets("secret/kafka/users");
+  }
+
+  private void failCalls(int count) {
+    failCalls(breaker, count);
+  }
+
+  private static void failCalls(CircuitBreakerVaultService breaker, int count) {
+    for (int i = 0; i < count; i++) {
+      try {
+        breaker.getSecret(PATH);
+      } catch (RuntimeException e) {
+        // expected
+      }
+    }
+  }
+}
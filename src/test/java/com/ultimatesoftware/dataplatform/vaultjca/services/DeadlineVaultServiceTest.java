@@ -0,0 +1,172 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultServiceTest.FakeTicker;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class DeadlineVaultServiceTest {
+
+  private static final String PATH = "secret/kafka/users/alice";
+  private VaultService vaultService = mock(VaultService.class);
+  private DeadlineVaultService deadlineVaultService = new DeadlineVaultService(vaultService, Duration.ofMillis(100), 1, 1);
+  private CountDownLatch release = new CountDownLatch(1);
+  private Map<String, String> entry = ImmutableMap.of("password", "alicepwd");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @After
+  public void close() {
+    release.countDown();
+    deadlineVaultService.close();
+  }
+
+  @Test
+  public void shouldReturnSecretWithinDeadline() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry);
+    assertThat(deadlineVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+  }
+
+  @Test
+  public void shouldServeLastKnownSecretWhenDeadlineIsReached() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenAnswer(invocation -> {
+      release.await();
+      return entry;
+    });
+    deadlineVaultService.getSecret(PATH);
+
+    long start = System.nanoTime();
+    assertThat(deadlineVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1_000L));
+    assertThat(deadlineVaultService.getTimeoutCount(), is(1L));
+    assertThat(deadlineVaultService.getFallbackCount(), is(1L));
+  }
+
+  @Test
+  public void shouldForgetTheLastKnownSecretOfDeletedUsers() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenReturn(Collections.emptyMap()).thenAnswer(invocation -> {
+      release.await();
+      return entry;
+    });
+    deadlineVaultService.getSecret(PATH);
+    assertThat(deadlineVaultService.getSecret(PATH).isEmpty(), is(true));
+
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage(containsString("deadline exceeded"));
+    deadlineVaultService.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldNotServeLastKnownSecretsPastTheirMaxAge() {
+    FakeTicker ticker = new FakeTicker();
+    DeadlineVaultService aged = new DeadlineVaultService(vaultService, Duration.ofMillis(100), 1, 1,
+        new LastKnownSecrets(10, Duration.ofMinutes(10), ticker));
+    try {
+      when(vaultService.getSecret(PATH)).thenReturn(entry).thenAnswer(invocation -> {
+        release.await();
+        return entry;
+      });
+      aged.getSecret(PATH);
+      ticker.advance(11, TimeUnit.MINUTES);
+
+      thrown.expect(RuntimeException.class);
+      thrown.expectMessage(containsString("deadline exceeded"));
+      aged.getSecret(PATH);
+    } finally {
+      release.countDown();
+      aged.close();
+    }
+  }
+
+  @Test
+  public void shouldOpenTheBreakerBelowWithReadsPastTheDeadline() throws InterruptedException {
+    FakeTicker ticker = new FakeTicker();
+    LastKnownSecrets lastKnownSecrets = new LastKnownSecrets(10, Duration.ofMinutes(10));
+    CircuitBreakerVaultService breaker = new CircuitBreakerVaultService(vaultService, CircuitBreakerSettings.builder()
+        .window(2).slowCallThreshold(Duration.ofSeconds(1)).slowCallRatePercent(50).openDuration(Duration.ofMinutes(1))
+        .build(), lastKnownSecrets, ticker);
+    DeadlineVaultService deadline = new DeadlineVaultService(breaker, Duration.ofMillis(100), 1, 1, lastKnownSecrets);
+    try {
+      when(vaultService.getSecret(PATH)).thenReturn(entry).thenAnswer(invocation -> {
+        release.await();
+        return entry;
+      });
+      deadline.getSecret(PATH);
+      assertThat(deadline.getSecret(PATH), hasEntry("password", "alicepwd"));
+      ticker.advance(2, TimeUnit.SECONDS);
+      release.countDown();
+      for (int i = 0; i < 100 && breaker.getState() != CircuitBreakerVaultService.State.OPEN; i++) {
+        Thread.sleep(10);
+      }
+
+      assertThat(breaker.getState(), is(CircuitBreakerVaultService.State.OPEN));
+      assertThat(deadline.getSecret(PATH), hasEntry("password", "alicepwd"));
+      verify(vaultService, times(2)).getSecret(PATH);
+    } finally {
+      deadline.close();
+    }
+  }
+
+  @Test
+  public void shouldFailFastWithoutLastKnownSecret() {
+    when(vaultService.getSecret(PATH)).thenAnswer(invocation -> {
+      release.await();
+      return entry;
+    });
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage(containsString("deadline exceeded"));
+    deadlineVaultService.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldRejectWhenTooManyReadsArePending() {
+    when(vaultService.getSecret(PATH)).thenAnswer(invocation -> {
+      release.await();
+      return entry;
+    });
+    for (int i = 0; i < 2; i++) {
+      try {
+        deadlineVaultService.getSecret(PATH);
+      } catch (RuntimeException e) {
+        assertThat(e.getMessage(), containsString("deadline exceeded"));
+      }
+    }
+    thrown.expectMessage(containsString("too many pending"));
+    try {
+      deadlineVaultService.getSecret(PATH);
+    } finally {
+      assertThat(deadlineVaultService.getRejectionCount(), is(1L));
+    }
+  }
+
+  @Test
+  public void shouldPropagateVaultErrors() {
+    when(vaultService.getSecret(PATH)).thenThrow(new IllegalStateException("vault is sealed"));
+    thrown.expect(IllegalStateException.class);
+    deadlineVaultService.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldCloseDecoratedService() {
+    deadlineVaultService.close();
+    verify(vaultService).close();
+  }
+}
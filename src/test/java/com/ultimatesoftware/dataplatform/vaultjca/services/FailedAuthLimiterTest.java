@@ -0,0 +1,60 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultServiceTest.FakeTicker;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class FailedAuthLimiterTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final FailedAuthLimiter limiter = new FailedAuthLimiter(3, Duration.ofSeconds(1), ticker);
+
+  @Test
+  public void shouldThrottleAfterBurstOfFailures() {
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.tryAcquire("mallory"), is(true));
+      limiter.recordFailure("mallory");
+    }
+
+    assertThat(limiter.tryAcquire("mallory"), is(false));
+    assertThat(limiter.tryAcquire("alice"), is(true));
+    assertThat(limiter.getThrottledCount(), is(1L));
+  }
+
+  @Test
+  public void shouldAllowOneAttemptPerBackoff() {
+    for (int i = 0; i < 3; i++) {
+      limiter.recordFailure("mallory");
+    }
+    ticker.advance(1, TimeUnit.SECONDS);
+
+    assertThat(limiter.tryAcquire("mallory"), is(true));
+    limiter.recordFailure("mallory");
+    assertThat(limiter.tryAcquire("mallory"), is(false));
+  }
+
+  @Test
+  public void shouldResetOnSuccess() {
+    for (int i = 0; i < 3; i++) {
+      limiter.recordFailure("alice");
+    }
+    limiter.recordSuccess("alice");
+
+    assertThat(limiter.tryAcquire("alice"), is(true));
+  }
+
+  @Test
+  public void shouldEvictIdleBuckets() {
+    limiter.recordFailure("mallory");
+    assertThat(limiter.bucketCount(), is(1L));
+
+    ticker.advance(3, TimeUnit.SECONDS);
+
+    assertThat(limiter.bucketCount(), is(0L));
+    assertThat(limiter.tryAcquire("mallory"), is(true));
+  }
+}
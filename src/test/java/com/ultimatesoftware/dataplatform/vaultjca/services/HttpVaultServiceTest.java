@@ -2,10 +2,12 @@ package com.ultimatesoftware.dataplatform.vaultjca.services;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasKey;
 import static org.junit.Assert.assertThat;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.junit.Before;
 import org.junit.ClassRule;
@@ -61,4 +63,10 @@ public class HttpVaultServiceTest {
     assertThat(secret.size(), is(0));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void shouldListUsers() {
+    List<String> users = vaultService.listSecrets(USERS_PATH);
+    assertThat(users, hasItem(ALICE));
+  }
+
+}
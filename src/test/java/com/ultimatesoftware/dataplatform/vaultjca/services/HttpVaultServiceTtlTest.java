@@ -0,0 +1,76 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// The TTL of KV version 2 secrets through the driver, against a stub as the smoke test Vault predates custom metadata
+public class HttpVaultServiceTtlTest {
+
+  private static final String TOKEN = "root-token";
+  private HttpServer server;
+  private HttpVaultService vaultService;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/v1/", this::handle);
+    server.start();
+    vaultService = new HttpVaultService("http://localhost:" + server.getAddress().getPort(), TOKEN);
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void shouldReadTheTtlOfKvV2Secret() {
+    Map<String, String> secret = vaultService.getSecret("secret/kafka/users/carol");
+    assertThat(secret, hasEntry("password", "carolpwd"));
+    assertThat(LeasedSecret.ttl(secret), is(Duration.ofMinutes(5)));
+  }
+
+  @Test
+  public void shouldReadSecretsWithoutTtl() {
+    Map<String, String> secret = vaultService.getSecret("secret/kafka/users/alice");
+    assertThat(secret, hasEntry("password", "alicepwd"));
+    assertThat(LeasedSecret.ttl(secret), is(nullValue()));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    if (!TOKEN.equals(exchange.getRequestHeaders().getFirst("X-Vault-Token"))) {
+      respond(exchange, 403, "{\"errors\":[\"permission denied\"]}");
+    } else if (path.equals("/v1/secret/data/kafka/users/alice")) {
+      respond(exchange, 200, "{\"lease_duration\":0,\"data\":{\"data\":{\"password\":\"alicepwd\"},\"metadata\":{\"version\":1}}}");
+    } else if (path.equals("/v1/secret/data/kafka/users/carol")) {
+      respond(exchange, 200, "{\"lease_duration\":0,\"data\":{\"data\":{\"password\":\"carolpwd\"},"
+          + "\"metadata\":{\"version\":1,\"custom_metadata\":{\"ttl\":\"5m\"}}}}");
+    } else {
+      respond(exchange, 404, "{\"errors\":[]}");
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.bettercloud.vault.VaultException;
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.util.Collections;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class InstrumentedVaultServiceTest {
+
+  private static final String PATH = "secret/kafka/users/alice";
+  private static final String VAULT_GROUP = "vault-jca-vault-metrics";
+  private Metrics registry = new Metrics();
+  private VaultService vaultService = mock(VaultService.class);
+  private InstrumentedVaultService instrumentedVaultService = new InstrumentedVaultService(vaultService, new VaultJcaMetrics(registry));
+
+  @After
+  public void close() {
+    registry.close();
+  }
+
+  @Test
+  public void shouldRecordSuccessfulRequests() {
+    when(vaultService.getSecret(PATH)).thenReturn(ImmutableMap.of("password", "alicepwd"));
+    assertThat(instrumentedVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(registry.metric(registry.metricName("request-total", VAULT_GROUP)).metricValue(), is(1.0));
+  }
+
+  @Test
+  public void shouldRecordErrorsByStatus() {
+    when(vaultService.getSecret(PATH)).thenThrow(new RuntimeException(new VaultException("sealed", 503)));
+    try {
+      instrumentedVaultService.getSecret(PATH);
+    } catch (RuntimeException e) {
+      // expected
+    }
+    assertThat(registry.metric(registry.metricName("error-total", VAULT_GROUP, Collections.singletonMap("status", "503"))).metricValue(), is(1.0));
+    assertThat(registry.metric(registry.metricName("requests-in-flight", VAULT_GROUP)).metricValue(), is(0));
+  }
+
+  @Test
+  public void shouldFindStatusWithinCauses() {
+    assertThat(InstrumentedVaultService.httpStatus(new RuntimeException(new VaultException("forbidden", 403))), is(403));
+    assertThat(InstrumentedVaultService.httpStatus(new RuntimeException("connection refused")), is(0));
+  }
+}
@@ -0,0 +1,61 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+
+public class KnownUsersFilterTest {
+
+  private static final String USERS_PATH = "secret/kafka/users";
+  private VaultService vaultService = mock(VaultService.class);
+  private KnownUsersFilter knownUsersFilter = new KnownUsersFilter(vaultService, USERS_PATH);
+
+  @After
+  public void close() {
+    knownUsersFilter.close();
+  }
+
+  @Test
+  public void shouldRejectUsersNotListedInVault() {
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice", "bob"));
+    knownUsersFilter.start(60);
+
+    assertThat(knownUsersFilter.mightExist("alice"), is(true));
+    assertThat(knownUsersFilter.mightExist("bob"), is(true));
+    assertThat(knownUsersFilter.mightExist("mallory"), is(false));
+    assertThat(knownUsersFilter.getRejectedCount(), is(1L));
+  }
+
+  @Test
+  public void shouldAllowEveryoneUntilFirstListing() {
+    when(vaultService.listSecrets(USERS_PATH)).thenThrow(new RuntimeException("vault is down"));
+    knownUsersFilter.start(60);
+
+    assertThat(knownUsersFilter.mightExist("mallory"), is(true));
+  }
+
+  @Test
+  public void shouldAllowEveryoneWhenNoUserIsListed() {
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice")).thenReturn(Collections.emptyList());
+    knownUsersFilter.start(60);
+    knownUsersFilter.refresh();
+
+    assertThat(knownUsersFilter.mightExist("mallory"), is(true));
+  }
+
+  @Test
+  public void shouldKeepPreviousFilterWhenRefreshFails() {
+    when(vaultService.listSecrets(USERS_PATH)).thenReturn(Arrays.asList("alice")).thenThrow(new RuntimeException("vault is down"));
+    knownUsersFilter.start(60);
+    knownUsersFilter.refresh();
+
+    assertThat(knownUsersFilter.mightExist("alice"), is(true));
+    assertThat(knownUsersFilter.mightExist("mallory"), is(false));
+  }
+}
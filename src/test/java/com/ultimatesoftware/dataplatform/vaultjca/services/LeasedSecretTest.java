@@ -0,0 +1,49 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+public class LeasedSecretTest {
+
+  private static final Map<String, String> SECRET = Collections.singletonMap("password", "pwd");
+
+  @Test
+  public void shouldParseVaultDurations() {
+    assertThat(LeasedSecret.parseDuration("300"), is(Duration.ofMinutes(5)));
+    assertThat(LeasedSecret.parseDuration("90s"), is(Duration.ofSeconds(90)));
+    assertThat(LeasedSecret.parseDuration("1h30m"), is(Duration.ofMinutes(90)));
+    assertThat(LeasedSecret.parseDuration(" 2d "), is(Duration.ofDays(2)));
+    assertThat(LeasedSecret.parseDuration("500ms"), is(Duration.ofMillis(500)));
+  }
+
+  @Test
+  public void shouldRejectInvalidDurations() {
+    assertThat(LeasedSecret.parseDuration(null), nullValue());
+    assertThat(LeasedSecret.parseDuration(""), nullValue());
+    assertThat(LeasedSecret.parseDuration("0"), nullValue());
+    assertThat(LeasedSecret.parseDuration("-5s"), nullValue());
+    assertThat(LeasedSecret.parseDuration("5w"), nullValue());
+    assertThat(LeasedSecret.parseDuration("h"), nullValue());
+  }
+
+  @Test
+  public void shouldAttachTheTtlOnlyWhenThereIsOne() {
+    assertThat(LeasedSecret.of(SECRET, null), sameInstance(SECRET));
+    assertThat(LeasedSecret.of(Collections.emptyMap(), Duration.ofMinutes(1)).isEmpty(), is(true));
+    assertThat(LeasedSecret.ttl(SECRET), nullValue());
+
+    Map<String, String> leased = LeasedSecret.of(SECRET, Duration.ofMinutes(1));
+    assertThat(leased, hasEntry("password", "pwd"));
+    assertThat(leased.equals(SECRET), is(true));
+    assertThat(LeasedSecret.ttl(leased), is(Duration.ofMinutes(1)));
+    assertThat(LeasedSecret.ttl(LeasedSecret.cached(leased)), is(Duration.ofMinutes(1)));
+  }
+}
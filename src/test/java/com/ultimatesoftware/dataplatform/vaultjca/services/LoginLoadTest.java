@@ -0,0 +1,125 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.ultimatesoftware.dataplatform.vaultjca.VaultAuthenticationLoginCallbackHandler;
+import com.ultimatesoftware.dataplatform.vaultjca.testsupport.LoginLoadGenerator;
+import com.ultimatesoftware.dataplatform.vaultjca.testsupport.VaultSimulator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.security.auth.login.AppConfigurationEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the handler against {@link VaultSimulator} through the pooled transport, with and without cache.
+ */
+public class LoginLoadTest {
+
+  private static final String TOKEN = "root-token";
+  private static final String USERS_PATH = "secret/kafka/users";
+  private static final int USERS = 50;
+  private final VaultSimulator simulator = new VaultSimulator(TOKEN);
+  private final List<String> users = new ArrayList<>();
+  private PooledHttpVaultService transport;
+
+  @Before
+  public void init() throws Exception {
+    for (int i = 0; i < USERS; i++) {
+      users.add("user" + i);
+      simulator.put(USERS_PATH + "/user" + i, Collections.singletonMap("password", "pwd" + i));
+    }
+    simulator.put("secret/kafka/admin", ImmutableMap.of("username", "admin", "password", "admin-secret"));
+    transport = new PooledHttpVaultService(simulator.getAddress(), TOKEN, 1_000, 1_000, SSLContext.getDefault());
+  }
+
+  @After
+  public void close() {
+    simulator.close();
+  }
+
+  @Test
+  public void shouldSpeakKvV2() {
+    assertThat(transport.getSecret(USERS_PATH + "/user1"), hasEntry("password", "pwd1"));
+    assertThat(transport.getSecret(USERS_PATH + "/mallory").isEmpty(), is(true));
+    assertThat(transport.listSecrets("secret/kafka"), contains("admin", "users/"));
+
+    transport.writeSecret(USERS_PATH + "/user1", Collections.singletonMap("password", "rotated"));
+    assertThat(transport.getSecretVersion(USERS_PATH + "/user1"), is(2L));
+    simulator.delete(USERS_PATH + "/user1");
+    assertThat(transport.getSecretVersion(USERS_PATH + "/user1"), is(0L));
+    assertThat(transport.getSecret(USERS_PATH + "/user1").isEmpty(), is(true));
+
+    assertThat(simulator.getReadCount(), is(3L));
+    assertThat(simulator.getListCount(), is(1L));
+    assertThat(simulator.getMetadataReadCount(), is(2L));
+    assertThat(simulator.getWriteCount(), is(1L));
+  }
+
+  @Test
+  public void shouldInjectErrorsAndNotFound() {
+    simulator.notFoundRate(1);
+    assertThat(transport.getSecret(USERS_PATH + "/user1").isEmpty(), is(true));
+    simulator.notFoundRate(0);
+    simulator.errorRate(1);
+    try {
+      transport.getSecret(USERS_PATH + "/user1");
+      fail("Expected an injected error");
+    } catch (RuntimeException e) {
+      assertThat(e.getMessage().contains("status 500"), is(true));
+    }
+    assertThat(simulator.getInjectedErrorCount(), is(2L));
+  }
+
+  @Test
+  public void shouldReadEveryUserOnceWithCache() throws Exception {
+    simulator.latency(VaultSimulator.logNormal(Duration.ofMillis(2), Duration.ofMillis(10)));
+    CacheDecoratorVaultService cached = new CacheDecoratorVaultService(transport, CacheSettings.builder().build());
+
+    LoginLoadGenerator.Report report = new LoginLoadGenerator(handler(cached), users, user -> "pwd" + user.substring(4),
+        simulator::getReadCount).run(8, 500);
+
+    assertThat(report.getSuccesses(), is(4_000L));
+    assertThat(report.getErrors(), is(0L));
+    // Concurrent first logins of the same user share one read
+    assertThat(report.getVaultRequests(), is((long) USERS));
+    assertThat(report.getCacheHitRatio(), greaterThan(0.95));
+    assertThat(report.percentile(99), greaterThanOrEqualTo(report.percentile(50)));
+  }
+
+  @Test
+  public void shouldReadVaultOnEveryLoginWithoutCache() throws Exception {
+    simulator.errorRate(0.1);
+
+    LoginLoadGenerator.Report report = new LoginLoadGenerator(handler(transport), users, user -> "pwd" + user.substring(4),
+        simulator::getReadCount).badPasswordRate(0.2).run(4, 100);
+
+    assertThat(report.getVaultRequests(), is(400L));
+    assertThat(report.getErrors(), is(simulator.getInjectedErrorCount()));
+    assertThat(report.getSuccesses(), lessThanOrEqualTo(400L - report.getErrors()));
+    assertThat(report.getCacheHitRatio(), is(0.0));
+  }
+
+  private static VaultAuthenticationLoginCallbackHandler handler(VaultService vaultService) {
+    Map<String, String> options = ImmutableMap.of("users_path", USERS_PATH, "admin_path", "secret/kafka/admin");
+    List<AppConfigurationEntry> jaasConfigEntries = Collections.singletonList(new AppConfigurationEntry(
+        "com.ultimatesoftware.dataplatform.vaultjca.VaultLoginModule", AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options));
+    VaultAuthenticationLoginCallbackHandler handler = new VaultAuthenticationLoginCallbackHandler(vaultService) {
+    };
+    handler.configure(null, "PLAIN", jaasConfigEntries);
+    return handler;
+  }
+}
@@ -0,0 +1,155 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.fail;
+
+import com.ultimatesoftware.dataplatform.vaultjca.testsupport.VaultSimulator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import org.junit.After;
+import org.junit.Test;
+
+public class MultiEndpointVaultServiceTest {
+
+  private static final String TOKEN = "root-token";
+  private static final String PATH = "secret/kafka/users/alice";
+  private final List<VaultSimulator> nodes = new ArrayList<>();
+  private MultiEndpointVaultService vaultService;
+
+  @After
+  public void close() {
+    if (vaultService != null) {
+      vaultService.close();
+    }
+    nodes.forEach(VaultSimulator::close);
+  }
+
+  @Test
+  public void shouldRouteReadsToTheFastestEndpoint() throws Exception {
+    vaultService = cluster(3, 0, 3, Duration.ofSeconds(10));
+    nodes.get(0).latency(VaultSimulator.fixed(Duration.ofMillis(50)));
+    nodes.get(2).latency(VaultSimulator.fixed(Duration.ofMillis(50)));
+
+    for (int i = 0; i < 50; i++) {
+      assertThat(vaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    }
+
+    // Each endpoint is measured, then the fastest one serves the reads
+    assertThat(nodes.get(0).getReadCount(), greaterThanOrEqualTo(1L));
+    assertThat(nodes.get(1).getReadCount(), greaterThanOrEqualTo(40L));
+    assertThat(nodes.get(2).getReadCount(), greaterThanOrEqualTo(1L));
+    assertThat(vaultService.getHedgeCount(), is(0L));
+  }
+
+  @Test
+  public void shouldHedgeSlowReads() throws Exception {
+    vaultService = cluster(2, 90, 3, Duration.ofSeconds(10));
+    nodes.get(0).latency(VaultSimulator.fixed(Duration.ofMillis(2)));
+    nodes.get(1).latency(VaultSimulator.fixed(Duration.ofMillis(500)));
+    for (int i = 0; i < 128; i++) {
+      vaultService.getSecret(PATH);
+    }
+    assertThat(vaultService.getHedgeDelay(), notNullValue());
+    assertThat(vaultService.getHedgeDelay(), lessThan(Duration.ofMillis(100)));
+
+    // The preferred endpoint slows down then fails, the hedge sent meanwhile answers the read
+    nodes.get(0).latency(VaultSimulator.fixed(Duration.ofMillis(1_000)));
+    nodes.get(0).errorRate(1);
+    nodes.get(1).latency(VaultSimulator.fixed(Duration.ofMillis(800)));
+    long start = System.nanoTime();
+    assertThat(vaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+
+    assertThat(Duration.ofNanos(System.nanoTime() - start), lessThan(Duration.ofMillis(1_500)));
+    assertThat(vaultService.getHedgeCount(), greaterThan(0L));
+    assertThat(vaultService.getFailoverCount(), is(0L));
+  }
+
+  @Test
+  public void shouldReadSecretsMissingOnAStandbyFromTheActiveNode() throws Exception {
+    vaultService = cluster(2, 0, 3, Duration.ofSeconds(10));
+    nodes.get(0).latency(VaultSimulator.fixed(Duration.ofMillis(20)));
+    nodes.get(1).notFoundRate(1);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(vaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    }
+    assertThat(nodes.get(1).getReadCount(), greaterThanOrEqualTo(1L));
+    assertThat(nodes.get(0).getReadCount(), is(10L));
+    assertThat(vaultService.getEjectedCount(), is(0));
+  }
+
+  @Test
+  public void shouldEjectFailingEndpointAndProbeItBack() throws Exception {
+    vaultService = cluster(2, 0, 2, Duration.ofMillis(100));
+    nodes.get(0).errorRate(1);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(vaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    }
+    assertThat(nodes.get(1).getReadCount(), is(10L));
+    assertThat(vaultService.getFailoverCount(), is(2L));
+    assertThat(vaultService.getEjectionCount(), is(1L));
+    assertThat(vaultService.getEjectedCount(), is(1));
+
+    nodes.get(0).errorRate(0);
+    long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (vaultService.getEjectedCount() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertThat(vaultService.getEjectedCount(), is(0));
+    assertThat(nodes.get(0).getReadCount(), greaterThanOrEqualTo(3L));
+  }
+
+  @Test
+  public void shouldFailWhenEveryEndpointFails() throws Exception {
+    vaultService = cluster(2, 0, 3, Duration.ofSeconds(10));
+    nodes.forEach(node -> node.errorRate(1));
+
+    try {
+      vaultService.getSecret(PATH);
+      fail("Expected an injected error");
+    } catch (RuntimeException e) {
+      assertThat(e.getMessage().contains("status 500"), is(true));
+    }
+    assertThat(vaultService.getFailoverCount(), is(1L));
+  }
+
+  @Test
+  public void shouldWriteToTheFirstEndpoint() throws Exception {
+    vaultService = cluster(2, 0, 1, Duration.ofSeconds(10));
+
+    vaultService.writeSecret(PATH, Collections.singletonMap("password", "rotated"));
+    nodes.get(0).errorRate(1);
+    try {
+      vaultService.writeSecret(PATH, Collections.singletonMap("password", "rotated"));
+      fail("Expected an injected error");
+    } catch (RuntimeException e) {
+      assertThat(vaultService.getEjectedCount(), is(1));
+    }
+    vaultService.writeSecret(PATH, Collections.singletonMap("password", "rotated"));
+
+    assertThat(nodes.get(0).getWriteCount(), is(2L));
+    assertThat(nodes.get(1).getWriteCount(), is(1L));
+  }
+
+  private MultiEndpointVaultService cluster(int size, double hedgePercentile, int ejectAfterFailures, Duration ejectFor)
+      throws Exception {
+    List<VaultService> endpoints = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      VaultSimulator node = new VaultSimulator(TOKEN);
+      node.put(PATH, Collections.singletonMap("password", "alicepwd"));
+      nodes.add(node);
+      endpoints.add(new PooledHttpVaultService(node.getAddress(), TOKEN, 1_000, 2_000, SSLContext.getDefault()));
+    }
+    return new MultiEndpointVaultService(endpoints, hedgePercentile, ejectAfterFailures, ejectFor);
+  }
+}
@@ -0,0 +1,152 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class PooledHttpVaultServiceTest {
+
+  private static final String TOKEN = "root-token";
+  private HttpServer server;
+  private PooledHttpVaultService vaultService;
+  private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private final Map<String, String> written = new ConcurrentHashMap<>();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/v1/", this::handle);
+    server.start();
+    vaultService = new PooledHttpVaultService("http://localhost:" + server.getAddress().getPort(), TOKEN, 1_000, 1_000, SSLContext.getDefault());
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void shouldReadKvV2Secret() {
+    Map<String, String> secret = vaultService.getSecret("secret/kafka/users/alice");
+    assertThat(secret, hasEntry("password", "alicepwd"));
+  }
+
+  @Test
+  public void shouldReadTheTtlOfKvV2Secret() {
+    assertThat(LeasedSecret.ttl(vaultService.getSecret("secret/kafka/users/alice")), nullValue());
+    Map<String, String> secret = vaultService.getSecret("secret/kafka/users/carol");
+    assertThat(secret, hasEntry("password", "carolpwd"));
+    assertThat(LeasedSecret.ttl(secret), is(Duration.ofMinutes(5)));
+  }
+
+  @Test
+  public void shouldReturnEmptyMapWhenSecretIsMissing() {
+    assertThat(vaultService.getSecret("secret/kafka/users/mallory").isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldListKeys() {
+    assertThat(vaultService.listSecrets("secret/kafka/users"), contains("alice", "bob"));
+  }
+
+  @Test
+  public void shouldWriteKvV2Secret() {
+    vaultService.writeSecret("secret/kafka/users/carol", ImmutableMap.of("password", "carolpwd"));
+    assertThat(written.get("/v1/secret/data/kafka/users/carol"), containsString("\"carolpwd\""));
+  }
+
+  @Test
+  public void shouldReuseTheConnection() {
+    for (int i = 0; i < 10; i++) {
+      vaultService.getSecret("secret/kafka/users/alice");
+      vaultService.getSecret("secret/kafka/users/mallory");
+    }
+    assertThat(clientPorts.size(), is(1));
+  }
+
+  @Test
+  public void shouldFailOnServerErrors() {
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage(containsString("status 500"));
+    vaultService.getSecret("secret/kafka/users/broken");
+  }
+
+  @Test
+  public void shouldUseUpdatedToken() {
+    vaultService.updateToken("revoked-token");
+    thrown.expectMessage(containsString("status 403"));
+    vaultService.getSecret("secret/kafka/users/alice");
+  }
+
+  @Test
+  public void shouldReadCurrentVersion() {
+    assertThat(vaultService.getSecretVersion("secret/kafka/users/alice"), is(3L));
+    assertThat(vaultService.getSecretVersion("secret/kafka/users/bob"), is(0L));
+    assertThat(vaultService.getSecretVersion("secret/kafka/users/mallory"), is(0L));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    byte[] request = ByteStreams.toByteArray(exchange.getRequestBody());
+    String path = exchange.getRequestURI().getPath();
+    if (!TOKEN.equals(exchange.getRequestHeaders().getFirst("X-Vault-Token"))) {
+      respond(exchange, 403, "{\"errors\":[\"permission denied\"]}");
+    } else if ("POST".equals(exchange.getRequestMethod())) {
+      written.put(path, new String(request, StandardCharsets.UTF_8));
+      respond(exchange, 204, null);
+    } else if (path.equals("/v1/secret/data/kafka/users/alice")) {
+      respond(exchange, 200, "{\"data\":{\"data\":{\"password\":\"alicepwd\"},\"metadata\":{\"version\":1}}}");
+    } else if (path.equals("/v1/secret/data/kafka/users/carol")) {
+      respond(exchange, 200, "{\"data\":{\"data\":{\"password\":\"carolpwd\"},"
+          + "\"metadata\":{\"version\":1,\"custom_metadata\":{\"ttl\":\"5m\"}}}}");
+    } else if (path.equals("/v1/secret/metadata/kafka/users") && "list=true".equals(exchange.getRequestURI().getQuery())) {
+      respond(exchange, 200, "{\"data\":{\"keys\":[\"alice\",\"bob\"]}}");
+    } else if (path.equals("/v1/secret/metadata/kafka/users/alice")) {
+      respond(exchange, 200, "{\"data\":{\"current_version\":3,\"versions\":{\"3\":{\"deletion_time\":\"\",\"destroyed\":false}}}}");
+    } else if (path.equals("/v1/secret/metadata/kafka/users/bob")) {
+      respond(exchange, 200, "{\"data\":{\"current_version\":2,\"versions\":{\"2\":{\"deletion_time\":\"2019-03-01T00:00:00Z\",\"destroyed\":false}}}}");
+    } else if (path.equals("/v1/secret/data/kafka/users/broken")) {
+      respond(exchange, 500, "{\"errors\":[\"internal error\"]}");
+    } else {
+      respond(exchange, 404, "{\"errors\":[]}");
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
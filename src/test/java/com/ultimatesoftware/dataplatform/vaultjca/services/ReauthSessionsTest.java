@@ -0,0 +1,69 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultServiceTest.FakeTicker;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReauthSessionsTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final Metrics registry = new Metrics();
+  private final ReauthSessions sessions = new ReauthSessions(Duration.ofMinutes(10), 100, ticker, new VaultJcaMetrics(registry));
+
+  @After
+  public void close() {
+    registry.close();
+  }
+
+  @Test
+  public void shouldMatchTheVerifiedPasswordOnly() {
+    assertThat(sessions.matches("alice", "alicepwd".toCharArray()), is(false));
+    sessions.established("alice", "alicepwd".toCharArray(), "alicepwd");
+
+    assertThat(sessions.matches("alice", "alicepwd".toCharArray()), is(true));
+    assertThat(sessions.matches("alice", "wrong".toCharArray()), is(false));
+    assertThat(sessions.matches("bob", "alicepwd".toCharArray()), is(false));
+    assertThat(total("hit-total"), is(1.0));
+    assertThat(total("miss-total"), is(3.0));
+  }
+
+  @Test
+  public void shouldExpireSessions() {
+    sessions.established("alice", "alicepwd".toCharArray(), "alicepwd");
+    ticker.advance(11, TimeUnit.MINUTES);
+
+    assertThat(sessions.matches("alice", "alicepwd".toCharArray()), is(false));
+  }
+
+  @Test
+  public void shouldDropTheSessionWhenTheSecretChanges() {
+    sessions.established("alice", "alicepwd".toCharArray(), "$2b$12$previous");
+    sessions.observe("alice", "$2b$12$previous");
+    assertThat(sessions.matches("alice", "alicepwd".toCharArray()), is(true));
+
+    sessions.observe("alice", "$2b$12$rotated");
+    assertThat(sessions.matches("alice", "alicepwd".toCharArray()), is(false));
+    assertThat(total("invalidation-total"), is(1.0));
+  }
+
+  @Test
+  public void shouldDropTheSessionOfDeletedUsers() {
+    sessions.established("alice", "alicepwd".toCharArray(), "alicepwd");
+    sessions.established("bob", "bobpwd".toCharArray(), "bobpwd");
+    sessions.observe("alice", null);
+    sessions.invalidate("bob");
+
+    assertThat(sessions.size(), is(0L));
+  }
+
+  private Object total(String name) {
+    return registry.metric(registry.metricName(name, "vault-jca-session-metrics")).metricValue();
+  }
+}
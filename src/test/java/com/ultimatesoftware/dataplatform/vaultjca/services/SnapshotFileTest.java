@@ -0,0 +1,123 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.crypto.SecretKey;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class SnapshotFileTest {
+
+  private static final SecretKey KEY = SnapshotVaultService.key("MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void shouldKeepLatestRecordAndVersionAcrossReopen() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("vault.snapshot");
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "one"), 1L);
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "two"), 2L);
+      snapshot.put("secret/users/bob", ImmutableMap.of("password", "bobpwd"), 3L);
+    }
+
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      assertThat(snapshot.size(), is(2));
+      assertThat(snapshot.get("secret/users/alice").getSecret(), hasEntry("password", "two"));
+      assertThat(snapshot.get("secret/users/alice").getFetchedAtMillis(), is(2L));
+      assertThat(snapshot.get("secret/users/carol"), is(nullValue()));
+      snapshot.put("secret/users/carol", ImmutableMap.of("password", "carolpwd"), 4L);
+      assertThat(snapshot.get("secret/users/carol").getVersion(), is(4L));
+    }
+  }
+
+  @Test
+  public void shouldNotStorePlainSecrets() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("vault.snapshot");
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "alicepwd"), 1L);
+    }
+
+    String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    assertThat(content.contains("alicepwd"), is(false));
+    assertThat(content.contains("alice"), is(false));
+  }
+
+  @Test
+  public void shouldIgnoreTornRecord() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("vault.snapshot");
+    int end;
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "alicepwd"), 1L);
+      snapshot.put("secret/users/bob", ImmutableMap.of("password", "bobpwd"), 1L);
+      end = snapshot.usedBytes();
+    }
+    try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+      raw.seek(end - 1);
+      raw.write(0xFF);
+    }
+
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      assertThat(snapshot.get("secret/users/alice").getSecret(), hasEntry("password", "alicepwd"));
+      assertThat(snapshot.get("secret/users/bob"), is(nullValue()));
+    }
+  }
+
+  @Test
+  public void shouldKeepPreviousRecordOfPathWhenLatestIsTorn() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("vault.snapshot");
+    int start;
+    int end;
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "one"), 1L);
+      start = snapshot.usedBytes();
+      snapshot.put("secret/users/alice", ImmutableMap.of("password", "two"), 2L);
+      end = snapshot.usedBytes();
+    }
+    try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+      // Header written but not the payload
+      raw.seek(start + 12);
+      raw.write(new byte[end - start - 12]);
+    }
+
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      assertThat(snapshot.get("secret/users/alice").getSecret(), hasEntry("password", "one"));
+      assertThat(snapshot.usedBytes(), is(start));
+      snapshot.put("secret/users/bob", ImmutableMap.of("password", "bobpwd"), 3L);
+    }
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      assertThat(snapshot.get("secret/users/alice").getSecret(), hasEntry("password", "one"));
+      assertThat(snapshot.get("secret/users/bob").getSecret(), hasEntry("password", "bobpwd"));
+    }
+  }
+
+  @Test
+  public void shouldCompactSupersededRecords() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("vault.snapshot");
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      for (int i = 0; i < 5_000; i++) {
+        snapshot.put("secret/users/alice", ImmutableMap.of("password", "pwd" + i), i);
+      }
+      assertThat(snapshot.usedBytes(), lessThan(200 * 1024));
+    }
+
+    try (SnapshotFile snapshot = new SnapshotFile(file, KEY)) {
+      assertThat(snapshot.size(), is(1));
+      assertThat(snapshot.get("secret/users/alice"), is(not(nullValue())));
+      assertThat(snapshot.get("secret/users/alice").getSecret(), hasEntry("password", "pwd4999"));
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class SnapshotVaultServiceTest {
+
+  private static final String PATH = "secret/kafka/users/alice";
+  private static final SecretKey KEY = SnapshotVaultService.key("MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=");
+  private static final Duration FRESH = Duration.ZERO;
+  private static final Duration MAX_STALENESS = Duration.ofHours(1);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final MutableClock clock = new MutableClock();
+  private final Map<String, String> entry = ImmutableMap.of("password", "alicepwd");
+  private VaultService vaultService = mock(VaultService.class);
+  private Path file;
+  private SnapshotFile snapshotFile;
+  private SnapshotVaultService snapshotVaultService;
+
+  @Before
+  public void init() throws IOException {
+    file = folder.getRoot().toPath().resolve("vault.snapshot");
+    snapshotVaultService = open(vaultService, KEY);
+  }
+
+  @After
+  public void close() {
+    snapshotVaultService.close();
+  }
+
+  @Test
+  public void shouldServeSnapshotAfterRestartWithoutVault() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry);
+    snapshotVaultService.getSecret(PATH);
+    snapshotVaultService.close();
+
+    VaultService unreachable = mock(VaultService.class);
+    when(unreachable.getSecret(PATH)).thenThrow(new RuntimeException("vault down"));
+    snapshotVaultService = open(unreachable, KEY);
+
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(snapshotVaultService.getStaleHitCount(), is(1L));
+  }
+
+  @Test
+  public void shouldReadRotatedSecretFromVaultFirst() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenReturn(ImmutableMap.of("password", "newpwd"));
+    snapshotVaultService.getSecret(PATH);
+
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "newpwd"));
+    assertThat(snapshotVaultService.getStaleHitCount(), is(0L));
+  }
+
+  @Test
+  public void shouldServeFreshEntryWithoutVault() {
+    snapshotVaultService.close();
+    snapshotVaultService = new SnapshotVaultService(vaultService, new SnapshotFile(file, KEY), Duration.ofMinutes(2),
+        MAX_STALENESS, clock, Runnable::run);
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenReturn(ImmutableMap.of("password", "newpwd"));
+    snapshotVaultService.getSecret(PATH);
+
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(snapshotVaultService.getFreshHitCount(), is(1L));
+    clock.advance(Duration.ofMinutes(2));
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "newpwd"));
+  }
+
+  @Test
+  public void shouldKeepTheTtlOfSnapshotEntries() {
+    when(vaultService.getSecret(PATH)).thenReturn(LeasedSecret.of(entry, Duration.ofMinutes(5)))
+        .thenThrow(new RuntimeException("vault down"));
+    snapshotVaultService.getSecret(PATH);
+
+    assertThat(LeasedSecret.ttl(snapshotVaultService.getSecret(PATH)), is(Duration.ofMinutes(5)));
+  }
+
+  @Test
+  public void shouldNotRewriteUnchangedSecret() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry);
+    snapshotVaultService.getSecret(PATH);
+    int used = snapshotFile.usedBytes();
+
+    snapshotVaultService.getSecret(PATH);
+    clock.advance(MAX_STALENESS.dividedBy(2).minusSeconds(1));
+    snapshotVaultService.getSecret(PATH);
+    assertThat(snapshotFile.usedBytes(), is(used));
+
+    clock.advance(Duration.ofSeconds(1));
+    snapshotVaultService.getSecret(PATH);
+    assertThat(snapshotFile.usedBytes(), is(greaterThan(used)));
+  }
+
+  @Test
+  public void shouldServeStaleEntryWhenVaultFails() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenThrow(new RuntimeException("vault down"));
+    snapshotVaultService.getSecret(PATH);
+    clock.advance(MAX_STALENESS);
+
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "alicepwd"));
+  }
+
+  @Test
+  public void shouldNotServeEntriesOlderThanMaxStaleness() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenThrow(new RuntimeException("vault down"));
+    snapshotVaultService.getSecret(PATH);
+    clock.advance(MAX_STALENESS.plusSeconds(1));
+
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage("vault down");
+    snapshotVaultService.getSecret(PATH);
+  }
+
+  @Test
+  public void shouldForgetUserRemovedFromVault() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry).thenReturn(Collections.emptyMap())
+        .thenThrow(new RuntimeException("vault down"));
+    snapshotVaultService.getSecret(PATH);
+    assertThat(snapshotVaultService.getSecret(PATH), is(anEmptyMap()));
+
+    assertThat(snapshotVaultService.getSecret(PATH), is(anEmptyMap()));
+  }
+
+  @Test
+  public void shouldIgnoreSnapshotWrittenWithAnotherKey() {
+    when(vaultService.getSecret(PATH)).thenReturn(entry);
+    snapshotVaultService.getSecret(PATH);
+    snapshotVaultService.close();
+
+    VaultService other = mock(VaultService.class);
+    when(other.getSecret(PATH)).thenReturn(ImmutableMap.of("password", "fromvault"));
+    snapshotVaultService = open(other, SnapshotVaultService.key("ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA="));
+
+    assertThat(snapshotVaultService.getSecret(PATH), hasEntry("password", "fromvault"));
+  }
+
+  private SnapshotVaultService open(VaultService delegate, SecretKey key) {
+    snapshotFile = new SnapshotFile(file, key);
+    return new SnapshotVaultService(delegate, snapshotFile, FRESH, MAX_STALENESS, clock, Runnable::run);
+  }
+
+  static final class MutableClock extends Clock {
+    private Instant now = Instant.parse("2019-03-01T00:00:00Z");
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
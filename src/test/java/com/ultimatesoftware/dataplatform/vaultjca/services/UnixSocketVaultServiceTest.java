@@ -0,0 +1,174 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UnixSocketVaultServiceTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final Map<String, String> headers = new ConcurrentHashMap<>();
+  private volatile boolean closeAfterResponse;
+  private ServerSocketChannel server;
+  private UnixSocketVaultService vaultService;
+
+  @Before
+  public void startAgent() throws Exception {
+    Assume.assumeTrue(UnixSocketVaultService.isSupported());
+    Path socket = folder.getRoot().toPath().resolve("agent.sock");
+    server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+        .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+    server.bind(UnixSocketVaultService.address(socket.toString()));
+    Thread acceptor = new Thread(this::accept, "agent-stand-in");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    vaultService = new UnixSocketVaultService(socket.toString(), null, 500, 4);
+  }
+
+  @After
+  public void stopAgent() throws IOException {
+    if (server != null) {
+      vaultService.close();
+      server.close();
+    }
+  }
+
+  @Test
+  public void shouldReadKvV2SecretsOverOneConnection() {
+    for (int i = 0; i < 5; i++) {
+      assertThat(vaultService.getSecret("secret/kafka/users/alice"), hasEntry("password", "alicepwd"));
+      assertThat(vaultService.getSecret("secret/kafka/users/mallory").isEmpty(), is(true));
+    }
+    assertThat(vaultService.getSecretVersion("secret/kafka/users/alice"), is(3L));
+
+    assertThat(connections.get(), is(1));
+    assertThat(vaultService.idleConnections(), is(1));
+    assertThat(headers.containsKey("x-vault-token"), is(false));
+  }
+
+  @Test
+  public void shouldReadChunkedResponses() {
+    assertThat(vaultService.listSecrets("secret/kafka/users"), contains("alice", "bob"));
+  }
+
+  @Test
+  public void shouldReadResponsesWithoutBody() {
+    vaultService.writeSecret("secret/kafka/users/alice", Collections.singletonMap("password", "rotated"));
+    assertThat(vaultService.getSecret("secret/kafka/users/carol"), hasEntry("password", "carolpwd"));
+    assertThat(vaultService.getSecret("secret/kafka/users/alice"), hasEntry("password", "alicepwd"));
+
+    assertThat(connections.get(), is(1));
+  }
+
+  @Test
+  public void shouldReconnectWhenTheAgentClosesIdleConnections() {
+    closeAfterResponse = true;
+    assertThat(vaultService.getSecret("secret/kafka/users/alice"), hasEntry("password", "alicepwd"));
+    assertThat(vaultService.getSecret("secret/kafka/users/alice"), hasEntry("password", "alicepwd"));
+
+    assertThat(connections.get(), is(2));
+  }
+
+  @Test
+  public void shouldTimeOutWaitingForTheAgent() {
+    try {
+      vaultService.getSecret("secret/kafka/users/slow");
+      throw new AssertionError("Expected a timeout");
+    } catch (RuntimeException e) {
+      assertThat(e.getCause().getCause(), instanceOf(SocketTimeoutException.class));
+    }
+    assertThat(vaultService.idleConnections(), is(0));
+  }
+
+  private void accept() {
+    while (server.isOpen()) {
+      try {
+        SocketChannel channel = server.accept();
+        connections.incrementAndGet();
+        Thread handler = new Thread(() -> serve(channel), "agent-connection");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(SocketChannel channel) {
+    try (SocketChannel open = channel;
+         BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(open), StandardCharsets.ISO_8859_1));
+         OutputStream out = Channels.newOutputStream(open)) {
+      String requestLine;
+      while ((requestLine = in.readLine()) != null) {
+        for (String header = in.readLine(); header != null && !header.isEmpty(); header = in.readLine()) {
+          headers.put(header.substring(0, header.indexOf(':')).toLowerCase(), header.substring(header.indexOf(':') + 1).trim());
+        }
+        String path = requestLine.split(" ")[1];
+        if (requestLine.startsWith("POST")) {
+          in.skip(Long.parseLong(headers.get("content-length")));
+          out.write("HTTP/1.1 204 No Content\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+          out.flush();
+        } else if (path.equals("/v1/secret/data/kafka/users/carol")) {
+          out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+          respond(out, "200 OK", "{\"data\":{\"data\":{\"password\":\"carolpwd\"},\"metadata\":{\"version\":1}}}");
+        } else if (path.equals("/v1/secret/data/kafka/users/alice")) {
+          respond(out, "200 OK", "{\"data\":{\"data\":{\"password\":\"alicepwd\"},\"metadata\":{\"version\":3}}}");
+        } else if (path.equals("/v1/secret/metadata/kafka/users/alice")) {
+          respond(out, "200 OK", "{\"data\":{\"current_version\":3,\"versions\":{\"3\":{\"deletion_time\":\"\",\"destroyed\":false}}}}");
+        } else if (path.equals("/v1/secret/metadata/kafka/users?list=true")) {
+          String body = "{\"data\":{\"keys\":[\"alice\",\"bob\"]}}";
+          out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+              + Integer.toHexString(10) + "\r\n" + body.substring(0, 10) + "\r\n"
+              + Integer.toHexString(body.length() - 10) + "\r\n" + body.substring(10) + "\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+          out.flush();
+        } else if (path.equals("/v1/secret/data/kafka/users/slow")) {
+          Thread.sleep(2_000);
+        } else {
+          respond(out, "404 Not Found", "{\"errors\":[]}");
+        }
+        if (closeAfterResponse) {
+          return;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // Connection closed by the client
+    }
+  }
+
+  private static void respond(OutputStream out, String status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    out.write(("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1));
+    out.write(bytes);
+    out.flush();
+  }
+}
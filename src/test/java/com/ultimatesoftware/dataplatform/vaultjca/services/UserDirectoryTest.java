@@ -0,0 +1,91 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class UserDirectoryTest {
+
+  private static final String USERS_PATH = "secret/kafka/users";
+  private VaultService vaultService = mock(VaultService.class);
+  private UserDirectory userDirectory = new UserDirectory(vaultService, USERS_PATH);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @After
+  public void close() {
+    userDirectory.close();
+  }
+
+  @Test
+  public void shouldLookUpUsersInMemory() {
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd", "bob", "bobpwd"));
+    userDirectory.start(60);
+
+    assertThat(userDirectory.password("alice"), is("alicepwd"));
+    assertThat(userDirectory.password("mallory"), is(nullValue()));
+    assertThat(userDirectory.size(), is(2));
+  }
+
+  @Test
+  public void shouldSwapIndexOnRefresh() {
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd"))
+        .thenReturn(ImmutableMap.of("alice", "rotated", "carol", "carolpwd"));
+    userDirectory.start(60);
+    userDirectory.refresh();
+
+    assertThat(userDirectory.password("alice"), is("rotated"));
+    assertThat(userDirectory.password("carol"), is("carolpwd"));
+  }
+
+  @Test
+  public void shouldKeepPreviousIndexWhenRefreshFails() {
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd")).thenThrow(new RuntimeException("vault is down"));
+    userDirectory.start(60);
+    userDirectory.refresh();
+
+    assertThat(userDirectory.password("alice"), is("alicepwd"));
+  }
+
+  @Test
+  public void shouldRefreshPastTheCachedCopy() {
+    when(vaultService.getSecret(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd"));
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd"))
+        .thenReturn(ImmutableMap.of("alice", "rotated"));
+    userDirectory.start(60);
+    userDirectory.refresh();
+
+    assertThat(userDirectory.password("alice"), is("rotated"));
+    verify(vaultService, never()).getSecret(USERS_PATH);
+  }
+
+  @Test
+  public void shouldStartFromTheLastCopyWhileVaultIsDown() {
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenThrow(new RuntimeException("vault is down"));
+    when(vaultService.getSecret(USERS_PATH)).thenReturn(ImmutableMap.of("alice", "alicepwd"));
+    userDirectory.start(60);
+
+    assertThat(userDirectory.password("alice"), is("alicepwd"));
+  }
+
+  @Test
+  public void shouldFailUntilLoaded() {
+    when(vaultService.getSecretFromVault(USERS_PATH)).thenThrow(new RuntimeException("vault is down"));
+    when(vaultService.getSecret(USERS_PATH)).thenThrow(new RuntimeException("vault is down"));
+    userDirectory.start(60);
+
+    thrown.expect(IllegalStateException.class);
+    userDirectory.password("alice");
+  }
+}
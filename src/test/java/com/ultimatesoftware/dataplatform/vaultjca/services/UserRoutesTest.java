@@ -0,0 +1,122 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ultimatesoftware.dataplatform.vaultjca.metrics.VaultJcaMetrics;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+public class UserRoutesTest {
+
+  private static final Map<String, String> SECRET = Collections.singletonMap("password", "pwd");
+  private final VaultService vaultService = mock(VaultService.class);
+  private final Metrics registry = new Metrics();
+  private UserRoutes routes = new UserRoutes(vaultService, "secret/kafka/users",
+      "tenant-=secret/tenants/users; tenant-a.=kv-a/users/;tenant-b.=kv-b/users,kv-legacy/users", new VaultJcaMetrics(registry));
+
+  @After
+  public void close() {
+    routes.close();
+    registry.close();
+  }
+
+  @Test
+  public void shouldRouteByTheLongestPrefix() {
+    when(vaultService.getSecret("kv-a/users/tenant-a.app")).thenReturn(SECRET);
+    when(vaultService.getSecret("secret/tenants/users/tenant-c.app")).thenReturn(SECRET);
+    when(vaultService.getSecret("secret/kafka/users/alice")).thenReturn(SECRET);
+
+    assertThat(routes.lookup("tenant-a.app"), hasEntry("password", "pwd"));
+    assertThat(routes.lookup("tenant-c.app"), hasEntry("password", "pwd"));
+    assertThat(routes.lookup("alice"), hasEntry("password", "pwd"));
+    assertThat(routes.lookup("tenant").isEmpty(), is(true));
+
+    assertThat(routes.routesToDefault("tenant"), is(true));
+    assertThat(routes.routesToDefault("tenant-a.app"), is(false));
+    verify(vaultService).getSecret("secret/kafka/users/tenant");
+    assertThat(value("lookup-total", "tenant-a."), is(1.0));
+    assertThat(value("not-found-total", UserRoutes.DEFAULT_ROUTE), is(1.0));
+  }
+
+  @Test
+  public void shouldAnswerWithTheFirstPathHoldingTheUser() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    when(vaultService.getSecret("kv-b/users/tenant-b.app")).thenAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return Collections.emptyMap();
+    });
+    when(vaultService.getSecret("kv-legacy/users/tenant-b.app")).thenReturn(SECRET);
+
+    // Answered by the legacy mount while the first one is still pending
+    assertThat(routes.lookup("tenant-b.app"), hasEntry("password", "pwd"));
+    release.countDown();
+    assertThat(routes.lookup("tenant-b.app"), hasEntry("password", "pwd"));
+
+    verify(vaultService, timeout(1_000).times(1)).getSecret("kv-b/users/tenant-b.app");
+    verify(vaultService, times(2)).getSecret("kv-legacy/users/tenant-b.app");
+  }
+
+  @Test
+  public void shouldLookEverywhereAgainWhenTheUserMoved() {
+    when(vaultService.getSecret("kv-legacy/users/tenant-b.app")).thenReturn(SECRET);
+    routes.lookup("tenant-b.app");
+    // The read of the other path may still be running
+    verify(vaultService, timeout(1_000)).getSecret("kv-b/users/tenant-b.app");
+
+    when(vaultService.getSecret("kv-legacy/users/tenant-b.app")).thenReturn(Collections.emptyMap());
+    when(vaultService.getSecret("kv-b/users/tenant-b.app")).thenReturn(SECRET);
+    assertThat(routes.lookup("tenant-b.app"), hasEntry("password", "pwd"));
+    assertThat(routes.lookup("tenant-b.app"), hasEntry("password", "pwd"));
+
+    verify(vaultService, times(3)).getSecret("kv-b/users/tenant-b.app");
+    verify(vaultService, timeout(1_000).times(3)).getSecret("kv-legacy/users/tenant-b.app");
+  }
+
+  @Test
+  public void shouldFailWhenNotFoundAndAPathFailed() {
+    when(vaultService.getSecret("kv-b/users/tenant-b.app")).thenThrow(new RuntimeException("vault sealed"));
+    try {
+      routes.lookup("tenant-b.app");
+      fail("Expected the read failure");
+    } catch (RuntimeException e) {
+      assertThat(e.getMessage(), containsString("sealed"));
+    }
+
+    when(vaultService.getSecret("kv-legacy/users/tenant-b.app")).thenReturn(SECRET);
+    assertThat(routes.lookup("tenant-b.app"), hasEntry("password", "pwd"));
+    assertThat(value("not-found-total", "tenant-b."), is(0.0));
+  }
+
+  @Test
+  public void shouldMapPathsBackToUsers() {
+    assertThat(routes.username("kv-legacy/users/tenant-b.app"), is("tenant-b.app"));
+    assertThat(routes.username("secret/kafka/users/alice"), is("alice"));
+    assertThat(routes.username("secret/kafka/admin"), nullValue());
+    verify(vaultService, never()).getSecret("secret/kafka/users/alice");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectDuplicatedRoutes() {
+    new UserRoutes(vaultService, "secret/kafka/users", "a=kv-a/users;a=kv-b/users");
+  }
+
+  private Object value(String name, String route) {
+    return registry.metric(registry.metricName(name, "vault-jca-route-metrics", Collections.singletonMap("route", route))).metricValue();
+  }
+}
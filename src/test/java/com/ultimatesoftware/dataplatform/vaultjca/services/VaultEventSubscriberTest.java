@@ -0,0 +1,196 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.ultimatesoftware.dataplatform.vaultjca.services.CacheDecoratorVaultServiceTest.FakeTicker;
+import com.ultimatesoftware.dataplatform.vaultjca.testsupport.VaultEventStream;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import javax.net.ssl.SSLContext;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VaultEventSubscriberTest {
+
+  private static final String TOKEN = "events-token";
+  private static final Map<String, String> SECRET = ImmutableMap.of("password", "pwd");
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private final VaultService vaultService = mock(VaultService.class);
+  private final VaultEventStream stream = new VaultEventStream(TOKEN);
+  private final FakeTicker ticker = new FakeTicker();
+  private final CacheDecoratorVaultService cache = new CacheDecoratorVaultService(vaultService,
+      CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).eventsTtl(Duration.ofHours(1)).preload("secret/kafka/users").build(),
+      ticker, Runnable::run);
+
+  @After
+  public void close() {
+    cache.close();
+    stream.close();
+  }
+
+  @Test
+  public void shouldReloadWrittenAndDropDeletedSecrets() throws Exception {
+    when(vaultService.getSecret("secret/kafka/users/alice")).thenReturn(SECRET);
+    when(vaultService.getSecretFromVault("secret/kafka/users/alice")).thenReturn(ImmutableMap.of("password", "rotated"));
+    when(vaultService.getSecret("secret/kafka/users/carol")).thenReturn(SECRET);
+    when(vaultService.getSecretFromVault("secret/kafka/users/dave")).thenReturn(SECRET);
+    cache.getSecret("secret/kafka/users/alice");
+    cache.getSecret("secret/kafka/users/carol");
+    subscribe(Duration.ofSeconds(10));
+
+    stream.kvEvent("kv-v2/data-write", "secret/data/kafka/users/alice");
+    stream.kvEvent("kv-v2/metadata-delete", "secret/metadata/kafka/users/carol");
+    stream.kvEvent("kv-v2/data-write", "secret/data/kafka/users/dave");
+    stream.kvEvent("kv-v2/data-write", "secret/data/other/app");
+    waitUntil(() -> cache.events.getEventCount() == 4);
+
+    assertThat(cache.getSecret("secret/kafka/users/alice"), hasEntry("password", "rotated"));
+    assertThat(cache.cache.asMap().containsKey("secret/kafka/users/carol"), is(false));
+    assertThat(cache.getSecret("secret/kafka/users/dave"), hasEntry("password", "pwd"));
+    verify(vaultService, times(1)).getSecret("secret/kafka/users/alice");
+    verify(vaultService, times(1)).getSecretFromVault("secret/kafka/users/alice");
+    verify(vaultService, times(1)).getSecretFromVault("secret/kafka/users/carol");
+    verify(vaultService, times(1)).getSecretFromVault("secret/kafka/users/dave");
+    verify(vaultService, never()).getSecret("secret/kafka/users/dave");
+    verify(vaultService, never()).getSecretFromVault("secret/other/app");
+  }
+
+  @Test
+  public void shouldLoadUsersKnownMissingOnceWritten() throws Exception {
+    when(vaultService.getSecret("secret/kafka/users/erin")).thenReturn(Collections.emptyMap());
+    when(vaultService.getSecretFromVault("secret/kafka/users/erin")).thenReturn(SECRET);
+    assertThat(cache.getSecret("secret/kafka/users/erin").isEmpty(), is(true));
+    subscribe(Duration.ofSeconds(10));
+
+    stream.kvEvent("kv-v1/write", "secret/kafka/users/erin");
+    waitUntil(() -> cache.events.getEventCount() == 1);
+
+    assertThat(cache.getSecret("secret/kafka/users/erin"), hasEntry("password", "pwd"));
+    verify(vaultService, times(1)).getSecret("secret/kafka/users/erin");
+    verify(vaultService, times(1)).getSecretFromVault("secret/kafka/users/erin");
+  }
+
+  @Test
+  public void shouldReloadPastTheSnapshotAndTheLastKnownSecrets() throws Exception {
+    VaultService transport = mock(VaultService.class);
+    LastKnownSecrets lastKnownSecrets = new LastKnownSecrets(10, Duration.ofHours(1));
+    SnapshotVaultService snapshot = new SnapshotVaultService(
+        new DeadlineVaultService(transport, Duration.ofSeconds(5), 1, 1, lastKnownSecrets),
+        new SnapshotFile(folder.getRoot().toPath().resolve("vault.snapshot"),
+            SnapshotVaultService.key("MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=")),
+        Duration.ofHours(1), Duration.ofHours(1), Clock.systemUTC(), Runnable::run);
+    CacheDecoratorVaultService snapshotCache = new CacheDecoratorVaultService(snapshot,
+        CacheSettings.builder().expireAfterWrite(Duration.ofMinutes(2)).eventsTtl(Duration.ofHours(1)).build(), ticker, Runnable::run);
+    try {
+      when(transport.getSecret("secret/kafka/users/alice")).thenReturn(SECRET);
+      when(transport.getSecret("secret/kafka/users/bob")).thenReturn(SECRET);
+      when(transport.getSecretFromVault("secret/kafka/users/alice")).thenReturn(ImmutableMap.of("password", "rotated"));
+      when(transport.getSecretFromVault("secret/kafka/users/bob")).thenReturn(Collections.emptyMap());
+      snapshotCache.getSecret("secret/kafka/users/alice");
+      snapshotCache.getSecret("secret/kafka/users/bob");
+      snapshotCache.subscribeToEvents(stream.getAddress(), () -> TOKEN, SSLContext.getDefault(), Duration.ofSeconds(10),
+          Duration.ofMillis(10), Duration.ofMillis(50));
+      waitUntil(() -> stream.getSubscriptionCount() == 1 && snapshotCache.events.isConnected());
+
+      stream.kvEvent("kv-v2/data-write", "secret/data/kafka/users/alice");
+      stream.kvEvent("kv-v2/metadata-delete", "secret/metadata/kafka/users/bob");
+      waitUntil(() -> snapshotCache.events.getEventCount() == 2);
+
+      assertThat(snapshotCache.getSecret("secret/kafka/users/alice"), hasEntry("password", "rotated"));
+      assertThat(snapshot.getSecret("secret/kafka/users/alice"), hasEntry("password", "rotated"));
+      assertThat(lastKnownSecrets.get("secret/kafka/users/alice"), hasEntry("password", "rotated"));
+      assertThat(snapshotCache.getSecret("secret/kafka/users/bob").isEmpty(), is(true));
+      assertThat(snapshot.getSecret("secret/kafka/users/bob").isEmpty(), is(true));
+      assertThat(lastKnownSecrets.get("secret/kafka/users/bob"), is(nullValue()));
+    } finally {
+      snapshotCache.close();
+    }
+  }
+
+  @Test
+  public void shouldFallBackToTheTtlWhileTheStreamIsDown() throws Exception {
+    when(vaultService.getSecret("secret/kafka/users/alice")).thenReturn(SECRET);
+    subscribe(Duration.ofSeconds(10));
+    cache.getSecret("secret/kafka/users/alice");
+
+    ticker.advance(30, TimeUnit.MINUTES);
+    cache.getSecret("secret/kafka/users/alice");
+    verify(vaultService, times(1)).getSecret("secret/kafka/users/alice");
+
+    stream.drop();
+    waitUntil(() -> stream.getSubscriptionCount() == 2 && cache.events.isConnected());
+    ticker.advance(121, TimeUnit.SECONDS);
+    cache.getSecret("secret/kafka/users/alice");
+    verify(vaultService, times(2)).getSecret("secret/kafka/users/alice");
+    assertThat(cache.events.getConnectCount(), is(2L));
+  }
+
+  @Test
+  public void shouldReconnectWhenPingsAreNotAnswered() throws Exception {
+    subscribe(Duration.ofMillis(100));
+    stream.answerPings(false);
+    waitUntil(() -> stream.getSubscriptionCount() >= 2);
+  }
+
+  @Test
+  public void shouldRetryRefusedSubscriptions() throws Exception {
+    cache.subscribeToEvents(stream.getAddress(), () -> "wrong-token", SSLContext.getDefault(), Duration.ofSeconds(10),
+        Duration.ofMillis(10), Duration.ofMillis(50));
+    Thread.sleep(200);
+    assertThat(cache.events.isConnected(), is(false));
+    assertThat(cache.events.getConnectCount(), is(0L));
+  }
+
+  @Test
+  public void shouldMapEventsToSecretPaths() {
+    CacheDecoratorVaultService mockCache = mock(CacheDecoratorVaultService.class);
+    VaultEventSubscriber subscriber = new VaultEventSubscriber(mockCache, "http://localhost:8200", () -> TOKEN, null,
+        Duration.ofSeconds(10), Duration.ofSeconds(1), Duration.ofSeconds(1));
+
+    subscriber.apply("{\"data\":{\"event\":{\"metadata\":{\"path\":\"secret/data/kafka/users/alice\"}},\"event_type\":\"kv-v2/data-patch\"}}");
+    subscriber.apply("{\"data\":{\"event\":{\"metadata\":{\"path\":\"secret/destroy/kafka/users/bob\"}},\"event_type\":\"kv-v2/destroy\"}}");
+    subscriber.apply("{\"data\":{\"event\":{\"metadata\":{\"path\":\"kv/kafka/users/carol\"}},\"event_type\":\"kv-v1/delete\"}}");
+    subscriber.apply("{\"data\":{\"event\":{\"metadata\":{\"path\":\"database/creds/app\"}},\"event_type\":\"database/creds\"}}");
+    subscriber.apply("not json");
+
+    verify(mockCache).onSecretEvent("secret/kafka/users/alice", false);
+    verify(mockCache).onSecretEvent("secret/kafka/users/bob", true);
+    verify(mockCache).onSecretEvent("kv/kafka/users/carol", true);
+    verify(mockCache, times(3)).onSecretEvent(anyString(), anyBoolean());
+    assertThat(subscriber.getEventCount(), is(3L));
+  }
+
+  private void subscribe(Duration pingInterval) throws Exception {
+    cache.subscribeToEvents(stream.getAddress(), () -> TOKEN, SSLContext.getDefault(), pingInterval, Duration.ofMillis(10),
+        Duration.ofMillis(50));
+    waitUntil(() -> stream.getSubscriptionCount() == 1 && cache.events.isConnected());
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Condition not met within 5 sec");
+      }
+      Thread.sleep(10);
+    }
+  }
+}
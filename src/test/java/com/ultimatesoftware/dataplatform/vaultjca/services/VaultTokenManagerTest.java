@@ -0,0 +1,196 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonObject;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VaultTokenManagerTest {
+
+  private HttpServer server;
+  private String address;
+  private final AtomicInteger logins = new AtomicInteger();
+  private final AtomicInteger renewals = new AtomicInteger();
+  private final AtomicInteger lookups = new AtomicInteger();
+  private final List<String> tokens = new CopyOnWriteArrayList<>();
+  private volatile int renewStatus = 200;
+  private volatile int lookupStatus = 200;
+  private volatile boolean lookupRenewable = true;
+  private volatile long renewLease = 3600;
+  private VaultTokenManager tokenManager;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/v1/", this::handle);
+    server.start();
+    address = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void stopServer() {
+    if (tokenManager != null) {
+      tokenManager.close();
+    }
+    server.stop(0);
+  }
+
+  @Test
+  public void shouldLoginWithAppRoleWithoutToken() throws Exception {
+    tokenManager = manager(null, VaultTokenManager.Login.appRole("approle", "role", "secret"));
+    tokenManager.start();
+    assertThat(tokenManager.getToken(), is("login-token-1"));
+    assertThat(logins.get(), is(1));
+  }
+
+  @Test
+  public void shouldRenewTokenKeepingIt() throws Exception {
+    tokenManager = manager("initial-token", VaultTokenManager.Login.appRole("approle", "role", "secret"));
+    tokenManager.start();
+    tokenManager.refresh();
+
+    assertThat(renewals.get(), is(1));
+    assertThat(logins.get(), is(0));
+    assertThat(tokenManager.getToken(), is("initial-token"));
+    assertThat(tokens, is(empty()));
+  }
+
+  @Test
+  public void shouldLoginAgainWhenRenewalIsRefused() throws Exception {
+    tokenManager = manager("initial-token", VaultTokenManager.Login.appRole("approle", "role", "secret"));
+    tokenManager.start();
+    renewStatus = 403;
+    tokenManager.refresh();
+
+    assertThat(tokens, contains("login-token-1"));
+    assertThat(tokenManager.getToken(), is("login-token-1"));
+  }
+
+  @Test
+  public void shouldLoginAgainWhenLeaseReachesMaxTtl() throws Exception {
+    tokenManager = manager("initial-token", VaultTokenManager.Login.appRole("approle", "role", "secret"));
+    tokenManager.start();
+    renewLease = 60;
+    tokenManager.refresh();
+
+    assertThat(renewals.get(), is(1));
+    assertThat(tokens, contains("login-token-1"));
+  }
+
+  @Test
+  public void shouldKeepTokenWhenRenewalFailsWithoutLogin() throws Exception {
+    tokenManager = manager("initial-token", null);
+    tokenManager.start();
+    renewStatus = 503;
+    tokenManager.refresh();
+
+    assertThat(tokenManager.getToken(), is("initial-token"));
+    assertThat(tokens, is(empty()));
+  }
+
+  @Test
+  public void shouldRetryTheLookupUntilTheLeaseIsKnownWithoutLogin() throws Exception {
+    tokenManager = manager("initial-token", null);
+    lookupStatus = 503;
+    tokenManager.start();
+    tokenManager.refresh();
+    assertThat(lookups.get(), is(2));
+    assertThat(renewals.get(), is(0));
+
+    lookupStatus = 200;
+    tokenManager.refresh();
+    tokenManager.refresh();
+
+    assertThat(lookups.get(), is(3));
+    assertThat(renewals.get(), is(1));
+    assertThat(tokenManager.getToken(), is("initial-token"));
+  }
+
+  @Test
+  public void shouldStopSchedulingWhenTheTokenCanNotBeRenewedNorReplaced() throws Exception {
+    tokenManager = manager("initial-token", null);
+    lookupRenewable = false;
+    tokenManager.start();
+
+    assertThat(tokenManager.isScheduled(), is(false));
+    assertThat(renewals.get(), is(0));
+    assertThat(tokenManager.getToken(), is("initial-token"));
+  }
+
+  @Test
+  public void shouldScheduleTheRenewalOfARenewableToken() throws Exception {
+    tokenManager = manager("initial-token", null);
+    tokenManager.start();
+
+    assertThat(tokenManager.isScheduled(), is(true));
+  }
+
+  @Test
+  public void shouldSpreadRenewalsWithJitter() throws Exception {
+    tokenManager = manager("initial-token", null);
+    for (int i = 0; i < 100; i++) {
+      long delay = tokenManager.nextDelaySec(3600);
+      assertThat(delay, lessThanOrEqualTo(1800L));
+      assertThat(delay, greaterThanOrEqualTo(1440L));
+    }
+  }
+
+  private VaultTokenManager manager(String token, VaultTokenManager.Login login) throws Exception {
+    VaultTokenManager manager = new VaultTokenManager(address, token, login, 0.5, 0.2, SSLContext.getDefault());
+    manager.addListener(tokens::add);
+    return manager;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    ByteStreams.toByteArray(exchange.getRequestBody());
+    String path = exchange.getRequestURI().getPath();
+    int status = 200;
+    JsonObject body;
+    switch (path) {
+      case "/v1/auth/token/lookup-self":
+        lookups.incrementAndGet();
+        status = lookupStatus;
+        body = Json.object().add("data", Json.object().add("ttl", 3600).add("renewable", lookupRenewable));
+        break;
+      case "/v1/auth/token/renew-self":
+        renewals.incrementAndGet();
+        status = renewStatus;
+        body = auth(exchange.getRequestHeaders().getFirst("X-Vault-Token"), renewLease);
+        break;
+      case "/v1/auth/approle/login":
+        body = auth("login-token-" + logins.incrementAndGet(), 3600);
+        break;
+      default:
+        status = 404;
+        body = Json.object();
+    }
+    byte[] response = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, response.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(response);
+    }
+  }
+
+  private static JsonObject auth(String token, long lease) {
+    return Json.object().add("auth", Json.object().add("client_token", token).add("lease_duration", lease).add("renewable", true));
+  }
+}
@@ -0,0 +1,141 @@
+package com.ultimatesoftware.dataplatform.vaultjca.services;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
+
+public class VersionReconcilerTest {
+
+  private static final String ALICE = "secret/kafka/users/alice";
+  private static final String BOB = "secret/kafka/users/bob";
+  private static final String CAROL = "secret/kafka/users/carol";
+  private VaultService vaultService = mock(VaultService.class);
+  private LoadingCache<String, Map<String, String>> cache = Caffeine.newBuilder()
+      .executor(Runnable::run)
+      .build(vaultService::getSecret);
+  private VersionReconciler reconciler = new VersionReconciler(vaultService, cache, this::reload, 10);
+
+  @After
+  public void close() {
+    reconciler.close();
+  }
+
+  @Test
+  public void shouldReloadOnlyChangedSecrets() {
+    when(vaultService.getSecret(ALICE)).thenReturn(ImmutableMap.of("password", "one"));
+    when(vaultService.getSecret(BOB)).thenReturn(ImmutableMap.of("password", "bobpwd"));
+    when(vaultService.getSecretFromVault(ALICE)).thenReturn(ImmutableMap.of("password", "two"));
+    when(vaultService.getSecretVersion(ALICE)).thenReturn(1L, 2L);
+    when(vaultService.getSecretVersion(BOB)).thenReturn(1L);
+    cache.get(ALICE);
+    cache.get(BOB);
+
+    assertThat(reconciler.reconcile(), is(0));
+    assertThat(reconciler.reconcile(), is(1));
+    assertThat(reconciler.reconcile(), is(0));
+
+    assertThat(cache.get(ALICE), hasEntry("password", "two"));
+    verify(vaultService, times(1)).getSecretFromVault(ALICE);
+    verify(vaultService, never()).getSecretFromVault(BOB);
+  }
+
+  @Test
+  public void shouldCheckAgainWhenTheReloadFails() {
+    when(vaultService.getSecret(ALICE)).thenReturn(ImmutableMap.of("password", "one"));
+    when(vaultService.getSecretFromVault(ALICE)).thenThrow(new RuntimeException("vault down"))
+        .thenReturn(ImmutableMap.of("password", "two"));
+    when(vaultService.getSecretVersion(ALICE)).thenReturn(1L, 2L);
+    cache.get(ALICE);
+    reconciler.reconcile();
+
+    assertThat(reconciler.reconcile(), is(0));
+    assertThat(cache.get(ALICE), hasEntry("password", "one"));
+    assertThat(reconciler.reconcile(), is(1));
+    assertThat(cache.get(ALICE), hasEntry("password", "two"));
+  }
+
+  @Test
+  public void shouldDropSecretsDeletedFromVault() {
+    when(vaultService.getSecret(ALICE)).thenReturn(ImmutableMap.of("password", "alicepwd"));
+    when(vaultService.getSecretVersion(ALICE)).thenReturn(0L);
+    cache.get(ALICE);
+
+    assertThat(reconciler.reconcile(), is(1));
+    assertThat(cache.asMap().containsKey(ALICE), is(false));
+    verify(vaultService, never()).getSecretFromVault(ALICE);
+  }
+
+  @Test
+  public void shouldStayWithinBudget() {
+    VersionReconciler budgeted = new VersionReconciler(vaultService, cache, this::reload, 3);
+    when(vaultService.getSecret(anyString())).thenReturn(ImmutableMap.of("password", "pwd"));
+    when(vaultService.getSecretFromVault(anyString())).thenReturn(ImmutableMap.of("password", "rotated"));
+    when(vaultService.getSecretVersion(ALICE)).thenReturn(1L, 2L);
+    when(vaultService.getSecretVersion(BOB)).thenReturn(1L, 2L);
+    when(vaultService.getSecretVersion(CAROL)).thenReturn(1L, 2L);
+    cache.get(ALICE);
+    cache.get(BOB);
+    cache.get(CAROL);
+
+    // Baselines take a version read each
+    budgeted.reconcile();
+    assertThat(budgeted.getCheckCount(), is(3L));
+    // A change takes a version read and a reload, the one not fitting is checked again first on the next cycle
+    budgeted.reconcile();
+    assertThat(budgeted.getCheckCount(), is(5L));
+    assertThat(budgeted.getChangeCount(), is(1L));
+    budgeted.reconcile();
+    assertThat(budgeted.getCheckCount(), is(7L));
+    assertThat(budgeted.getChangeCount(), is(2L));
+    budgeted.reconcile();
+    assertThat(budgeted.getCheckCount(), is(8L));
+    assertThat(budgeted.getChangeCount(), is(3L));
+    verify(vaultService, times(3)).getSecretFromVault(anyString());
+    budgeted.close();
+  }
+
+  @Test
+  public void shouldResumeAfterVaultErrors() {
+    when(vaultService.getSecret(ALICE)).thenReturn(ImmutableMap.of("password", "alicepwd"));
+    when(vaultService.getSecretFromVault(ALICE)).thenReturn(ImmutableMap.of("password", "alicepwd"));
+    when(vaultService.getSecretVersion(ALICE)).thenThrow(new RuntimeException("vault down")).thenReturn(1L);
+    cache.get(ALICE);
+
+    reconciler.reconcile();
+    assertThat(reconciler.getCheckCount(), is(0L));
+    reconciler.reconcile();
+    assertThat(reconciler.getCheckCount(), is(1L));
+  }
+
+  @Test
+  public void shouldStopWhenVersionsAreNotSupported() {
+    when(vaultService.getSecret(ALICE)).thenReturn(ImmutableMap.of("password", "alicepwd"));
+    when(vaultService.getSecretVersion(ALICE)).thenThrow(new UnsupportedOperationException("not supported"));
+    cache.get(ALICE);
+
+    assertThat(reconciler.reconcile(), is(0));
+    verify(vaultService, never()).getSecret(BOB);
+  }
+
+  private void reload(String path) {
+    Map<String, String> secret = vaultService.getSecretFromVault(path);
+    if (secret.isEmpty()) {
+      cache.invalidate(path);
+    } else {
+      cache.put(path, secret);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.ultimatesoftware.dataplatform.vaultjca.testsupport;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import org.apache.kafka.common.security.auth.AuthenticateCallbackHandler;
+import org.apache.kafka.common.security.plain.PlainAuthenticateCallback;
+
+/**
+ * Drives SASL/PLAIN logins through a configured {@link AuthenticateCallbackHandler} from many threads, the way Kafka
+ * network threads do, and reports throughput, latency percentiles and how many logins reached Vault.
+ *
+ * <p>Every thread logs in users picked at random from the given list; a fraction of the logins can use a wrong
+ * password. Vault requests are read from a counter before and after the run, typically
+ * {@link VaultSimulator#getReadCount()}.</p>
+ */
+public final class LoginLoadGenerator {
+  private final AuthenticateCallbackHandler handler;
+  private final List<String> users;
+  private final Function<String, String> passwords;
+  private final LongSupplier vaultRequests;
+  private double badPasswordRate;
+
+  /**
+   * Creates the generator.
+   *
+   * @param handler the handler under test, already configured.
+   * @param users users to log in.
+   * @param passwords the right password of every user.
+   * @param vaultRequests counter of the requests reaching Vault.
+   */
+  public LoginLoadGenerator(AuthenticateCallbackHandler handler, List<String> users, Function<String, String> passwords,
+      LongSupplier vaultRequests) {
+    Preconditions.checkArgument(!users.isEmpty(), "At least one user is needed");
+    this.handler = handler;
+    this.users = new ArrayList<>(users);
+    this.passwords = passwords;
+    this.vaultRequests = vaultRequests;
+  }
+
+  /**
+   * Sets the fraction of logins sent with a wrong password.
+   */
+  public LoginLoadGenerator badPasswordRate(double badPasswordRate) {
+    this.badPasswordRate = badPasswordRate;
+    return this;
+  }
+
+  /**
+   * Runs the logins and waits for every thread to finish.
+   *
+   * @param threads number of concurrent threads.
+   * @param loginsPerThread logins done by every thread.
+   * @return the report of the run.
+   */
+  public Report run(int threads, int loginsPerThread) throws InterruptedException {
+    long[][] latencies = new long[threads][loginsPerThread];
+    LongAdder successes = new LongAdder();
+    LongAdder errors = new LongAdder();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      long[] threadLatencies = latencies[t];
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < loginsPerThread; i++) {
+          String user = users.get(random.nextInt(users.size()));
+          String password = random.nextDouble() < badPasswordRate ? "wrong-" + user : passwords.apply(user);
+          PlainAuthenticateCallback plainCallback = new PlainAuthenticateCallback(password.toCharArray());
+          long begin = System.nanoTime();
+          try {
+            handler.handle(new Callback[] {new NameCallback("username", user), plainCallback});
+            if (plainCallback.authenticated()) {
+              successes.increment();
+            }
+          } catch (Exception e) {
+            errors.increment();
+          }
+          threadLatencies[i] = System.nanoTime() - begin;
+        }
+      }, "login-load-" + t);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+    long requestsBefore = vaultRequests.getAsLong();
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = System.nanoTime() - begin;
+    long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+    return new Report(all, elapsed, successes.sum(), errors.sum(), vaultRequests.getAsLong() - requestsBefore);
+  }
+
+  /**
+   * Results of a run, latencies in microseconds.
+   */
+  public static final class Report {
+    private final long[] sortedLatencies;
+    private final long elapsedNanos;
+    private final long successes;
+    private final long errors;
+    private final long vaultRequests;
+
+    private Report(long[] sortedLatencies, long elapsedNanos, long successes, long errors, long vaultRequests) {
+      this.sortedLatencies = sortedLatencies;
+      this.elapsedNanos = elapsedNanos;
+      this.successes = successes;
+      this.errors = errors;
+      this.vaultRequests = vaultRequests;
+    }
+
+    public long getLogins() {
+      return sortedLatencies.length;
+    }
+
+    public long getSuccesses() {
+      return successes;
+    }
+
+    /**
+     * @return number of logins failed with an exception.
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getVaultRequests() {
+      return vaultRequests;
+    }
+
+    public double getThroughput() {
+      return getLogins() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * @return the fraction of logins answered without a Vault request.
+     */
+    public double getCacheHitRatio() {
+      return Math.max(0, 1 - (double) vaultRequests / getLogins());
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the latency in microseconds.
+     */
+    public long percentile(double percentile) {
+      int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+      return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))]);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d logins (%d ok, %d errors) at %.0f/s, p50 %d us, p99 %d us, p99.9 %d us, max %d us, "
+              + "%d vault requests, cache hit ratio %.3f",
+          getLogins(), successes, errors, getThroughput(), percentile(50), percentile(99), percentile(99.9), percentile(100),
+          vaultRequests, getCacheHitRatio());
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.ultimatesoftware.dataplatform.vaultjca.testsupport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the event stream of Vault ({@code /v1/sys/events/subscribe}) over a WebSocket.
+ *
+ * <p>Accepts one subscriber at a time, checking its token, and pushes the events given to {@link #kvEvent(String, String)}
+ * as text messages. Pings are answered unless {@link #answerPings(boolean)} turns them off, to play a dead connection.</p>
+ */
+public final class VaultEventStream implements Closeable {
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private final String token;
+  private final ServerSocket server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-event-stream-%d").build());
+  private final AtomicInteger subscriptions = new AtomicInteger();
+  private volatile Socket subscriber;
+  private volatile boolean answerPings = true;
+
+  /**
+   * Starts the stream on a free port of the loopback interface.
+   *
+   * @param token the token subscribers must send.
+   */
+  public VaultEventStream(String token) {
+    this.token = token;
+    try {
+      server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    } catch (IOException e) {
+      throw new RuntimeException("Error starting vault event stream", e);
+    }
+    executor.execute(this::accept);
+  }
+
+  /**
+   * @return address to give to the subscriber, e.g. {@code http://127.0.0.1:8200}.
+   */
+  public String getAddress() {
+    return "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+  }
+
+  /**
+   * @return number of subscriptions accepted so far.
+   */
+  public int getSubscriptionCount() {
+    return subscriptions.get();
+  }
+
+  public void answerPings(boolean answerPings) {
+    this.answerPings = answerPings;
+  }
+
+  /**
+   * Sends a KV event in the JSON format of Vault to the current subscriber.
+   *
+   * @param eventType e.g. {@code kv-v2/data-write}.
+   * @param path the API path of the event, e.g. {@code secret/data/kafka/users/alice}.
+   */
+  public void kvEvent(String eventType, String path) {
+    String event = "{\"id\":\"1\",\"source\":\"vault://simulator\",\"specversion\":\"1.0\",\"type\":\"*\","
+        + "\"data\":{\"event\":{\"id\":\"1\",\"metadata\":{\"path\":\"" + path + "\",\"modified\":\"true\"}},"
+        + "\"event_type\":\"" + eventType + "\",\"plugin_info\":{\"mount_path\":\"" + path.substring(0, path.indexOf('/') + 1)
+        + "\",\"plugin\":\"kv\"}},\"datacontenttype\":\"application/cloudevents\"}";
+    byte[] payload = event.getBytes(StandardCharsets.UTF_8);
+    // Split in two fragments, the second one carrying the end of the message
+    int half = payload.length / 2;
+    send(0x1, payload, 0, half, false);
+    send(0x0, payload, half, payload.length - half, true);
+  }
+
+  /**
+   * Drops the connection of the current subscriber without a close frame.
+   */
+  public void drop() {
+    Socket current = subscriber;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        // Already closed
+      }
+    }
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        executor.execute(() -> serve(socket));
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String key = null;
+      String requestToken = null;
+      readLine(in);
+      for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+        int colon = line.indexOf(':');
+        String name = line.substring(0, colon).trim();
+        if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+          key = line.substring(colon + 1).trim();
+        } else if (name.equalsIgnoreCase("X-Vault-Token")) {
+          requestToken = line.substring(colon + 1).trim();
+        }
+      }
+      if (!token.equals(requestToken)) {
+        out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        socket.close();
+        return;
+      }
+      out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+          + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      subscriber = socket;
+      subscriptions.incrementAndGet();
+      while (true) {
+        int head = in.read();
+        if (head < 0) {
+          return;
+        }
+        int second = in.readUnsignedByte();
+        int length = second & 0x7F;
+        if (length == 126) {
+          length = in.readUnsignedShort();
+        }
+        byte[] mask = new byte[4];
+        in.readFully(mask);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        for (int i = 0; i < payload.length; i++) {
+          payload[i] ^= mask[i % 4];
+        }
+        if ((head & 0x0F) == 0x9 && answerPings) {
+          send(0xA, payload, 0, payload.length, true);
+        } else if ((head & 0x0F) == 0x8) {
+          socket.close();
+          return;
+        }
+      }
+    } catch (IOException e) {
+      // The subscriber went away
+    }
+  }
+
+  private synchronized void send(int opcode, byte[] payload, int offset, int length, boolean fin) {
+    Socket current = subscriber;
+    if (current == null) {
+      throw new IllegalStateException("No subscriber");
+    }
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write((fin ? 0x80 : 0) | opcode);
+    if (length < 126) {
+      frame.write(length);
+    } else {
+      frame.write(126);
+      frame.write(length >>> 8);
+      frame.write(length);
+    }
+    frame.write(payload, offset, length);
+    try {
+      current.getOutputStream().write(frame.toByteArray());
+      current.getOutputStream().flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Error sending to the subscriber", e);
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int c = in.read(); c != '\n'; c = in.read()) {
+      if (c < 0) {
+        throw new IOException("Connection closed");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  private static String accept(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    drop();
+    try {
+      server.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+    executor.shutdownNow();
+  }
+}
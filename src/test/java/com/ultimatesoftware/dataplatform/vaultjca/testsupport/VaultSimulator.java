@@ -0,0 +1,333 @@
+package com.ultimatesoftware.dataplatform.vaultjca.testsupport;
+
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonArray;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process stand-in for Vault speaking the KV version 2 read, write, list and metadata endpoints over HTTP.
+ *
+ * <p>Every response is delayed by the programmed latency distribution and fails with a 500 or a 404 at the programmed
+ * rates, so cache and transport changes can be measured against a slow or flaky Vault without Docker. Requests are
+ * counted by type.</p>
+ */
+public final class VaultSimulator implements Closeable {
+  private static final String TOKEN_HEADER = "X-Vault-Token";
+
+  static {
+    // Without it the response headers and body of a kept alive connection wait for the delayed ack (~40ms) of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final String token;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vault-simulator-%d").build());
+  private final Map<String, Secret> secrets = new ConcurrentHashMap<>();
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder lists = new LongAdder();
+  private final LongAdder metadataReads = new LongAdder();
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder injectedErrors = new LongAdder();
+  private volatile LongSupplier latencyMicros = () -> 0;
+  private volatile double errorRate;
+  private volatile double notFoundRate;
+
+  private static final class Secret {
+    private final Map<String, String> data;
+    private final long version;
+    private final boolean deleted;
+
+    private Secret(Map<String, String> data, long version, boolean deleted) {
+      this.data = data;
+      this.version = version;
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * Starts the simulator on a free port of the loopback interface.
+   *
+   * @param token the token clients must send.
+   */
+  public VaultSimulator(String token) {
+    this.token = token;
+    try {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    } catch (IOException e) {
+      throw new RuntimeException("Error starting vault simulator", e);
+    }
+    server.createContext("/v1/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return the address to use as VAULT_ADDR.
+   */
+  public String getAddress() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Writes a new version of a secret.
+   *
+   * @param path path of the secret without the data qualifier, e.g. secret/kafka/users/alice.
+   */
+  public void put(String path, Map<String, String> data) {
+    secrets.compute(path, (key, previous) -> new Secret(new HashMap<>(data), previous == null ? 1 : previous.version + 1, false));
+  }
+
+  /**
+   * Soft deletes the current version of a secret, as {@code vault kv delete} does.
+   */
+  public void delete(String path) {
+    secrets.computeIfPresent(path, (key, previous) -> new Secret(Collections.emptyMap(), previous.version, true));
+  }
+
+  /**
+   * Programs the delay of every response.
+   *
+   * @param latencyMicros supplier of delays in microseconds, called once per request.
+   */
+  public void latency(LongSupplier latencyMicros) {
+    this.latencyMicros = latencyMicros;
+  }
+
+  /**
+   * Programs the fraction of requests failing with a 500.
+   */
+  public void errorRate(double errorRate) {
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Programs the fraction of reads answered with a 404 even when the secret exists.
+   */
+  public void notFoundRate(double notFoundRate) {
+    this.notFoundRate = notFoundRate;
+  }
+
+  /**
+   * @return the same delay for every request.
+   */
+  public static LongSupplier fixed(Duration latency) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(latency.toNanos());
+    return () -> micros;
+  }
+
+  /**
+   * @return delays uniformly distributed between min and max.
+   */
+  public static LongSupplier uniform(Duration min, Duration max) {
+    long minMicros = TimeUnit.NANOSECONDS.toMicros(min.toNanos());
+    long maxMicros = TimeUnit.NANOSECONDS.toMicros(max.toNanos());
+    return () -> ThreadLocalRandom.current().nextLong(minMicros, maxMicros + 1);
+  }
+
+  /**
+   * @return log-normal delays with the given median and 99th percentile, the usual long tail of a remote service.
+   */
+  public static LongSupplier logNormal(Duration median, Duration p99) {
+    double mu = Math.log(TimeUnit.NANOSECONDS.toMicros(median.toNanos()));
+    // 2.326 is the 99th percentile of the standard normal distribution
+    double sigma = (Math.log(TimeUnit.NANOSECONDS.toMicros(p99.toNanos())) - mu) / 2.326;
+    return () -> (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+  }
+
+  /**
+   * @return number of secret reads, failed ones included.
+   */
+  public long getReadCount() {
+    return reads.sum();
+  }
+
+  /**
+   * @return number of list requests.
+   */
+  public long getListCount() {
+    return lists.sum();
+  }
+
+  /**
+   * @return number of metadata reads.
+   */
+  public long getMetadataReadCount() {
+    return metadataReads.sum();
+  }
+
+  /**
+   * @return number of secret writes.
+   */
+  public long getWriteCount() {
+    return writes.sum();
+  }
+
+  /**
+   * @return number of requests failed or answered with a 404 on purpose.
+   */
+  public long getInjectedErrorCount() {
+    return injectedErrors.sum();
+  }
+
+  /**
+   * @return number of requests of every type.
+   */
+  public long getRequestCount() {
+    return reads.sum() + lists.sum() + metadataReads.sum() + writes.sum();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    byte[] request = ByteStreams.toByteArray(exchange.getRequestBody());
+    String[] parts = exchange.getRequestURI().getPath().substring("/v1/".length()).split("/", 3);
+    String query = exchange.getRequestURI().getQuery();
+    boolean list = "LIST".equals(exchange.getRequestMethod()) || "list=true".equals(query);
+    boolean write = "POST".equals(exchange.getRequestMethod()) || "PUT".equals(exchange.getRequestMethod());
+    if (parts.length < 2) {
+      respond(exchange, 404, errors());
+      return;
+    }
+    String path = parts.length == 3 && !parts[2].isEmpty() ? parts[0] + "/" + parts[2] : parts[0];
+    if (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    String kind = parts[1];
+    if (write) {
+      writes.increment();
+    } else if (list) {
+      lists.increment();
+    } else if ("metadata".equals(kind)) {
+      metadataReads.increment();
+    } else {
+      reads.increment();
+    }
+
+    delay();
+    if (!token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+      respond(exchange, 403, errors("permission denied"));
+      return;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      injectedErrors.increment();
+      respond(exchange, 500, errors("internal error"));
+      return;
+    }
+    if ("data".equals(kind) && write) {
+      JsonValue data = Json.parse(new String(request, StandardCharsets.UTF_8)).asObject().get("data");
+      Map<String, String> value = new HashMap<>();
+      data.asObject().forEach(member -> value.put(member.getName(), member.getValue().asString()));
+      put(path, value);
+      respond(exchange, 200, Json.object().add("data", Json.object().add("version", secrets.get(path).version)));
+    } else if ("metadata".equals(kind) && list) {
+      respondList(exchange, path);
+    } else if ("metadata".equals(kind)) {
+      respondMetadata(exchange, secrets.get(path));
+    } else if ("data".equals(kind)) {
+      Secret secret = secrets.get(path);
+      if (secret == null || secret.deleted || (notFoundRate > 0 && random.nextDouble() < notFoundRate)) {
+        if (secret != null && !secret.deleted) {
+          injectedErrors.increment();
+        }
+        respond(exchange, 404, errors());
+        return;
+      }
+      JsonObject data = Json.object();
+      secret.data.forEach(data::add);
+      respond(exchange, 200, Json.object().add("data", Json.object()
+          .add("data", data)
+          .add("metadata", Json.object().add("version", secret.version))));
+    } else {
+      respond(exchange, 404, errors());
+    }
+  }
+
+  private void respondList(HttpExchange exchange, String path) throws IOException {
+    String prefix = path + "/";
+    TreeSet<String> keys = new TreeSet<>();
+    for (String candidate : secrets.keySet()) {
+      if (candidate.startsWith(prefix) && !secrets.get(candidate).deleted) {
+        String rest = candidate.substring(prefix.length());
+        int slash = rest.indexOf('/');
+        keys.add(slash < 0 ? rest : rest.substring(0, slash + 1));
+      }
+    }
+    if (keys.isEmpty()) {
+      respond(exchange, 404, errors());
+      return;
+    }
+    JsonArray array = Json.array().asArray();
+    keys.forEach(array::add);
+    respond(exchange, 200, Json.object().add("data", Json.object().add("keys", array)));
+  }
+
+  private void respondMetadata(HttpExchange exchange, Secret secret) throws IOException {
+    if (secret == null) {
+      respond(exchange, 404, errors());
+      return;
+    }
+    JsonObject version = Json.object()
+        .add("deletion_time", secret.deleted ? "2019-03-01T00:00:00Z" : "")
+        .add("destroyed", false);
+    respond(exchange, 200, Json.object().add("data", Json.object()
+        .add("current_version", secret.version)
+        .add("versions", Json.object().add(String.valueOf(secret.version), version))));
+  }
+
+  private void delay() {
+    long micros = latencyMicros.getAsLong();
+    if (micros <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.MICROSECONDS.sleep(micros);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static JsonObject errors(String... messages) {
+    JsonArray array = Json.array().asArray();
+    for (String message : messages) {
+      array.add(message);
+    }
+    return Json.object().add("errors", array);
+  }
+
+  private static void respond(HttpExchange exchange, int status, JsonValue body) throws IOException {
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}